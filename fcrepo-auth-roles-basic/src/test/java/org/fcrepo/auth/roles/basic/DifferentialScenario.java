@@ -0,0 +1,315 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.basic;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableMap;
+import static org.fcrepo.auth.roles.basic.BasicRolesAuthorizationDelegate.EVERYONE_NAME;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A random authorization problem: a small tree, the ACLs on some of its nodes, and the questions to ask about it.
+ * Paths are relative to the root of the scenario, which is the empty path. Scenarios are immutable; shrinking
+ * produces smaller copies.
+ */
+public final class DifferentialScenario {
+
+    private static final String[] PRINCIPALS = { "alice", "bob", "carol", EVERYONE_NAME };
+
+    // "auditor" is not a role the basic delegate knows
+    private static final String[] ROLES = { "reader", "writer", "admin", "auditor" };
+
+    private static final String[][] ACTIONS = { { "read" }, { "add_node" }, { "set_property" }, { "remove" },
+            { "remove_child_nodes" }, { "read", "add_node" } };
+
+    private final List<String> nodes;
+
+    private final Map<String, Map<String, Set<String>>> acls;
+
+    private final List<Query> queries;
+
+    private DifferentialScenario(final List<String> nodes, final Map<String, Map<String, Set<String>>> acls,
+            final List<Query> queries) {
+        this.nodes = unmodifiableList(nodes);
+        this.acls = unmodifiableMap(acls);
+        this.queries = unmodifiableList(queries);
+    }
+
+    /**
+     * @param random the source of randomness
+     * @param maxNodes the largest number of nodes, including the root
+     * @param maxQueries the largest number of queries
+     * @return a random scenario
+     */
+    public static DifferentialScenario random(final Random random, final int maxNodes, final int maxQueries) {
+        final List<String> nodes = new ArrayList<>();
+        nodes.add("");
+        final int size = 1 + random.nextInt(maxNodes);
+        for (int i = 1; i < size; i++) {
+            final String parent = nodes.get(random.nextInt(nodes.size()));
+            nodes.add(parent.isEmpty() ? "n" + i : parent + "/n" + i);
+        }
+        final Map<String, Map<String, Set<String>>> acls = new TreeMap<>();
+        for (final String node : nodes) {
+            if (random.nextInt(3) == 0) {
+                final Map<String, Set<String>> acl = new TreeMap<>();
+                final int principals = 1 + random.nextInt(3);
+                for (int i = 0; i < principals; i++) {
+                    final Set<String> roles = acl.computeIfAbsent(pick(random, PRINCIPALS), p -> new LinkedHashSet<>());
+                    roles.add(pick(random, ROLES));
+                    if (random.nextInt(4) == 0) {
+                        roles.add(pick(random, ROLES));
+                    }
+                }
+                acls.put(node, acl);
+            }
+        }
+        final List<Query> queries = new ArrayList<>();
+        final int count = 1 + random.nextInt(maxQueries);
+        for (int i = 0; i < count; i++) {
+            final List<String> principals = new ArrayList<>();
+            for (final String principal : PRINCIPALS) {
+                // everyone is added to every request, as the authentication provider would
+                if (!EVERYONE_NAME.equals(principal) && random.nextBoolean()) {
+                    principals.add(principal);
+                }
+            }
+            String path = nodes.get(random.nextInt(nodes.size()));
+            if (random.nextInt(5) == 0) {
+                // a node that does not exist yet, as when checking whether it may be created
+                path = path.isEmpty() ? "missing" : path + "/missing";
+            }
+            queries.add(new Query(principals, path, ACTIONS[random.nextInt(ACTIONS.length)]));
+        }
+        return new DifferentialScenario(nodes, acls, queries);
+    }
+
+    private static String pick(final Random random, final String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    /**
+     * @return relative paths of the nodes, parents before children, starting with the root
+     */
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return the roles of each principal, by relative path of the node carrying the ACL
+     */
+    public Map<String, Map<String, Set<String>>> getAcls() {
+        return acls;
+    }
+
+    /**
+     * @return the questions to ask
+     */
+    public List<Query> getQueries() {
+        return queries;
+    }
+
+    /**
+     * @param index a query index
+     * @return this scenario with only that query
+     */
+    DifferentialScenario withOnlyQuery(final int index) {
+        return new DifferentialScenario(nodes, acls, asList(queries.get(index)));
+    }
+
+    /**
+     * Every scenario one step smaller than this one, most aggressive first: without a subtree, without an ACL,
+     * without a principal or role in an ACL, without a query, or with a query asking for less.
+     *
+     * @return the smaller scenarios
+     */
+    List<DifferentialScenario> shrinks() {
+        final List<DifferentialScenario> shrinks = new ArrayList<>();
+        for (final String node : nodes) {
+            if (!node.isEmpty()) {
+                shrinks.add(withoutSubtree(node));
+            }
+        }
+        for (final String node : acls.keySet()) {
+            final Map<String, Map<String, Set<String>>> fewer = copyAcls();
+            fewer.remove(node);
+            shrinks.add(new DifferentialScenario(nodes, fewer, queries));
+        }
+        acls.forEach((node, acl) -> acl.forEach((principal, roles) -> {
+            if (acl.size() > 1) {
+                final Map<String, Map<String, Set<String>>> fewer = copyAcls();
+                fewer.get(node).remove(principal);
+                shrinks.add(new DifferentialScenario(nodes, fewer, queries));
+            }
+            if (roles.size() > 1) {
+                for (final String role : roles) {
+                    final Map<String, Map<String, Set<String>>> fewer = copyAcls();
+                    fewer.get(node).get(principal).remove(role);
+                    shrinks.add(new DifferentialScenario(nodes, fewer, queries));
+                }
+            }
+        }));
+        for (int i = 0; i < queries.size() && queries.size() > 1; i++) {
+            final List<Query> fewer = new ArrayList<>(queries);
+            fewer.remove(i);
+            shrinks.add(new DifferentialScenario(nodes, acls, fewer));
+        }
+        for (int i = 0; i < queries.size(); i++) {
+            for (final Query smaller : queries.get(i).shrinks()) {
+                final List<Query> changed = new ArrayList<>(queries);
+                changed.set(i, smaller);
+                shrinks.add(new DifferentialScenario(nodes, acls, changed));
+            }
+        }
+        return shrinks;
+    }
+
+    private DifferentialScenario withoutSubtree(final String subtree) {
+        final List<String> remaining = new ArrayList<>();
+        for (final String node : nodes) {
+            if (!within(node, subtree)) {
+                remaining.add(node);
+            }
+        }
+        final Map<String, Map<String, Set<String>>> remainingAcls = copyAcls();
+        remainingAcls.keySet().removeIf(node -> within(node, subtree));
+        // queries below the subtree stay, and now ask about nodes that do not exist
+        return new DifferentialScenario(remaining, remainingAcls, queries);
+    }
+
+    private static boolean within(final String node, final String subtree) {
+        return node.equals(subtree) || node.startsWith(subtree + "/");
+    }
+
+    private Map<String, Map<String, Set<String>>> copyAcls() {
+        final Map<String, Map<String, Set<String>>> copy = new TreeMap<>();
+        acls.forEach((node, acl) -> {
+            final Map<String, Set<String>> aclCopy = new TreeMap<>();
+            acl.forEach((principal, roles) -> aclCopy.put(principal, new LinkedHashSet<>(roles)));
+            copy.put(node, aclCopy);
+        });
+        return copy;
+    }
+
+    /**
+     * @return the number of nodes, ACL entries and query principals, which shrinking reduces
+     */
+    int size() {
+        int size = nodes.size() + queries.size();
+        for (final Map<String, Set<String>> acl : acls.values()) {
+            for (final Set<String> roles : acl.values()) {
+                size += roles.size();
+            }
+        }
+        for (final Query query : queries) {
+            size += query.principals.size() + query.actions.length;
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (final String node : nodes) {
+            builder.append("  node /").append(node);
+            if (acls.containsKey(node)) {
+                builder.append(" acl ").append(acls.get(node));
+            }
+            builder.append('\n');
+        }
+        for (final Query query : queries) {
+            builder.append("  ").append(query).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Whether the given principals, plus everyone, may perform the actions on a path.
+     */
+    public static final class Query {
+
+        private final List<String> principals;
+
+        private final String path;
+
+        private final String[] actions;
+
+        private Query(final List<String> principals, final String path, final String[] actions) {
+            this.principals = unmodifiableList(principals);
+            this.path = path;
+            this.actions = actions;
+        }
+
+        /**
+         * @return the names of the principals, not including everyone
+         */
+        public List<String> getPrincipals() {
+            return principals;
+        }
+
+        /**
+         * @return the relative path
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the actions
+         */
+        public String[] getActions() {
+            return actions.clone();
+        }
+
+        private List<Query> shrinks() {
+            final List<Query> shrinks = new ArrayList<>();
+            for (final String principal : principals) {
+                final List<String> fewer = new ArrayList<>(principals);
+                fewer.remove(principal);
+                shrinks.add(new Query(fewer, path, actions));
+            }
+            if (actions.length > 1) {
+                for (int i = 0; i < actions.length; i++) {
+                    final List<String> fewer = new ArrayList<>(asList(actions));
+                    fewer.remove(i);
+                    shrinks.add(new Query(principals, path, fewer.toArray(new String[fewer.size()])));
+                }
+            }
+            return shrinks;
+        }
+
+        @Override
+        public String toString() {
+            final Map<String, Object> fields = new LinkedHashMap<>();
+            fields.put("principals", principals);
+            fields.put("path", "/" + path);
+            fields.put("actions", Arrays.toString(actions));
+            return "query " + fields;
+        }
+    }
+}
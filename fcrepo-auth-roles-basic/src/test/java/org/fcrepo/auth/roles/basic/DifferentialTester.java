@@ -0,0 +1,364 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.basic;
+
+import static org.fcrepo.auth.common.FedoraAuthorizationDelegate.FEDORA_ALL_PRINCIPALS;
+import static org.fcrepo.auth.common.FedoraAuthorizationDelegate.FEDORA_USER_PRINCIPAL;
+import static org.fcrepo.auth.roles.common.Constants.registerPrefixes;
+import static org.fcrepo.http.commons.test.util.TestHelpers.setField;
+
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.common.FedoraAuthorizationDelegate;
+import org.fcrepo.auth.roles.common.AccessRoles;
+import org.fcrepo.auth.roles.common.AccessRolesProvider;
+import org.fcrepo.auth.roles.common.RbAclAccessRolesProvider;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.FedoraSession;
+import org.fcrepo.kernel.modeshape.FedoraSessionImpl;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.ModeShapeEngine;
+import org.modeshape.jcr.RepositoryConfiguration;
+import org.modeshape.jcr.api.nodetype.NodeTypeManager;
+import org.modeshape.jcr.value.PathFactory;
+
+/**
+ * Compares the decisions of a candidate authorization engine with the reference engine, the tree walk of
+ * {@link RbAclAccessRolesProvider} under {@link BasicRolesAuthorizationDelegate}, on random
+ * {@link DifferentialScenario}s. Each engine gets its own in-memory repository, and every scenario is written into it
+ * through that engine's own provider, so engines that index ACLs as they are written are tested too. When the
+ * engines disagree, the scenario is shrunk to the smallest one on which they still disagree.
+ */
+public class DifferentialTester implements AutoCloseable {
+
+    private static final PathFactory PATHS = new ExecutionContext().getValueFactories().getPathFactory();
+
+    private final Side reference;
+
+    private final Side candidate;
+
+    private int written;
+
+    /**
+     * An authorization engine: a provider, and a delegate reading ACLs through it.
+     */
+    public interface Engine {
+
+        /**
+         * @return a new provider
+         */
+        AccessRolesProvider provider();
+
+        /**
+         * @param provider the provider made by {@link #provider()}
+         * @param sessionFactory supplies internal sessions on the engine's repository
+         * @return a new delegate wired to them
+         */
+        FedoraAuthorizationDelegate delegate(final AccessRolesProvider provider, final SessionFactory sessionFactory);
+    }
+
+    /**
+     * @return the reference engine
+     */
+    public static Engine reference() {
+        return new Engine() {
+
+            @Override
+            public AccessRolesProvider provider() {
+                return new RbAclAccessRolesProvider();
+            }
+
+            @Override
+            public FedoraAuthorizationDelegate delegate(final AccessRolesProvider provider,
+                    final SessionFactory sessionFactory) {
+                final BasicRolesAuthorizationDelegate delegate = new BasicRolesAuthorizationDelegate();
+                setField(delegate, "accessRolesProvider", provider);
+                setField(delegate, "sessionFactory", sessionFactory);
+                return delegate;
+            }
+        };
+    }
+
+    /**
+     * Start a repository for each engine.
+     *
+     * @param candidate the engine to compare with the reference
+     * @throws Exception if a repository cannot be started
+     */
+    public DifferentialTester(final Engine candidate) throws Exception {
+        this(reference(), candidate);
+    }
+
+    /**
+     * Start a repository for each engine.
+     *
+     * @param reference the engine whose decisions are taken as correct
+     * @param candidate the engine to compare with it
+     * @throws Exception if a repository cannot be started
+     */
+    public DifferentialTester(final Engine reference, final Engine candidate) throws Exception {
+        this.reference = new Side(reference);
+        this.candidate = new Side(candidate);
+    }
+
+    /**
+     * Compare the engines on random scenarios.
+     *
+     * @param seed the seed of the first scenario; scenario {@code i} uses {@code seed + i}, so any failure can be
+     *        replayed alone
+     * @param scenarios the number of scenarios
+     * @param maxNodes the largest tree, including its root
+     * @param maxQueries the most queries per scenario
+     * @return the first disagreement, shrunk, or null if the engines always agreed
+     * @throws RepositoryException if a scenario cannot be written
+     */
+    public Mismatch run(final long seed, final int scenarios, final int maxNodes, final int maxQueries)
+            throws RepositoryException {
+        for (int i = 0; i < scenarios; i++) {
+            final DifferentialScenario scenario =
+                    DifferentialScenario.random(new Random(seed + i), maxNodes, maxQueries);
+            final Mismatch mismatch = check(scenario);
+            if (mismatch != null) {
+                return shrink(mismatch, seed + i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param scenario a scenario
+     * @return the first query on which the engines disagree, or null if they agree on all of them
+     * @throws RepositoryException if the scenario cannot be written
+     */
+    public Mismatch check(final DifferentialScenario scenario) throws RepositoryException {
+        final List<String> expected = reference.decide(scenario, ++written);
+        final List<String> actual = candidate.decide(scenario, written);
+        for (int i = 0; i < expected.size(); i++) {
+            if (!expected.get(i).equals(actual.get(i))) {
+                return new Mismatch(scenario, i, expected.get(i), actual.get(i), 0);
+            }
+        }
+        return null;
+    }
+
+    private Mismatch shrink(final Mismatch found, final long seed) throws RepositoryException {
+        Mismatch smallest = check(found.scenario.withOnlyQuery(found.query));
+        if (smallest == null) {
+            // the disagreement depends on earlier queries, e.g. through a cache; keep them all
+            smallest = found;
+        }
+        boolean shrunk = true;
+        while (shrunk) {
+            shrunk = false;
+            for (final DifferentialScenario smaller : smallest.scenario.shrinks()) {
+                final Mismatch mismatch = check(smaller);
+                if (mismatch != null) {
+                    smallest = mismatch;
+                    shrunk = true;
+                    break;
+                }
+            }
+        }
+        return new Mismatch(smallest.scenario, smallest.query, smallest.expected, smallest.actual, seed);
+    }
+
+    @Override
+    public void close() throws Exception {
+        reference.close();
+        candidate.close();
+    }
+
+    /**
+     * A query on which the engines disagree.
+     */
+    public static final class Mismatch {
+
+        private final DifferentialScenario scenario;
+
+        private final int query;
+
+        private final String expected;
+
+        private final String actual;
+
+        private final long seed;
+
+        private Mismatch(final DifferentialScenario scenario, final int query, final String expected,
+                final String actual, final long seed) {
+            this.scenario = scenario;
+            this.query = query;
+            this.expected = expected;
+            this.actual = actual;
+            this.seed = seed;
+        }
+
+        /**
+         * @return the scenario, shrunk when reported by {@link DifferentialTester#run}
+         */
+        public DifferentialScenario getScenario() {
+            return scenario;
+        }
+
+        /**
+         * @return the reference decision
+         */
+        public String getExpected() {
+            return expected;
+        }
+
+        /**
+         * @return the candidate decision
+         */
+        public String getActual() {
+            return actual;
+        }
+
+        @Override
+        public String toString() {
+            return "Engines disagree on " + scenario.getQueries().get(query) + ": reference " + expected +
+                    ", candidate " + actual + "\nMinimal scenario, shrunk from seed " + seed + ":\n" + scenario;
+        }
+    }
+
+    /**
+     * One engine and its repository.
+     */
+    private static final class Side implements AutoCloseable {
+
+        private final ModeShapeEngine modeshape = new ModeShapeEngine();
+
+        private final Session session;
+
+        private final AccessRolesProvider provider;
+
+        private final FedoraAuthorizationDelegate delegate;
+
+        private Side(final Engine engine) throws Exception {
+            modeshape.start();
+            session = modeshape.deploy(RepositoryConfiguration.read("{ \"name\" : \"differential-" +
+                    UUID.randomUUID() + "\" }")).login();
+            ((NodeTypeManager) session.getWorkspace().getNodeTypeManager())
+                    .registerNodeTypes(AccessRoles.class.getResource("/cnd/access-control.cnd"), true);
+            registerPrefixes(session);
+            final FedoraSession internal = new FedoraSessionImpl(session);
+            provider = engine.provider();
+            delegate = engine.delegate(provider, new SessionFactory() {
+
+                @Override
+                public FedoraSession getInternalSession() {
+                    return internal;
+                }
+            });
+        }
+
+        /**
+         * Write a scenario below a fresh root and answer its queries.
+         */
+        private List<String> decide(final DifferentialScenario scenario, final int number)
+                throws RepositoryException {
+            final String root = "/scenario-" + number;
+            for (final String node : scenario.getNodes()) {
+                final String path = node.isEmpty() ? root : root + "/" + node;
+                final int slash = path.lastIndexOf('/');
+                final Node parent = slash == 0 ? session.getRootNode() : session.getNode(path.substring(0, slash));
+                parent.addNode(path.substring(slash + 1), "nt:unstructured");
+            }
+            for (final Map.Entry<String, Map<String, Set<String>>> acl : scenario.getAcls().entrySet()) {
+                final String node = acl.getKey();
+                provider.postRoles(session.getNode(node.isEmpty() ? root : root + "/" + node), acl.getValue());
+            }
+            session.save();
+
+            final List<String> decisions = new ArrayList<>();
+            for (final DifferentialScenario.Query query : scenario.getQueries()) {
+                final String path = query.getPath().isEmpty() ? root : root + "/" + query.getPath();
+                try {
+                    decisions.add(delegate.hasPermission(userSession(query), PATHS.create(path), query.getActions())
+                            ? "permit" : "deny");
+                } catch (final RuntimeException e) {
+                    decisions.add("error " + e.getClass().getSimpleName());
+                }
+            }
+            return decisions;
+        }
+
+        private Session userSession(final DifferentialScenario.Query query) {
+            final Set<Principal> all = new HashSet<>();
+            for (final String name : query.getPrincipals()) {
+                all.add(principal(name));
+            }
+            all.add(delegate.getEveryonePrincipal());
+            final Principal user = query.getPrincipals().isEmpty() ? delegate.getEveryonePrincipal() :
+                    principal(query.getPrincipals().get(0));
+            return (Session) Proxy.newProxyInstance(DifferentialTester.class.getClassLoader(),
+                    new Class<?>[] { Session.class }, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "getAttribute":
+                                if (FEDORA_USER_PRINCIPAL.equals(args[0])) {
+                                    return user;
+                                }
+                                return FEDORA_ALL_PRINCIPALS.equals(args[0]) ? all : null;
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+
+        private static Principal principal(final String name) {
+            return new Principal() {
+
+                @Override
+                public String getName() {
+                    return name;
+                }
+
+                @Override
+                public boolean equals(final Object other) {
+                    return other instanceof Principal && name.equals(((Principal) other).getName());
+                }
+
+                @Override
+                public int hashCode() {
+                    return name.hashCode();
+                }
+            };
+        }
+
+        @Override
+        public void close() throws Exception {
+            session.logout();
+            modeshape.shutdown().get();
+        }
+    }
+}
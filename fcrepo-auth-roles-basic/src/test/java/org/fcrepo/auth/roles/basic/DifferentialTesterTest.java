@@ -0,0 +1,91 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.basic;
+
+import static org.fcrepo.auth.roles.common.AccessRolesProvider.DEFAULT_ACCESS_ROLES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.common.FedoraAuthorizationDelegate;
+import org.fcrepo.auth.roles.common.AccessRolesProvider;
+import org.fcrepo.auth.roles.common.RbAclAccessRolesProvider;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.junit.Test;
+import org.modeshape.jcr.value.Path;
+
+public class DifferentialTesterTest {
+
+    @Test
+    public void testReferenceAgreesWithItself() throws Exception {
+        try (final DifferentialTester tester = new DifferentialTester(DifferentialTester.reference())) {
+            final DifferentialTester.Mismatch mismatch = tester.run(1L, 50, 8, 6);
+            assertNull(String.valueOf(mismatch), mismatch);
+        }
+    }
+
+    @Test
+    public void testFindsAndShrinksDisagreement() throws Exception {
+        try (final DifferentialTester tester = new DifferentialTester(new IgnoresInheritance())) {
+            final DifferentialTester.Mismatch mismatch = tester.run(1L, 50, 8, 6);
+            assertNotNull("An engine that ignores inherited ACLs must be caught", mismatch);
+            assertEquals(1, mismatch.getScenario().getQueries().size());
+            assertTrue("Expected at most an ACL-bearing root and one child but got\n" + mismatch,
+                    mismatch.getScenario().getNodes().size() <= 2);
+            assertNotNull("The shrunk scenario must still reproduce", tester.check(mismatch.getScenario()));
+        }
+    }
+
+    /**
+     * A broken engine that only honours ACLs on the node itself.
+     */
+    private static class IgnoresInheritance implements DifferentialTester.Engine {
+
+        @Override
+        public AccessRolesProvider provider() {
+            return new RbAclAccessRolesProvider() {
+
+                @Override
+                public Map<String, Collection<String>> findRolesForPath(final Path absPath, final Session session)
+                        throws RepositoryException {
+                    final String path = absPath.getString();
+                    if (session.nodeExists(path)) {
+                        final Map<String, Collection<String>> roles = getRoles(session.getNode(path), false);
+                        if (roles != null) {
+                            return roles;
+                        }
+                    }
+                    return DEFAULT_ACCESS_ROLES;
+                }
+            };
+        }
+
+        @Override
+        public FedoraAuthorizationDelegate delegate(final AccessRolesProvider provider,
+                final SessionFactory sessionFactory) {
+            return DifferentialTester.reference().delegate(provider, sessionFactory);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.basic.integration;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static javax.ws.rs.core.Response.Status.CREATED;
+import static javax.ws.rs.core.Response.Status.NO_CONTENT;
+import static javax.ws.rs.core.Response.Status.OK;
+import static org.fcrepo.auth.roles.basic.integration.AbstractBasicRolesIT.getRandomPid;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.util.EntityUtils;
+import org.fcrepo.auth.roles.common.integration.AbstractRolesIT;
+import org.fcrepo.auth.roles.common.integration.RolesFadTestObjectBean;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+/**
+ * Races reads against ACL writes on overlapping subtrees, and checks that no read is granted after the revoke of the
+ * only grant that could explain it has committed.
+ * <p>
+ * One writer per child repeatedly grants {@code stressreader} the reader role on its child and then deletes that
+ * ACL, which leaves the child governed by the parent's ACL, where {@code stressreader} has no role. Readers
+ * concurrently read the children and their grandchildren as {@code stressreader}. Every grant and revoke is timed on
+ * the client, and once the run is over each successful read is checked against that history: it is only valid if
+ * some grant had started before the read returned and its revoke had not committed before the read was sent.
+ * </p>
+ * <p>
+ * The run lasts {@code fcrepo.stress.duration} seconds (5) with {@code fcrepo.stress.readers} reader threads (8);
+ * raise both for a soak test.
+ * </p>
+ */
+public class BasicRolesConcurrencyIT extends AbstractRolesIT {
+
+    private static final Logger logger = getLogger(BasicRolesConcurrencyIT.class);
+
+    private static final int DURATION = Integer.getInteger("fcrepo.stress.duration", 5);
+
+    private static final int READERS = Integer.getInteger("fcrepo.stress.readers", 8);
+
+    private static final int CHILDREN = 4;
+
+    private static final String READER = "stressreader";
+
+    private static final String GRANT = "{\"" + READER + "\" : [\"reader\"], \"exampleadmin\" : [\"admin\"]}";
+
+    private static final String parent = getRandomPid();
+
+    private static final List<RolesFadTestObjectBean> test_objs = defineTestObjects();
+
+    private final AtomicInteger reads = new AtomicInteger();
+
+    private static List<RolesFadTestObjectBean> defineTestObjects() {
+        final List<RolesFadTestObjectBean> objects = new ArrayList<>();
+        final RolesFadTestObjectBean top = new RolesFadTestObjectBean();
+        top.setPath(parent);
+        top.addACL("exampleadmin", "admin");
+        objects.add(top);
+        for (int i = 0; i < CHILDREN; i++) {
+            final RolesFadTestObjectBean child = new RolesFadTestObjectBean();
+            child.setPath(child(i));
+            objects.add(child);
+            final RolesFadTestObjectBean grandchild = new RolesFadTestObjectBean();
+            grandchild.setPath(child(i) + "/grandchild");
+            objects.add(grandchild);
+        }
+        return objects;
+    }
+
+    @Override
+    protected List<RolesFadTestObjectBean> getTestObjs() {
+        return test_objs;
+    }
+
+    private static String child(final int i) {
+        return parent + "/child" + i;
+    }
+
+    @Test
+    public void testNoStaleGrantsAfterRevoke() throws Exception {
+        final long deadline = System.nanoTime() + SECONDS.toNanos(DURATION);
+        final ExecutorService executor = Executors.newFixedThreadPool(CHILDREN + READERS);
+        try {
+            final List<Future<List<long[]>>> writers = new ArrayList<>();
+            for (int i = 0; i < CHILDREN; i++) {
+                writers.add(executor.submit(new Writer(i, deadline)));
+            }
+            final List<Future<List<long[]>>> readers = new ArrayList<>();
+            for (int i = 0; i < READERS; i++) {
+                readers.add(executor.submit(new Reader(deadline)));
+            }
+
+            final List<List<long[]>> histories = new ArrayList<>();
+            for (final Future<List<long[]>> writer : writers) {
+                histories.add(writer.get());
+            }
+            final List<String> violations = new ArrayList<>();
+            int granted = 0;
+            for (final Future<List<long[]>> reader : readers) {
+                for (final long[] read : reader.get()) {
+                    granted++;
+                    final String violation = check(histories.get((int) read[0]), read);
+                    if (violation != null) {
+                        violations.add(violation);
+                    }
+                }
+            }
+            logger.info("{} of {} reads were granted; checked against {} grant/revoke cycles", granted, reads.get(),
+                    cycles(histories));
+            assertTrue(violations.size() + " reads were granted after the revoke committed, e.g. " +
+                    violations.subList(0, Math.min(10, violations.size())), violations.isEmpty());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param history the {grant started, revoke committed} times of one child, in order; a revoke still in flight
+     *        has {@link Long#MAX_VALUE}
+     * @param read the {child, sent, returned} times of a granted read
+     * @return a description of the violation, or null if some grant explains the read
+     */
+    private static String check(final List<long[]> history, final long[] read) {
+        // the last grant started before the read returned is the only one that can explain it
+        long[] latest = null;
+        for (final long[] cycle : history) {
+            if (cycle[0] <= read[2]) {
+                latest = cycle;
+            }
+        }
+        if (latest == null) {
+            return "child" + read[0] + " read before any grant";
+        }
+        if (latest[1] < read[1]) {
+            return "child" + read[0] + " read sent " + (read[1] - latest[1]) + "ns after the revoke committed";
+        }
+        return null;
+    }
+
+    private static int cycles(final List<List<long[]>> histories) {
+        int cycles = 0;
+        for (final List<long[]> history : histories) {
+            cycles += history.size();
+        }
+        return cycles;
+    }
+
+    private int status(final HttpRequestBase request, final String username) throws IOException {
+        setAuth(request, username);
+        final HttpResponse response = execute(request);
+        EntityUtils.consume(response.getEntity());
+        return response.getStatusLine().getStatusCode();
+    }
+
+    /**
+     * Grants and revokes on one child, recording {grant started, revoke committed} for each cycle.
+     */
+    private class Writer implements Callable<List<long[]>> {
+
+        private final int child;
+
+        private final long deadline;
+
+        private Writer(final int child, final long deadline) {
+            this.child = child;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public List<long[]> call() throws IOException {
+            final List<long[]> history = new ArrayList<>();
+            while (System.nanoTime() < deadline) {
+                final long[] cycle = { System.nanoTime(), Long.MAX_VALUE };
+                history.add(cycle);
+                assertEquals(CREATED.getStatusCode(), postRoles(child(child), GRANT));
+                assertEquals(NO_CONTENT.getStatusCode(), status(deleteRolesMethod(child(child)), "fedoraAdmin"));
+                cycle[1] = System.nanoTime();
+            }
+            return history;
+        }
+    }
+
+    /**
+     * Reads children and grandchildren, recording {child, sent, returned} for each granted read.
+     */
+    private class Reader implements Callable<List<long[]>> {
+
+        private final long deadline;
+
+        private Reader(final long deadline) {
+            this.deadline = deadline;
+        }
+
+        @Override
+        public List<long[]> call() throws IOException {
+            final List<long[]> granted = new ArrayList<>();
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (System.nanoTime() < deadline) {
+                final int child = random.nextInt(CHILDREN);
+                final String path = random.nextBoolean() ? child(child) : child(child) + "/grandchild";
+                final long sent = System.nanoTime();
+                final int status = status(getObjectMethod(path), READER);
+                final long returned = System.nanoTime();
+                reads.incrementAndGet();
+                if (status == OK.getStatusCode()) {
+                    granted.add(new long[] { child, sent, returned });
+                }
+            }
+            return granted;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.benchmarks;
+
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.fcrepo.auth.common.FedoraAuthorizationDelegate.FEDORA_ALL_PRINCIPALS;
+import static org.fcrepo.auth.common.FedoraAuthorizationDelegate.FEDORA_USER_PRINCIPAL;
+import static org.fcrepo.auth.roles.common.Constants.registerPrefixes;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.roles.common.AbstractRolesAuthorizationDelegate;
+import org.fcrepo.auth.roles.common.AccessRoles;
+import org.fcrepo.auth.roles.common.AccessRolesProvider;
+import org.fcrepo.auth.roles.common.RbAclAccessRolesProvider;
+import org.fcrepo.auth.roles.common.integration.JcrTreeSink;
+import org.fcrepo.auth.roles.common.integration.RepositoryGenerator;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.FedoraSession;
+import org.fcrepo.kernel.modeshape.FedoraSessionImpl;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.JcrRepository;
+import org.modeshape.jcr.ModeShapeEngine;
+import org.modeshape.jcr.RepositoryConfiguration;
+import org.modeshape.jcr.api.nodetype.NodeTypeManager;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.PathFactory;
+
+/**
+ * An in-memory ModeShape repository with the access control node types registered, and the helpers the benchmarks
+ * use to populate it and to wire an authorization delegate against it.
+ */
+public class BenchmarkRepository implements AutoCloseable {
+
+    private static final PathFactory PATHS = new ExecutionContext().getValueFactories().getPathFactory();
+
+    private static final int SAVE_EVERY = 500;
+
+    private final ModeShapeEngine engine;
+
+    private final Session session;
+
+    private final AccessRolesProvider provider = new RbAclAccessRolesProvider();
+
+    private int unsaved;
+
+    /**
+     * Start a fresh, uniquely named in-memory repository.
+     *
+     * @throws Exception if the repository cannot be started
+     */
+    public BenchmarkRepository() throws Exception {
+        engine = new ModeShapeEngine();
+        engine.start();
+        final RepositoryConfiguration config =
+                RepositoryConfiguration.read("{ \"name\" : \"benchmark-" + UUID.randomUUID() + "\" }");
+        final JcrRepository repository = engine.deploy(config);
+        session = repository.login();
+        final NodeTypeManager types = (NodeTypeManager) session.getWorkspace().getNodeTypeManager();
+        types.registerNodeTypes(AccessRoles.class.getResource("/cnd/access-control.cnd"), true);
+        registerPrefixes(session);
+    }
+
+    /**
+     * @return the session all content is written and read through
+     */
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * @return the provider the benchmarks read ACLs through
+     */
+    public AccessRolesProvider getProvider() {
+        return provider;
+    }
+
+    /**
+     * @param absPath a JCR path
+     * @return the ModeShape path, as the delegate receives it
+     */
+    public static Path path(final String absPath) {
+        return PATHS.create(absPath);
+    }
+
+    /**
+     * Add an unstructured child node, saving periodically.
+     *
+     * @param parent the parent node
+     * @param name the child name
+     * @return the new node
+     * @throws RepositoryException if the node cannot be added
+     */
+    public Node addNode(final Node parent, final String name) throws RepositoryException {
+        final Node node = parent.addNode(name, "nt:unstructured");
+        if (++unsaved >= SAVE_EVERY) {
+            save();
+        }
+        return node;
+    }
+
+    /**
+     * Assign roles on a node through the provider.
+     *
+     * @param node the node
+     * @param acl the roles of each principal
+     * @throws RepositoryException if the roles cannot be assigned
+     */
+    public void assign(final Node node, final Map<String, Set<String>> acl) throws RepositoryException {
+        provider.postRoles(node, acl);
+        unsaved += acl.size() + 1;
+    }
+
+    /**
+     * Save any pending changes.
+     *
+     * @throws RepositoryException if the changes cannot be saved
+     */
+    public void save() throws RepositoryException {
+        session.save();
+        unsaved = 0;
+    }
+
+    /**
+     * Write a synthetic tree directly through this repository's session.
+     *
+     * @param generator the generator describing the tree
+     * @param root the absolute path of the tree's root, whose parent must exist
+     * @return the number of nodes written
+     * @throws RepositoryException if the tree cannot be written
+     */
+    public int generate(final RepositoryGenerator generator, final String root) throws RepositoryException {
+        save();
+        return generator.write(root, new JcrTreeSink(session, provider));
+    }
+
+    /**
+     * Wire a delegate to read ACLs from this repository, as Spring would.
+     *
+     * @param delegate the delegate
+     * @param <T> the type of the delegate
+     * @return the delegate
+     */
+    public <T extends AbstractRolesAuthorizationDelegate> T wire(final T delegate) {
+        final FedoraSession internal = new FedoraSessionImpl(session);
+        setField(delegate, "accessRolesProvider", provider);
+        setField(delegate, "sessionFactory", new SessionFactory() {
+
+            @Override
+            public FedoraSession getInternalSession() {
+                return internal;
+            }
+        });
+        return delegate;
+    }
+
+    /**
+     * A stand-in for a user session that only carries the principal attributes the delegate reads.
+     *
+     * @param user the user principal
+     * @param all all principals of the user
+     * @return the session
+     */
+    public static Session principalSession(final Principal user, final Set<Principal> all) {
+        return (Session) Proxy.newProxyInstance(BenchmarkRepository.class.getClassLoader(),
+                new Class<?>[] { Session.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAttribute":
+                            if (FEDORA_USER_PRINCIPAL.equals(args[0])) {
+                                return user;
+                            }
+                            return FEDORA_ALL_PRINCIPALS.equals(args[0]) ? all : null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "session of " + user.getName();
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * @param name a principal name
+     * @return a principal with that name
+     */
+    public static Principal principal(final String name) {
+        return new Principal() {
+
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public String toString() {
+                return name;
+            }
+        };
+    }
+
+    /**
+     * @param principal a principal name
+     * @param role a role
+     * @return an ACL assigning the role to the principal
+     */
+    public static Map<String, Set<String>> acl(final String principal, final String role) {
+        return singletonMap(principal, singleton(role));
+    }
+
+    @Override
+    public void close() throws Exception {
+        session.logout();
+        engine.shutdown().get();
+    }
+}
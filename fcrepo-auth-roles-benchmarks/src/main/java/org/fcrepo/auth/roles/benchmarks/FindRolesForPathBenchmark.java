@@ -0,0 +1,129 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.benchmarks;
+
+import static java.util.Collections.singleton;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.fcrepo.auth.roles.benchmarks.BenchmarkRepository.path;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.modeshape.jcr.value.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of finding the effective roles of a node whose governing ACL is {@code depth} ancestors up, both from an
+ * existing node and from a path whose last segment does not exist yet.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FindRolesForPathBenchmark {
+
+    @Param({"0", "4", "16", "64"})
+    public int depth;
+
+    @Param({"10"})
+    public int aclSize;
+
+    private BenchmarkRepository repository;
+
+    private Node leaf;
+
+    private Path leafPath;
+
+    private Path missingPath;
+
+    /**
+     * Build a chain of {@code depth} nodes below an ACL-bearing node.
+     *
+     * @throws Exception if the repository cannot be built
+     */
+    @Setup
+    public void setUp() throws Exception {
+        repository = new BenchmarkRepository();
+        final Node top = repository.addNode(repository.getSession().getRootNode(), "bench");
+        final Map<String, Set<String>> assignments = new HashMap<>();
+        for (int i = 0; i < aclSize; i++) {
+            assignments.put("principal-" + i, singleton("reader"));
+        }
+        repository.assign(top, assignments);
+        Node node = top;
+        for (int i = 0; i < depth; i++) {
+            node = repository.addNode(node, "level-" + i);
+        }
+        repository.save();
+        leaf = node;
+        leafPath = path(leaf.getPath());
+        missingPath = path(leaf.getPath() + "/not-yet-created");
+    }
+
+    /**
+     * @throws Exception if the repository cannot be shut down
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        repository.close();
+    }
+
+    /**
+     * @return the effective roles of an existing node
+     */
+    @Benchmark
+    public Map<String, Collection<String>> getRolesEffective() {
+        return repository.getProvider().getRoles(leaf, true);
+    }
+
+    /**
+     * @return the effective roles of an existing path
+     * @throws RepositoryException if the lookup fails
+     */
+    @Benchmark
+    public Map<String, Collection<String>> findRolesForPath() throws RepositoryException {
+        return repository.getProvider().findRolesForPath(leafPath, repository.getSession());
+    }
+
+    /**
+     * @return the effective roles of a path that does not exist yet, as checked when creating a node
+     * @throws RepositoryException if the lookup fails
+     */
+    @Benchmark
+    public Map<String, Collection<String>> findRolesForMissingPath() throws RepositoryException {
+        return repository.getProvider().findRolesForPath(missingPath, repository.getSession());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.benchmarks;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.fcrepo.auth.roles.benchmarks.BenchmarkRepository.path;
+import static org.fcrepo.auth.roles.benchmarks.BenchmarkRepository.principal;
+import static org.fcrepo.auth.roles.benchmarks.BenchmarkRepository.principalSession;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.jcr.Session;
+
+import org.fcrepo.auth.roles.basic.BasicRolesAuthorizationDelegate;
+import org.fcrepo.auth.roles.common.integration.RepositoryGenerator;
+import org.fcrepo.auth.roles.common.integration.RolesFadTestObjectBean;
+import org.modeshape.jcr.value.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of read checks on random nodes of a synthetic repository, by the share of nodes carrying their own ACL. The
+ * other generator settings come from {@code fcrepo.generator.*} system properties, so a tree shaped like a
+ * particular production repository can be measured with {@code -jvmArgsAppend}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeneratedTreeBenchmark {
+
+    private static final String ROOT = "/generated";
+
+    private static final String[] READ = { "read" };
+
+    private static final String PRINCIPAL_PREFIX = "principal-";
+
+    private static final int PRINCIPALS = Integer.getInteger("fcrepo.generator.principals", 50);
+
+    @Param({"0.01", "0.1", "0.5"})
+    public double aclShare;
+
+    private BenchmarkRepository repository;
+
+    private BasicRolesAuthorizationDelegate delegate;
+
+    private Path[] paths;
+
+    private Session[] sessions;
+
+    /**
+     * Generate the tree and a session for each generated principal.
+     *
+     * @throws Exception if the repository cannot be built
+     */
+    @Setup
+    public void setUp() throws Exception {
+        final RepositoryGenerator generator = new RepositoryGenerator();
+        generator.setAclShare(aclShare);
+        generator.setPrincipalPrefix(PRINCIPAL_PREFIX);
+        generator.setPrincipals(PRINCIPALS);
+
+        repository = new BenchmarkRepository();
+        repository.generate(generator, ROOT);
+        final List<Path> generated = new ArrayList<>();
+        for (final RolesFadTestObjectBean object : generator.objects(ROOT)) {
+            generated.add(path(object.getPath()));
+        }
+        paths = generated.toArray(new Path[generated.size()]);
+
+        delegate = repository.wire(new BasicRolesAuthorizationDelegate());
+        sessions = new Session[PRINCIPALS];
+        for (int i = 0; i < sessions.length; i++) {
+            final Principal user = principal(PRINCIPAL_PREFIX + i);
+            final Set<Principal> all = new HashSet<>();
+            all.add(user);
+            all.add(delegate.getEveryonePrincipal());
+            sessions[i] = principalSession(user, all);
+        }
+    }
+
+    /**
+     * @throws Exception if the repository cannot be shut down
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        repository.close();
+    }
+
+    /**
+     * @return whether a random principal may read a random container
+     */
+    @Benchmark
+    public boolean hasReadPermission() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        return delegate.hasPermission(sessions[random.nextInt(sessions.length)], paths[random.nextInt(paths.length)],
+                READ);
+    }
+}
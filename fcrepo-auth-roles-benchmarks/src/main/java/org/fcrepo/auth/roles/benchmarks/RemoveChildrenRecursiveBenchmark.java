@@ -0,0 +1,155 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.benchmarks;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.fcrepo.auth.roles.benchmarks.BenchmarkRepository.acl;
+import static org.fcrepo.auth.roles.benchmarks.BenchmarkRepository.path;
+import static org.fcrepo.auth.roles.benchmarks.BenchmarkRepository.principal;
+import static org.fcrepo.auth.roles.benchmarks.BenchmarkRepository.principalSession;
+
+import java.security.Principal;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.roles.basic.BasicRolesAuthorizationDelegate;
+import org.modeshape.jcr.value.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a permitted {@code remove} check, which walks every descendant of the target node. A {@code WIDE} tree is
+ * one level of {@code size} children; a {@code DEEP} tree is a binary tree of about {@code size} nodes. Every tenth
+ * node carries its own ACL, which the walk has to resolve.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RemoveChildrenRecursiveBenchmark {
+
+    /**
+     * Shapes of the tree below the removed node.
+     */
+    public enum Shape {
+        WIDE, DEEP
+    }
+
+    private static final String USER = "benchmark-user";
+
+    private static final String[] REMOVE = { "remove" };
+
+    @Param({"WIDE", "DEEP"})
+    public Shape shape;
+
+    @Param({"100", "1000"})
+    public int size;
+
+    private BenchmarkRepository repository;
+
+    private BasicRolesAuthorizationDelegate delegate;
+
+    private Session userSession;
+
+    private Path target;
+
+    private int created;
+
+    /**
+     * Build the tree and wire the basic delegate to it.
+     *
+     * @throws Exception if the repository cannot be built
+     */
+    @Setup
+    public void setUp() throws Exception {
+        repository = new BenchmarkRepository();
+        final Node top = repository.addNode(repository.getSession().getRootNode(), "bench");
+        repository.assign(top, acl(USER, "writer"));
+        if (shape == Shape.WIDE) {
+            for (int i = 0; i < size; i++) {
+                child(top, "child-" + i);
+            }
+        } else {
+            grow(top);
+        }
+        repository.save();
+        target = path(top.getPath());
+
+        delegate = repository.wire(new BasicRolesAuthorizationDelegate());
+        final Principal user = principal(USER);
+        final Set<Principal> all = new HashSet<>();
+        all.add(user);
+        all.add(delegate.getEveryonePrincipal());
+        userSession = principalSession(user, all);
+    }
+
+    /**
+     * @throws Exception if the repository cannot be shut down
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        repository.close();
+    }
+
+    /**
+     * @return whether the tree may be removed
+     */
+    @Benchmark
+    public boolean hasRemovePermission() {
+        return delegate.hasPermission(userSession, target, REMOVE);
+    }
+
+    private void grow(final Node parent) throws RepositoryException {
+        // breadth-first so that the tree is balanced whatever the size
+        final Deque<Node> queue = new ArrayDeque<>();
+        queue.add(parent);
+        while (created < size) {
+            final Node next = queue.poll();
+            queue.add(child(next, "left"));
+            if (created < size) {
+                queue.add(child(next, "right"));
+            }
+        }
+    }
+
+    private Node child(final Node parent, final String name) throws RepositoryException {
+        final Node child = repository.addNode(parent, name);
+        if (++created % 10 == 0) {
+            repository.assign(child, acl(USER, "writer"));
+        }
+        return child;
+    }
+}
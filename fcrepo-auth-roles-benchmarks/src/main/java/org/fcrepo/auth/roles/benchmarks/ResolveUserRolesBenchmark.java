@@ -0,0 +1,88 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.benchmarks;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.fcrepo.auth.roles.benchmarks.BenchmarkRepository.principal;
+
+import java.security.Principal;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.fcrepo.auth.roles.common.AbstractRolesAuthorizationDelegate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of matching a request's principals against an ACL. Half of the principals appear in the ACL.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResolveUserRolesBenchmark {
+
+    @Param({"1", "8", "64"})
+    public int principals;
+
+    @Param({"8", "128", "2048"})
+    public int aclSize;
+
+    private Map<String, Collection<String>> acl;
+
+    private Set<Principal> requestPrincipals;
+
+    /**
+     * Build the ACL and the request principals.
+     */
+    @Setup
+    public void setUp() {
+        acl = new HashMap<>();
+        for (int i = 0; i < aclSize; i++) {
+            acl.put("principal-" + i, asList("reader", i % 2 == 0 ? "writer" : "admin"));
+        }
+        requestPrincipals = new HashSet<>();
+        for (int i = 0; i < principals; i++) {
+            // even principals are drawn from the ACL, odd ones are not
+            requestPrincipals.add(principal(i % 2 == 0 ? "principal-" + (i * 7919 % aclSize) : "outsider-" + i));
+        }
+    }
+
+    /**
+     * @return the effective roles
+     */
+    @Benchmark
+    public Set<String> resolveUserRoles() {
+        return AbstractRolesAuthorizationDelegate.resolveUserRoles(acl, requestPrincipals);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.benchmarks;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.fcrepo.auth.roles.basic.BasicRolesAuthorizationDelegate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the basic delegate's role policy once the effective roles are known. The delegate's deprecation warnings
+ * are filtered by the benchmark logging configuration, so only the level check is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RolesHavePermissionBenchmark {
+
+    @Param({"reader", "writer", "admin", "unknown"})
+    public String role;
+
+    @Param({"read", "add_node", "remove"})
+    public String action;
+
+    @Param({"/bench/object", "/bench/object/{http://fedora.info/definitions/v4/authorization#}acl"})
+    public String path;
+
+    private BasicRolesAuthorizationDelegate delegate;
+
+    private Set<String> roles;
+
+    private String[] actions;
+
+    /**
+     * Build the delegate and its inputs.
+     */
+    @Setup
+    public void setUp() {
+        delegate = new BasicRolesAuthorizationDelegate();
+        roles = Collections.singleton(role);
+        actions = new String[] { action };
+    }
+
+    /**
+     * @return whether the roles permit the action
+     */
+    @Benchmark
+    public boolean rolesHavePermission() {
+        return delegate.rolesHavePermission(null, path, actions, roles);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.benchmarks.http;
+
+import static org.fcrepo.kernel.modeshape.utils.FedoraTypesUtils.getJcrNode;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.RepositoryException;
+
+import org.fcrepo.auth.roles.common.AccessRolesProvider;
+import org.fcrepo.auth.roles.common.integration.TreeSink;
+import org.fcrepo.kernel.api.FedoraSession;
+import org.fcrepo.kernel.api.exception.InvalidChecksumException;
+import org.fcrepo.kernel.api.models.FedoraBinary;
+import org.fcrepo.kernel.api.services.BinaryService;
+import org.fcrepo.kernel.api.services.ContainerService;
+
+/**
+ * Writes generated trees as real Fedora containers and binaries, through the kernel services and the session they
+ * share, so that the REST API serves them like any other content. Roles go on binaries' descriptions, as
+ * {@code fcr:accessroles} puts them.
+ */
+class FedoraTreeSink implements TreeSink {
+
+    private final FedoraSession session;
+
+    private final ContainerService containerService;
+
+    private final BinaryService binaryService;
+
+    private final AccessRolesProvider provider;
+
+    private final Set<String> binaries = new HashSet<>();
+
+    FedoraTreeSink(final FedoraSession session, final ContainerService containerService,
+            final BinaryService binaryService, final AccessRolesProvider provider) {
+        this.session = session;
+        this.containerService = containerService;
+        this.binaryService = binaryService;
+        this.provider = provider;
+    }
+
+    @Override
+    public void container(final String path) {
+        containerService.findOrCreate(session, path);
+    }
+
+    @Override
+    public void binary(final String path, final byte[] content) throws RepositoryException {
+        try {
+            binaries.add(path);
+            binaryService.findOrCreate(session, path).setContent(new ByteArrayInputStream(content),
+                    "application/octet-stream", null, null, null);
+        } catch (final InvalidChecksumException e) {
+            throw new RepositoryException(e);
+        }
+    }
+
+    @Override
+    public void roles(final String path, final Map<String, Set<String>> roles) throws RepositoryException {
+        if (binaries.contains(path)) {
+            final FedoraBinary binary = binaryService.findOrCreate(session, path);
+            provider.postRoles(getJcrNode(binary.getDescription()), roles);
+        } else {
+            provider.postRoles(getJcrNode(containerService.findOrCreate(session, path)), roles);
+        }
+    }
+
+    @Override
+    public void commit() {
+        session.commit();
+    }
+}
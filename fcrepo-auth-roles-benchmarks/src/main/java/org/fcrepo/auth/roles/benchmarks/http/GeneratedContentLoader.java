@@ -0,0 +1,88 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.benchmarks.http;
+
+import static java.lang.Boolean.getBoolean;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.jcr.RepositoryException;
+
+import org.fcrepo.auth.roles.common.AccessRolesProvider;
+import org.fcrepo.auth.roles.common.AccessRolesTypes;
+import org.fcrepo.auth.roles.common.integration.RepositoryGenerator;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.FedoraSession;
+import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
+import org.fcrepo.kernel.api.services.BinaryService;
+import org.fcrepo.kernel.api.services.ContainerService;
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+/**
+ * When {@code fcrepo.load.generate} is true, writes a synthetic tree below {@link #ROOT} as the web application
+ * starts, through an internal session rather than over HTTP. The shape of the tree comes from the
+ * {@code fcrepo.generator.*} system properties.
+ */
+@Component
+public class GeneratedContentLoader {
+
+    static final String ROOT = "/generated";
+
+    static final String ENABLED = "fcrepo.load.generate";
+
+    private static final Logger LOGGER = getLogger(GeneratedContentLoader.class);
+
+    @Inject
+    private SessionFactory sessionFactory;
+
+    @Inject
+    private ContainerService containerService;
+
+    @Inject
+    private BinaryService binaryService;
+
+    @Inject
+    private AccessRolesProvider accessRolesProvider;
+
+    // the access control node types must be registered before any roles are written
+    @Inject
+    private AccessRolesTypes accessRolesTypes;
+
+    /**
+     * Write the tree, if enabled.
+     */
+    @PostConstruct
+    public void load() {
+        if (!getBoolean(ENABLED)) {
+            return;
+        }
+        final FedoraSession session = sessionFactory.getInternalSession();
+        try {
+            final long start = System.nanoTime();
+            final int written = new RepositoryGenerator().write(ROOT,
+                    new FedoraTreeSink(session, containerService, binaryService, accessRolesProvider));
+            LOGGER.info("Generated {} nodes below {} in {} ms", written, ROOT, (System.nanoTime() - start) / 1000000);
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException(e);
+        } finally {
+            session.expire();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.benchmarks.http;
+
+import static java.lang.Math.ceil;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.util.Arrays;
+
+/**
+ * Every latency observed for one kind of request, kept in full so that high percentiles are exact. A run of a few
+ * million requests needs a few tens of megabytes. Not thread-safe: each simulated user owns its own instances, which
+ * are merged once the run is over.
+ */
+final class Latencies {
+
+    private long[] nanos = new long[1024];
+
+    private int size;
+
+    private long errors;
+
+    private boolean sorted = true;
+
+    /**
+     * @param elapsed the latency of a successful request
+     */
+    void record(final long elapsed) {
+        if (size == nanos.length) {
+            nanos = Arrays.copyOf(nanos, size * 2);
+        }
+        nanos[size++] = elapsed;
+        sorted = false;
+    }
+
+    /**
+     * Count a failed request. Failures are not part of the latency distribution.
+     */
+    void error() {
+        errors++;
+    }
+
+    /**
+     * @param other latencies to add to these
+     */
+    void addAll(final Latencies other) {
+        if (size + other.size > nanos.length) {
+            nanos = Arrays.copyOf(nanos, max(nanos.length * 2, size + other.size));
+        }
+        System.arraycopy(other.nanos, 0, nanos, size, other.size);
+        size += other.size;
+        errors += other.errors;
+        sorted = false;
+    }
+
+    /**
+     * @return the number of successful requests
+     */
+    int count() {
+        return size;
+    }
+
+    /**
+     * @return the number of failed requests
+     */
+    long errors() {
+        return errors;
+    }
+
+    /**
+     * @return the mean latency in nanoseconds, or 0 if nothing was recorded
+     */
+    long mean() {
+        if (size == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += nanos[i];
+        }
+        return sum / size;
+    }
+
+    /**
+     * @param quantile a quantile between 0 and 1
+     * @return the latency in nanoseconds at that quantile (nearest rank), or 0 if nothing was recorded
+     */
+    long percentile(final double quantile) {
+        if (size == 0) {
+            return 0;
+        }
+        if (!sorted) {
+            Arrays.sort(nanos, 0, size);
+            sorted = true;
+        }
+        final int rank = (int) ceil(quantile * size);
+        return nanos[min(size, max(rank, 1)) - 1];
+    }
+}
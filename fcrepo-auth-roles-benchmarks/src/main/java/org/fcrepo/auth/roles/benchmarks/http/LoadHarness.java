@@ -0,0 +1,141 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.benchmarks.http;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the per-request cost of the roles module end to end. The same REST API is served from the embedded test
+ * container once with the basic roles delegate wired in and once without any authorization, and each is driven by
+ * the same mix of GET, PUT, DELETE and {@code fcr:accessroles} requests from concurrent simulated users. Throughput
+ * and p50/p99/p999 latency are reported for each wiring, followed by the difference between them.
+ * <p>
+ * Each wiring runs in its own JVM, with its own repository directories, so that neither inherits the other's warm
+ * caches or JIT state. Settings are system properties:
+ * </p>
+ * <ul>
+ * <li>{@code fcrepo.load.users} concurrent users (32)</li>
+ * <li>{@code fcrepo.load.warmup} and {@code fcrepo.load.duration} seconds of unmeasured and measured load (15, 60)</li>
+ * <li>{@code fcrepo.load.mix} request weights ({@code get=60,put=15,delete=10,roles=15})</li>
+ * <li>{@code fcrepo.load.objects}, {@code fcrepo.load.depth} and {@code fcrepo.load.aclEvery} the shape of the seeded
+ * tree (100, 3, 10)</li>
+ * <li>{@code fcrepo.load.generate} seed a synthetic repository instead, shaped by the {@code fcrepo.generator.*}
+ * properties of {@code RepositoryGenerator} (false)</li>
+ * <li>{@code fcrepo.load.wirings} the wirings to compare ({@code roles,open})</li>
+ * <li>{@code fcrepo.dynamic.test.port} the container port (8080)</li>
+ * </ul>
+ * <p>
+ * Run with {@code java -cp target/benchmarks.jar org.fcrepo.auth.roles.benchmarks.http.LoadHarness}.
+ * </p>
+ */
+public final class LoadHarness {
+
+    private static final String FORKED_WIRING = "fcrepo.load.forked";
+
+    private static final String RESULT_FILE = "fcrepo.load.result";
+
+    private LoadHarness() {
+    }
+
+    /**
+     * @param args ignored; settings are system properties
+     * @throws Exception if a run fails
+     */
+    public static void main(final String[] args) throws Exception {
+        final LoadOptions options = new LoadOptions();
+        final String forked = System.getProperty(FORKED_WIRING);
+        if (forked != null) {
+            final LoadResult result = new LoadRun(Wiring.valueOf(forked), options).run();
+            result.write(Paths.get(System.getProperty(RESULT_FILE)));
+            // the embedded repository leaves non-daemon threads behind
+            System.exit(0);
+        }
+
+        System.out.println("Load settings: " + options);
+        final List<LoadResult> results = new ArrayList<>();
+        for (final Wiring wiring : options.wirings) {
+            System.out.println("Running the " + wiring.label() + " wiring...");
+            results.add(fork(wiring));
+        }
+        report(results, System.out);
+    }
+
+    private static LoadResult fork(final Wiring wiring) throws Exception {
+        final Path directory = Files.createTempDirectory("fcrepo-load-" + wiring.label());
+        final Path resultFile = directory.resolve("result.properties");
+        final List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-D" + FORKED_WIRING + "=" + wiring.name());
+        command.add("-D" + RESULT_FILE + "=" + resultFile);
+        command.add("-Dfcrepo.object.directory=" + directory.resolve("objects"));
+        command.add("-Dfcrepo.binary.directory=" + directory.resolve("binaries"));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(LoadHarness.class.getName());
+        final int exit = new ProcessBuilder(command).inheritIO().start().waitFor();
+        if (exit != 0 || !Files.exists(resultFile)) {
+            throw new IllegalStateException("The " + wiring.label() + " run failed with exit code " + exit);
+        }
+        return LoadResult.read(resultFile);
+    }
+
+    /**
+     * Print a table of results, and the difference between the first two wirings when exactly two were run.
+     *
+     * @param results the results, in run order
+     * @param out where to print
+     */
+    static void report(final List<LoadResult> results, final PrintStream out) {
+        out.println();
+        out.printf("%-6s %-7s %10s %10s %10s %10s %10s %10s %8s%n", "wiring", "request", "count", "req/s",
+                "mean ms", "p50 ms", "p99 ms", "p999 ms", "errors");
+        for (final LoadResult result : results) {
+            for (final Map.Entry<String, LoadResult.Summary> entry : result.getSummaries().entrySet()) {
+                final LoadResult.Summary s = entry.getValue();
+                out.printf("%-6s %-7s %10d %10.1f %10.3f %10.3f %10.3f %10.3f %8d%n", result.getWiring(),
+                        entry.getKey(), s.count, result.throughput(entry.getKey()), millis(s.mean), millis(s.p50),
+                        millis(s.p99), millis(s.p999), s.errors);
+            }
+        }
+        if (results.size() == 2) {
+            final LoadResult with = results.get(0);
+            final LoadResult without = results.get(1);
+            final LoadResult.Summary a = with.getSummaries().get(LoadResult.ALL);
+            final LoadResult.Summary b = without.getSummaries().get(LoadResult.ALL);
+            out.println();
+            out.printf("%s over %s: %+.3f ms mean, %+.3f ms p50, %+.3f ms p99, %+.3f ms p999, %+.1f%% throughput%n",
+                    with.getWiring(), without.getWiring(), millis(a.mean - b.mean), millis(a.p50 - b.p50),
+                    millis(a.p99 - b.p99), millis(a.p999 - b.p999),
+                    100 * (with.throughput(LoadResult.ALL) / without.throughput(LoadResult.ALL) - 1));
+        }
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / (double) MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.benchmarks.http;
+
+import static java.lang.Integer.getInteger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Harness settings, read from system properties so that they pass unchanged to forked runs.
+ */
+final class LoadOptions {
+
+    /** port of the embedded container */
+    final int port = getInteger("fcrepo.dynamic.test.port", 8080);
+
+    /** number of concurrent simulated users */
+    final int users = getInteger("fcrepo.load.users", 32);
+
+    /** seconds of load before measurement starts */
+    final int warmupSeconds = getInteger("fcrepo.load.warmup", 15);
+
+    /** seconds of measured load */
+    final int durationSeconds = getInteger("fcrepo.load.duration", 60);
+
+    /** number of objects requests are spread over */
+    final int objects = getInteger("fcrepo.load.objects", 100);
+
+    /** number of containers between the ACL-bearing root and the objects */
+    final int depth = getInteger("fcrepo.load.depth", 3);
+
+    /** every n-th object carries its own ACL; 0 for none */
+    final int aclEvery = getInteger("fcrepo.load.aclEvery", 10);
+
+    /** weights of the request mix */
+    final Operation.Mix mix = Operation.Mix.parse(System.getProperty("fcrepo.load.mix",
+            "get=60,put=15,delete=10,roles=15"));
+
+    /** the wirings to compare, in order */
+    final List<Wiring> wirings = new ArrayList<>();
+
+    LoadOptions() {
+        for (final String name : System.getProperty("fcrepo.load.wirings", "roles,open").split(",")) {
+            wirings.add(Wiring.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+        }
+        if (users < 1 || objects < 1 || depth < 0 || durationSeconds < 1 || warmupSeconds < 0) {
+            throw new IllegalArgumentException("Invalid load settings: " + this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return users + " users, " + warmupSeconds + "s warmup, " + durationSeconds + "s measured, " + objects +
+                " objects at depth " + depth + ", own ACL on every " + aclEvery + ", mix " + mix;
+    }
+}
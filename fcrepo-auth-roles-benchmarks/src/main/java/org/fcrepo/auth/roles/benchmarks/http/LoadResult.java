@@ -0,0 +1,170 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.benchmarks.http;
+
+import static java.lang.Long.parseLong;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The outcome of one load run, summarized per operation and overall. Results are written to and read from a
+ * properties file so that runs in forked JVMs can be reported together.
+ */
+final class LoadResult {
+
+    static final String ALL = "all";
+
+    private final String wiring;
+
+    private final long windowNanos;
+
+    private final Map<String, Summary> summaries = new LinkedHashMap<>();
+
+    /**
+     * @param wiring the wiring that was measured
+     * @param windowNanos the length of the measurement window
+     */
+    LoadResult(final String wiring, final long windowNanos) {
+        this.wiring = wiring;
+        this.windowNanos = windowNanos;
+    }
+
+    /**
+     * @param name an operation name, or {@link #ALL}
+     * @param latencies the latencies observed for it
+     */
+    void add(final String name, final Latencies latencies) {
+        summaries.put(name, new Summary(latencies.count(), latencies.errors(), latencies.mean(),
+                latencies.percentile(0.5), latencies.percentile(0.99), latencies.percentile(0.999)));
+    }
+
+    /**
+     * @return the wiring that was measured
+     */
+    String getWiring() {
+        return wiring;
+    }
+
+    /**
+     * @return the summaries by operation name, {@link #ALL} first
+     */
+    Map<String, Summary> getSummaries() {
+        return summaries;
+    }
+
+    /**
+     * @param name an operation name, or {@link #ALL}
+     * @return successful requests per second
+     */
+    double throughput(final String name) {
+        final Summary summary = summaries.get(name);
+        return summary == null || windowNanos == 0 ? 0 : summary.count * (double) SECONDS.toNanos(1) / windowNanos;
+    }
+
+    /**
+     * @param file the file to write
+     * @throws IOException if the file cannot be written
+     */
+    void write(final Path file) throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty("wiring", wiring);
+        properties.setProperty("windowNanos", Long.toString(windowNanos));
+        summaries.forEach((name, s) -> {
+            properties.setProperty(name + ".count", Long.toString(s.count));
+            properties.setProperty(name + ".errors", Long.toString(s.errors));
+            properties.setProperty(name + ".mean", Long.toString(s.mean));
+            properties.setProperty(name + ".p50", Long.toString(s.p50));
+            properties.setProperty(name + ".p99", Long.toString(s.p99));
+            properties.setProperty(name + ".p999", Long.toString(s.p999));
+        });
+        try (final Writer writer = Files.newBufferedWriter(file, UTF_8)) {
+            properties.store(writer, "load harness result");
+        }
+    }
+
+    /**
+     * @param file a file written by {@link #write(Path)}
+     * @return the result
+     * @throws IOException if the file cannot be read
+     */
+    static LoadResult read(final Path file) throws IOException {
+        final Properties properties = new Properties();
+        try (final Reader reader = Files.newBufferedReader(file, UTF_8)) {
+            properties.load(reader);
+        }
+        final LoadResult result = new LoadResult(properties.getProperty("wiring"),
+                parseLong(properties.getProperty("windowNanos")));
+        final List<String> names = new ArrayList<>();
+        names.add(ALL);
+        for (final Operation operation : Operation.values()) {
+            names.add(operation.name().toLowerCase(Locale.ROOT));
+        }
+        for (final String name : names) {
+            if (properties.containsKey(name + ".count")) {
+                result.summaries.put(name, new Summary(
+                        parseLong(properties.getProperty(name + ".count")),
+                        parseLong(properties.getProperty(name + ".errors")),
+                        parseLong(properties.getProperty(name + ".mean")),
+                        parseLong(properties.getProperty(name + ".p50")),
+                        parseLong(properties.getProperty(name + ".p99")),
+                        parseLong(properties.getProperty(name + ".p999"))));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Request counts and latencies, in nanoseconds, for one operation.
+     */
+    static final class Summary {
+
+        final long count;
+
+        final long errors;
+
+        final long mean;
+
+        final long p50;
+
+        final long p99;
+
+        final long p999;
+
+        private Summary(final long count, final long errors, final long mean, final long p50, final long p99,
+                final long p999) {
+            this.count = count;
+            this.errors = errors;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+        }
+    }
+}
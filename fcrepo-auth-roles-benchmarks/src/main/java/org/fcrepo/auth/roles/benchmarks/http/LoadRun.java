@@ -0,0 +1,292 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.benchmarks.http;
+
+import static java.lang.Boolean.getBoolean;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.fcrepo.auth.roles.common.integration.RepositoryGenerator;
+import org.fcrepo.http.commons.test.util.ContainerWrapper;
+
+/**
+ * One load run against one wiring: start the embedded container, seed a tree of objects and ACLs, drive it with
+ * concurrent simulated users, then summarize the latencies seen during the measurement window.
+ */
+final class LoadRun {
+
+    private static final String ADMIN = "fedoraAdmin";
+
+    private static final String USER_PREFIX = "loaduser-";
+
+    private static final String ROLES_SUFFIX = "/fcr:accessroles";
+
+    private final Wiring wiring;
+
+    private final LoadOptions options;
+
+    private final String base;
+
+    private final List<String> objects = new ArrayList<>();
+
+    private volatile boolean measuring;
+
+    private volatile boolean stopped;
+
+    /**
+     * @param wiring the wiring to measure
+     * @param options the harness settings
+     */
+    LoadRun(final Wiring wiring, final LoadOptions options) {
+        this.wiring = wiring;
+        this.options = options;
+        this.base = "http://localhost:" + options.port + "/rest";
+    }
+
+    /**
+     * @return the result of the run
+     * @throws Exception if the container cannot be started or the repository cannot be seeded
+     */
+    LoadResult run() throws Exception {
+        if (getBoolean(GeneratedContentLoader.ENABLED)) {
+            // generated ACLs name the simulated users, so that some requests are granted and some denied
+            setDefault("fcrepo.generator.principalPrefix", USER_PREFIX);
+            setDefault("fcrepo.generator.principals", Integer.toString(options.users));
+        }
+        final ContainerWrapper container = new ContainerWrapper();
+        container.setPort(options.port);
+        container.setConfigLocation(wiring.webXml());
+        container.start();
+        final PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(options.users + 1);
+        connections.setDefaultMaxPerRoute(options.users + 1);
+        try (final CloseableHttpClient client = HttpClientBuilder.create().setConnectionManager(connections)
+                .build()) {
+            seed(client);
+            return drive(client);
+        } finally {
+            container.stop();
+        }
+    }
+
+    private void seed(final CloseableHttpClient client) throws IOException {
+        if (getBoolean(GeneratedContentLoader.ENABLED)) {
+            // the tree was written as the container started; grant every user a role at its root
+            expect(client, as(ADMIN, roles(GeneratedContentLoader.ROOT, false)), 201);
+            new RepositoryGenerator().generate(GeneratedContentLoader.ROOT, object -> objects.add(object.getPath()));
+            return;
+        }
+        String parent = "/load-" + System.nanoTime();
+        expect(client, as(ADMIN, new HttpPut(base + parent)), 201);
+        expect(client, as(ADMIN, roles(parent, false)), 201);
+        for (int i = 0; i < options.depth; i++) {
+            parent = parent + "/c" + i;
+            expect(client, as(ADMIN, new HttpPut(base + parent)), 201);
+        }
+        for (int i = 0; i < options.objects; i++) {
+            final String object = parent + "/o-" + i;
+            expect(client, as(ADMIN, new HttpPut(base + object)), 201);
+            if (options.aclEvery > 0 && i % options.aclEvery == 0) {
+                expect(client, as(ADMIN, roles(object, true)), 201);
+            }
+            objects.add(object);
+        }
+    }
+
+    private LoadResult drive(final CloseableHttpClient client) throws InterruptedException {
+        final List<User> users = new ArrayList<>();
+        final CountDownLatch finished = new CountDownLatch(options.users);
+        for (int i = 0; i < options.users; i++) {
+            final User user = new User(i, client, finished);
+            users.add(user);
+            final Thread thread = new Thread(user, USER_PREFIX + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        SECONDS.sleep(options.warmupSeconds);
+        measuring = true;
+        final long start = System.nanoTime();
+        SECONDS.sleep(options.durationSeconds);
+        measuring = false;
+        final long window = System.nanoTime() - start;
+        stopped = true;
+        finished.await();
+
+        final LoadResult result = new LoadResult(wiring.label(), window);
+        final Latencies all = new Latencies();
+        final Map<Operation, Latencies> byOperation = new EnumMap<>(Operation.class);
+        for (final Operation operation : Operation.values()) {
+            final Latencies merged = new Latencies();
+            users.forEach(u -> merged.addAll(u.latencies.get(operation)));
+            byOperation.put(operation, merged);
+            all.addAll(merged);
+        }
+        result.add(LoadResult.ALL, all);
+        byOperation.forEach((operation, latencies) -> result.add(operation.name().toLowerCase(Locale.ROOT),
+                latencies));
+        return result;
+    }
+
+    /**
+     * A simulated user. Each user deletes only children it created itself, so users never race for the same node.
+     */
+    private final class User implements Runnable {
+
+        private final String name;
+
+        private final CloseableHttpClient client;
+
+        private final CountDownLatch finished;
+
+        private final Random random;
+
+        private final Deque<String> created = new ArrayDeque<>();
+
+        private final Map<Operation, Latencies> latencies = new EnumMap<>(Operation.class);
+
+        private int sequence;
+
+        private User(final int index, final CloseableHttpClient client, final CountDownLatch finished) {
+            this.name = USER_PREFIX + index;
+            this.client = client;
+            this.finished = finished;
+            this.random = new Random(index);
+            for (final Operation operation : Operation.values()) {
+                latencies.put(operation, new Latencies());
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    Operation operation = options.mix.next(random);
+                    if (operation == Operation.DELETE && created.isEmpty()) {
+                        operation = Operation.PUT;
+                    }
+                    final String target = operation == Operation.DELETE ? created.pop() :
+                            objects.get(random.nextInt(objects.size()));
+                    final HttpUriRequest request = request(operation, target);
+                    final boolean recording = measuring;
+                    final long start = System.nanoTime();
+                    final int status = status(request);
+                    final long elapsed = System.nanoTime() - start;
+                    if (operation == Operation.PUT && status == 201) {
+                        created.push(request.getURI().getPath().substring("/rest".length()));
+                    }
+                    if (recording && measuring) {
+                        // a denial is a completed authorization decision, so it is measured like a success
+                        if (status >= 200 && status < 300 || status == 403) {
+                            latencies.get(operation).record(elapsed);
+                        } else {
+                            latencies.get(operation).error();
+                        }
+                    }
+                }
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        private HttpUriRequest request(final Operation operation, final String target) {
+            switch (operation) {
+                case PUT:
+                    return as(name, new HttpPut(base + target + "/" + name + "-" + sequence++));
+                case DELETE:
+                    return as(name, new HttpDelete(base + target));
+                case ROLES:
+                    return as(name, new HttpGet(base + target + ROLES_SUFFIX + "?effective"));
+                default:
+                    return as(name, new HttpGet(base + target));
+            }
+        }
+
+        private int status(final HttpUriRequest request) {
+            try (final CloseableHttpResponse response = client.execute(request)) {
+                EntityUtils.consume(response.getEntity());
+                return response.getStatusLine().getStatusCode();
+            } catch (final IOException e) {
+                return -1;
+            }
+        }
+    }
+
+    private HttpPost roles(final String path, final boolean withAuditor) {
+        final StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < options.users; i++) {
+            json.append('"').append(USER_PREFIX).append(i).append("\":[\"writer\"],");
+        }
+        if (withAuditor) {
+            // a distinct ACL, so that lookups below it stop here rather than at the root
+            json.append("\"auditor\":[\"reader\"],");
+        }
+        json.setCharAt(json.length() - 1, '}');
+        final HttpPost post = new HttpPost(base + path + ROLES_SUFFIX);
+        post.setEntity(new StringEntity(json.toString(), ContentType.APPLICATION_JSON));
+        return post;
+    }
+
+    private static void setDefault(final String property, final String value) {
+        if (System.getProperty(property) == null) {
+            System.setProperty(property, value);
+        }
+    }
+
+    private static <T extends HttpUriRequest> T as(final String user, final T request) {
+        // the test authentication filter accepts any password
+        request.setHeader("Authorization", "Basic " +
+                Base64.getEncoder().encodeToString((user + ":password").getBytes(UTF_8)));
+        return request;
+    }
+
+    private static void expect(final CloseableHttpClient client, final HttpUriRequest request, final int expected)
+            throws IOException {
+        try (final CloseableHttpResponse response = client.execute(request)) {
+            final int status = response.getStatusLine().getStatusCode();
+            if (status != expected) {
+                throw new IllegalStateException(request + " returned " + status + ": " +
+                        EntityUtils.toString(response.getEntity()));
+            }
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.benchmarks.http;
+
+import static java.lang.Integer.parseInt;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The kinds of request a simulated user sends.
+ */
+enum Operation {
+
+    /** read an object */
+    GET,
+
+    /** create a child object */
+    PUT,
+
+    /** delete a child object created earlier by the same user */
+    DELETE,
+
+    /** read the effective roles of an object */
+    ROLES;
+
+    /**
+     * A weighted choice of operations.
+     */
+    static final class Mix {
+
+        private final Operation[] choices;
+
+        private final int[] cumulative;
+
+        private final int total;
+
+        private Mix(final Map<Operation, Integer> weights) {
+            choices = weights.keySet().toArray(new Operation[weights.size()]);
+            cumulative = new int[choices.length];
+            int sum = 0;
+            for (int i = 0; i < choices.length; i++) {
+                sum += weights.get(choices[i]);
+                cumulative[i] = sum;
+            }
+            if (sum <= 0) {
+                throw new IllegalArgumentException("A request mix needs at least one positive weight");
+            }
+            total = sum;
+        }
+
+        /**
+         * @param spec weights such as {@code get=70,put=10,delete=5,roles=15}
+         * @return the mix
+         */
+        static Mix parse(final String spec) {
+            final Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+            for (final String entry : spec.split(",")) {
+                final String[] pair = entry.trim().split("=");
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException("Expected operation=weight but found: " + entry);
+                }
+                final int weight = parseInt(pair[1].trim());
+                if (weight < 0) {
+                    throw new IllegalArgumentException("Negative weight for " + pair[0]);
+                }
+                weights.put(valueOf(pair[0].trim().toUpperCase(Locale.ROOT)), weight);
+            }
+            return new Mix(weights);
+        }
+
+        /**
+         * @param random the calling user's source of randomness
+         * @return the next operation
+         */
+        Operation next(final Random random) {
+            final int pick = random.nextInt(total);
+            for (int i = 0; i < cumulative.length; i++) {
+                if (pick < cumulative[i]) {
+                    return choices[i];
+                }
+            }
+            return choices[choices.length - 1];
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            int previous = 0;
+            for (int i = 0; i < choices.length; i++) {
+                if (builder.length() > 0) {
+                    builder.append(',');
+                }
+                builder.append(choices[i].name().toLowerCase(Locale.ROOT)).append('=')
+                        .append(cumulative[i] - previous);
+                previous = cumulative[i];
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.benchmarks.http;
+
+import java.util.Locale;
+
+/**
+ * The Spring wirings the harness compares. Both serve the same REST API from the same kind of repository.
+ */
+enum Wiring {
+
+    /** servlet container authentication with the basic roles authorization delegate */
+    ROLES,
+
+    /** no authentication provider or authorization delegate at all */
+    OPEN;
+
+    /**
+     * @return the web.xml that wires this configuration
+     */
+    String webXml() {
+        return "classpath:load/web-" + label() + ".xml";
+    }
+
+    /**
+     * @return the lower case name used in options and reports
+     */
+    String label() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -17,14 +17,25 @@
  */
 package org.fcrepo.auth.roles.common;
 
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toSet;
+import static org.fcrepo.auth.roles.common.AccessRolesProvider.DEFAULT_ACCESS_ROLES;
+import static org.fcrepo.auth.roles.common.Constants.registerPrefixes;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.rbaclAssignable;
 import static org.fcrepo.kernel.modeshape.FedoraSessionImpl.getJcrSession;
 
 import java.security.Principal;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 import javax.jcr.Item;
@@ -34,13 +45,19 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
 import org.fcrepo.auth.common.FedoraAuthorizationDelegate;
+import org.fcrepo.auth.roles.common.AuthorizationTrace.Stage;
+import org.fcrepo.auth.roles.common.TransactionAclOverlay.AclChange;
 import org.fcrepo.http.commons.session.SessionFactory;
 import org.fcrepo.kernel.api.FedoraSession;
 import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
+import org.modeshape.jcr.value.Name;
 import org.modeshape.jcr.value.Path;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 /**
  * Policy enforcement point for roles-based authentication
  * @author Gregory Jansen
@@ -55,12 +72,47 @@ public abstract class AbstractRolesAuthorizationDelegate implements FedoraAuthor
 
     private static final String[] REMOVE_ACTIONS = {"remove"};
 
+    /**
+     * How long the ACLs a session has met under each parent are remembered after its last check.
+     */
+    private static final long PARENT_ACLS_KEPT_SECONDS = 5;
+
+    /**
+     * The most parents whose ACLs are remembered for one session.
+     */
+    private static final int PARENT_ACLS_KEPT = 256;
+
     @Inject
     private AccessRolesProvider accessRolesProvider = null;
 
     @Inject
     private SessionFactory sessionFactory = null;
 
+    @Inject
+    private SlowAuthorizationLog slowAuthorizationLog = null;
+
+    @Inject
+    private AuthorizationAuditLog authorizationAuditLog = null;
+
+    @Inject
+    private TransactionAclOverlay transactionAclOverlay = null;
+
+    private boolean siblingAclReuse = Boolean.getBoolean("fcrepo.auth.roles.siblingAclReuse.enabled");
+
+    // for sibling ACL reuse, the effective ACL under each parent a user session has recently checked, by version
+    private final Cache<Session, Map<String, VersionedAcl>> parentAcls = CacheBuilder.newBuilder().weakKeys()
+            .expireAfterAccess(PARENT_ACLS_KEPT_SECONDS, SECONDS).build();
+
+    /**
+     * @param siblingAclReuse whether the ACL under each parent is read once for all of its children that have no
+     *        ACL of their own: within a batch decision, and across the single decisions of a session for as long as
+     *        the ACL keeps its version; the system property {@code fcrepo.auth.roles.siblingAclReuse.enabled}, false
+     *        by default
+     */
+    public void setSiblingAclReuse(final boolean siblingAclReuse) {
+        this.siblingAclReuse = siblingAclReuse;
+    }
+
     /**
      * Gather effectives roles
      *
@@ -68,7 +120,7 @@ public abstract class AbstractRolesAuthorizationDelegate implements FedoraAuthor
      * @param principals effective principals
      * @return set of effective content roles
      */
-    public static Set<String> resolveUserRoles(final Map<String, Collection<String>> acl,
+    public static Set<String> resolveUserRoles(final Map<String, ? extends Collection<String>> acl,
                     final Collection<Principal> principals) {
         return principals.stream().map(Principal::getName).filter(acl::containsKey)
             .peek(principal -> LOGGER.debug("request principal matched role assignment: {}", principal))
@@ -80,15 +132,51 @@ public abstract class AbstractRolesAuthorizationDelegate implements FedoraAuthor
     @Override
     public boolean hasPermission(final Session session, final Path absPath, final String[] actions) {
         LOGGER.debug("Does user have permission for actions: {}, on path: {}", actions, absPath);
-        final boolean permission = doHasPermission(session, absPath, actions);
+        final AuthorizationTrace trace = openTrace(absPath, actions);
+        boolean permission = false;
+        try {
+            permission = doHasPermission(session, absPath, actions, trace);
+        } finally {
+            if (trace != null) {
+                closeTrace(trace, permission);
+            }
+            // a decision that failed is audited as the denial it amounts to
+            if (authorizationAuditLog != null && authorizationAuditLog.isEnabled()) {
+                authorizationAuditLog.offer(getUserPrincipal(session), absPath, actions, permission);
+            }
+        }
 
         LOGGER.debug("Permission for actions: {}, on: {} = {}", actions, absPath, permission);
         return permission;
     }
 
-    private boolean doHasPermission(final Session session, final Path absPath, final String[] actions) {
-        final Set<String> roles;
+    /**
+     * Open a trace for this decision if anything is listening for one.
+     *
+     * @param absPath the path being checked
+     * @param actions the requested actions
+     * @return the trace, or null if the decision need not be traced
+     */
+    private AuthorizationTrace openTrace(final Path absPath, final String[] actions) {
+        if (!AuthorizationEvents.isDecisionEnabled() &&
+                (slowAuthorizationLog == null || !slowAuthorizationLog.shouldTrace())) {
+            return null;
+        }
+        final AuthorizationTrace trace = AuthorizationTrace.start(absPath.toString(), actions);
+        AuthorizationEvents.beginDecision(trace);
+        return trace;
+    }
 
+    private void closeTrace(final AuthorizationTrace trace, final boolean permission) {
+        trace.finish(permission);
+        AuthorizationEvents.commitDecision(trace);
+        if (slowAuthorizationLog != null) {
+            slowAuthorizationLog.record(trace);
+        }
+    }
+
+    private boolean doHasPermission(final Session session, final Path absPath, final String[] actions,
+            final AuthorizationTrace trace) {
         final Principal userPrincipal = getUserPrincipal(session);
         if (userPrincipal == null) {
             return false;
@@ -98,19 +186,72 @@ public abstract class AbstractRolesAuthorizationDelegate implements FedoraAuthor
         if (allPrincipals == null) {
             return false;
         }
+        if (trace != null) {
+            trace.setPrincipalCount(allPrincipals.size());
+        }
 
+        final Map<String, ? extends Collection<String>> acl;
         try {
+            long start = trace == null ? 0 : nanoTime();
             final FedoraSession internalSession = sessionFactory.getInternalSession();
-            final Map<String, Collection<String>> acl =
-                    accessRolesProvider.findRolesForPath(absPath,
-                            getJcrSession(internalSession));
-            roles = resolveUserRoles(acl, allPrincipals);
-            LOGGER.debug("roles for this request: {}", roles);
+            if (trace != null) {
+                start = trace.lap(Stage.SESSION, start);
+            }
+            final String overlaid = overlaidPath(session, absPath);
+            if (overlaid != null) {
+                acl = readOverlaidAcl(session, getJcrSession(internalSession), overlaid);
+            } else if (siblingAclReuse) {
+                acl = readSiblingAcl(session, getJcrSession(internalSession), absPath);
+            } else {
+                acl = accessRolesProvider.findRolesForPath(absPath,
+                                getJcrSession(internalSession));
+            }
+            if (trace != null) {
+                trace.lap(Stage.WALK, start);
+            }
         } catch (final RepositoryException e) {
             throw new RepositoryRuntimeException("Cannot look up node information on " + absPath +
                     " for permissions check.", e);
         }
 
+        return evaluate(session, absPath.toString(), actions, acl, allPrincipals, trace);
+    }
+
+    /**
+     * Resolve the effective roles from an ACL and decide whether they permit the actions.
+     *
+     * @param session the user session
+     * @param absPath path to the object
+     * @param actions requested actions
+     * @param acl the governing access control list
+     * @param allPrincipals the principals of the request
+     * @param trace the trace of this decision, or null
+     * @return true if permitted
+     */
+    private boolean evaluate(final Session session, final String absPath, final String[] actions,
+            final Map<String, ? extends Collection<String>> acl, final Set<Principal> allPrincipals,
+            final AuthorizationTrace trace) {
+        long start = trace == null ? 0 : nanoTime();
+        final Set<String> roles = resolveUserRoles(acl, allPrincipals);
+        LOGGER.debug("roles for this request: {}", roles);
+        if (trace != null) {
+            trace.setMatchedPrincipals(allPrincipals.stream().map(Principal::getName).filter(acl::containsKey)
+                    .collect(toList()));
+            trace.setRoles(roles);
+            start = trace.lap(Stage.RESOLVE, start);
+        }
+
+        try {
+            return rolesPermit(session, absPath, actions, allPrincipals, roles);
+        } finally {
+            if (trace != null) {
+                trace.lap(Stage.EVALUATE, start);
+            }
+        }
+    }
+
+    private boolean rolesPermit(final Session session, final String absPath, final String[] actions,
+            final Set<Principal> allPrincipals, final Set<String> roles) {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("roles: {}, actions: {}, path: {}", roles, actions, absPath);
             if (actions.length > 1) { // have yet to see more than one
@@ -126,19 +267,329 @@ public abstract class AbstractRolesAuthorizationDelegate implements FedoraAuthor
             return true;
         }
 
-        if (!rolesHavePermission(session, absPath.toString(), actions, roles)) {
+        if (!rolesHavePermission(session, absPath, actions, roles)) {
             return false;
         }
 
         if (actions.length == 1 && "remove".equals(actions[0])) {
             // you must be able to delete all the children
             // TODO make recursive/ACL-query-based check configurable
-            return canRemoveChildrenRecursive(session, absPath.toString(),
+            return canRemoveChildrenRecursive(session, absPath,
                     allPrincipals, roles);
         }
         return true;
     }
 
+    /**
+     * Explain the decision this delegate would make for a set of principals, without a user session. ACLs are read
+     * through the internal session, the principal that represents everyone is added to those given, and each stage
+     * of the decision is timed. The path is handed to {@link #rolesHavePermission} in the expanded form that
+     * {@link #hasPermission} uses, so that both decide alike.
+     *
+     * @param absPath the JCR path of an existing node
+     * @param principalNames the names of the principals to explain the decision for
+     * @param actions the requested actions
+     * @return the finished trace of the decision
+     */
+    public AuthorizationTrace explain(final String absPath, final Collection<String> principalNames,
+            final String[] actions) {
+        final Set<String> names = new LinkedHashSet<>(principalNames);
+        final Principal everyone = getEveryonePrincipal();
+        if (everyone != null) {
+            names.add(everyone.getName());
+        }
+        final Set<Principal> principals = names.stream().map(name -> (Principal) () -> name).collect(toSet());
+
+        final AuthorizationTrace trace = AuthorizationTrace.start(absPath, actions);
+        trace.setPrincipalCount(principals.size());
+        boolean permission = false;
+        FedoraSession internalSession = null;
+        try {
+            long start = nanoTime();
+            internalSession = sessionFactory.getInternalSession();
+            start = trace.lap(Stage.SESSION, start);
+            final Session jcrSession = getJcrSession(internalSession);
+            final Map<String, Collection<String>> acl =
+                    accessRolesProvider.getRoles(jcrSession.getNode(absPath), true);
+            trace.lap(Stage.WALK, start);
+            permission = evaluate(jcrSession, toExpandedPath(jcrSession, absPath), actions,
+                    acl == null ? DEFAULT_ACCESS_ROLES : acl, principals, trace);
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException("Cannot explain permissions on " + absPath, e);
+        } finally {
+            trace.finish(permission);
+            if (internalSession != null) {
+                internalSession.expire();
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Decide the same actions on many paths at once for the principals of a user session, for example to filter a
+     * page of search results by read permission. Decisions are those of
+     * {@link #hasPermission(Session, Path, String[])}: on the ACLs as last committed, except where the session has
+     * changed them in a transaction, and with each path handed to {@link #rolesHavePermission} in the same expanded
+     * form. The {@link PrincipalIndex} is not consulted, since it lags commits. When sibling ACL reuse is enabled,
+     * as for the children of a container, the repository is read only once for all the candidates under one parent
+     * that have no ACL of their own.
+     *
+     * @param session the user session
+     * @param paths the JCR paths of the candidates
+     * @param actions the requested actions
+     * @return the positions in paths of the candidates on which the actions are permitted
+     */
+    public BitSet filterPermitted(final Session session, final List<String> paths, final String[] actions) {
+        final Set<Principal> allPrincipals = getPrincipals(session);
+        if (getUserPrincipal(session) == null || allPrincipals == null) {
+            return new BitSet();
+        }
+        return filter(session, paths, actions, allPrincipals);
+    }
+
+    /**
+     * Decide the same actions on many paths at once for a set of principals, without a user session, as
+     * {@link #filterPermitted(Session, List, String[])} does. The principal that represents everyone is added to
+     * those given.
+     *
+     * @param principalNames the names of the principals to decide for
+     * @param paths the JCR paths of the candidates
+     * @param actions the requested actions
+     * @return the positions in paths of the candidates on which the actions are permitted
+     */
+    public BitSet filterPermitted(final Collection<String> principalNames, final List<String> paths,
+            final String[] actions) {
+        final Set<String> names = new LinkedHashSet<>(principalNames);
+        final Principal everyone = getEveryonePrincipal();
+        if (everyone != null) {
+            names.add(everyone.getName());
+        }
+        final Set<Principal> principals = names.stream().map(name -> (Principal) () -> name).collect(toSet());
+        final FedoraSession internalSession = sessionFactory.getInternalSession();
+        try {
+            return filter(getJcrSession(internalSession), paths, actions, principals);
+        } finally {
+            internalSession.expire();
+        }
+    }
+
+    private BitSet filter(final Session session, final List<String> paths, final String[] actions,
+            final Set<Principal> allPrincipals) {
+        final BitSet permitted = new BitSet(paths.size());
+        final boolean overlaid = transactionAclOverlay != null && transactionAclOverlay.hasChanges(session);
+        // the user's roles under each parent met so far, for its children without an ACL of their own
+        final Map<String, Set<String>> rolesByParent = siblingAclReuse ? new HashMap<>() : null;
+        FedoraSession internalSession = null;
+        try {
+            for (int i = 0; i < paths.size(); i++) {
+                final String path = paths.get(i);
+                final Set<String> roles;
+                if (internalSession == null) {
+                    internalSession = sessionFactory.getInternalSession();
+                }
+                if (overlaid && transactionAclOverlay.affects(session, path)) {
+                    roles = resolveUserRoles(readOverlaidAcl(session, getJcrSession(internalSession), path),
+                            allPrincipals);
+                } else {
+                    roles = readRoles(getJcrSession(internalSession), path, allPrincipals, rolesByParent);
+                }
+                if (rolesPermit(session, toExpandedPath(session, path), actions, allPrincipals, roles)) {
+                    permitted.set(i);
+                }
+            }
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException("Cannot look up node information for permissions checks.", e);
+        } finally {
+            if (internalSession != null) {
+                internalSession.expire();
+            }
+        }
+        return permitted;
+    }
+
+    /**
+     * Resolve the roles at a path from the repository, reusing those of its parent for a path that has no ACL of
+     * its own, whose effective ACL is its parent's.
+     *
+     * @param session the session to read ACLs with
+     * @param path a JCR path
+     * @param allPrincipals the principals to resolve roles for
+     * @param rolesByParent the roles resolved under each parent so far, or null to read every path's ACL
+     * @return the roles
+     */
+    private Set<String> readRoles(final Session session, final String path, final Set<Principal> allPrincipals,
+            final Map<String, Set<String>> rolesByParent) throws RepositoryException {
+        if (rolesByParent == null || "/".equals(path)) {
+            return resolveUserRoles(readAcl(session, path), allPrincipals);
+        }
+        registerPrefixes(session);
+        if (session.nodeExists(path) && session.getNode(path).isNodeType(rbaclAssignable.getQualified())) {
+            return resolveUserRoles(readAcl(session, path), allPrincipals);
+        }
+        final String parent = PrincipalIndex.parent(path);
+        Set<String> roles = rolesByParent.get(parent);
+        if (roles == null) {
+            roles = resolveUserRoles(readAcl(session, parent), allPrincipals);
+            rolesByParent.put(parent, roles);
+        }
+        return roles;
+    }
+
+    /**
+     * Find the effective ACL at a path, reusing the one a session last met under the same parent for a node that has
+     * no ACL of its own, as long as that ACL keeps its version. An ACL without a version is read every time.
+     *
+     * @param session the user session
+     * @param internalSession an internal session to read ACLs with
+     * @param absPath the real or potential node path
+     * @return the effective ACL
+     */
+    private Map<String, ? extends Collection<String>> readSiblingAcl(final Session session,
+            final Session internalSession, final Path absPath) throws RepositoryException {
+        final String path = absPath.getString();
+        registerPrefixes(internalSession);
+        if (absPath.isRoot() || !internalSession.nodeExists(path) ||
+                internalSession.getNode(path).isNodeType(rbaclAssignable.getQualified())) {
+            return accessRolesProvider.findRolesForPath(absPath, internalSession);
+        }
+        final String parentPath = absPath.getParent().getString();
+        final Node parent = internalSession.getNode(parentPath);
+        final String version = accessRolesProvider.getRolesVersion(parent, true);
+        if (version == null) {
+            return accessRolesProvider.getRoles(parent, true);
+        }
+        final Map<String, VersionedAcl> known = parentAcls.asMap().computeIfAbsent(session,
+                s -> new ConcurrentHashMap<>());
+        final VersionedAcl reused = known.get(parentPath);
+        if (reused != null && reused.version.equals(version)) {
+            return reused.acl;
+        }
+        final Map<String, Collection<String>> acl = accessRolesProvider.getRoles(parent, true);
+        // an ACL changed while being read is not kept, since the version may not describe what was read
+        if (version.equals(accessRolesProvider.getRolesVersion(parent, true))) {
+            if (known.size() >= PARENT_ACLS_KEPT) {
+                known.clear();
+            }
+            known.put(parentPath, new VersionedAcl(version, acl));
+        }
+        return acl;
+    }
+
+    /**
+     * An effective ACL with the version it was read at.
+     */
+    private static class VersionedAcl {
+
+        private final String version;
+
+        private final Map<String, Collection<String>> acl;
+
+        private VersionedAcl(final String version, final Map<String, Collection<String>> acl) {
+            this.version = version;
+            this.acl = acl;
+        }
+    }
+
+    /**
+     * @return the effective ACL of the nearest existing node at or above a path
+     */
+    private Map<String, Collection<String>> readAcl(final Session session, final String path)
+            throws RepositoryException {
+        for (String p = path; !"/".equals(p); p = PrincipalIndex.parent(p)) {
+            if (session.nodeExists(p)) {
+                return accessRolesProvider.getRoles(session.getNode(p), true);
+            }
+        }
+        return accessRolesProvider.getRoles(session.getRootNode(), true);
+    }
+
+    /**
+     * @return the JCR path of the checked node if the session has uncommitted changes to the ACL governing it, else
+     *         null
+     */
+    private String overlaidPath(final Session session, final Path absPath) throws RepositoryException {
+        if (transactionAclOverlay == null || !transactionAclOverlay.hasChanges(session)) {
+            return null;
+        }
+        final String path = toJcrPath(session, absPath);
+        return transactionAclOverlay.affects(session, path) ? path : null;
+    }
+
+    /**
+     * Find the effective ACL at a path as a session sees it, uncommitted changes included: the nearest ACL at or
+     * above the path, taken from the changes of the session where it has made one, and otherwise from the
+     * repository. The index is not consulted, since it may lag the commits the transaction builds on.
+     *
+     * @param session the user session
+     * @param internalSession an internal session to read committed ACLs with
+     * @param path a JCR path
+     * @return the effective ACL
+     */
+    private Map<String, ? extends Collection<String>> readOverlaidAcl(final Session session,
+            final Session internalSession, final String path) throws RepositoryException {
+        for (String p = path;; p = PrincipalIndex.parent(p)) {
+            final AclChange change = transactionAclOverlay.getChange(session, p);
+            final Map<String, ? extends Collection<String>> acl;
+            if (change != null) {
+                acl = change.getAcl();
+            } else {
+                acl = internalSession.nodeExists(p) ? accessRolesProvider.getRoles(internalSession.getNode(p), false)
+                        : null;
+            }
+            if (acl != null) {
+                return acl;
+            }
+            if ("/".equals(p)) {
+                return DEFAULT_ACCESS_ROLES;
+            }
+        }
+    }
+
+    /**
+     * @return the path in the qualified form of JCR paths, with the namespace prefixes of the session
+     */
+    private static String toJcrPath(final Session session, final Path absPath) throws RepositoryException {
+        if (absPath.isRoot()) {
+            return "/";
+        }
+        final StringBuilder path = new StringBuilder();
+        for (final Path.Segment segment : absPath) {
+            final Name name = segment.getName();
+            path.append('/');
+            if (!name.getNamespaceUri().isEmpty()) {
+                path.append(session.getNamespacePrefix(name.getNamespaceUri())).append(':');
+            }
+            path.append(name.getLocalName());
+            if (segment.hasIndex()) {
+                path.append('[').append(segment.getIndex()).append(']');
+            }
+        }
+        return path.toString();
+    }
+
+    /**
+     * @return a JCR path in the expanded form of {@link Path#toString()}, in which {@link #hasPermission} hands paths
+     *         to {@link #rolesHavePermission}: each prefixed name becomes its namespace URI in braces and its local
+     *         name. A path already holding an expanded name is returned as it is.
+     */
+    static String toExpandedPath(final Session session, final String path) throws RepositoryException {
+        if (path.indexOf(':') < 0 || path.indexOf('{') >= 0) {
+            return path;
+        }
+        final StringBuilder expanded = new StringBuilder(path.length() + 64);
+        for (final String segment : path.substring(1).split("/")) {
+            expanded.append('/');
+            final int colon = segment.indexOf(':');
+            if (colon > 0) {
+                expanded.append('{').append(session.getNamespaceURI(segment.substring(0, colon))).append('}')
+                        .append(segment, colon + 1, segment.length());
+            } else {
+                expanded.append(segment);
+            }
+        }
+        return expanded.toString();
+    }
+
     private static Principal getUserPrincipal(final Session session) {
         final Object value = session.getAttribute(FEDORA_USER_PRINCIPAL);
         if (value instanceof Principal) {
@@ -185,7 +636,10 @@ public abstract class AbstractRolesAuthorizationDelegate implements FedoraAuthor
                 final Node n = ni.nextNode();
                 // are there unique roles?
                 final Set<String> roles;
-                final Map<String, Collection<String>> acl = accessRolesProvider.getRoles(n, false);
+                final AclChange change = transactionAclOverlay == null ? null :
+                        transactionAclOverlay.getChange(userSession, n.getPath());
+                final Map<String, ? extends Collection<String>> acl =
+                        change != null ? change.getAcl() : accessRolesProvider.getRoles(n, false);
 
                 if (acl != null) {
                     roles = resolveUserRoles(acl, allPrincipals);
@@ -17,45 +17,70 @@
  */
 package org.fcrepo.auth.roles.common;
 
+import static com.google.common.hash.Hashing.murmur3_128;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON_TYPE;
+import static org.fcrepo.auth.common.ServletContainerAuthenticationProvider.FEDORA_ADMIN_ROLE;
 import static org.fcrepo.kernel.modeshape.utils.FedoraTypesUtils.getJcrNode;
 
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import javax.inject.Inject;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Link;
 import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 
+import org.fcrepo.auth.common.FedoraAuthorizationDelegate;
+import org.fcrepo.auth.roles.common.AuthorizationTrace.Stage;
 import org.fcrepo.http.commons.AbstractResource;
 import org.fcrepo.http.commons.api.rdf.HttpResourceConverter;
+import org.fcrepo.http.commons.domain.PATCH;
 import org.fcrepo.http.commons.session.HttpSession;
+import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
 import org.fcrepo.kernel.api.identifiers.IdentifierConverter;
 import org.fcrepo.kernel.api.models.FedoraBinary;
 import org.fcrepo.kernel.api.models.FedoraResource;
 
+import org.glassfish.jersey.server.CloseableService;
 import org.jvnet.hk2.annotations.Optional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.Scope;
 
 import com.codahale.metrics.annotation.Timed;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.annotations.VisibleForTesting;
 import org.apache.jena.rdf.model.Resource;
 
@@ -72,6 +97,8 @@ public class AccessRoles extends AbstractResource {
     private static final Logger LOGGER = LoggerFactory
             .getLogger(AccessRoles.class);
 
+    private static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
     protected IdentifierConverter<Resource, FedoraResource> identifierTranslator;
 
 
@@ -82,14 +109,30 @@ public class AccessRoles extends AbstractResource {
     @Optional
     private AccessRolesProvider accessRolesProvider;
 
+    @Inject
+    @Optional
+    private FedoraAuthorizationDelegate authorizationDelegate;
+
+    @Inject
+    @Optional
+    private AccessRolesRepresentationCache representationCache;
+
+    @Inject
+    @Optional
+    private TransactionAclOverlay transactionAclOverlay;
+
     @Context protected Request request;
+    @Context protected SecurityContext securityContext;
     @Context protected HttpServletResponse servletResponse;
     @Context protected UriInfo uriInfo;
+    @Context protected CloseableService closeables;
 
     protected FedoraResource resource;
 
     @PathParam("path") protected String externalPath;
 
+    private boolean sessionHandedOff = false;
+
 
     /**
      * Default JAX-RS entry point
@@ -121,10 +164,36 @@ public class AccessRoles extends AbstractResource {
      * @param effective the effective roles
      * @return JSON representation of assignment map
      */
+    public Response get(final String effective) {
+        return get(effective, null, null, null, null, null);
+    }
+
+    /**
+     * Retrieve the roles assigned to each principal on this specific path, or explain how an authorization decision
+     * on it would be made. Roles are returned with an entity tag, the version of their ACL when it has one, and a
+     * matching If-None-Match gets 304 Not Modified.
+     * <p>
+     * Given a limit or an offset, roles are streamed as they are read instead, a page at a time, with a
+     * <code>Link: &lt;...&gt;; rel="next"</code> header while more pages may follow. Pages count assignments.
+     * </p>
+     *
+     * @param effective the effective roles
+     * @param explain explain a decision rather than returning the roles
+     * @param principals the principals to explain a decision for
+     * @param actions the actions to explain a decision for, read by default
+     * @param limit the maximum number of assignments to stream
+     * @param offset the number of assignments to skip before streaming
+     * @return JSON representation of assignment map or of the explained decision
+     */
     @GET
     @Produces(APPLICATION_JSON)
     @Timed
-    public Response get(@QueryParam("effective") final String effective) {
+    public Response get(@QueryParam("effective") final String effective,
+            @QueryParam("explain") final String explain,
+            @QueryParam("principal") final List<String> principals,
+            @QueryParam("action") final List<String> actions,
+            @QueryParam("limit") final Long limit,
+            @QueryParam("offset") final Long offset) {
         LOGGER.debug("Get access roles for: {}", externalPath);
         LOGGER.debug("effective: {}", effective);
         Response.ResponseBuilder response;
@@ -137,10 +206,19 @@ public class AccessRoles extends AbstractResource {
                 node = getJcrNode(resource());
             }
 
+            if (explain != null) {
+                return explain(node, principals, actions);
+            }
+
             final AccessRolesProvider provider = this.getAccessRolesProvider();
+            final String version = provider == null ? null : provider.getRolesVersion(node, effective != null);
             if (provider == null) {
                 LOGGER.debug("accessRolesProvider is null");
                 response = Response.status(Status.NOT_FOUND);
+            } else if (limit != null || offset != null) {
+                response = getPage(provider, node, effective != null, version, limit, offset == null ? 0 : offset);
+            } else if (version != null) {
+                response = getVersioned(provider, node, effective != null, version);
             } else {
                 final Map<String, Collection<String>> data =
                         provider.getRoles(node, (effective != null));
@@ -148,17 +226,170 @@ public class AccessRoles extends AbstractResource {
                     LOGGER.debug("no content response");
                     response = Response.noContent();
                 } else {
-                    response = Response.ok(data);
+                    final EntityTag tag = rolesTag(data);
+                    final Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+                    response = notModified != null ? notModified : Response.ok(data).tag(tag);
                 }
             }
         } finally {
-            session.expire();
+            if (!sessionHandedOff) {
+                session.expire();
+            }
         }
         return response.build();
     }
 
     /**
-     * Apply new role assignments at the specified node.
+     * Stream a page of roles as they are read. The session stays open until the request is done with, whether or not
+     * the stream is ever written, and is expired then.
+     *
+     * @param provider the roles provider
+     * @param node the node to get roles for
+     * @param effective whether to get effective roles
+     * @param version the version of the roles, or null
+     * @param limit the maximum number of assignments to stream, or null for all of them
+     * @param offset the number of assignments to skip
+     * @return the response to send
+     */
+    private Response.ResponseBuilder getPage(final AccessRolesProvider provider, final Node node,
+            final boolean effective, final String version, final Long limit, final long offset) {
+        if ((limit != null && limit < 1) || offset < 0) {
+            throw new WebApplicationException(Response.status(Status.BAD_REQUEST)
+                    .entity("limit must be positive and offset must not be negative").build());
+        }
+        final EntityTag tag = version == null ? null : new EntityTag(version);
+        if (tag != null) {
+            final Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+            if (notModified != null) {
+                return notModified;
+            }
+        }
+        final Iterator<Map.Entry<String, Collection<String>>> roles = provider.iterateRoles(node, effective, offset,
+                limit == null ? Long.MAX_VALUE : limit);
+        if (roles == null) {
+            return Response.noContent();
+        }
+        final Response.ResponseBuilder response = Response.ok().type(APPLICATION_JSON_TYPE).tag(tag);
+        if (limit != null) {
+            final long size = provider.countRoles(node, effective);
+            if (size < 0 || limit < size - offset) {
+                response.links(Link.fromUriBuilder(uriInfo.getRequestUriBuilder()
+                        .replaceQueryParam("offset", offset + limit)
+                        .replaceQueryParam("limit", limit)).rel("next").build());
+            }
+        }
+        if (!"HEAD".equals(request.getMethod())) {
+            response.entity(streamRoles(roles));
+            closeables.add(session::expire);
+            sessionHandedOff = true;
+        }
+        return response;
+    }
+
+    /**
+     * @param roles the roles of each principal
+     * @return an entity writing the roles as a JSON object
+     */
+    private StreamingOutput streamRoles(final Iterator<Map.Entry<String, Collection<String>>> roles) {
+        return output -> {
+            try (final JsonGenerator json = JSON_FACTORY.createGenerator(output)) {
+                json.writeStartObject();
+                while (roles.hasNext()) {
+                    final Map.Entry<String, Collection<String>> entry = roles.next();
+                    json.writeArrayFieldStart(entry.getKey());
+                    for (final String role : entry.getValue()) {
+                        json.writeString(role);
+                    }
+                    json.writeEndArray();
+                }
+                json.writeEndObject();
+            }
+        };
+    }
+
+    /**
+     * Serve roles whose ACL is versioned: tagged with the version, and from the serialized form cached for that
+     * version when there is one, so that an unchanged ACL is neither read nor serialized again.
+     *
+     * @param provider the roles provider
+     * @param node the node to get roles for
+     * @param effective whether to get effective roles
+     * @param version the version of the roles
+     * @return the response to send
+     */
+    private Response.ResponseBuilder getVersioned(final AccessRolesProvider provider, final Node node,
+            final boolean effective, final String version) {
+        final EntityTag tag = new EntityTag(version);
+        final Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+        if (notModified != null) {
+            return notModified;
+        }
+        byte[] json = representationCache == null ? null : representationCache.get(version);
+        if (json == null) {
+            final Map<String, Collection<String>> data = provider.getRoles(node, effective);
+            if (!version.equals(provider.getRolesVersion(node, effective))) {
+                // changed while being read, so neither the version nor the cache may describe what was read
+                return Response.ok(data);
+            }
+            if (representationCache == null) {
+                return Response.ok(data).tag(tag);
+            }
+            json = representationCache.put(version, data);
+        }
+        return Response.ok(json, APPLICATION_JSON_TYPE).tag(tag);
+    }
+
+    /**
+     * Explain the decision the roles delegate would make on a node. Restricted to repository administrators.
+     *
+     * @param node the node to explain a decision on
+     * @param principals the principals to explain a decision for
+     * @param actions the actions to explain a decision for, read by default
+     * @return JSON representation of the decision and the time spent in each stage
+     */
+    private Response explain(final Node node, final List<String> principals, final List<String> actions) {
+        if (securityContext == null || !securityContext.isUserInRole(FEDORA_ADMIN_ROLE)) {
+            LOGGER.debug("Denying explain request from a non-administrator");
+            return Response.status(Status.FORBIDDEN).build();
+        }
+        final FedoraAuthorizationDelegate delegate = authorizationDelegate instanceof ShadowAuthorizationDelegate ?
+                ((ShadowAuthorizationDelegate) authorizationDelegate).getActive() : authorizationDelegate;
+        if (!(delegate instanceof AbstractRolesAuthorizationDelegate)) {
+            LOGGER.debug("No roles authorization delegate to explain decisions with");
+            return Response.status(Status.NOT_FOUND).build();
+        }
+        final String[] requested = actions == null || actions.isEmpty() ?
+                new String[] { "read" } : actions.toArray(new String[actions.size()]);
+        final AuthorizationTrace trace;
+        try {
+            trace = ((AbstractRolesAuthorizationDelegate) delegate).explain(node.getPath(),
+                    principals == null ? emptyList() : principals, requested);
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException(e);
+        }
+
+        final Map<String, Long> timings = new LinkedHashMap<>();
+        timings.put("sessionAcquisition", trace.getStageNanos(Stage.SESSION));
+        timings.put("ancestorWalk", trace.getStageNanos(Stage.WALK));
+        timings.put("roleResolution", trace.getStageNanos(Stage.RESOLVE));
+        timings.put("policyEvaluation", trace.getStageNanos(Stage.EVALUATE));
+        timings.put("total", trace.getDurationNanos());
+
+        final Map<String, Object> explanation = new LinkedHashMap<>();
+        explanation.put("path", trace.getPath());
+        explanation.put("actions", trace.getActions());
+        explanation.put("governingAcl", trace.getGoverningAclPath());
+        explanation.put("walkDepth", trace.getWalkDepth());
+        explanation.put("matchedPrincipals", trace.getMatchedPrincipals());
+        explanation.put("roles", trace.getRoles());
+        explanation.put("permitted", trace.isPermitted());
+        explanation.put("timingsNanos", timings);
+        return Response.ok(explanation).build();
+    }
+
+    /**
+     * Apply new role assignments at the specified node. If-Match and If-None-Match are evaluated against the roles
+     * currently assigned there, so <code>If-None-Match: *</code> only creates an ACL where there is none.
      *
      * @param data access roles
      * @return response
@@ -175,18 +406,18 @@ public class AccessRoles extends AbstractResource {
         try {
             validatePOST(data);
 
-            final FedoraResource resource = resource();
-
-            if (resource instanceof FedoraBinary) {
-                this.getAccessRolesProvider().postRoles(getJcrNode(((FedoraBinary) resource).getDescription()), data);
-            } else {
-                this.getAccessRolesProvider().postRoles(getJcrNode(resource), data);
+            final Node node = rolesNode(resource());
+            final Response.ResponseBuilder failed = checkPreconditions(node);
+            if (failed != null) {
+                return failed.build();
             }
+            this.getAccessRolesProvider().postRoles(node, data);
             session.commit();
+            recordUncommitted(node);
             LOGGER.debug("Saved access roles {}", data);
             response =
                     Response.created(getUriInfo().getBaseUriBuilder()
-                            .path(externalPath).path("fcr:accessroles").build());
+                            .path(externalPath).path("fcr:accessroles").build()).tag(currentTag(node, data));
 
         } catch (final IllegalArgumentException e) {
             throw new WebApplicationException(e, Response.status(Status.BAD_REQUEST).build());
@@ -198,9 +429,109 @@ public class AccessRoles extends AbstractResource {
     }
 
     /**
-     * @param data
+     * Make the specified node take its roles from a shared ACL template, replacing any assignments of its own. The
+     * roles are then read through {@link #get(String)} as usual; a POST replaces the reference with assignments of
+     * the node's own. If-Match and If-None-Match are evaluated as for a POST.
+     *
+     * @param template the name of an existing ACL template
+     * @return response
+     * @throws RepositoryException if the change could not be saved
+     */
+    @PUT
+    @Timed
+    public Response putTemplate(@QueryParam("template") final String template) throws RepositoryException {
+        LOGGER.debug("Use ACL template {} for: {}", template, externalPath);
+        try {
+            if (template == null || template.isEmpty()) {
+                throw new IllegalArgumentException("The name of an ACL template is required");
+            }
+            final Node node = rolesNode(resource());
+            final Response.ResponseBuilder failed = checkPreconditions(node);
+            if (failed != null) {
+                return failed.build();
+            }
+            this.getAccessRolesProvider().useTemplate(node, template);
+            session.commit();
+            recordUncommitted(node);
+            return Response.noContent().build();
+        } catch (final IllegalArgumentException e) {
+            throw new WebApplicationException(e, Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build());
+        } finally {
+            session.expire();
+        }
+    }
+
+    /**
+     * Add and remove individual roles at the specified node, leaving the other assignments as they are. The body
+     * names the roles to add to and remove from each principal:
+     * <code>{"add": {"principal": ["role", ...]}, "remove": {"principal": ["role", ...]}}</code>.
+     *
+     * @param data the roles to add and remove
+     * @return response
+     * @throws RepositoryException if the change could not be saved
      */
-    private void validatePOST(final Map<String, Set<String>> data) {
+    @PATCH
+    @Consumes(APPLICATION_JSON)
+    @Timed
+    public Response patch(final Map<String, Map<String, Set<String>>> data) throws RepositoryException {
+        LOGGER.debug("PATCH access roles for: {}", externalPath);
+        try {
+            validatePATCH(data);
+            final Node node = rolesNode(resource());
+            final Response.ResponseBuilder failed = checkPreconditions(node);
+            if (failed != null) {
+                return failed.build();
+            }
+            this.getAccessRolesProvider().patchRoles(node,
+                    data.getOrDefault("add", emptyMap()), data.getOrDefault("remove", emptyMap()));
+            session.commit();
+            recordUncommitted(node);
+            LOGGER.debug("Patched access roles {}", data);
+            return Response.noContent().build();
+        } catch (final IllegalArgumentException e) {
+            throw new WebApplicationException(e, Response.status(Status.BAD_REQUEST).build());
+        } finally {
+            session.expire();
+        }
+    }
+
+    /**
+     * Check that a patch holds only "add" and "remove" operations, at least one of them not empty, each complete by
+     * the rules of {@link #validatePOST(Map)}.
+     *
+     * @param data the roles to add and remove
+     * @throws IllegalArgumentException describing the first problem found
+     */
+    static void validatePATCH(final Map<String, Map<String, Set<String>>> data) {
+        final Set<String> operations = new HashSet<>(data.keySet());
+        operations.remove("add");
+        operations.remove("remove");
+        if (!operations.isEmpty()) {
+            throw new IllegalArgumentException("Unknown access roles patch operations: " + operations);
+        }
+        boolean changes = false;
+        for (final Map<String, Set<String>> operation : data.values()) {
+            if (operation == null) {
+                throw new IllegalArgumentException("Access roles patch operations cannot be null");
+            }
+            if (!operation.isEmpty()) {
+                validatePOST(operation);
+                changes = true;
+            }
+        }
+        if (!changes) {
+            throw new IllegalArgumentException("Access roles patches must add or remove role assignments");
+        }
+    }
+
+    /**
+     * Check that role assignments are complete: at least one principal, each with at least one role, and no blank
+     * names.
+     *
+     * @param data role assignments
+     * @throws IllegalArgumentException describing the first problem found
+     */
+    static void validatePOST(final Map<String, Set<String>> data) {
         if (data.isEmpty()) {
             throw new IllegalArgumentException(
                     "Posted access roles must include role assignments");
@@ -224,7 +555,7 @@ public class AccessRoles extends AbstractResource {
     }
 
     /**
-     * Delete the access roles and node type.
+     * Delete the access roles and node type, subject to If-Match and If-None-Match.
      * @return response
      * @throws RepositoryException if delete failed
      */
@@ -232,23 +563,85 @@ public class AccessRoles extends AbstractResource {
     @Timed
     public Response deleteNodeType() throws RepositoryException {
         try {
-
-            final Node node;
-
-            if (resource instanceof FedoraBinary) {
-                node = getJcrNode(((FedoraBinary) resource()).getDescription());
-            } else {
-                node = getJcrNode(resource());
+            final Node node = rolesNode(resource());
+            final Response.ResponseBuilder failed = checkPreconditions(node);
+            if (failed != null) {
+                return failed.build();
             }
-
             this.getAccessRolesProvider().deleteRoles(node);
             session.commit();
+            recordUncommitted(node);
             return Response.noContent().build();
         } finally {
             session.expire();
         }
     }
 
+    /**
+     * Record a change to the roles of a node that is still pending after the commit, because the request is part of a
+     * transaction, so that decisions made in the transaction see it before it is committed.
+     *
+     * @param node the node whose roles were changed
+     * @throws RepositoryException if the roles could not be read
+     */
+    private void recordUncommitted(final Node node) throws RepositoryException {
+        if (transactionAclOverlay == null) {
+            return;
+        }
+        final Session jcrSession = node.getSession();
+        if (jcrSession.hasPendingChanges()) {
+            transactionAclOverlay.record(jcrSession, node.getPath(), getAccessRolesProvider().getRoles(node, false));
+        }
+    }
+
+    /**
+     * Evaluate If-Match and If-None-Match against the roles assigned directly on a node, which have no current
+     * representation when the node has no access roles.
+     *
+     * @param node the node whose roles would be changed
+     * @return a 412 response to send if the preconditions fail, otherwise null
+     */
+    private Response.ResponseBuilder checkPreconditions(final Node node) {
+        final Map<String, Collection<String>> current = getAccessRolesProvider().getRoles(node, false);
+        return current == null ? request.evaluatePreconditions() :
+                request.evaluatePreconditions(currentTag(node, current));
+    }
+
+    /**
+     * @param node a node with access roles
+     * @param current the roles assigned directly on it
+     * @return the entity tag a GET of those roles is served with: their version if they have one, else their hash
+     */
+    private EntityTag currentTag(final Node node, final Map<String, ? extends Collection<String>> current) {
+        final String version = getAccessRolesProvider().getRolesVersion(node, false);
+        return version != null ? new EntityTag(version) : rolesTag(current);
+    }
+
+    /**
+     * @param data role assignments
+     * @return a strong entity tag that is the same for the same roles per principal, whatever their order
+     */
+    static EntityTag rolesTag(final Map<String, ? extends Collection<String>> data) {
+        final StringBuilder canonical = new StringBuilder();
+        new TreeMap<>(data).forEach((principal, roles) -> {
+            canonical.append(principal.length()).append(':').append(principal);
+            new TreeSet<>(roles).forEach(r -> canonical.append(',').append(r.length()).append(':').append(r));
+            canonical.append('\n');
+        });
+        return new EntityTag(murmur3_128().hashString(canonical, UTF_8).toString());
+    }
+
+    /**
+     * @param resource a repository resource
+     * @return the node holding the resource's role assignments: its description for a binary, itself otherwise
+     */
+    static Node rolesNode(final FedoraResource resource) {
+        if (resource instanceof FedoraBinary) {
+            return getJcrNode(((FedoraBinary) resource).getDescription());
+        }
+        return getJcrNode(resource);
+    }
+
     private UriInfo getUriInfo() {
         return this.uriInfo;
     }
@@ -18,8 +18,12 @@
 package org.fcrepo.auth.roles.common;
 
 import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
 
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -29,6 +33,8 @@ import javax.jcr.Session;
 
 import org.modeshape.jcr.value.Path;
 
+import com.google.common.collect.Iterators;
+
 /**
  * Provides the effective access roles for authorization.
  *
@@ -49,7 +55,8 @@ public interface AccessRolesProvider {
     public Map<String, Collection<String>> getRoles(final Node node, final boolean effective);
 
     /**
-     * Assigns the given set of roles to each principal.
+     * Assigns the given set of roles to each principal. Implementations should leave the node untouched when these
+     * are already exactly its assignments, so that re-posting an unchanged ACL costs no writes.
      *
      * @param node the Node to edit
      * @param data the roles to assign
@@ -58,6 +65,168 @@ public interface AccessRolesProvider {
     public void postRoles(final Node node, final Map<String, Set<String>> data)
             throws RepositoryException;
 
+    /**
+     * Adds and removes individual roles of principals, leaving the other assignments on the node as they are. Roles
+     * are removed after they are added, so a role both added and removed ends up removed. A principal left with no
+     * roles is unassigned. The default implementation rewrites the whole assignment set through
+     * {@link #postRoles(Node, Map)}; providers should override it to touch only the affected assignments.
+     *
+     * @param node the Node to edit
+     * @param add the roles to add to each principal
+     * @param remove the roles to remove from each principal
+     * @throws RepositoryException if repository exception occurred
+     * @throws IllegalArgumentException if the change would leave the node with no assignments
+     */
+    public default void patchRoles(final Node node, final Map<String, Set<String>> add,
+            final Map<String, Set<String>> remove) throws RepositoryException {
+        final Map<String, Collection<String>> current = getRoles(node, false);
+        final Map<String, Set<String>> data = new HashMap<>();
+        if (current != null) {
+            current.forEach((principal, roles) -> data.put(principal, new LinkedHashSet<>(roles)));
+        }
+        add.forEach((principal, roles) -> data.computeIfAbsent(principal, p -> new LinkedHashSet<>()).addAll(roles));
+        remove.forEach((principal, roles) -> data.getOrDefault(principal, emptySet()).removeAll(roles));
+        data.values().removeIf(Set::isEmpty);
+        if (data.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "Patch would leave no role assignments, delete the access roles instead");
+        }
+        postRoles(node, data);
+    }
+
+    /**
+     * Iterate over the roles {@link #getRoles(Node, boolean)} would return, reading them as the iterator advances,
+     * so that very large ACLs can be written out or paged through without holding them in memory.
+     *
+     * @param node the subject Node
+     * @param effective if true then search for effective roles
+     * @param offset the number of assignments to skip
+     * @return the roles of each principal, or null where {@link #getRoles(Node, boolean)} would return null
+     */
+    public default Iterator<Map.Entry<String, Collection<String>>> iterateRoles(final Node node,
+            final boolean effective, final long offset) {
+        final Map<String, Collection<String>> roles = getRoles(node, effective);
+        if (roles == null) {
+            return null;
+        }
+        final Iterator<Map.Entry<String, Collection<String>>> entries = roles.entrySet().iterator();
+        Iterators.advance(entries, (int) Math.min(offset, Integer.MAX_VALUE));
+        return entries;
+    }
+
+    /**
+     * Iterate over a page of the roles {@link #iterateRoles(Node, boolean, long)} would return. The offset and limit
+     * count assignments, as {@link #countRoles(Node, boolean)} does, but a principal held in several assignments may
+     * be returned as one entry, so a page may hold fewer entries than the limit.
+     *
+     * @param node the subject Node
+     * @param effective if true then search for effective roles
+     * @param offset the number of assignments to skip
+     * @param limit the maximum number of assignments to read
+     * @return the roles of each principal, or null where {@link #getRoles(Node, boolean)} would return null
+     */
+    public default Iterator<Map.Entry<String, Collection<String>>> iterateRoles(final Node node,
+            final boolean effective, final long offset, final long limit) {
+        final Iterator<Map.Entry<String, Collection<String>>> entries = iterateRoles(node, effective, offset);
+        return entries == null ? null : Iterators.limit(entries, (int) Math.min(limit, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Count the assignments {@link #iterateRoles(Node, boolean, long)} would iterate over from the start.
+     *
+     * @param node the subject Node
+     * @param effective if true then search for effective roles
+     * @return the number of assignments, or -1 if there are no roles or they cannot be counted without reading them
+     */
+    public default long countRoles(final Node node, final boolean effective) {
+        final Map<String, Collection<String>> roles = getRoles(node, effective);
+        return roles == null ? -1 : roles.size();
+    }
+
+    /**
+     * Get a token that changes whenever the roles {@link #getRoles(Node, boolean)} would return for this node change,
+     * and that is shared by every node whose roles come from the same ACL. It lets callers cache and tag what they
+     * derive from the roles without reading them.
+     *
+     * @param node the subject Node
+     * @param effective if true then search for effective roles
+     * @return the version of the roles, or null if they are not versioned
+     */
+    public default String getRolesVersion(final Node node, final boolean effective) {
+        return null;
+    }
+
+    /**
+     * Get the name of the ACL template a node takes its roles from, if any. A node either has its own assignments
+     * or refers to a template, whose assignments are stored once and shared by every node that refers to it.
+     *
+     * @param node the subject Node
+     * @return the template name, or null if the node does not refer to a template
+     */
+    public default String getTemplate(final Node node) {
+        return null;
+    }
+
+    /**
+     * Make a node take its roles from an ACL template, replacing any assignments of its own.
+     *
+     * @param node the Node to edit
+     * @param name the name of an existing template
+     * @throws RepositoryException if repository exception occurred
+     * @throws IllegalArgumentException if there is no such template
+     */
+    public default void useTemplate(final Node node, final String name) throws RepositoryException {
+        throw new UnsupportedOperationException("ACL templates are not supported by " + getClass().getName());
+    }
+
+    /**
+     * @param session session
+     * @return the names of all ACL templates, in order
+     * @throws RepositoryException if repository exception occurred
+     */
+    public default Collection<String> listTemplates(final Session session) throws RepositoryException {
+        return emptySet();
+    }
+
+    /**
+     * @param session session
+     * @param name a template name
+     * @return the roles of each principal in the template, or null if there is no such template
+     * @throws RepositoryException if repository exception occurred
+     */
+    public default Map<String, Collection<String>> getTemplateRoles(final Session session, final String name)
+            throws RepositoryException {
+        return null;
+    }
+
+    /**
+     * Create an ACL template, or replace its assignments, as {@link #postRoles(Node, Map)} does for a node. Every
+     * node that refers to the template sees the change.
+     *
+     * @param session session
+     * @param name the template name
+     * @param data the roles to assign
+     * @throws RepositoryException if repository exception occurred
+     * @throws IllegalArgumentException if the name is not a valid template name
+     */
+    public default void postTemplate(final Session session, final String name, final Map<String, Set<String>> data)
+            throws RepositoryException {
+        throw new UnsupportedOperationException("ACL templates are not supported by " + getClass().getName());
+    }
+
+    /**
+     * Delete an ACL template that no node refers to.
+     *
+     * @param session session
+     * @param name the template name
+     * @return false if there is no such template
+     * @throws RepositoryException if repository exception occurred
+     * @throws IllegalStateException if a node still refers to the template
+     */
+    public default boolean deleteTemplate(final Session session, final String name) throws RepositoryException {
+        return false;
+    }
+
     /**
      * Deletes all roles assigned on this node and removes the mixin type.
      *
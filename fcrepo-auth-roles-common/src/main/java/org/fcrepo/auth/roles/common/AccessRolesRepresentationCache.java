@@ -0,0 +1,121 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Keeps the serialized JSON of recently read role assignments, keyed by the version of the ACL they came from (see
+ * {@link AccessRolesProvider#getRolesVersion(javax.jcr.Node, boolean)}), so that repeated reads of an unchanged ACL
+ * are answered without reading or serializing it again. Every node governed by the same ACL shares one entry. Holds
+ * up to {@code fcrepo.auth.roles.cache.size} entries, 10000 by default; a size of 0 disables it.
+ */
+@Component
+public class AccessRolesRepresentationCache {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private volatile Cache<String, byte[]> representations;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Configure from system properties.
+     */
+    public AccessRolesRepresentationCache() {
+        setSize(Long.getLong("fcrepo.auth.roles.cache.size", 10_000));
+    }
+
+    /**
+     * @param size the number of representations to keep; changing it discards those already kept
+     */
+    public void setSize(final long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative: " + size);
+        }
+        this.representations = CacheBuilder.newBuilder().maximumSize(size).build();
+    }
+
+    /**
+     * @param version the version of an ACL
+     * @return the JSON of its role assignments, or null if it is not cached
+     */
+    public byte[] get(final String version) {
+        final byte[] json = representations.getIfPresent(version);
+        (json == null ? misses : hits).incrementAndGet();
+        return json;
+    }
+
+    /**
+     * @param version the version of an ACL
+     * @return the JSON of its role assignments, or null if it is not cached; not counted as a hit or a miss
+     */
+    public byte[] peek(final String version) {
+        return representations.getIfPresent(version);
+    }
+
+    /**
+     * @param version the version of an ACL whose cached JSON is no longer to be served
+     */
+    public void invalidate(final String version) {
+        representations.invalidate(version);
+    }
+
+    /**
+     * Serialize role assignments and cache the JSON under the version of the ACL they came from.
+     *
+     * @param version the version of the ACL the roles were read from
+     * @param roles the roles of each principal
+     * @return the JSON of the roles
+     */
+    public byte[] put(final String version, final Map<String, Collection<String>> roles) {
+        final byte[] json;
+        try {
+            json = MAPPER.writeValueAsBytes(roles);
+        } catch (final JsonProcessingException e) {
+            throw new IllegalStateException("Unable to serialize access roles", e);
+        }
+        representations.put(version, json);
+        return json;
+    }
+
+    /**
+     * @return the number of reads answered from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of reads not answered from the cache
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,1016 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.emptyList;
+import static java.util.Comparator.comparingInt;
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+import static org.fcrepo.auth.common.ServletContainerAuthenticationProvider.FEDORA_ADMIN_ROLE;
+import static org.fcrepo.auth.roles.common.Constants.registerPrefixes;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.rbaclAssignable;
+import static org.fcrepo.kernel.modeshape.FedoraSessionImpl.getJcrSession;
+import static org.fcrepo.kernel.modeshape.identifiers.NodeResourceConverter.nodeConverter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+
+import org.apache.jena.rdf.model.Resource;
+import org.fcrepo.auth.common.FedoraAuthorizationDelegate;
+import org.fcrepo.http.commons.AbstractResource;
+import org.fcrepo.http.commons.api.rdf.HttpResourceConverter;
+import org.fcrepo.http.commons.session.HttpSession;
+import org.fcrepo.kernel.api.exception.PathNotFoundRuntimeException;
+import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
+import org.fcrepo.kernel.api.identifiers.IdentifierConverter;
+import org.fcrepo.kernel.api.models.FedoraResource;
+import org.glassfish.jersey.server.CloseableService;
+import org.jvnet.hk2.annotations.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Scope;
+
+import com.codahale.metrics.annotation.Timed;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Repository-wide operational endpoints of the roles module, restricted to repository administrators.
+ */
+@Scope("request")
+@Path("/fcr:authz")
+public class AuthorizationAdmin extends AbstractResource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AuthorizationAdmin.class);
+
+    /**
+     * Newline-delimited JSON: one JSON document per line
+     */
+    public static final String NDJSON = "application/x-ndjson";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final JsonFactory JSON_FACTORY =
+            new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET).setRootValueSeparator(null);
+
+    @Inject
+    protected HttpSession session;
+
+    @Inject
+    @Optional
+    private AccessRolesProvider accessRolesProvider;
+
+    @Inject
+    @Optional
+    private SlowAuthorizationLog slowAuthorizationLog;
+
+    @Inject
+    @Optional
+    private AuthorizationAuditLog authorizationAuditLog;
+
+    @Inject
+    @Optional
+    private FedoraAuthorizationDelegate authorizationDelegate;
+
+    @Inject
+    @Optional
+    private PrincipalIndex principalIndex;
+
+    @Inject
+    @Optional
+    private GoverningAclPointers aclPointers;
+
+    @Inject
+    @Optional
+    private AuthorizationConsistencyVerifier consistencyVerifier;
+
+    @Context protected SecurityContext securityContext;
+    @Context protected UriInfo uriInfo;
+    @Context protected Request request;
+    @Context protected CloseableService closeables;
+
+    private IdentifierConverter<Resource, FedoraResource> identifierTranslator;
+
+    private boolean sessionHandedOff = false;
+
+    /**
+     * Default JAX-RS entry point
+     */
+    public AuthorizationAdmin() {
+        super();
+    }
+
+    /**
+     * Create an instance with an explicit security context
+     * @param securityContext the security context of the request
+     */
+    @VisibleForTesting
+    public AuthorizationAdmin(final SecurityContext securityContext) {
+        this.securityContext = securityContext;
+    }
+
+    /**
+     * List the slowest recently recorded authorization decisions.
+     *
+     * @param limit the maximum number of decisions to list
+     * @return JSON list of decisions, slowest first
+     */
+    @GET
+    @Path("slow")
+    @Produces(APPLICATION_JSON)
+    @Timed
+    public Response getSlowest(@QueryParam("limit") @DefaultValue("20") final int limit) {
+        try {
+            requireAdmin();
+            if (slowAuthorizationLog == null) {
+                return Response.status(Status.NOT_FOUND).build();
+            }
+            return Response.ok(slowAuthorizationLog.getSlowest(limit)).build();
+        } finally {
+            session.expire();
+        }
+    }
+
+    /**
+     * Report the counters of the authorization audit trail.
+     *
+     * @return JSON map of counter names to values
+     */
+    @GET
+    @Path("audit")
+    @Produces(APPLICATION_JSON)
+    @Timed
+    public Response getAuditCounters() {
+        try {
+            requireAdmin();
+            if (authorizationAuditLog == null) {
+                return Response.status(Status.NOT_FOUND).build();
+            }
+            final Map<String, Object> counters = new LinkedHashMap<>();
+            counters.put("enabled", authorizationAuditLog.isEnabled());
+            counters.put("capacity", authorizationAuditLog.getCapacity());
+            counters.put("offered", authorizationAuditLog.getOfferedCount());
+            counters.put("written", authorizationAuditLog.getWrittenCount());
+            counters.put("dropped", authorizationAuditLog.getDroppedCount());
+            counters.put("rolled", authorizationAuditLog.getRolledCount());
+            return Response.ok(counters).build();
+        } finally {
+            session.expire();
+        }
+    }
+
+    /**
+     * Report how a candidate authorization engine running in the shadow of the active one compares: counters,
+     * side-by-side latency percentiles and the recent disagreements.
+     *
+     * @return JSON report of the shadow evaluation
+     */
+    @GET
+    @Path("shadow")
+    @Produces(APPLICATION_JSON)
+    @Timed
+    public Response getShadowReport() {
+        try {
+            requireAdmin();
+            if (!(authorizationDelegate instanceof ShadowAuthorizationDelegate)) {
+                return Response.status(Status.NOT_FOUND).build();
+            }
+            return Response.ok(((ShadowAuthorizationDelegate) authorizationDelegate).getReport()).build();
+        } finally {
+            session.expire();
+        }
+    }
+
+    /**
+     * Report the size of the principal index and, when it keeps assignments off the heap, the memory they take.
+     *
+     * @return JSON map of statistic names to values
+     */
+    @GET
+    @Path("principals")
+    @Produces(APPLICATION_JSON)
+    @Timed
+    public Response getPrincipalIndexStatistics() {
+        try {
+            requireAdmin();
+            if (principalIndex == null || !principalIndex.isEnabled()) {
+                return Response.status(Status.NOT_FOUND).build();
+            }
+            final Map<String, Object> statistics = new LinkedHashMap<>();
+            statistics.put("ready", principalIndex.isReady());
+            statistics.put("acls", principalIndex.size());
+            statistics.put("principals", principalIndex.getPrincipalCount());
+            final OffHeapAclStore offHeap = principalIndex.getOffHeapStore();
+            if (offHeap != null) {
+                statistics.put("offHeapReservedBytes", offHeap.getReservedBytes());
+                statistics.put("offHeapLiveBytes", offHeap.getLiveBytes());
+                statistics.put("offHeapSymbols", offHeap.getSymbolCount());
+            }
+            return Response.ok(statistics).build();
+        } finally {
+            session.expire();
+        }
+    }
+
+    /**
+     * List where a principal holds roles, from the principal index rather than by reading ACLs. Answers 503 Service
+     * Unavailable until the index has been built.
+     *
+     * @param principal the principal name
+     * @return JSON map of the repository path of each node whose ACL assigns the principal roles to those roles
+     */
+    @GET
+    @Path("principals/{principal}")
+    @Produces(APPLICATION_JSON)
+    @Timed
+    public Response getPrincipalAcls(@PathParam("principal") final String principal) {
+        try {
+            requireAdmin();
+            if (principalIndex == null || !principalIndex.isEnabled()) {
+                return Response.status(Status.NOT_FOUND).build();
+            }
+            if (!principalIndex.isReady()) {
+                return Response.status(Status.SERVICE_UNAVAILABLE).entity("The principal index is being built").build();
+            }
+            return Response.ok(principalIndex.getAcls(principal)).build();
+        } finally {
+            session.expire();
+        }
+    }
+
+    /**
+     * Filter candidate paths by permission for a set of principals, as a discovery layer filters a page of results
+     * by what its user may read. The principal that represents everyone is always included. Once the principal index
+     * is ready it rules out candidates, and the rest are confirmed against the repository; see
+     * {@link AbstractRolesAuthorizationDelegate#filterPermitted(Collection, List, String[])}.
+     *
+     * @param paths JSON list of the repository paths of the candidates
+     * @param principals the principals to decide for
+     * @param actions the actions to decide, read by default
+     * @return JSON list of the candidates on which the actions are permitted, in the order given
+     */
+    @POST
+    @Path("filter")
+    @Consumes(APPLICATION_JSON)
+    @Produces(APPLICATION_JSON)
+    @Timed
+    public Response postFilter(final List<String> paths, @QueryParam("principal") final List<String> principals,
+            @QueryParam("action") final List<String> actions) {
+        try {
+            requireAdmin();
+            final FedoraAuthorizationDelegate delegate = authorizationDelegate instanceof ShadowAuthorizationDelegate ?
+                    ((ShadowAuthorizationDelegate) authorizationDelegate).getActive() : authorizationDelegate;
+            if (!(delegate instanceof AbstractRolesAuthorizationDelegate)) {
+                return Response.status(Status.NOT_FOUND).build();
+            }
+            if (paths == null) {
+                throw new WebApplicationException(Response.status(Status.BAD_REQUEST)
+                        .entity("A list of paths is required").build());
+            }
+            final String[] requested = actions == null || actions.isEmpty() ?
+                    new String[] { "read" } : actions.toArray(new String[actions.size()]);
+            final BitSet permitted = ((AbstractRolesAuthorizationDelegate) delegate).filterPermitted(
+                    principals == null ? emptyList() : principals, paths, requested);
+            final List<String> result = new ArrayList<>(permitted.cardinality());
+            permitted.stream().forEach(i -> result.add(paths.get(i)));
+            return Response.ok(result).build();
+        } finally {
+            session.expire();
+        }
+    }
+
+    /**
+     * Report whether the governing ACL pointers are being repaired and what the last repair or verification found.
+     *
+     * @return JSON map of statistic names to values
+     */
+    @GET
+    @Path("pointers")
+    @Produces(APPLICATION_JSON)
+    @Timed
+    public Response getPointerRepair() {
+        try {
+            requireAdmin();
+            if (aclPointers == null || !aclPointers.isEnabled()) {
+                return Response.status(Status.NOT_FOUND).build();
+            }
+            final Map<String, Object> status = new LinkedHashMap<>();
+            status.put("repairing", aclPointers.isRepairing());
+            status.put("last", aclPointers.getLastRepair());
+            return Response.ok(status).build();
+        } finally {
+            session.expire();
+        }
+    }
+
+    /**
+     * Rebuild the governing ACL pointer of every node in the background, or only count the wrong ones. Answers 202
+     * Accepted, or 409 Conflict if a repair is already running; the outcome is reported by
+     * {@link #getPointerRepair()}.
+     *
+     * @param verify true to verify the pointers without changing them
+     * @return response
+     */
+    @POST
+    @Path("pointers")
+    @Timed
+    public Response postPointerRepair(@QueryParam("verify") @DefaultValue("false") final boolean verify) {
+        try {
+            requireAdmin();
+            if (aclPointers == null || !aclPointers.isEnabled()) {
+                return Response.status(Status.NOT_FOUND).build();
+            }
+            if (!aclPointers.repair(verify)) {
+                return Response.status(Status.CONFLICT)
+                        .entity("A repair of the governing ACL pointers is running").build();
+            }
+            return Response.accepted().build();
+        } finally {
+            session.expire();
+        }
+    }
+
+    /**
+     * Report whether the derived authorization data is being checked against the repository and what the last check
+     * found.
+     *
+     * @return JSON map of statistic names to values
+     */
+    @GET
+    @Path("verifier")
+    @Produces(APPLICATION_JSON)
+    @Timed
+    public Response getVerifier() {
+        try {
+            requireAdmin();
+            if (consistencyVerifier == null) {
+                return Response.status(Status.NOT_FOUND).build();
+            }
+            final Map<String, Object> status = new LinkedHashMap<>();
+            status.put("running", consistencyVerifier.isRunning());
+            status.put("last", consistencyVerifier.getLastRun());
+            return Response.ok(status).build();
+        } finally {
+            session.expire();
+        }
+    }
+
+    /**
+     * Check the derived authorization data against the repository in the background now, rather than at the next
+     * scheduled time. Answers 202 Accepted, or 409 Conflict if a check is already running; the outcome is reported
+     * by {@link #getVerifier()}.
+     *
+     * @return response
+     */
+    @POST
+    @Path("verifier")
+    @Timed
+    public Response postVerifier() {
+        try {
+            requireAdmin();
+            if (consistencyVerifier == null) {
+                return Response.status(Status.NOT_FOUND).build();
+            }
+            if (!consistencyVerifier.runNow()) {
+                return Response.status(Status.CONFLICT).entity("A check of the authorization data is running").build();
+            }
+            return Response.accepted().build();
+        } finally {
+            session.expire();
+        }
+    }
+
+    /**
+     * List the ACL templates.
+     *
+     * @return JSON list of template names
+     * @throws RepositoryException if the templates could not be read
+     */
+    @GET
+    @Path("templates")
+    @Produces(APPLICATION_JSON)
+    @Timed
+    public Response getTemplates() throws RepositoryException {
+        try {
+            requireAdmin();
+            if (accessRolesProvider == null) {
+                return Response.status(Status.NOT_FOUND).build();
+            }
+            return Response.ok(accessRolesProvider.listTemplates(getJcrSession(session.getFedoraSession()))).build();
+        } finally {
+            session.expire();
+        }
+    }
+
+    /**
+     * Get the role assignments of an ACL template.
+     *
+     * @param name the template name
+     * @return JSON map of each principal to its roles
+     * @throws RepositoryException if the template could not be read
+     */
+    @GET
+    @Path("templates/{name}")
+    @Produces(APPLICATION_JSON)
+    @Timed
+    public Response getTemplate(@PathParam("name") final String name) throws RepositoryException {
+        try {
+            requireAdmin();
+            final Map<String, Collection<String>> roles = accessRolesProvider == null ? null :
+                    accessRolesProvider.getTemplateRoles(getJcrSession(session.getFedoraSession()), name);
+            return roles == null ? Response.status(Status.NOT_FOUND).build() : Response.ok(roles).build();
+        } catch (final IllegalArgumentException e) {
+            throw new WebApplicationException(e, Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build());
+        } finally {
+            session.expire();
+        }
+    }
+
+    /**
+     * Create an ACL template, or replace its role assignments. Every node that refers to the template takes the new
+     * assignments. The body is validated as a POST to <code>{path}/fcr:accessroles</code> is. Since it changes the
+     * ACL of every such node at once, it cannot be part of a transaction, and answers 409 Conflict if it is.
+     *
+     * @param name the template name: letters, digits, '.', '_' and '-', not starting with punctuation
+     * @param data the roles of each principal
+     * @return 201 Created for a new template, else 204 No Content
+     * @throws RepositoryException if the template could not be written
+     */
+    @PUT
+    @Path("templates/{name}")
+    @Consumes(APPLICATION_JSON)
+    @Timed
+    public Response putTemplate(@PathParam("name") final String name, final Map<String, Set<String>> data)
+            throws RepositoryException {
+        try {
+            requireAdmin();
+            if (accessRolesProvider == null) {
+                return Response.status(Status.NOT_FOUND).build();
+            }
+            requireNoTransaction("Writing an ACL template");
+            AccessRoles.validatePOST(data);
+            final Session jcrSession = getJcrSession(session.getFedoraSession());
+            final boolean created = accessRolesProvider.getTemplateRoles(jcrSession, name) == null;
+            accessRolesProvider.postTemplate(jcrSession, name, data);
+            session.commit();
+            return created ? Response.created(uriInfo.getRequestUri()).build() : Response.noContent().build();
+        } catch (final IllegalArgumentException e) {
+            throw new WebApplicationException(e, Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build());
+        } finally {
+            session.expire();
+        }
+    }
+
+    /**
+     * Delete an ACL template. A template still referred to by a node cannot be deleted.
+     *
+     * @param name the template name
+     * @return 204 No Content, 404 Not Found, or 409 Conflict if the template is in use
+     * @throws RepositoryException if the template could not be deleted
+     */
+    @DELETE
+    @Path("templates/{name}")
+    @Timed
+    public Response deleteTemplate(@PathParam("name") final String name) throws RepositoryException {
+        try {
+            requireAdmin();
+            if (accessRolesProvider == null ||
+                    !accessRolesProvider.deleteTemplate(getJcrSession(session.getFedoraSession()), name)) {
+                return Response.status(Status.NOT_FOUND).build();
+            }
+            session.commit();
+            return Response.noContent().build();
+        } catch (final IllegalArgumentException e) {
+            throw new WebApplicationException(e, Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build());
+        } catch (final IllegalStateException e) {
+            throw new WebApplicationException(e, Response.status(Status.CONFLICT).entity(e.getMessage()).build());
+        } finally {
+            session.expire();
+        }
+    }
+
+    /**
+     * Apply role assignments to many resources in one request. The body holds one entry per line, each of the form
+     * <code>{"path": "/a/b", "roles": {"principal": ["role", ...]}}</code>, and each entry replaces the assignments
+     * at its path as a POST to <code>{path}/fcr:accessroles</code> would. Entries are validated by the same rules,
+     * applied in order, and committed every <code>batchSize</code> applied entries.
+     * <p>
+     * An invalid entry, or one whose path does not exist, is reported and skipped without affecting the others. If
+     * the repository fails while applying an entry or committing a batch, the uncommitted entries of that batch are
+     * discarded and reported as failed; earlier batches stay committed. Because it commits batches of its own, a
+     * bulk request cannot be part of a transaction, and answers 409 Conflict if it is.
+     * </p>
+     *
+     * @param body the entries, one JSON document per line
+     * @param batchSize the number of applied entries per commit
+     * @return JSON summary with the result of every entry, in order
+     * @throws IOException if the body could not be read
+     */
+    @POST
+    @Path("bulk")
+    @Consumes(NDJSON)
+    @Produces(APPLICATION_JSON)
+    @Timed
+    public Response postBulk(final InputStream body,
+            @QueryParam("batchSize") @DefaultValue("1000") final int batchSize) throws IOException {
+        try {
+            requireAdmin();
+            if (accessRolesProvider == null) {
+                return Response.status(Status.NOT_FOUND).build();
+            }
+            if (batchSize < 1) {
+                throw new WebApplicationException(Response.status(Status.BAD_REQUEST)
+                        .entity("batchSize must be positive").build());
+            }
+            requireNoTransaction("Bulk role assignment");
+            return Response.ok(applyEntries(body, batchSize, true)).build();
+        } finally {
+            session.expire();
+        }
+    }
+
+    /**
+     * Export the ACL templates, then the role assignments of every node that has its own, in a single pass over a
+     * query for {@code authz:rbaclAssignable} nodes. Each template is written as a line of the form
+     * <code>{"template": "name", "roles": {...}}</code>, and each node as one of the form taken by
+     * <code>/fcr:authz/bulk</code>, or <code>{"path": "/a/b", "template": "name"}</code> for a node that refers to a
+     * template. Lines are written as soon as they are read, so memory use does not grow with the number of nodes or
+     * the size of their ACLs. Nodes come in no particular order, but always after the templates.
+     *
+     * @return the stream of role assignments, one JSON document per line
+     */
+    @GET
+    @Path("export")
+    @Produces(NDJSON)
+    @Timed
+    public Response getExport() {
+        try {
+            requireAdmin();
+            if (accessRolesProvider == null || "HEAD".equals(request.getMethod())) {
+                return Response.status(accessRolesProvider == null ? Status.NOT_FOUND : Status.OK).build();
+            }
+            final NodeIterator nodes;
+            try {
+                final Session jcrSession = getJcrSession(session.getFedoraSession());
+                registerPrefixes(jcrSession);
+                nodes = jcrSession.getWorkspace().getQueryManager().createQuery(
+                        "SELECT * FROM [" + rbaclAssignable.getQualified() + "]", Query.JCR_SQL2)
+                        .execute().getNodes();
+            } catch (final RepositoryException e) {
+                throw new RepositoryRuntimeException(e);
+            }
+            closeables.add(session::expire);
+            sessionHandedOff = true;
+            return Response.ok((StreamingOutput) output -> export(nodes, output)).build();
+        } finally {
+            if (!sessionHandedOff) {
+                session.expire();
+            }
+        }
+    }
+
+    /**
+     * Write the templates and the role assignments of each node.
+     */
+    private void export(final NodeIterator nodes, final OutputStream output) throws IOException {
+        final String base = uriInfo.getBaseUri().toString();
+        long exported = 0;
+        try (final JsonGenerator json = JSON_FACTORY.createGenerator(output)) {
+            final Session jcrSession = getJcrSession(session.getFedoraSession());
+            for (final String name : accessRolesProvider.listTemplates(jcrSession)) {
+                final Map<String, Collection<String>> roles = accessRolesProvider.getTemplateRoles(jcrSession, name);
+                if (roles == null) {
+                    continue;
+                }
+                json.writeStartObject();
+                json.writeStringField("template", name);
+                json.writeObjectFieldStart("roles");
+                for (final Map.Entry<String, Collection<String>> entry : roles.entrySet()) {
+                    json.writeArrayFieldStart(entry.getKey());
+                    for (final String role : entry.getValue()) {
+                        json.writeString(role);
+                    }
+                    json.writeEndArray();
+                }
+                json.writeEndObject();
+                json.writeEndObject();
+                json.writeRaw('\n');
+            }
+            while (nodes.hasNext()) {
+                final Node node = nodes.nextNode();
+                final String template = accessRolesProvider.getTemplate(node);
+                final Iterator<Map.Entry<String, Collection<String>>> roles =
+                        template != null ? null : accessRolesProvider.iterateRoles(node, false, 0);
+                if (template == null && roles == null) {
+                    continue;
+                }
+                final String uri = translator().reverse().convert(nodeConverter.convert(node)).getURI();
+                final String path = uri.startsWith(base) ? uri.substring(base.length()) : node.getPath();
+                json.writeStartObject();
+                json.writeStringField("path", path.startsWith("/") ? path : "/" + path);
+                if (template != null) {
+                    json.writeStringField("template", template);
+                    json.writeEndObject();
+                    json.writeRaw('\n');
+                    exported++;
+                    continue;
+                }
+                json.writeObjectFieldStart("roles");
+                while (roles.hasNext()) {
+                    final Map.Entry<String, Collection<String>> entry = roles.next();
+                    json.writeArrayFieldStart(entry.getKey());
+                    for (final String role : entry.getValue()) {
+                        json.writeString(role);
+                    }
+                    json.writeEndArray();
+                }
+                json.writeEndObject();
+                json.writeEndObject();
+                json.writeRaw('\n');
+                exported++;
+            }
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException(e);
+        } finally {
+            LOGGER.info("Exported the access roles of {} nodes", exported);
+        }
+    }
+
+    /**
+     * Import ACL templates and role assignments exported from <code>/fcr:authz/export</code>. Records are applied as
+     * by <code>/fcr:authz/bulk</code>: a template record creates or replaces the template, and a node that referred
+     * to a template is made to refer to it again. Only the records that fail are listed in the response, so that the
+     * memory it takes does not grow with the size of the import. Like a bulk request, an import cannot be part of a
+     * transaction.
+     *
+     * @param body the records, one JSON document per line
+     * @param batchSize the number of applied records per commit
+     * @return JSON summary with the result of every record that failed, in order
+     * @throws IOException if the body could not be read
+     */
+    @POST
+    @Path("import")
+    @Consumes(NDJSON)
+    @Produces(APPLICATION_JSON)
+    @Timed
+    public Response postImport(final InputStream body,
+            @QueryParam("batchSize") @DefaultValue("1000") final int batchSize) throws IOException {
+        try {
+            requireAdmin();
+            if (accessRolesProvider == null) {
+                return Response.status(Status.NOT_FOUND).build();
+            }
+            if (batchSize < 1) {
+                throw new WebApplicationException(Response.status(Status.BAD_REQUEST)
+                        .entity("batchSize must be positive").build());
+            }
+            requireNoTransaction("Import");
+            return Response.ok(applyEntries(body, batchSize, false)).build();
+        } finally {
+            session.expire();
+        }
+    }
+
+    /**
+     * @param body role assignment entries, one JSON document per line
+     * @param batchSize the number of applied entries per commit
+     * @param reportApplied whether to list applied entries in the results as well as failed ones
+     * @return summary of the entries applied and failed
+     * @throws IOException if the body could not be read
+     */
+    private Map<String, Object> applyEntries(final InputStream body, final int batchSize,
+            final boolean reportApplied) throws IOException {
+        final List<BulkResult> results = new ArrayList<>();
+        final List<BulkResult> batch = new ArrayList<>(Math.min(batchSize, 10_000));
+        long entries = 0;
+        int commits = 0;
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(body, UTF_8))) {
+            int line = 0;
+            for (String json = reader.readLine(); json != null; json = reader.readLine()) {
+                line++;
+                if (json.trim().isEmpty()) {
+                    continue;
+                }
+                entries++;
+                final BulkResult result = applyEntry(line, json, batch, results);
+                if (result.getStatus() == Status.CREATED.getStatusCode()) {
+                    batch.add(result);
+                    if (batch.size() >= batchSize) {
+                        commits += commitBatch(batch, results, reportApplied);
+                    }
+                } else {
+                    results.add(result);
+                }
+            }
+            commits += commitBatch(batch, results, reportApplied);
+        }
+
+        results.sort(comparingInt(BulkResult::getLine));
+        long failed = 0;
+        for (final BulkResult result : results) {
+            if (result.getStatus() != Status.CREATED.getStatusCode()) {
+                failed++;
+            }
+        }
+        LOGGER.info("Applied {} of {} bulk role assignments in {} commits", entries - failed, entries, commits);
+        final Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("entries", entries);
+        summary.put("applied", entries - failed);
+        summary.put("failed", failed);
+        summary.put("commits", commits);
+        summary.put("results", results);
+        return summary;
+    }
+
+    private BulkResult applyEntry(final int line, final String json, final List<BulkResult> batch,
+            final List<BulkResult> results) {
+        final BulkEntry entry;
+        try {
+            entry = MAPPER.readValue(json, BulkEntry.class);
+        } catch (final IOException e) {
+            return new BulkResult(line, null, null, Status.BAD_REQUEST, "Unreadable entry: " +
+                    (e instanceof JsonProcessingException ? ((JsonProcessingException) e).getOriginalMessage() :
+                            e.getMessage()));
+        }
+        final String path = entry.getPath();
+        final String template = entry.getTemplate();
+        try {
+            final boolean definesTemplate = path == null && template != null && entry.getRoles() != null;
+            final boolean assigns = path != null && (template == null) != (entry.getRoles() == null);
+            if (!definesTemplate && !assigns) {
+                throw new IllegalArgumentException("Entries must include a path and either role assignments or a " +
+                        "template, or a template and its role assignments");
+            }
+            if (entry.getRoles() != null) {
+                AccessRoles.validatePOST(entry.getRoles());
+            }
+            if (path == null) {
+                accessRolesProvider.postTemplate(getJcrSession(session.getFedoraSession()), template,
+                        entry.getRoles());
+                return new BulkResult(line, null, template, Status.CREATED, null);
+            }
+            final String externalPath = path.startsWith("/") ? path.substring(1) : path;
+            final FedoraResource resource = translator().convert(translator().toDomain(externalPath));
+            if (template != null) {
+                accessRolesProvider.useTemplate(AccessRoles.rolesNode(resource), template);
+            } else {
+                accessRolesProvider.postRoles(AccessRoles.rolesNode(resource), entry.getRoles());
+            }
+            return new BulkResult(line, path, template, Status.CREATED, null);
+        } catch (final IllegalArgumentException | UnsupportedOperationException e) {
+            return new BulkResult(line, path, template, Status.BAD_REQUEST, e.getMessage());
+        } catch (final PathNotFoundRuntimeException e) {
+            return new BulkResult(line, path, template, Status.NOT_FOUND, e.getMessage());
+        } catch (final RepositoryException | RepositoryRuntimeException e) {
+            LOGGER.warn("Failed to apply bulk role assignment for {}, discarding its batch", path, e);
+            discardBatch(batch, results, "Discarded after the failure of line " + line);
+            return new BulkResult(line, path, template, Status.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    /**
+     * Commit the applied entries of a batch, or discard them all if the commit fails.
+     *
+     * @return the number of commits made
+     */
+    private int commitBatch(final List<BulkResult> batch, final List<BulkResult> results,
+            final boolean reportApplied) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        try {
+            session.commit();
+            if (reportApplied) {
+                results.addAll(batch);
+            }
+            batch.clear();
+            return 1;
+        } catch (final RepositoryRuntimeException e) {
+            LOGGER.warn("Failed to commit a batch of {} bulk role assignments", batch.size(), e);
+            discardBatch(batch, results, "Batch commit failed: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Discard the applied entries of a batch. Bulk requests are never part of a transaction, so the pending changes of
+     * the session are those of the batch and nothing else.
+     */
+    private void discardBatch(final List<BulkResult> batch, final List<BulkResult> results, final String message) {
+        try {
+            getJcrSession(session.getFedoraSession()).refresh(false);
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException(e);
+        }
+        for (final BulkResult result : batch) {
+            result.fail(Status.INTERNAL_SERVER_ERROR, message);
+        }
+        results.addAll(batch);
+        batch.clear();
+    }
+
+    private IdentifierConverter<Resource, FedoraResource> translator() {
+        if (identifierTranslator == null) {
+            identifierTranslator = new HttpResourceConverter(session,
+                    uriInfo.getBaseUriBuilder().clone().path("{path: .*}"));
+        }
+        return identifierTranslator;
+    }
+
+    /**
+     * Refuse a request that changes ACLs the {@link TransactionAclOverlay} cannot record, so that a transaction never
+     * makes decisions from ACLs other than its own.
+     *
+     * @param what what the request does, for the message
+     * @throws WebApplicationException with status 409 if the request is part of a transaction
+     */
+    private void requireNoTransaction(final String what) {
+        if (session.isBatchSession()) {
+            throw new WebApplicationException(Response.status(Status.CONFLICT)
+                    .entity(what + " cannot be part of a transaction").build());
+        }
+    }
+
+    /**
+     * @throws WebApplicationException with status 403 unless the user is a repository administrator
+     */
+    protected void requireAdmin() {
+        if (securityContext == null || !securityContext.isUserInRole(FEDORA_ADMIN_ROLE)) {
+            LOGGER.debug("Denying administrative request from a non-administrator");
+            throw new WebApplicationException(Response.status(Status.FORBIDDEN).build());
+        }
+    }
+
+    /**
+     * One line of a bulk role assignment request.
+     */
+    public static class BulkEntry {
+
+        private String path;
+
+        private Map<String, Set<String>> roles;
+
+        private String template;
+
+        /**
+         * @return the path of the resource to assign roles on
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @param path the path of the resource to assign roles on
+         */
+        public void setPath(final String path) {
+            this.path = path;
+        }
+
+        /**
+         * @return the roles of each principal
+         */
+        public Map<String, Set<String>> getRoles() {
+            return roles;
+        }
+
+        /**
+         * @param roles the roles of each principal
+         */
+        public void setRoles(final Map<String, Set<String>> roles) {
+            this.roles = roles;
+        }
+
+        /**
+         * @return the template the resource refers to, or, without a path, the template the roles define
+         */
+        public String getTemplate() {
+            return template;
+        }
+
+        /**
+         * @param template the template the resource refers to, or, without a path, the template the roles define
+         */
+        public void setTemplate(final String template) {
+            this.template = template;
+        }
+    }
+
+    /**
+     * The outcome of one line of a bulk role assignment request.
+     */
+    public static class BulkResult {
+
+        private final int line;
+
+        private final String path;
+
+        private final String template;
+
+        private int status;
+
+        private String message;
+
+        BulkResult(final int line, final String path, final String template, final Status status,
+                final String message) {
+            this.line = line;
+            this.path = path;
+            this.template = template;
+            this.status = status.getStatusCode();
+            this.message = message;
+        }
+
+        void fail(final Status status, final String message) {
+            this.status = status.getStatusCode();
+            this.message = message;
+        }
+
+        /**
+         * @return the line of the request the entry was on, counting from 1
+         */
+        public int getLine() {
+            return line;
+        }
+
+        /**
+         * @return the path of the entry, or null if it could not be read
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the template of the entry, or null if it has none or could not be read
+         */
+        public String getTemplate() {
+            return template;
+        }
+
+        /**
+         * @return 201 if the assignments were committed, otherwise the status a single POST would have failed with
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return why the entry failed, or null
+         */
+        public String getMessage() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.Principal;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+/**
+ * Optional audit trail of authorization decisions. Decisions are handed off through a bounded, lock-free ring
+ * buffer of preallocated records, so recording one costs a few field writes and never blocks or allocates on the
+ * request thread; the user principal and path are only turned into strings by the background writer, which
+ * appends them in batches to a local file that is rolled when it reaches a size limit.
+ *
+ * When the buffer is full the newest decision is dropped and counted; the writer logs the number dropped once per
+ * batch. A writer that has emptied the buffer sleeps until the next decision offered wakes it. Disabled unless an
+ * audit file is configured, either through the {@code fcrepo.auth.roles.audit.file} system property or
+ * {@link #setFile(String)}.
+ */
+@Component
+public class AuthorizationAuditLog {
+
+    private static final Logger LOGGER = getLogger(AuthorizationAuditLog.class);
+
+    // only a safeguard, since an idle writer is woken by the first decision offered
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private Path file;
+
+    private int capacity;
+
+    private int batchSize;
+
+    private long maxFileBytes;
+
+    private int maxFiles;
+
+    private AuditRecord[] slots;
+
+    private int mask;
+
+    private final AtomicLong head = new AtomicLong();
+
+    private long tail;
+
+    private final AtomicLong offered = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong written = new AtomicLong();
+
+    private final AtomicLong rolled = new AtomicLong();
+
+    private long droppedReported;
+
+    private volatile boolean enabled;
+
+    private volatile boolean running;
+
+    private volatile Thread writerThread;
+
+    // set by the writer while it sleeps on an empty buffer, and cleared by whoever wakes it
+    private final AtomicBoolean writerIdle = new AtomicBoolean();
+
+    /**
+     * Configure from system properties.
+     */
+    public AuthorizationAuditLog() {
+        setFile(System.getProperty("fcrepo.auth.roles.audit.file"));
+        setCapacity(Integer.getInteger("fcrepo.auth.roles.audit.capacity", 8192));
+        setBatchSize(Integer.getInteger("fcrepo.auth.roles.audit.batchSize", 256));
+        setMaxFileBytes(Long.getLong("fcrepo.auth.roles.audit.maxFileBytes", 64L * 1024 * 1024));
+        setMaxFiles(Integer.getInteger("fcrepo.auth.roles.audit.maxFiles", 10));
+    }
+
+    /**
+     * @param file the audit file to append to, or null to disable the audit trail
+     */
+    public void setFile(final String file) {
+        this.file = file == null || file.isEmpty() ? null : Paths.get(file);
+    }
+
+    /**
+     * @param capacity the number of records the ring buffer holds, rounded up to a power of two
+     */
+    public void setCapacity(final int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Audit capacity out of range: " + capacity);
+        }
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    }
+
+    /**
+     * @param batchSize the maximum number of records written between flushes
+     */
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * @param maxFileBytes the size at which the audit file is rolled
+     */
+    public void setMaxFileBytes(final long maxFileBytes) {
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    /**
+     * @param maxFiles the number of rolled files to keep
+     */
+    public void setMaxFiles(final int maxFiles) {
+        this.maxFiles = Math.max(1, maxFiles);
+    }
+
+    /**
+     * Preallocate the ring buffer and start the background writer, if an audit file is configured.
+     */
+    @PostConstruct
+    public synchronized void start() {
+        if (file == null || running) {
+            return;
+        }
+        allocate();
+        running = true;
+        writerThread = new Thread(this::drainLoop, "fcrepo-authz-audit");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        LOGGER.info("Writing authorization audit trail to {}", file);
+    }
+
+    /**
+     * Preallocate the ring buffer without starting a writer.
+     */
+    void allocate() {
+        slots = new AuditRecord[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new AuditRecord(i);
+        }
+        mask = capacity - 1;
+        enabled = true;
+    }
+
+    /**
+     * Stop accepting records, write out those already buffered and stop the writer.
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        enabled = false;
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true if decisions are being recorded
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Hand a decision to the writer. Never blocks; if the buffer is full the decision is dropped and counted.
+     *
+     * @param user the user principal, converted to a name by the writer
+     * @param path the path checked, converted to a string by the writer
+     * @param actions the actions requested
+     * @param permitted the decision
+     * @return false if the decision was dropped
+     */
+    public boolean offer(final Object user, final Object path, final String[] actions, final boolean permitted) {
+        if (!enabled) {
+            return false;
+        }
+        offered.incrementAndGet();
+        final AuditRecord[] buffer = slots;
+        long pos = head.get();
+        for (;;) {
+            final AuditRecord slot = buffer[(int) (pos & mask)];
+            final long diff = slot.sequence - pos;
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    slot.timestamp = System.currentTimeMillis();
+                    slot.user = user;
+                    slot.path = path;
+                    slot.actions = actions;
+                    slot.permitted = permitted;
+                    slot.sequence = pos + 1;
+                    if (writerIdle.get() && writerIdle.compareAndSet(true, false)) {
+                        LockSupport.unpark(writerThread);
+                    }
+                    return true;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                dropped.incrementAndGet();
+                return false;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    /**
+     * Write out up to one batch of buffered records. Only ever called from a single thread.
+     *
+     * @param out where to write
+     * @return the number of records written
+     * @throws IOException if writing failed
+     */
+    int drain(final Appendable out) throws IOException {
+        int count = 0;
+        while (count < batchSize) {
+            final AuditRecord slot = slots[(int) (tail & mask)];
+            if (slot.sequence != tail + 1) {
+                break;
+            }
+            slot.writeTo(out);
+            slot.user = null;
+            slot.path = null;
+            slot.actions = null;
+            slot.sequence = tail + capacity;
+            tail++;
+            count++;
+        }
+        written.addAndGet(count);
+        return count;
+    }
+
+    private void drainLoop() {
+        BufferedWriter out = null;
+        try {
+            out = open();
+            while (running || slots[(int) (tail & mask)].sequence == tail + 1) {
+                final int count = drain(out);
+                if (count == 0) {
+                    awaitRecords();
+                    continue;
+                }
+                out.flush();
+                reportDrops();
+                if (Files.size(file) >= maxFileBytes) {
+                    out.close();
+                    roll();
+                    out = open();
+                }
+            }
+        } catch (final IOException e) {
+            enabled = false;
+            LOGGER.error("Authorization audit trail disabled, cannot write to {}", file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (final IOException e) {
+                    LOGGER.warn("Cannot close authorization audit file {}", file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sleep until a decision is offered or the writer is stopped. The buffer is checked again once the writer is
+     * marked idle, so that a decision offered meanwhile either is seen here or wakes the writer.
+     */
+    private void awaitRecords() {
+        writerIdle.set(true);
+        if (running && slots[(int) (tail & mask)].sequence != tail + 1) {
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        writerIdle.set(false);
+    }
+
+    private void reportDrops() {
+        final long drops = dropped.get();
+        if (drops != droppedReported) {
+            LOGGER.warn("Authorization audit buffer overflowed, {} decisions dropped since startup", drops);
+            droppedReported = drops;
+        }
+    }
+
+    private BufferedWriter open() throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file, CREATE, APPEND), UTF_8));
+    }
+
+    private void roll() throws IOException {
+        for (int i = maxFiles - 1; i > 0; i--) {
+            final Path older = rolledFile(i);
+            if (Files.exists(older)) {
+                Files.move(older, rolledFile(i + 1), REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, rolledFile(1), REPLACE_EXISTING);
+        Files.deleteIfExists(rolledFile(maxFiles + 1));
+        rolled.incrementAndGet();
+    }
+
+    private Path rolledFile(final int generation) {
+        return file.resolveSibling(file.getFileName() + "." + generation);
+    }
+
+    /**
+     * @return the number of decisions offered to the audit trail
+     */
+    public long getOfferedCount() {
+        return offered.get();
+    }
+
+    /**
+     * @return the number of decisions dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of decisions written to the audit file
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of times the audit file has been rolled
+     */
+    public long getRolledCount() {
+        return rolled.get();
+    }
+
+    /**
+     * @return the number of slots in the ring buffer
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * A preallocated slot of the ring buffer. The sequence is published last by the producer and reset last by the
+     * consumer, which orders the plain field writes either side of it.
+     */
+    private static class AuditRecord {
+
+        volatile long sequence;
+
+        long timestamp;
+
+        Object user;
+
+        Object path;
+
+        String[] actions;
+
+        boolean permitted;
+
+        AuditRecord(final long sequence) {
+            this.sequence = sequence;
+        }
+
+        void writeTo(final Appendable out) throws IOException {
+            out.append(Instant.ofEpochMilli(timestamp).toString()).append('\t');
+            out.append(permitted ? "PERMIT" : "DENY").append('\t');
+            appendEscaped(out, user instanceof Principal ? ((Principal) user).getName() : String.valueOf(user));
+            out.append('\t');
+            for (int i = 0; i < actions.length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                appendEscaped(out, actions[i]);
+            }
+            out.append('\t');
+            appendEscaped(out, String.valueOf(path));
+            out.append('\n');
+        }
+
+        private static void appendEscaped(final Appendable out, final String value) throws IOException {
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                switch (c) {
+                    case '\t':
+                        out.append("\\t");
+                        break;
+                    case '\n':
+                        out.append("\\n");
+                        break;
+                    case '\r':
+                        out.append("\\r");
+                        break;
+                    case '\\':
+                        out.append("\\\\");
+                        break;
+                    default:
+                        out.append(c);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,505 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.Collections.unmodifiableSet;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.fcrepo.auth.roles.common.Constants.registerPrefixes;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.rbaclAssignable;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.templates;
+import static org.fcrepo.kernel.modeshape.FedoraSessionImpl.getJcrSession;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.FedoraSession;
+import org.fcrepo.metrics.RegistryService;
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Checks, in the background, that the structures derived from the ACLs in the repository still agree with them: the
+ * {@link PrincipalIndex}, the {@link AccessRolesRepresentationCache} and the templates compiled by the
+ * {@link RbAclAccessRolesProvider}. Each ACL-bearing node is read straight from the repository, without any of those
+ * structures, and compared with what each of them holds for it; indexed ACLs that no longer exist, and compiled
+ * templates that no longer match their stored assignments, are found too. A disagreement is logged and, unless
+ * repairs are turned off, mended through the structure's own update path: the index reads the ACL again, and the
+ * cached or compiled copy is dropped. Since the index is updated a moment after each commit, an entry that disagrees
+ * is read again before it is reported.
+ * <p>
+ * A run starts on request at {@code /fcr:authz/verifier}, and every {@code fcrepo.auth.roles.verifier.intervalMinutes}
+ * if that is set; by default it is 0, for no scheduled runs. It reads at most
+ * {@code fcrepo.auth.roles.verifier.aclsPerSecond} ACLs a second, 50 by default, on a low-priority thread, so as not
+ * to compete with requests. It checks every ACL as the query for them returns it, letting go of those read every
+ * {@value #REFRESH_EVERY}, unless {@code fcrepo.auth.roles.verifier.sampleSize} is set, in which case it checks a
+ * random sample of that many. The first {@value #MISMATCHES_KEPT} disagreements of a run are kept for its report.
+ * {@code fcrepo.auth.roles.verifier.repair=false} only reports. The counters
+ * {@code org.fcrepo.auth.roles.common.AuthorizationConsistencyVerifier.checked}, {@code ...mismatched} and
+ * {@code ...repaired}, and the timer {@code ...run}, are kept in the metrics registry.
+ * </p>
+ */
+@Component
+public class AuthorizationConsistencyVerifier {
+
+    private static final Logger LOGGER = getLogger(AuthorizationConsistencyVerifier.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final TypeReference<Map<String, Collection<String>>> ROLES =
+            new TypeReference<Map<String, Collection<String>>>() { };
+
+    static final int REFRESH_EVERY = 1000;
+
+    static final int MISMATCHES_KEPT = 100;
+
+    @Inject
+    private final SessionFactory sessionFactory = null;
+
+    @Inject
+    private final RbAclAccessRolesProvider accessRolesProvider = null;
+
+    @Inject
+    private final PrincipalIndex principalIndex = null;
+
+    @Inject
+    private final AccessRolesRepresentationCache representationCache = null;
+
+    private long intervalMinutes;
+
+    private RateLimiter rateLimiter;
+
+    private int sampleSize;
+
+    private boolean repair;
+
+    private ScheduledExecutorService scheduler;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private volatile Map<String, Object> lastRun = emptyMap();
+
+    private final Counter checked = RegistryService.getInstance().getMetrics()
+            .counter(name(AuthorizationConsistencyVerifier.class, "checked"));
+
+    private final Counter mismatched = RegistryService.getInstance().getMetrics()
+            .counter(name(AuthorizationConsistencyVerifier.class, "mismatched"));
+
+    private final Counter repaired = RegistryService.getInstance().getMetrics()
+            .counter(name(AuthorizationConsistencyVerifier.class, "repaired"));
+
+    private final Timer runTimer =
+            RegistryService.getInstance().getMetrics().timer(name(AuthorizationConsistencyVerifier.class, "run"));
+
+    /**
+     * Configure from system properties.
+     */
+    public AuthorizationConsistencyVerifier() {
+        setIntervalMinutes(Long.getLong("fcrepo.auth.roles.verifier.intervalMinutes", 0));
+        setAclsPerSecond(Double.parseDouble(System.getProperty("fcrepo.auth.roles.verifier.aclsPerSecond", "50")));
+        setSampleSize(Integer.getInteger("fcrepo.auth.roles.verifier.sampleSize", 0));
+        setRepair(Boolean.parseBoolean(System.getProperty("fcrepo.auth.roles.verifier.repair", "true")));
+    }
+
+    /**
+     * @param intervalMinutes the time between the start of one scheduled run and the next; 0 to run only on request,
+     *        must be set before the verifier is started
+     */
+    public void setIntervalMinutes(final long intervalMinutes) {
+        if (intervalMinutes < 0) {
+            throw new IllegalArgumentException("Verifier interval must not be negative: " + intervalMinutes);
+        }
+        this.intervalMinutes = intervalMinutes;
+    }
+
+    /**
+     * @param aclsPerSecond the most ACLs to read a second
+     */
+    public void setAclsPerSecond(final double aclsPerSecond) {
+        this.rateLimiter = RateLimiter.create(aclsPerSecond);
+    }
+
+    /**
+     * @param sampleSize the number of ACLs to check in each run, chosen at random; 0 to check them all
+     */
+    public void setSampleSize(final int sampleSize) {
+        if (sampleSize < 0) {
+            throw new IllegalArgumentException("Verifier sample size must not be negative: " + sampleSize);
+        }
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * @param repair whether to mend the disagreements found, rather than only report them
+     */
+    public void setRepair(final boolean repair) {
+        this.repair = repair;
+    }
+
+    /**
+     * Schedule the runs.
+     */
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setPriority(Thread.MIN_PRIORITY).setNameFormat("fcrepo-authz-verifier").build());
+        if (intervalMinutes > 0) {
+            scheduler.scheduleWithFixedDelay(this::run, intervalMinutes, intervalMinutes, MINUTES);
+        }
+    }
+
+    /**
+     * Stop the runs, abandoning one in progress.
+     */
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Start a run in the background now.
+     *
+     * @return false if a run is already in progress
+     */
+    public boolean runNow() {
+        if (running.get()) {
+            return false;
+        }
+        try {
+            scheduler.execute(this::run);
+        } catch (final RejectedExecutionException e) {
+            throw new IllegalStateException("The verifier is stopped", e);
+        }
+        return true;
+    }
+
+    /**
+     * @return true while a run is in progress
+     */
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * @return the counts and disagreements of the last finished run, empty if none has run
+     */
+    public Map<String, Object> getLastRun() {
+        return lastRun;
+    }
+
+    private void run() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        final Instant started = Instant.now();
+        final Run run = new Run();
+        FedoraSession session = null;
+        try (final Timer.Context time = runTimer.time()) {
+            session = sessionFactory.getInternalSession();
+            final Session jcrSession = getJcrSession(session);
+            registerPrefixes(jcrSession);
+            verify(jcrSession, run);
+            LOGGER.info("Checked {} ACLs and {} compiled templates against the repository: {} disagreements, {} " +
+                    "repaired", run.acls, run.templates, run.mismatchCount, run.repaired);
+        } catch (final RepositoryException | RuntimeException e) {
+            LOGGER.error("Unable to verify the derived authorization data: {}", e.getMessage(), e);
+            run.error = e.getMessage();
+        } finally {
+            if (session != null) {
+                session.expire();
+            }
+            running.set(false);
+        }
+        final Map<String, Object> report = new LinkedHashMap<>();
+        report.put("started", started.toString());
+        report.put("finished", Instant.now().toString());
+        report.put("acls", run.acls);
+        report.put("templates", run.templates);
+        report.put("repaired", run.repaired);
+        report.put("mismatchCount", run.mismatchCount);
+        report.put("mismatches", run.mismatches);
+        if (run.error != null) {
+            report.put("error", run.error);
+        }
+        lastRun = unmodifiableMap(report);
+    }
+
+    /**
+     * Check the ACLs of the repository, or a sample of them, and then the compiled templates.
+     */
+    void verify(final Session session, final Run run) throws RepositoryException {
+        final NodeIterator nodes = session.getWorkspace().getQueryManager().createQuery(
+                "SELECT * FROM [" + rbaclAssignable.getQualified() + "]", Query.JCR_SQL2).execute().getNodes();
+        if (sampleSize == 0) {
+            long found = 0;
+            for (; nodes.hasNext(); found++) {
+                if (!check(session, nodes.nextNode().getPath(), found, run)) {
+                    return;
+                }
+            }
+            if (indexUsable() && principalIndex.size() > found) {
+                checkIndexedPaths(session, run);
+            }
+        } else {
+            final List<String> paths = new ArrayList<>();
+            for (int seen = 0; nodes.hasNext(); seen++) {
+                final String path = nodes.nextNode().getPath();
+                // reservoir sampling, so that each ACL is as likely as any other to be checked
+                if (paths.size() < sampleSize) {
+                    paths.add(path);
+                } else {
+                    final int i = ThreadLocalRandom.current().nextInt(seen + 1);
+                    if (i < sampleSize) {
+                        paths.set(i, path);
+                    }
+                }
+            }
+            for (int i = 0; i < paths.size(); i++) {
+                if (!check(session, paths.get(i), i, run)) {
+                    return;
+                }
+            }
+        }
+        checkTemplates(session, run);
+    }
+
+    /**
+     * Check one ACL at the verifier's rate, letting go of the nodes the session has read every so often.
+     *
+     * @param read the number of ACLs checked before this one
+     * @return false if the run has been stopped
+     */
+    private boolean check(final Session session, final String path, final long read, final Run run)
+            throws RepositoryException {
+        if (Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        if (read > 0 && read % REFRESH_EVERY == 0) {
+            session.refresh(false);
+        }
+        rateLimiter.acquire();
+        checkAcl(session, path, run);
+        return true;
+    }
+
+    /**
+     * Compare the derived copies of one ACL with the repository.
+     */
+    void checkAcl(final Session session, final String path, final Run run) throws RepositoryException {
+        if (!session.nodeExists(path)) {
+            return;
+        }
+        final Node node = session.getNode(path);
+        final Map<String, Set<String>> stored = normalize(accessRolesProvider.readAssignments(node));
+        if (stored == null) {
+            return;
+        }
+        run.acls++;
+        checked.inc();
+        if (indexUsable() && !stored.equals(normalize(principalIndex.getAssignments(path)))) {
+            // the index may not have caught up with a recent commit yet; look again before reporting
+            final Map<String, Set<String>> again = normalize(accessRolesProvider.readAssignments(node));
+            final Map<String, Set<String>> indexed = normalize(principalIndex.getAssignments(path));
+            if (again != null && !again.equals(indexed)) {
+                mismatch(run, "principal index", path, indexed, again);
+                if (repair) {
+                    principalIndex.repair(path);
+                    repaired(run);
+                }
+            }
+        }
+        final String version = accessRolesProvider.getRolesVersion(node, false);
+        final byte[] json = version == null ? null : representationCache.peek(version);
+        if (json != null) {
+            final Map<String, Set<String>> cached = parse(json);
+            if (!stored.equals(cached)) {
+                mismatch(run, "representation cache", path, cached, stored);
+                if (repair) {
+                    representationCache.invalidate(version);
+                    repaired(run);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find indexed ACLs that are not in the repository, once the index is known to hold more ACLs than the query
+     * found.
+     */
+    private void checkIndexedPaths(final Session session, final Run run) throws RepositoryException {
+        final List<String> indexed = new ArrayList<>(principalIndex.size());
+        principalIndex.forEachAcl((path, assignments) -> indexed.add(path));
+        for (int i = 0; i < indexed.size(); i++) {
+            final String path = indexed.get(i);
+            if (i > 0 && i % REFRESH_EVERY == 0) {
+                session.refresh(false);
+            }
+            // an ACL in the repository, or one removed and not yet dropped from the index
+            if (session.nodeExists(path) && session.getNode(path).isNodeType(rbaclAssignable.getQualified())) {
+                continue;
+            }
+            mismatch(run, "principal index", path, normalize(principalIndex.getAssignments(path)), null);
+            if (repair) {
+                principalIndex.repair(path);
+                repaired(run);
+            }
+        }
+    }
+
+    /**
+     * Compare each compiled template with its stored assignments.
+     */
+    private void checkTemplates(final Session session, final Run run) throws RepositoryException {
+        for (final Map.Entry<String, Map<String, Collection<String>>> entry :
+                accessRolesProvider.getCompiledTemplates().entrySet()) {
+            rateLimiter.acquire();
+            run.templates++;
+            final Map<String, Set<String>> stored =
+                    normalize(accessRolesProvider.getTemplateRoles(session, entry.getKey()));
+            final Map<String, Set<String>> compiled = normalize(entry.getValue());
+            if (!compiled.equals(stored)) {
+                mismatch(run, "compiled template", "/" + templates.getQualified() + "/" +
+                        entry.getKey(), compiled, stored);
+                if (repair) {
+                    accessRolesProvider.evictTemplate(entry.getKey());
+                    repaired(run);
+                }
+            }
+        }
+    }
+
+    private boolean indexUsable() {
+        return principalIndex != null && principalIndex.isEnabled() && principalIndex.isReady();
+    }
+
+    private void mismatch(final Run run, final String structure, final String path,
+            final Map<String, Set<String>> derived, final Map<String, Set<String>> stored) {
+        LOGGER.warn("The {} disagrees with the repository at {}: it holds {}, the repository {}", structure, path,
+                derived, stored);
+        mismatched.inc();
+        if (run.mismatchCount++ >= MISMATCHES_KEPT) {
+            return;
+        }
+        final Map<String, Object> mismatch = new LinkedHashMap<>();
+        mismatch.put("structure", structure);
+        mismatch.put("path", path);
+        mismatch.put("derived", derived);
+        mismatch.put("stored", stored);
+        run.mismatches.add(mismatch);
+    }
+
+    private void repaired(final Run run) {
+        run.repaired++;
+        repaired.inc();
+    }
+
+    /**
+     * @return the roles of each principal as sorted sets, so that neither order nor duplicates tell copies apart;
+     *         null if there are none
+     */
+    static Map<String, Set<String>> normalize(final Map<String, ? extends Collection<String>> roles) {
+        if (roles == null) {
+            return null;
+        }
+        final Map<String, Set<String>> normalized = new TreeMap<>();
+        roles.forEach((principal, assigned) -> normalized.put(principal, unmodifiableSet(new TreeSet<>(assigned))));
+        return normalized;
+    }
+
+    private static Map<String, Set<String>> parse(final byte[] json) {
+        try {
+            return normalize(MAPPER.readValue(json, ROLES));
+        } catch (final IOException e) {
+            throw new IllegalStateException("Unable to read cached access roles", e);
+        }
+    }
+
+    /**
+     * The counts and disagreements of one run.
+     */
+    static final class Run {
+
+        private long acls;
+
+        private long templates;
+
+        private long repaired;
+
+        private long mismatchCount;
+
+        private final List<Map<String, Object>> mismatches = new ArrayList<>();
+
+        private String error;
+
+        /**
+         * @return the first disagreements found
+         */
+        List<Map<String, Object>> getMismatches() {
+            return mismatches;
+        }
+
+        /**
+         * @return the number of disagreements found
+         */
+        long getMismatchCount() {
+            return mismatchCount;
+        }
+
+        /**
+         * @return the number of disagreements repaired
+         */
+        long getRepaired() {
+            return repaired;
+        }
+    }
+}
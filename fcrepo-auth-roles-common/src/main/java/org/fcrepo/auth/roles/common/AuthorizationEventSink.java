@@ -0,0 +1,69 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+/**
+ * Receives the events {@link AuthorizationEvents} emits for authorization decisions and role lookups, for example as
+ * Java Flight Recorder events. Implementations are found with {@link java.util.ServiceLoader}, so that the module
+ * providing one can be left off the classpath, or built only where its API is available.
+ */
+public interface AuthorizationEventSink {
+
+    /**
+     * @return true if decision events are being recorded; asked for every decision, so it must be cheap
+     */
+    boolean isDecisionEnabled();
+
+    /**
+     * Start timing a decision.
+     *
+     * @return an event handle to pass to {@link #commitDecision}
+     */
+    Object beginDecision();
+
+    /**
+     * Record a finished decision.
+     *
+     * @param event the handle returned by {@link #beginDecision}
+     * @param trace the trace of the decision
+     */
+    void commitDecision(Object event, AuthorizationTrace trace);
+
+    /**
+     * @return true if role lookup events are being recorded; asked for every lookup, so it must be cheap
+     */
+    boolean isLookupEnabled();
+
+    /**
+     * Start timing a role lookup.
+     *
+     * @return an event handle to pass to {@link #commitLookup}
+     */
+    Object beginLookup();
+
+    /**
+     * Record a finished role lookup.
+     *
+     * @param event the handle returned by {@link #beginLookup}
+     * @param path the path roles were requested for
+     * @param effective whether effective roles were requested
+     * @param aclPath the governing ACL path, or null
+     * @param depth the number of ancestors walked
+     */
+    void commitLookup(Object event, String path, boolean effective, String aclPath, int depth);
+}
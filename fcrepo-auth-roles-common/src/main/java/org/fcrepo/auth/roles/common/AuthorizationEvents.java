@@ -0,0 +1,113 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Emits events for authorization decisions and role lookups to the {@link AuthorizationEventSink} found on the
+ * classpath, such as the Java Flight Recorder events of the optional {@code fcrepo-auth-roles-jfr} module. Without
+ * one, or when the sink cannot be loaded on the running JVM, nothing is emitted and the cost is a null check.
+ */
+final class AuthorizationEvents {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AuthorizationEvents.class);
+
+    private static final AuthorizationEventSink SINK = loadSink();
+
+    private AuthorizationEvents() {
+    }
+
+    private static AuthorizationEventSink loadSink() {
+        try {
+            final Iterator<AuthorizationEventSink> sinks = ServiceLoader.load(AuthorizationEventSink.class,
+                    AuthorizationEvents.class.getClassLoader()).iterator();
+            if (sinks.hasNext()) {
+                final AuthorizationEventSink sink = sinks.next();
+                LOGGER.info("Emitting authorization events to {}", sink.getClass().getName());
+                return sink;
+            }
+        } catch (final ServiceConfigurationError | LinkageError e) {
+            LOGGER.info("Authorization events will not be emitted: {}", e.toString());
+        }
+        return null;
+    }
+
+    /**
+     * @return true if authorization decision events are being recorded
+     */
+    static boolean isDecisionEnabled() {
+        return SINK != null && SINK.isDecisionEnabled();
+    }
+
+    /**
+     * Start timing the decision event for a trace.
+     *
+     * @param trace the trace of the decision
+     */
+    static void beginDecision(final AuthorizationTrace trace) {
+        if (isDecisionEnabled()) {
+            trace.decisionEvent = SINK.beginDecision();
+        }
+    }
+
+    /**
+     * Commit the decision event for a finished trace, if one was begun.
+     *
+     * @param trace the trace of the decision
+     */
+    static void commitDecision(final AuthorizationTrace trace) {
+        if (trace.decisionEvent != null) {
+            SINK.commitDecision(trace.decisionEvent, trace);
+            trace.decisionEvent = null;
+        }
+    }
+
+    /**
+     * Start timing a role lookup.
+     *
+     * @return an event handle to pass to {@link #commitLookup}, or null if lookups are not being recorded
+     */
+    static Object beginLookup() {
+        if (SINK != null && SINK.isLookupEnabled()) {
+            return SINK.beginLookup();
+        }
+        return null;
+    }
+
+    /**
+     * Commit a role lookup event.
+     *
+     * @param event the handle returned by {@link #beginLookup}, may be null
+     * @param path the path roles were requested for
+     * @param effective whether effective roles were requested
+     * @param aclPath the governing ACL path, or null
+     * @param depth the number of ancestors walked
+     */
+    static void commitLookup(final Object event, final String path, final boolean effective, final String aclPath,
+            final int depth) {
+        if (event != null) {
+            SINK.commitLookup(event, path, effective, aclPath, depth);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.lang.System.nanoTime;
+import static java.util.Collections.emptySet;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Records how a single authorization decision was reached: where the governing ACL was found, how far the
+ * provider had to walk to get there and how long it took. A trace is only opened when something is listening for
+ * it, and is bound to the current thread so that the {@link AccessRolesProvider} can contribute to it without any
+ * change to its interface.
+ */
+public class AuthorizationTrace {
+
+    /**
+     * The stages of a decision that are timed separately.
+     */
+    public static enum Stage {
+        /** acquiring the internal session used to read ACLs */
+        SESSION,
+        /** walking up from the requested path to the governing ACL */
+        WALK,
+        /** matching principals against the ACL to find the effective roles */
+        RESOLVE,
+        /** evaluating the roles against the requested actions */
+        EVALUATE
+    }
+
+    private static final ThreadLocal<AuthorizationTrace> CURRENT = new ThreadLocal<>();
+
+    private final AuthorizationTrace previous;
+
+    private final String path;
+
+    private final String[] actions;
+
+    private final long startNanos;
+
+    private long durationNanos = -1;
+
+    private int principalCount;
+
+    private boolean aclResolved;
+
+    private String governingAclPath;
+
+    private int walkDepth;
+
+    private int nodesVisited;
+
+    private Collection<String> matchedPrincipals = emptySet();
+
+    private Set<String> roles = emptySet();
+
+    private boolean permitted;
+
+    private final long[] stageNanos = new long[Stage.values().length];
+
+    Object decisionEvent;
+
+    private AuthorizationTrace(final String path, final String[] actions, final AuthorizationTrace previous) {
+        this.path = path;
+        this.actions = actions;
+        this.previous = previous;
+        this.startNanos = nanoTime();
+    }
+
+    /**
+     * Open a trace for a decision and bind it to the current thread.
+     *
+     * @param path the path being checked
+     * @param actions the requested actions
+     * @return the new trace
+     */
+    public static AuthorizationTrace start(final String path, final String[] actions) {
+        final AuthorizationTrace trace = new AuthorizationTrace(path, actions, CURRENT.get());
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * @return the trace bound to the current thread, or null if no decision is being traced
+     */
+    public static AuthorizationTrace current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Close this trace, recording the decision and unbinding it from the current thread.
+     *
+     * @param decision whether the actions were permitted
+     */
+    public void finish(final boolean decision) {
+        this.permitted = decision;
+        this.durationNanos = nanoTime() - startNanos;
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Note the ACL node that governs the traced path. Only the first ACL found is kept, so that lookups made later
+     * in the same decision (e.g. for the children of a removed node) do not mask it.
+     *
+     * @param aclPath the path of the rbaclAssignable node, or null if no ACL governs the path
+     * @param depth the number of ancestors walked from the requested path to reach it
+     */
+    public void foundGoverningAcl(final String aclPath, final int depth) {
+        if (!aclResolved) {
+            this.aclResolved = true;
+            this.governingAclPath = aclPath;
+            this.walkDepth += depth;
+        }
+    }
+
+    /**
+     * Add to the walk depth, for path segments that had to be skipped before a lookup could start.
+     *
+     * @param steps the number of ancestors skipped
+     */
+    public void addWalkDepth(final int steps) {
+        if (!aclResolved) {
+            this.walkDepth += steps;
+        }
+    }
+
+    /**
+     * Count nodes read while reaching the decision, including those read for lookups made after the governing ACL
+     * was found.
+     *
+     * @param count the number of nodes read
+     */
+    public void visitNodes(final int count) {
+        this.nodesVisited += count;
+    }
+
+    /**
+     * Add the time elapsed since a mark to a stage.
+     *
+     * @param stage the stage that just completed
+     * @param since the {@link System#nanoTime()} at which the stage began
+     * @return the current {@link System#nanoTime()}, to mark the start of the next stage
+     */
+    public long lap(final Stage stage, final long since) {
+        final long now = nanoTime();
+        stageNanos[stage.ordinal()] += now - since;
+        return now;
+    }
+
+    /**
+     * @param matchedPrincipals the names of the principals that matched an assignment in the ACL
+     */
+    public void setMatchedPrincipals(final Collection<String> matchedPrincipals) {
+        this.matchedPrincipals = matchedPrincipals;
+    }
+
+    /**
+     * @param roles the effective roles the matched principals resolved to
+     */
+    public void setRoles(final Set<String> roles) {
+        this.roles = roles;
+    }
+
+    /**
+     * @param principalCount the number of principals the request carried
+     */
+    public void setPrincipalCount(final int principalCount) {
+        this.principalCount = principalCount;
+    }
+
+    /**
+     * @return the path being checked
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the requested actions
+     */
+    public String[] getActions() {
+        return actions;
+    }
+
+    /**
+     * @return the number of principals the request carried
+     */
+    public int getPrincipalCount() {
+        return principalCount;
+    }
+
+    /**
+     * @return the path of the governing ACL node, or null if none was found
+     */
+    public String getGoverningAclPath() {
+        return governingAclPath;
+    }
+
+    /**
+     * @return the number of ancestors walked to find the governing ACL
+     */
+    public int getWalkDepth() {
+        return walkDepth;
+    }
+
+    /**
+     * @return the number of nodes read while reaching the decision
+     */
+    public int getNodesVisited() {
+        return nodesVisited;
+    }
+
+    /**
+     * @return the names of the principals that matched an assignment in the ACL
+     */
+    public Collection<String> getMatchedPrincipals() {
+        return matchedPrincipals;
+    }
+
+    /**
+     * @return the effective roles the matched principals resolved to
+     */
+    public Set<String> getRoles() {
+        return roles;
+    }
+
+    /**
+     * @param stage a stage of the decision
+     * @return the time spent in that stage
+     */
+    public long getStageNanos(final Stage stage) {
+        return stageNanos[stage.ordinal()];
+    }
+
+    /**
+     * @return whether the actions were permitted
+     */
+    public boolean isPermitted() {
+        return permitted;
+    }
+
+    /**
+     * @return the time taken by the decision, or -1 if it has not finished
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+}
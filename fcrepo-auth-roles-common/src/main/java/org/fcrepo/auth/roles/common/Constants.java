@@ -44,7 +44,8 @@ public class Constants {
      */
     public static enum JcrName {
         rbaclAssignable(), Rbacl(), Assignment(), rbacl(), assignment(),
-        principal(), role();
+        principal(), role(), version(), template(), Templates(), templates(),
+        governed(), governingAcl(), governedPath(), aclEpoch(), governingEpoch(), pointersPending();
 
         private String expandedName;
 
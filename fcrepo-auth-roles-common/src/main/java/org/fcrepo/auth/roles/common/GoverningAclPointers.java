@@ -0,0 +1,659 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableMap;
+import static javax.jcr.observation.Event.NODE_ADDED;
+import static javax.jcr.observation.Event.NODE_MOVED;
+import static javax.jcr.observation.Event.PROPERTY_ADDED;
+import static org.fcrepo.auth.roles.common.Constants.registerPrefixes;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.aclEpoch;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.governed;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.governedPath;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.governingAcl;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.governingEpoch;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.pointersPending;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.rbaclAssignable;
+import static org.fcrepo.kernel.modeshape.FedoraSessionImpl.getJcrSession;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.ConstraintViolationException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.query.Query;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.FedoraSession;
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Optional denormalized pointers from each node to the ACL that governs it, so that effective roles are found by
+ * reading a few properties and one ACL rather than by walking up the tree. A node carries the {@code authz:governed}
+ * mixin, with the path of its governing {@code authz:rbaclAssignable} node, itself if it has an ACL, the path the
+ * pointer was written for, and the epoch of the ACL when it was written. A pointer is used only while the ACL it
+ * leads to still exists with that epoch and lies above the node; any other node is resolved by walking up as usual.
+ * Adding or removing an ACL writes only the node it is on, so it conflicts with no other change.
+ * <p>
+ * An added ACL is marked {@code authz:pointersPending}, and the pointers beneath it are rewritten in the background
+ * shortly after it is committed, as the pointers of created and moved nodes are. Until then no pointer that leads
+ * past a pending ACL is used. The marks are kept in the repository, so that the rewrites a restart interrupted are
+ * resumed. The repair job rewrites the pointers of the whole repository, or only verifies them. An ACL added by
+ * other means than the {@link RbAclAccessRolesProvider}, for example by editing the repository directly, is not
+ * marked, and is not seen by the pointers until that job runs. Enabled when the system property
+ * {@code fcrepo.auth.roles.governingAclPointers.enabled} is true; repaired and reported at
+ * {@code /fcr:authz/pointers}.
+ * </p>
+ */
+@Component
+public class GoverningAclPointers {
+
+    private static final Logger LOGGER = getLogger(GoverningAclPointers.class);
+
+    private static final String AUTHZ_SEGMENT = "/" + Constants.JcrName.NS_PREFIX + ":";
+
+    private static final String SYSTEM_PATH = "/jcr:system";
+
+    private static final int SAVE_EVERY = 1000;
+
+    @Inject
+    private final SessionFactory sessionFactory = null;
+
+    private boolean enabled;
+
+    private ExecutorService worker;
+
+    private FedoraSession listenerSession;
+
+    private EventListener listener;
+
+    private EventListener pendingListener;
+
+    /**
+     * The paths of the ACLs added since the pointers beneath them were last rewritten.
+     */
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    private final AtomicBoolean repairing = new AtomicBoolean();
+
+    private volatile Map<String, Object> lastRepair = emptyMap();
+
+    /**
+     * Configure from system properties.
+     */
+    public GoverningAclPointers() {
+        setEnabled(Boolean.getBoolean("fcrepo.auth.roles.governingAclPointers.enabled"));
+    }
+
+    /**
+     * @param enabled whether to maintain and use the pointers
+     */
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return true if the pointers are maintained and used
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start giving pointers to created and moved nodes and to the nodes beneath added ACLs, and resume the rewrites
+     * left pending when the repository last stopped.
+     *
+     * @throws RepositoryException if the listeners could not be registered
+     */
+    @PostConstruct
+    public void start() throws RepositoryException {
+        if (!enabled) {
+            return;
+        }
+        worker = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("fcrepo-authz-acl-pointers").build());
+        listenerSession = sessionFactory.getInternalSession();
+        final Session jcrSession = getJcrSession(listenerSession);
+        registerPrefixes(jcrSession);
+        listener = this::onEvents;
+        jcrSession.getWorkspace().getObservationManager()
+                .addEventListener(listener, NODE_ADDED | NODE_MOVED, "/", true, null, null, false);
+        pendingListener = this::onPendingEvents;
+        jcrSession.getWorkspace().getObservationManager().addEventListener(pendingListener, PROPERTY_ADDED, "/", true,
+                null, new String[] { rbaclAssignable.getQualified() }, false);
+        final String marked = "SELECT * FROM [" + rbaclAssignable.getQualified() + "] AS n WHERE n.[" +
+                pointersPending.getQualified() + "] IS NOT NULL";
+        for (final NodeIterator nodes = jcrSession.getWorkspace().getQueryManager()
+                .createQuery(marked, Query.JCR_SQL2).execute().getNodes(); nodes.hasNext();) {
+            repointLater(nodes.nextNode().getPath());
+        }
+    }
+
+    /**
+     * Stop listening and abandon pending work.
+     */
+    @PreDestroy
+    public void stop() {
+        if (listenerSession == null) {
+            return;
+        }
+        try {
+            getJcrSession(listenerSession).getWorkspace().getObservationManager().removeEventListener(listener);
+            getJcrSession(listenerSession).getWorkspace().getObservationManager()
+                    .removeEventListener(pendingListener);
+        } catch (final RepositoryException e) {
+            LOGGER.warn("Unable to remove the governing ACL pointer listener: {}", e.getMessage());
+        } finally {
+            listenerSession.expire();
+            listenerSession = null;
+            worker.shutdownNow();
+        }
+    }
+
+    /**
+     * @param node a node without an ACL of its own
+     * @return the rbaclAssignable node its pointer leads to, or null if it has no pointer that can be trusted
+     * @throws RepositoryException if the pointer could not be read
+     */
+    public Node getPointedAcl(final Node node) throws RepositoryException {
+        if (!node.isNodeType(governed.getQualified()) || !node.hasProperty(governingAcl.getQualified()) ||
+                !node.hasProperty(governedPath.getQualified()) || !node.hasProperty(governingEpoch.getQualified())) {
+            return null;
+        }
+        final String path = node.getPath();
+        if (!path.equals(node.getProperty(governedPath.getQualified()).getString())) {
+            // written before the node, or one of its ancestors, was moved
+            return null;
+        }
+        final String aclPath = node.getProperty(governingAcl.getQualified()).getString();
+        if (!isAncestorOrSelf(aclPath, path) || passesPending(aclPath, path)) {
+            return null;
+        }
+        final Session session = node.getSession();
+        if (!session.nodeExists(aclPath)) {
+            return null;
+        }
+        final Node acl = session.getNode(aclPath);
+        if (!acl.isNodeType(rbaclAssignable.getQualified()) ||
+                !node.getProperty(governingEpoch.getQualified()).getString().equals(epochOf(acl, false))) {
+            // the ACL was removed, or removed and added again, since the pointer was written
+            return null;
+        }
+        return acl;
+    }
+
+    private static boolean isAncestorOrSelf(final String ancestor, final String path) {
+        return "/".equals(ancestor) || path.equals(ancestor) ||
+                path.startsWith(ancestor) && path.charAt(ancestor.length()) == '/';
+    }
+
+    /**
+     * @return true if an ACL whose pointers are yet to be rewritten lies between an ACL and a node beneath it
+     */
+    private boolean passesPending(final String aclPath, final String path) {
+        for (final String added : pending) {
+            if (!added.equals(aclPath) && isAncestorOrSelf(aclPath, added) && isAncestorOrSelf(added, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param acl an rbaclAssignable node
+     * @param create whether to give the ACL an epoch if it has none yet
+     * @return the epoch of the ACL, or null if it has none
+     */
+    private static String epochOf(final Node acl, final boolean create) throws RepositoryException {
+        if (acl.hasProperty(aclEpoch.getQualified())) {
+            return acl.getProperty(aclEpoch.getQualified()).getString();
+        }
+        return create ? renewEpoch(acl) : null;
+    }
+
+    /**
+     * Give an ACL a new epoch, so that no pointer written before leads to it any more.
+     */
+    private static String renewEpoch(final Node acl) throws RepositoryException {
+        final String epoch = UUID.randomUUID().toString();
+        acl.setProperty(aclEpoch.getQualified(), epoch);
+        return epoch;
+    }
+
+    /**
+     * Point a node at its governing ACL.
+     *
+     * @param node a node
+     * @param acl the rbaclAssignable node that governs it, or null to remove its pointer
+     * @param epoch the epoch of the ACL, read before it was found to govern the node
+     * @throws RepositoryException if the pointer could not be written
+     */
+    void point(final Node node, final Node acl, final String epoch) throws RepositoryException {
+        if (acl == null) {
+            if (node.isNodeType(governed.getQualified())) {
+                node.removeMixin(governed.getQualified());
+            }
+            return;
+        }
+        if (!node.isNodeType(governed.getQualified())) {
+            node.addMixin(governed.getQualified());
+        }
+        node.setProperty(governingAcl.getQualified(), acl.getPath());
+        node.setProperty(governedPath.getQualified(), node.getPath());
+        node.setProperty(governingEpoch.getQualified(), epoch);
+    }
+
+    /**
+     * Point a node at the ACL that governs it now. The ACL's epoch is read before the walk that confirms it still
+     * governs the node, so that an ACL committed meanwhile between the two is never passed over.
+     *
+     * @param node a node
+     * @throws RepositoryException if the pointer could not be read or written
+     */
+    void pointAtGoverning(final Node node) throws RepositoryException {
+        final Governing governing = Governing.of(node, true);
+        point(node, governing.acl, governing.epoch);
+    }
+
+    /**
+     * @param node a node
+     * @param acl the rbaclAssignable node that governs it, or null if none does
+     * @param epoch the epoch of that ACL
+     * @return true if the node's pointer leads to the given ACL at the given epoch, or it has none and no ACL is
+     *         given
+     * @throws RepositoryException if the pointer could not be read
+     */
+    static boolean pointsAt(final Node node, final Node acl, final String epoch) throws RepositoryException {
+        if (!node.isNodeType(governed.getQualified())) {
+            return acl == null;
+        }
+        return acl != null && epoch != null && node.hasProperty(governingAcl.getQualified()) &&
+                node.hasProperty(governedPath.getQualified()) && node.hasProperty(governingEpoch.getQualified()) &&
+                acl.getPath().equals(node.getProperty(governingAcl.getQualified()).getString()) &&
+                node.getPath().equals(node.getProperty(governedPath.getQualified()).getString()) &&
+                epoch.equals(node.getProperty(governingEpoch.getQualified()).getString());
+    }
+
+    /**
+     * @param node a node
+     * @return the node or its nearest ancestor that has an ACL, or null if none has
+     * @throws RepositoryException if an ancestor could not be read
+     */
+    static Node findGoverning(final Node node) throws RepositoryException {
+        for (Node n = node;; n = n.getParent()) {
+            if (n.isNodeType(rbaclAssignable.getQualified())) {
+                return n;
+            }
+            if (n.getDepth() == 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Note an ACL added at a node, in the session of that change, to be saved with it. The node gets a new epoch and
+     * is pointed at itself, and is marked so that the pointers beneath it are rewritten once it is committed. Until
+     * then no pointer leading past it is used; if the change is never committed, not until the repository restarts.
+     *
+     * @param top the node the ACL was added to, already rbaclAssignable
+     * @throws RepositoryException if the mark or pointer could not be written
+     */
+    void aclAdded(final Node top) throws RepositoryException {
+        top.setProperty(pointersPending.getQualified(), true);
+        point(top, top, renewEpoch(top));
+        pending.add(top.getPath());
+    }
+
+    /**
+     * Note an ACL removed from a node, in the session of that change, to be saved with it. Pointers to it are no
+     * longer used once it is not rbaclAssignable; the node is pointed at the ACL that governs it now.
+     *
+     * @param top the node the ACL was removed from
+     * @throws RepositoryException if the pointer could not be written
+     */
+    void aclRemoved(final Node top) throws RepositoryException {
+        pointAtGoverning(top);
+    }
+
+    /**
+     * Rebuild or verify the pointers of every node in the repository, in the background.
+     *
+     * @param verifyOnly true to count the wrong pointers without changing them
+     * @return false if a repair is already running
+     */
+    public boolean repair(final boolean verifyOnly) {
+        if (worker == null) {
+            throw new IllegalStateException("Governing ACL pointers are not enabled");
+        }
+        if (!repairing.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            worker.execute(() -> {
+                try {
+                    runRepair(verifyOnly);
+                } finally {
+                    repairing.set(false);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            repairing.set(false);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * @return true while a repair is running
+     */
+    public boolean isRepairing() {
+        return repairing.get();
+    }
+
+    /**
+     * @return the counts of the last finished repair or verification, empty if none has run
+     */
+    public Map<String, Object> getLastRepair() {
+        return lastRepair;
+    }
+
+    private void runRepair(final boolean verifyOnly) {
+        final Instant started = Instant.now();
+        final Walk walk = new Walk(verifyOnly);
+        FedoraSession session = null;
+        try {
+            session = sessionFactory.getInternalSession();
+            final Session jcrSession = getJcrSession(session);
+            registerPrefixes(jcrSession);
+            walk.visit(session, jcrSession.getRootNode(), Governing.NONE);
+            session.commit();
+            pending.removeAll(walk.cleared);
+            LOGGER.info("{} governing ACL pointers: visited {} nodes, {} wrong, {} repaired, {} failed",
+                    verifyOnly ? "Verified" : "Repaired", walk.visited, walk.wrong, walk.repaired, walk.failed);
+        } catch (final RepositoryException | RuntimeException e) {
+            LOGGER.error("Unable to repair the governing ACL pointers: {}", e.getMessage(), e);
+            walk.error = e.getMessage();
+        } finally {
+            if (session != null) {
+                session.expire();
+            }
+        }
+        final Map<String, Object> report = new LinkedHashMap<>();
+        report.put("mode", verifyOnly ? "verify" : "repair");
+        report.put("started", started.toString());
+        report.put("finished", Instant.now().toString());
+        report.put("visited", walk.visited);
+        report.put("wrong", walk.wrong);
+        report.put("repaired", walk.repaired);
+        report.put("failed", walk.failed);
+        if (walk.error != null) {
+            report.put("error", walk.error);
+        }
+        lastRepair = unmodifiableMap(report);
+    }
+
+    /**
+     * Collect created and moved nodes from a batch of committed changes, and queue them to be pointed.
+     */
+    private void onEvents(final EventIterator events) {
+        final Set<String> added = new LinkedHashSet<>();
+        final Set<String> moved = new LinkedHashSet<>();
+        while (events.hasNext()) {
+            final Event event = events.nextEvent();
+            try {
+                final String path = event.getPath();
+                if (path.contains(AUTHZ_SEGMENT) || path.startsWith(SYSTEM_PATH)) {
+                    continue;
+                }
+                (event.getType() == NODE_MOVED ? moved : added).add(path);
+            } catch (final RepositoryException e) {
+                LOGGER.warn("Unable to read an observed event: {}", e.getMessage());
+            }
+        }
+        if (added.isEmpty() && moved.isEmpty()) {
+            return;
+        }
+        try {
+            worker.execute(() -> pointNodes(added, moved));
+        } catch (final RejectedExecutionException e) {
+            LOGGER.debug("Governing ACL pointers are stopped, ignoring {} nodes", added.size() + moved.size());
+        }
+    }
+
+    /**
+     * Queue the rewrite of the pointers beneath ACLs as their marks are committed.
+     */
+    private void onPendingEvents(final EventIterator events) {
+        final String mark = "/" + pointersPending.getQualified();
+        while (events.hasNext()) {
+            try {
+                final String path = events.nextEvent().getPath();
+                if (path.endsWith(mark)) {
+                    repointLater(path.length() == mark.length() ? "/" : path.substring(0, path.length() -
+                            mark.length()));
+                }
+            } catch (final RepositoryException e) {
+                LOGGER.warn("Unable to read an observed event: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void repointLater(final String path) {
+        pending.add(path);
+        try {
+            worker.execute(() -> repoint(path));
+        } catch (final RejectedExecutionException e) {
+            LOGGER.debug("Governing ACL pointers are stopped, not pointing the nodes beneath {}", path);
+        }
+    }
+
+    /**
+     * Point every node beneath an added ACL at its governing ACL, and clear the mark of the ACL.
+     */
+    private void repoint(final String path) {
+        FedoraSession session = null;
+        try {
+            session = sessionFactory.getInternalSession();
+            final Session jcrSession = getJcrSession(session);
+            registerPrefixes(jcrSession);
+            final Walk walk = new Walk(false);
+            // unless the node, or its ACL, was removed since it was marked
+            if (isMarked(jcrSession, path)) {
+                walk.visit(session, jcrSession.getNode(path), Governing.NONE);
+                session.commit();
+            }
+            pending.removeAll(walk.cleared);
+            pending.remove(path);
+        } catch (final RepositoryException | RuntimeException e) {
+            LOGGER.warn("Unable to point the nodes beneath {} at their ACLs: {}", path, e.getMessage());
+        } finally {
+            if (session != null) {
+                session.expire();
+            }
+        }
+    }
+
+    private static boolean isMarked(final Session session, final String path) throws RepositoryException {
+        if (!session.nodeExists(path)) {
+            return false;
+        }
+        final Node node = session.getNode(path);
+        return node.isNodeType(rbaclAssignable.getQualified()) && node.hasProperty(pointersPending.getQualified());
+    }
+
+    /**
+     * Point created nodes, and every node beneath moved ones, at their governing ACLs.
+     */
+    private void pointNodes(final Set<String> added, final Set<String> moved) {
+        FedoraSession session = null;
+        try {
+            session = sessionFactory.getInternalSession();
+            final Session jcrSession = getJcrSession(session);
+            registerPrefixes(jcrSession);
+            final Walk walk = new Walk(false);
+            for (final String path : moved) {
+                if (jcrSession.nodeExists(path)) {
+                    final Node node = jcrSession.getNode(path);
+                    walk.visit(session, node,
+                            node.getDepth() == 0 ? Governing.NONE : Governing.of(node.getParent(), true));
+                }
+            }
+            for (final String path : added) {
+                if (jcrSession.nodeExists(path)) {
+                    pointAtGoverning(jcrSession.getNode(path));
+                }
+            }
+            session.commit();
+        } catch (final RepositoryException | RuntimeException e) {
+            LOGGER.warn("Unable to point created or moved nodes at their ACLs: {}", e.getMessage());
+        } finally {
+            if (session != null) {
+                session.expire();
+            }
+        }
+    }
+
+    /**
+     * A depth-first pass over a subtree that checks, and unless only verifying rewrites, each node's pointer.
+     */
+    private final class Walk {
+
+        private final boolean verifyOnly;
+
+        private long visited;
+
+        private long wrong;
+
+        private long repaired;
+
+        private long failed;
+
+        private int unsaved;
+
+        private String error;
+
+        /**
+         * The ACLs whose marks were removed, once the pointers beneath them were rewritten.
+         */
+        private final List<String> cleared = new ArrayList<>();
+
+        private Walk(final boolean verifyOnly) {
+            this.verifyOnly = verifyOnly;
+        }
+
+        /**
+         * @param governing the ACL above the node, with its epoch as read before any of the nodes between it and
+         *        this one were visited
+         */
+        void visit(final FedoraSession session, final Node node, final Governing governing)
+                throws RepositoryException {
+            final String path = node.getPath();
+            if (path.contains(AUTHZ_SEGMENT) || path.startsWith(SYSTEM_PATH)) {
+                return;
+            }
+            visited++;
+            final Governing acl = node.isNodeType(rbaclAssignable.getQualified()) ?
+                    new Governing(node, epochOf(node, !verifyOnly)) : governing;
+            if (!pointsAt(node, acl.acl, acl.epoch)) {
+                wrong++;
+                if (!verifyOnly) {
+                    try {
+                        point(node, acl.acl, acl.epoch);
+                        repaired++;
+                        if (++unsaved >= SAVE_EVERY) {
+                            session.commit();
+                            unsaved = 0;
+                        }
+                    } catch (final ConstraintViolationException e) {
+                        LOGGER.debug("Cannot point {} at its ACL: {}", path, e.getMessage());
+                        failed++;
+                    }
+                }
+            }
+            for (final NodeIterator children = node.getNodes(); children.hasNext();) {
+                visit(session, children.nextNode(), acl);
+            }
+            if (!verifyOnly && acl.acl == node && node.hasProperty(pointersPending.getQualified())) {
+                node.getProperty(pointersPending.getQualified()).remove();
+                cleared.add(path);
+            }
+        }
+    }
+
+    /**
+     * The ACL that governs a node, with the epoch it had when it was found to
+     */
+    private static final class Governing {
+
+        private static final Governing NONE = new Governing(null, null);
+
+        private final Node acl;
+
+        private final String epoch;
+
+        private Governing(final Node acl, final String epoch) {
+            this.acl = acl;
+            this.epoch = epoch;
+        }
+
+        /**
+         * Find the ACL that governs a node, reading its epoch before confirming that it does.
+         *
+         * @param node a node
+         * @param create whether to give the ACL an epoch if it has none yet
+         */
+        private static Governing of(final Node node, final boolean create) throws RepositoryException {
+            for (Node acl = findGoverning(node);;) {
+                if (acl == null) {
+                    return NONE;
+                }
+                final String epoch = epochOf(acl, create);
+                final Node confirmed = findGoverning(node);
+                if (confirmed != null && confirmed.getPath().equals(acl.getPath())) {
+                    return new Governing(acl, epoch);
+                }
+                acl = confirmed;
+            }
+        }
+    }
+}
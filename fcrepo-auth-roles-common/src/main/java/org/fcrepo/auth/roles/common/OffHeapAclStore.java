@@ -0,0 +1,385 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.Collections.unmodifiableMap;
+import static java.util.Collections.unmodifiableSet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.StampedLock;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Keeps the role assignments of many ACLs outside the Java heap, so that millions of them add little to garbage
+ * collection. Principal and role names are interned to int IDs once; each ACL is then a record in a direct
+ * {@link ByteBuffer} holding its path and, for each principal, its ID and the IDs of its roles:
+ *
+ * <pre>
+ * int pathLength, char[pathLength] path, int principalCount,
+ *     { int principalId, int roleCount, int[roleCount] roleIds } * principalCount
+ * </pre>
+ *
+ * Records are found through an open-addressing hash table, itself a direct buffer of (long pathHash, int offset)
+ * slots. Finding whether a path, or a prefix of one, has an ACL hashes and compares its characters in place and
+ * allocates nothing. Replaced records are reclaimed by compacting the data buffer when it would otherwise grow. The
+ * most recently decoded ACLs are kept on the heap in a small hot tier.
+ * <p>
+ * One thread may write while any number read. Records are limited to 2GB in all.
+ * </p>
+ */
+public class OffHeapAclStore {
+
+    private static final int SLOT_BYTES = 12;
+
+    private static final int EMPTY = -1;
+
+    private static final int DELETED = -2;
+
+    private final StampedLock lock = new StampedLock();
+
+    private final Map<String, Integer> symbolIds = new HashMap<>();
+
+    private final List<String> symbols = new ArrayList<>();
+
+    private final Cache<String, Map<String, Set<String>>> hot;
+
+    private ByteBuffer data;
+
+    private int dataEnd;
+
+    private long garbage;
+
+    private ByteBuffer table;
+
+    private int mask;
+
+    private int used;
+
+    private volatile int size;
+
+    /**
+     * @param initialBytes the initial size of the data buffer
+     * @param hotTierSize the number of decoded ACLs to keep on the heap
+     */
+    public OffHeapAclStore(final int initialBytes, final int hotTierSize) {
+        if (initialBytes < 1) {
+            throw new IllegalArgumentException("Initial off-heap size must be positive: " + initialBytes);
+        }
+        this.data = ByteBuffer.allocateDirect(initialBytes);
+        this.table = emptyTable(1024);
+        this.mask = 1023;
+        this.hot = CacheBuilder.newBuilder().maximumSize(Math.max(0, hotTierSize)).build();
+    }
+
+    /**
+     * Store the role assignments of an ACL, replacing any stored for the same path.
+     *
+     * @param path the path of the ACL-bearing node
+     * @param acl the roles of each principal
+     */
+    public void put(final String path, final Map<String, ? extends Collection<String>> acl) {
+        final long stamp = lock.writeLock();
+        try {
+            int length = 4 + 2 * path.length() + 4;
+            for (final Collection<String> roles : acl.values()) {
+                length += 8 + 4 * roles.size();
+            }
+            ensureData(length);
+            final int offset = dataEnd;
+            data.putInt(offset, path.length());
+            int p = offset + 4;
+            for (int i = 0; i < path.length(); i++, p += 2) {
+                data.putChar(p, path.charAt(i));
+            }
+            data.putInt(p, acl.size());
+            p += 4;
+            for (final Map.Entry<String, ? extends Collection<String>> entry : acl.entrySet()) {
+                data.putInt(p, intern(entry.getKey()));
+                data.putInt(p + 4, entry.getValue().size());
+                p += 8;
+                for (final String role : entry.getValue()) {
+                    data.putInt(p, intern(role));
+                    p += 4;
+                }
+            }
+            dataEnd = p;
+
+            final long hash = hash(path, path.length());
+            final int slot = findSlot(path, path.length(), hash);
+            if (slot >= 0) {
+                garbage += recordLength(table.getInt(slot * SLOT_BYTES + 8));
+                table.putInt(slot * SLOT_BYTES + 8, offset);
+            } else {
+                insert(hash, offset);
+                size++;
+            }
+            hot.invalidate(path);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @param path the path of an ACL-bearing node
+     * @return false if no ACL was stored for the path
+     */
+    public boolean remove(final String path) {
+        final long stamp = lock.writeLock();
+        try {
+            final int slot = findSlot(path, path.length(), hash(path, path.length()));
+            if (slot < 0) {
+                return false;
+            }
+            garbage += recordLength(table.getInt(slot * SLOT_BYTES + 8));
+            table.putInt(slot * SLOT_BYTES + 8, DELETED);
+            size--;
+            hot.invalidate(path);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Find whether a path, or the prefix of one, has an ACL stored, without allocating.
+     *
+     * @param path a path
+     * @param length the number of leading characters of the path to look up
+     * @return true if an ACL is stored for those characters
+     */
+    public boolean contains(final CharSequence path, final int length) {
+        final long stamp = lock.readLock();
+        try {
+            return findSlot(path, length, hash(path, length)) >= 0;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @param path the path of an ACL-bearing node
+     * @return the roles of each principal, unmodifiable, or null if no ACL is stored for the path
+     */
+    public Map<String, Set<String>> get(final String path) {
+        final Map<String, Set<String>> cached = hot.getIfPresent(path);
+        if (cached != null) {
+            return cached;
+        }
+        final long stamp = lock.readLock();
+        try {
+            final int slot = findSlot(path, path.length(), hash(path, path.length()));
+            if (slot < 0) {
+                return null;
+            }
+            final Map<String, Set<String>> acl = decode(table.getInt(slot * SLOT_BYTES + 8));
+            // still under the read lock, so that a newer record cannot be stored and invalidated meanwhile
+            hot.put(path, acl);
+            return acl;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return the number of ACLs stored
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the off-heap memory reserved, in bytes
+     */
+    public long getReservedBytes() {
+        return (long) data.capacity() + table.capacity();
+    }
+
+    /**
+     * @return the bytes of the data buffer taken by current records
+     */
+    public long getLiveBytes() {
+        return dataEnd - garbage;
+    }
+
+    /**
+     * @return the number of distinct principal and role names interned
+     */
+    public int getSymbolCount() {
+        return symbols.size();
+    }
+
+    private Map<String, Set<String>> decode(final int offset) {
+        int p = offset + 4 + 2 * data.getInt(offset);
+        final int principals = data.getInt(p);
+        p += 4;
+        final Map<String, Set<String>> acl = new TreeMap<>();
+        for (int i = 0; i < principals; i++) {
+            final String principal = symbols.get(data.getInt(p));
+            final int roleCount = data.getInt(p + 4);
+            p += 8;
+            final Set<String> roles = new TreeSet<>();
+            for (int r = 0; r < roleCount; r++, p += 4) {
+                roles.add(symbols.get(data.getInt(p)));
+            }
+            acl.put(principal, unmodifiableSet(roles));
+        }
+        return unmodifiableMap(acl);
+    }
+
+    private int recordLength(final int offset) {
+        int p = offset + 4 + 2 * data.getInt(offset);
+        final int principals = data.getInt(p);
+        p += 4;
+        for (int i = 0; i < principals; i++) {
+            p += 8 + 4 * data.getInt(p + 4);
+        }
+        return p - offset;
+    }
+
+    private int intern(final String symbol) {
+        final Integer id = symbolIds.get(symbol);
+        if (id != null) {
+            return id;
+        }
+        symbols.add(symbol);
+        symbolIds.put(symbol, symbols.size() - 1);
+        return symbols.size() - 1;
+    }
+
+    /**
+     * @return the slot of the record for the path, or -1 if there is none
+     */
+    private int findSlot(final CharSequence path, final int length, final long hash) {
+        for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+            final int offset = table.getInt(slot * SLOT_BYTES + 8);
+            if (offset == EMPTY) {
+                return -1;
+            }
+            if (offset != DELETED && table.getLong(slot * SLOT_BYTES) == hash && pathEquals(offset, path, length)) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean pathEquals(final int offset, final CharSequence path, final int length) {
+        if (data.getInt(offset) != length) {
+            return false;
+        }
+        for (int i = 0, p = offset + 4; i < length; i++, p += 2) {
+            if (data.getChar(p) != path.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insert(final long hash, final int offset) {
+        if ((used + 1) * 2 > mask + 1) {
+            rehash(size * 4 > mask + 1 ? (mask + 1) * 2 : mask + 1);
+        }
+        int slot = (int) hash & mask;
+        while (table.getInt(slot * SLOT_BYTES + 8) >= 0) {
+            slot = (slot + 1) & mask;
+        }
+        if (table.getInt(slot * SLOT_BYTES + 8) == EMPTY) {
+            used++;
+        }
+        table.putLong(slot * SLOT_BYTES, hash);
+        table.putInt(slot * SLOT_BYTES + 8, offset);
+    }
+
+    /**
+     * Rebuild the table with the given number of slots, dropping deleted slots.
+     */
+    private void rehash(final int slots) {
+        final ByteBuffer old = table;
+        table = emptyTable(slots);
+        mask = slots - 1;
+        used = 0;
+        for (int slot = 0; slot < old.capacity() / SLOT_BYTES; slot++) {
+            final int offset = old.getInt(slot * SLOT_BYTES + 8);
+            if (offset >= 0) {
+                insert(old.getLong(slot * SLOT_BYTES), offset);
+            }
+        }
+    }
+
+    /**
+     * Make room for a record, compacting the data buffer if at least half of it is replaced records, and growing
+     * it otherwise.
+     */
+    private void ensureData(final int length) {
+        if ((long) dataEnd + length <= data.capacity()) {
+            return;
+        }
+        final long live = dataEnd - garbage;
+        long capacity = data.capacity();
+        while (live + length > capacity / 2) {
+            capacity *= 2;
+        }
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Off-heap ACL store is full");
+        }
+        final ByteBuffer compacted = ByteBuffer.allocateDirect((int) capacity);
+        int end = 0;
+        for (int slot = 0; slot <= mask; slot++) {
+            final int offset = table.getInt(slot * SLOT_BYTES + 8);
+            if (offset >= 0) {
+                final int recordLength = recordLength(offset);
+                final ByteBuffer record = data.duplicate();
+                record.limit(offset + recordLength).position(offset);
+                compacted.position(end);
+                compacted.put(record);
+                table.putInt(slot * SLOT_BYTES + 8, end);
+                end += recordLength;
+            }
+        }
+        data = compacted;
+        dataEnd = end;
+        garbage = 0;
+    }
+
+    private static ByteBuffer emptyTable(final int slots) {
+        final ByteBuffer table = ByteBuffer.allocateDirect(slots * SLOT_BYTES);
+        for (int slot = 0; slot < slots; slot++) {
+            table.putInt(slot * SLOT_BYTES + 8, EMPTY);
+        }
+        return table;
+    }
+
+    /**
+     * 64-bit FNV-1a over the characters, computed in place.
+     */
+    private static long hash(final CharSequence path, final int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ path.charAt(i)) * 0x100000001b3L;
+        }
+        return hash ^ (hash >>> 32);
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.modeshape.jcr.value.Path;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Per-path state kept in a trie of path segments, so that a million paths under a few long common prefixes store
+ * each prefix once rather than a million times. Segment names are interned across all tries, so a name that recurs
+ * at many places, such as {@code authz:rbacl}, is held once. A node costs its segment reference, its value and its
+ * children: none, a small array, or a hash map once it has many.
+ * <p>
+ * Finding the value at a path, its nearest ancestor with a value, and invalidating a subtree take time in proportion
+ * to the depth of the path; iterating over a subtree, in proportion to its size. Keys are the segments of a
+ * ModeShape {@link Path}, or of a JCR path string split on '/'. The two forms render namespaced names differently,
+ * so a trie should be used with one of them only. Safe for concurrent use.
+ * </p>
+ *
+ * @param <V> the type of the state kept per path
+ */
+public class PathTrie<V> {
+
+    private static final Interner<String> SEGMENTS = Interners.newWeakInterner();
+
+    private static final int ARRAY_CHILDREN = 8;
+
+    private final StampedLock lock = new StampedLock();
+
+    private final TrieNode<V> root = new TrieNode<>(null);
+
+    /**
+     * @param path a JCR path
+     * @param value the value to keep at the path
+     * @return the value previously kept there, or null
+     */
+    public V put(final String path, final V value) {
+        return put(segments(path), value);
+    }
+
+    /**
+     * @param path a path
+     * @param value the value to keep at the path
+     * @return the value previously kept there, or null
+     */
+    public V put(final Path path, final V value) {
+        return put(segments(path), value);
+    }
+
+    private V put(final String[] segments, final V value) {
+        final long stamp = lock.writeLock();
+        try {
+            TrieNode<V> node = root;
+            for (final String segment : segments) {
+                node = node.childOrCreate(segment);
+            }
+            final V previous = node.value;
+            node.value = value;
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @param path a JCR path
+     * @return the value kept at the path, or null
+     */
+    public V get(final String path) {
+        final long stamp = lock.readLock();
+        try {
+            TrieNode<V> node = root;
+            for (int start = 1, end; node != null && start < path.length(); start = end + 1) {
+                end = segmentEnd(path, start);
+                node = node.child(path, start, end);
+            }
+            return node == null ? null : node.value;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @param path a path
+     * @return the value kept at the path, or null
+     */
+    public V get(final Path path) {
+        final long stamp = lock.readLock();
+        try {
+            TrieNode<V> node = root;
+            for (int i = 0; node != null && i < path.size(); i++) {
+                node = node.child(segment(path.getSegment(i)));
+            }
+            return node == null ? null : node.value;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Find the length of the longest prefix of a JCR path, the path itself included, that has a value. Allocates
+     * nothing.
+     *
+     * @param path a JCR path
+     * @return the number of leading characters of the path that make up the prefix, 1 for the root, or -1 if no
+     *         prefix has a value
+     */
+    public int longestPrefixLength(final String path) {
+        final long stamp = lock.readLock();
+        try {
+            TrieNode<V> node = root;
+            int found = root.value != null ? 1 : -1;
+            for (int start = 1, end; start < path.length(); start = end + 1) {
+                end = segmentEnd(path, start);
+                node = node.child(path, start, end);
+                if (node == null) {
+                    break;
+                }
+                if (node.value != null) {
+                    found = end;
+                }
+            }
+            return found;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @param path a path
+     * @return the value kept at the path or, failing that, at its nearest ancestor that has one; null if none has
+     */
+    public V getNearest(final Path path) {
+        final long stamp = lock.readLock();
+        try {
+            TrieNode<V> node = root;
+            V found = root.value;
+            for (int i = 0; i < path.size(); i++) {
+                node = node.child(segment(path.getSegment(i)));
+                if (node == null) {
+                    break;
+                }
+                if (node.value != null) {
+                    found = node.value;
+                }
+            }
+            return found;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @param path a JCR path
+     * @return the value that was kept at the path, or null
+     */
+    public V remove(final String path) {
+        return remove(segments(path));
+    }
+
+    /**
+     * @param path a path
+     * @return the value that was kept at the path, or null
+     */
+    public V remove(final Path path) {
+        return remove(segments(path));
+    }
+
+    private V remove(final String[] segments) {
+        final long stamp = lock.writeLock();
+        try {
+            final List<TrieNode<V>> trail = new ArrayList<>(segments.length + 1);
+            TrieNode<V> node = root;
+            trail.add(node);
+            for (final String segment : segments) {
+                node = node.child(segment);
+                if (node == null) {
+                    return null;
+                }
+                trail.add(node);
+            }
+            final V previous = node.value;
+            node.value = null;
+            prune(trail);
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Drop the values kept at a path and at all its descendants.
+     *
+     * @param path a JCR path
+     */
+    public void removeSubtree(final String path) {
+        removeSubtree(segments(path));
+    }
+
+    /**
+     * Drop the values kept at a path and at all its descendants.
+     *
+     * @param path a path
+     */
+    public void removeSubtree(final Path path) {
+        removeSubtree(segments(path));
+    }
+
+    private void removeSubtree(final String[] segments) {
+        final long stamp = lock.writeLock();
+        try {
+            if (segments.length == 0) {
+                root.value = null;
+                root.children = null;
+                return;
+            }
+            final List<TrieNode<V>> trail = new ArrayList<>(segments.length);
+            TrieNode<V> node = root;
+            trail.add(node);
+            for (int i = 0; i < segments.length - 1; i++) {
+                node = node.child(segments[i]);
+                if (node == null) {
+                    return;
+                }
+                trail.add(node);
+            }
+            node.removeChild(segments[segments.length - 1]);
+            prune(trail);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Visit the values kept at a JCR path and its descendants, each with its path, parents before children.
+     *
+     * @param path a JCR path
+     * @param visitor called with each path and value
+     */
+    public void forEachInSubtree(final String path, final BiConsumer<String, V> visitor) {
+        final List<String> paths = new ArrayList<>();
+        final List<V> values = new ArrayList<>();
+        final long stamp = lock.readLock();
+        try {
+            TrieNode<V> node = root;
+            for (int start = 1, end; node != null && start < path.length(); start = end + 1) {
+                end = segmentEnd(path, start);
+                node = node.child(path, start, end);
+            }
+            if (node != null) {
+                final String base = path.length() > 1 && path.endsWith("/") ? path.substring(0, path.length() - 1) :
+                        path;
+                collect(node, new StringBuilder("/".equals(base) ? "" : base), paths, values);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        // visit outside the lock, so that the visitor may change the trie
+        for (int i = 0; i < paths.size(); i++) {
+            visitor.accept(paths.get(i), values.get(i));
+        }
+    }
+
+    /**
+     * @return true if no value is kept at any path
+     */
+    public boolean isEmpty() {
+        final long stamp = lock.readLock();
+        try {
+            return root.value == null && root.childCount() == 0;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private static <V> void collect(final TrieNode<V> node, final StringBuilder path, final List<String> paths,
+            final List<V> values) {
+        if (node.value != null) {
+            paths.add(path.length() == 0 ? "/" : path.toString());
+            values.add(node.value);
+        }
+        final int length = path.length();
+        node.forEachChild(child -> {
+            path.append('/').append(child.segment);
+            collect(child, path, paths, values);
+            path.setLength(length);
+        });
+    }
+
+    /**
+     * Remove the nodes at the end of a trail that no longer hold a value or children.
+     */
+    private static <V> void prune(final List<TrieNode<V>> trail) {
+        for (int i = trail.size() - 1; i > 0; i--) {
+            final TrieNode<V> node = trail.get(i);
+            if (node.value != null || node.childCount() > 0) {
+                return;
+            }
+            trail.get(i - 1).removeChild(node.segment);
+        }
+    }
+
+    private static String[] segments(final String path) {
+        final List<String> segments = new ArrayList<>();
+        for (int start = 1, end; start < path.length(); start = end + 1) {
+            end = segmentEnd(path, start);
+            if (end > start) {
+                segments.add(SEGMENTS.intern(path.substring(start, end)));
+            }
+        }
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    private static String[] segments(final Path path) {
+        final String[] segments = new String[path.size()];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = segment(path.getSegment(i));
+        }
+        return segments;
+    }
+
+    private static String segment(final Path.Segment segment) {
+        return SEGMENTS.intern(segment.getString());
+    }
+
+    private static int segmentEnd(final String path, final int start) {
+        final int end = path.indexOf('/', start);
+        return end < 0 ? path.length() : end;
+    }
+
+    /**
+     * A node of the trie: its segment, its value if any, and its children.
+     */
+    private static final class TrieNode<V> {
+
+        private final String segment;
+
+        private V value;
+
+        // null, an array of up to ARRAY_CHILDREN nodes with nulls at the end, or a map of segment to node
+        private Object children;
+
+        private TrieNode(final String segment) {
+            this.segment = segment;
+        }
+
+        TrieNode<V> child(final String name) {
+            if (children instanceof TrieNode[]) {
+                for (final TrieNode<V> child : array()) {
+                    if (child == null) {
+                        break;
+                    }
+                    // interned names compare by identity; the equals is for names from elsewhere
+                    if (child.segment == name || child.segment.equals(name)) {
+                        return child;
+                    }
+                }
+                return null;
+            }
+            return children == null ? null : map().get(name);
+        }
+
+        /**
+         * Find the child named by characters of a path, without allocating while children are held in an array.
+         */
+        TrieNode<V> child(final String path, final int start, final int end) {
+            if (children instanceof TrieNode[]) {
+                for (final TrieNode<V> child : array()) {
+                    if (child == null) {
+                        break;
+                    }
+                    if (child.segment.length() == end - start && path.startsWith(child.segment, start)) {
+                        return child;
+                    }
+                }
+                return null;
+            }
+            return children == null ? null : map().get(path.substring(start, end));
+        }
+
+        TrieNode<V> childOrCreate(final String name) {
+            final TrieNode<V> existing = child(name);
+            if (existing != null) {
+                return existing;
+            }
+            final TrieNode<V> child = new TrieNode<>(name);
+            if (children == null) {
+                final TrieNode<?>[] array = new TrieNode<?>[2];
+                array[0] = child;
+                children = array;
+            } else if (children instanceof TrieNode[]) {
+                final TrieNode<V>[] array = array();
+                final int count = childCount();
+                if (count < array.length) {
+                    array[count] = child;
+                } else if (count < ARRAY_CHILDREN) {
+                    final TrieNode<V>[] grown = Arrays.copyOf(array, Math.min(ARRAY_CHILDREN, count * 2));
+                    grown[count] = child;
+                    children = grown;
+                } else {
+                    final Map<String, TrieNode<V>> map = new HashMap<>();
+                    for (final TrieNode<V> c : array) {
+                        map.put(c.segment, c);
+                    }
+                    map.put(name, child);
+                    children = map;
+                }
+            } else {
+                map().put(name, child);
+            }
+            return child;
+        }
+
+        void removeChild(final String name) {
+            if (children instanceof TrieNode[]) {
+                final TrieNode<V>[] array = array();
+                final int count = childCount();
+                for (int i = 0; i < count; i++) {
+                    if (array[i].segment.equals(name)) {
+                        array[i] = array[count - 1];
+                        array[count - 1] = null;
+                        if (count == 1) {
+                            children = null;
+                        }
+                        return;
+                    }
+                }
+            } else if (children != null) {
+                map().remove(name);
+                if (map().isEmpty()) {
+                    children = null;
+                }
+            }
+        }
+
+        int childCount() {
+            if (children instanceof TrieNode[]) {
+                final TrieNode<V>[] array = array();
+                int count = 0;
+                while (count < array.length && array[count] != null) {
+                    count++;
+                }
+                return count;
+            }
+            return children == null ? 0 : map().size();
+        }
+
+        void forEachChild(final Consumer<TrieNode<V>> action) {
+            if (children instanceof TrieNode[]) {
+                for (final TrieNode<V> child : array()) {
+                    if (child == null) {
+                        break;
+                    }
+                    action.accept(child);
+                }
+            } else if (children != null) {
+                map().values().forEach(action);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private TrieNode<V>[] array() {
+            return (TrieNode<V>[]) children;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Map<String, TrieNode<V>> map() {
+            return (Map<String, TrieNode<V>>) children;
+        }
+    }
+}
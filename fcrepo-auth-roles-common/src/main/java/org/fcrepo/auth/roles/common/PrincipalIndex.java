@@ -0,0 +1,535 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.Collections.unmodifiableSet;
+import static javax.jcr.observation.Event.NODE_ADDED;
+import static javax.jcr.observation.Event.NODE_MOVED;
+import static javax.jcr.observation.Event.NODE_REMOVED;
+import static javax.jcr.observation.Event.PROPERTY_ADDED;
+import static javax.jcr.observation.Event.PROPERTY_CHANGED;
+import static javax.jcr.observation.Event.PROPERTY_REMOVED;
+import static org.fcrepo.auth.roles.common.Constants.registerPrefixes;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.rbacl;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.rbaclAssignable;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.template;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.templates;
+import static org.fcrepo.kernel.modeshape.FedoraSessionImpl.getJcrSession;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+import javax.jcr.query.Query;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.FedoraSession;
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Reverse index from each principal to the ACLs that assign it roles, so that questions such as "where does this
+ * group hold any role?" are answered from memory rather than by reading every ACL in the repository. It is built by
+ * a query for {@code authz:rbaclAssignable} nodes when the repository starts, and then kept up to date by an
+ * observation listener: every committed change to an ACL, whether made by postRoles, PATCH or deleteRoles, through
+ * a bulk import or directly in JCR, causes that ACL to be read again. Deleting or moving a node updates the ACLs
+ * beneath it, and changing an ACL template updates every node that refers to it.
+ * <p>
+ * All updates are applied in order on a single background thread, so the index lags commits by a few milliseconds
+ * and is not {@link #isReady() ready} until the initial scan is done. Disabled unless the system property
+ * {@code fcrepo.auth.roles.principalIndex.enabled} is true; answered at {@code /fcr:authz/principals/{name}}.
+ * </p>
+ */
+@Component
+public class PrincipalIndex {
+
+    private static final Logger LOGGER = getLogger(PrincipalIndex.class);
+
+    private static final String ACL_SEGMENT = "/" + rbacl.getQualified();
+
+    private static final String TEMPLATES_PREFIX = "/" + templates.getQualified() + "/";
+
+    private static final String TEMPLATE_SUFFIX = "/" + template.getQualified();
+
+    private static final int EVENT_TYPES =
+            NODE_ADDED | NODE_REMOVED | NODE_MOVED | PROPERTY_ADDED | PROPERTY_CHANGED | PROPERTY_REMOVED;
+
+    // a node's first mixin adds jcr:mixinTypes, and removing its last one removes it
+    private static final int MIXIN_EVENT_TYPES = PROPERTY_ADDED | PROPERTY_CHANGED | PROPERTY_REMOVED;
+
+    @Inject
+    private final SessionFactory sessionFactory = null;
+
+    @Inject
+    private final AccessRolesProvider accessRolesProvider = null;
+
+    private boolean enabled;
+
+    // marks an indexed path whose assignments are kept off the heap
+    private static final Map<String, Set<String>> STORED_OFF_HEAP = unmodifiableMap(new TreeMap<>());
+
+    // path of each ACL-bearing node -> principal -> roles, or STORED_OFF_HEAP
+    private final PathTrie<Map<String, Set<String>>> aclTree = new PathTrie<>();
+
+    private final AtomicInteger aclCount = new AtomicInteger();
+
+    private OffHeapAclStore offHeap;
+
+    // principal -> path of each ACL-bearing node that assigns it roles
+    private final ConcurrentHashMap<String, ConcurrentSkipListSet<String>> byPrincipal = new ConcurrentHashMap<>();
+
+    private volatile boolean ready;
+
+    private ExecutorService updater;
+
+    private FedoraSession listenerSession;
+
+    private EventListener listener;
+
+    /**
+     * Configure from system properties.
+     */
+    public PrincipalIndex() {
+        setEnabled(Boolean.getBoolean("fcrepo.auth.roles.principalIndex.enabled"));
+        setOffHeap(Boolean.getBoolean("fcrepo.auth.roles.principalIndex.offHeap"));
+    }
+
+    /**
+     * Keep the assignments of every indexed ACL in an {@link OffHeapAclStore} rather than on the heap, for very large
+     * repositories. The store starts at {@code fcrepo.auth.roles.principalIndex.offHeap.initialBytes}, 16MB by
+     * default, and keeps the {@code fcrepo.auth.roles.principalIndex.offHeap.hotTierSize} most recently read ACLs on
+     * the heap, 1024 by default.
+     *
+     * @param offHeap whether to keep assignments off the heap; must be set before the index is started
+     */
+    public void setOffHeap(final boolean offHeap) {
+        if (updater != null) {
+            throw new IllegalStateException("The principal index is already started");
+        }
+        this.offHeap = offHeap ? new OffHeapAclStore(
+                Integer.getInteger("fcrepo.auth.roles.principalIndex.offHeap.initialBytes", 16 * 1024 * 1024),
+                Integer.getInteger("fcrepo.auth.roles.principalIndex.offHeap.hotTierSize", 1024)) : null;
+    }
+
+    /**
+     * @return the store holding assignments off the heap, or null if they are kept on the heap
+     */
+    public OffHeapAclStore getOffHeapStore() {
+        return offHeap;
+    }
+
+    /**
+     * @param enabled whether to build and maintain the index
+     */
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return true if the index is being maintained
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start listening for ACL changes and build the index in the background.
+     *
+     * @throws RepositoryException if the listener could not be registered
+     */
+    @PostConstruct
+    public void start() throws RepositoryException {
+        if (!enabled) {
+            return;
+        }
+        updater = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("fcrepo-authz-principal-index").build());
+        // listen before scanning, so that no change made during the scan is missed; a change read twice is harmless
+        listenerSession = sessionFactory.getInternalSession();
+        final Session jcrSession = getJcrSession(listenerSession);
+        registerPrefixes(jcrSession);
+        listener = this::onEvents;
+        jcrSession.getWorkspace().getObservationManager()
+                .addEventListener(listener, EVENT_TYPES, "/", true, null, null, false);
+        updater.execute(this::rebuild);
+    }
+
+    /**
+     * Stop listening and abandon pending updates.
+     */
+    @PreDestroy
+    public void stop() {
+        if (listenerSession == null) {
+            return;
+        }
+        try {
+            final ObservationManager observation =
+                    getJcrSession(listenerSession).getWorkspace().getObservationManager();
+            observation.removeEventListener(listener);
+        } catch (final RepositoryException e) {
+            LOGGER.warn("Unable to remove the principal index listener: {}", e.getMessage());
+        } finally {
+            listenerSession.expire();
+            listenerSession = null;
+            updater.shutdownNow();
+        }
+    }
+
+    /**
+     * @return true once the initial scan of the repository is complete
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return the number of ACL-bearing nodes indexed
+     */
+    public int size() {
+        return aclCount.get();
+    }
+
+    /**
+     * @param principal a principal name
+     * @return the path of each ACL-bearing node that assigns the principal roles, in path order, and the roles it
+     *         assigns there; empty if there are none
+     */
+    public Map<String, Set<String>> getAcls(final String principal) {
+        final Set<String> aclPaths = byPrincipal.get(principal);
+        if (aclPaths == null) {
+            return emptyMap();
+        }
+        final Map<String, Set<String>> acls = new TreeMap<>();
+        for (final String path : aclPaths) {
+            final Map<String, Set<String>> assignments = getAssignments(path);
+            final Set<String> roles = assignments == null ? null : assignments.get(principal);
+            if (roles != null) {
+                acls.put(path, roles);
+            }
+        }
+        return unmodifiableMap(acls);
+    }
+
+    /**
+     * @param path the path of an ACL-bearing node
+     * @return the roles of each principal in its ACL, or null if it has none
+     */
+    public Map<String, Set<String>> getAssignments(final String path) {
+        return offHeap != null ? offHeap.get(path) : aclTree.get(path);
+    }
+
+    /**
+     * Find the ACL that governs a node, as {@link AccessRolesProvider#getRoles(Node, boolean)} would when asked for
+     * effective roles, but from the index: the node itself or its nearest ancestor that has an ACL. Takes time in
+     * proportion to the depth of the path, and allocates only the path found.
+     *
+     * @param path the JCR path of a node, which need not exist
+     * @return the path of the governing ACL-bearing node, or null if none governs it and the default roles apply
+     */
+    public String findGoverningAcl(final String path) {
+        final int length = aclTree.longestPrefixLength(path);
+        if (length < 0) {
+            return null;
+        }
+        return length == path.length() ? path : path.substring(0, length);
+    }
+
+    /**
+     * @return the number of principals that hold a role anywhere
+     */
+    public int getPrincipalCount() {
+        return byPrincipal.size();
+    }
+
+    /**
+     * @return the names of all principals that hold a role anywhere, in order
+     */
+    public Set<String> getPrincipals() {
+        return unmodifiableSet(new TreeSet<>(byPrincipal.keySet()));
+    }
+
+    /**
+     * Visit every indexed ACL, in path order.
+     *
+     * @param visitor called with the path of each ACL-bearing node and the roles of each principal there
+     */
+    public void forEachAcl(final BiConsumer<String, Map<String, Set<String>>> visitor) {
+        aclTree.forEachInSubtree("/", (path, assignments) ->
+                visitor.accept(path, assignments == STORED_OFF_HEAP ? offHeap.get(path) : assignments));
+    }
+
+    /**
+     * Queue an ACL-bearing node to be read again, in order with the changes being applied, for example because its
+     * entry was found to differ from the repository.
+     *
+     * @param path the path of the node
+     */
+    public void repair(final String path) {
+        if (updater == null) {
+            return;
+        }
+        try {
+            updater.execute(() -> refresh(emptySet(), emptySet(), singleton(path), emptySet()));
+        } catch (final RejectedExecutionException e) {
+            LOGGER.debug("Principal index is stopped, not repairing {}", path);
+        }
+    }
+
+    /**
+     * Collect the ACLs touched by a batch of committed changes, and queue them to be read again.
+     */
+    private void onEvents(final EventIterator events) {
+        final Set<String> removed = new LinkedHashSet<>();
+        final Set<String> moved = new LinkedHashSet<>();
+        final Set<String> changed = new LinkedHashSet<>();
+        final Set<String> templatesChanged = new LinkedHashSet<>();
+        while (events.hasNext()) {
+            final Event event = events.nextEvent();
+            try {
+                final String path = event.getPath();
+                final String owner = aclOwner(path);
+                if (owner != null) {
+                    changed.add(owner);
+                } else if (path.startsWith(TEMPLATES_PREFIX)) {
+                    final int end = path.indexOf('/', TEMPLATES_PREFIX.length());
+                    templatesChanged.add(path.substring(TEMPLATES_PREFIX.length(), end < 0 ? path.length() : end));
+                } else if (path.endsWith(TEMPLATE_SUFFIX)) {
+                    changed.add(parent(path));
+                } else if (event.getType() == NODE_REMOVED) {
+                    removed.add(path);
+                } else if (event.getType() == NODE_MOVED) {
+                    moved.add(path);
+                } else if ((event.getType() & MIXIN_EVENT_TYPES) != 0 && path.endsWith("/jcr:mixinTypes")) {
+                    changed.add(parent(path));
+                }
+            } catch (final RepositoryException e) {
+                LOGGER.warn("Unable to read an observed event: {}", e.getMessage());
+            }
+        }
+        if (removed.isEmpty() && moved.isEmpty() && changed.isEmpty() && templatesChanged.isEmpty()) {
+            return;
+        }
+        try {
+            updater.execute(() -> refresh(removed, moved, changed, templatesChanged));
+        } catch (final RejectedExecutionException e) {
+            LOGGER.debug("Principal index is stopped, ignoring changes to {}", changed);
+        }
+    }
+
+    /**
+     * Apply a batch of changes: drop the subtrees of removed nodes, then read again the ACLs beneath moved nodes, the
+     * changed ACLs and those of the nodes that refer to changed templates.
+     */
+    private void refresh(final Set<String> removed, final Set<String> moved, final Set<String> changed,
+            final Set<String> templatesChanged) {
+        removed.forEach(this::removeSubtree);
+        FedoraSession session = null;
+        try {
+            session = sessionFactory.getInternalSession();
+            final Session jcrSession = getJcrSession(session);
+            registerPrefixes(jcrSession);
+            for (final String path : moved) {
+                scan(jcrSession, path);
+            }
+            for (final String path : changed) {
+                update(path, jcrSession.nodeExists(path) ? read(jcrSession.getNode(path)) : null);
+            }
+            for (final String name : templatesChanged) {
+                final Query query = jcrSession.getWorkspace().getQueryManager().createQuery(
+                        "SELECT * FROM [" + rbaclAssignable.getQualified() + "] AS n WHERE n.[" +
+                        template.getQualified() + "] = $name", Query.JCR_SQL2);
+                query.bindValue("name", jcrSession.getValueFactory().createValue(name));
+                for (final NodeIterator nodes = query.execute().getNodes(); nodes.hasNext();) {
+                    final Node node = nodes.nextNode();
+                    update(node.getPath(), read(node));
+                }
+            }
+        } catch (final RepositoryException | RuntimeException e) {
+            LOGGER.error("Unable to update the principal index for {}: {}", changed, e.getMessage());
+        } finally {
+            if (session != null) {
+                session.expire();
+            }
+        }
+    }
+
+    /**
+     * Index every ACL in the repository.
+     */
+    private void rebuild() {
+        FedoraSession session = null;
+        try {
+            session = sessionFactory.getInternalSession();
+            final Session jcrSession = getJcrSession(session);
+            registerPrefixes(jcrSession);
+            final int indexed = scan(jcrSession, "/");
+            ready = true;
+            LOGGER.info("Indexed the principals of {} ACLs", indexed);
+        } catch (final RepositoryException | RuntimeException e) {
+            LOGGER.error("Unable to build the principal index: {}", e.getMessage(), e);
+        } finally {
+            if (session != null) {
+                session.expire();
+            }
+        }
+    }
+
+    /**
+     * Index the ACLs of a node and its descendants.
+     *
+     * @return the number of ACL-bearing nodes found
+     */
+    private int scan(final Session session, final String path) throws RepositoryException {
+        if (!session.nodeExists(path)) {
+            return 0;
+        }
+        final Node top = session.getNode(path);
+        int indexed = 0;
+        if (top.isNodeType(rbaclAssignable.getQualified())) {
+            update(path, read(top));
+            indexed++;
+        }
+        final String descendants = "SELECT * FROM [" + rbaclAssignable.getQualified() + "] AS n" +
+                (top.getDepth() == 0 ? "" : " WHERE ISDESCENDANTNODE(n, [" + path + "])");
+        for (final NodeIterator nodes = session.getWorkspace().getQueryManager()
+                .createQuery(descendants, Query.JCR_SQL2).execute().getNodes(); nodes.hasNext();) {
+            final Node node = nodes.nextNode();
+            update(node.getPath(), read(node));
+            indexed++;
+        }
+        return indexed;
+    }
+
+    /**
+     * @return the roles of each principal in the node's own ACL, or null if it has none
+     */
+    private Map<String, Set<String>> read(final Node node) {
+        final Map<String, Collection<String>> roles = accessRolesProvider.getRoles(node, false);
+        if (roles == null) {
+            return null;
+        }
+        final Map<String, Set<String>> assignments = new TreeMap<>();
+        roles.forEach((principal, assigned) -> assignments.put(principal, unmodifiableSet(new TreeSet<>(assigned))));
+        return assignments;
+    }
+
+    /**
+     * Replace the indexed assignments of an ACL-bearing node.
+     *
+     * @param path the path of the node
+     * @param assignments the roles of each principal at the node, or null if it no longer has an ACL
+     */
+    void update(final String path, final Map<String, Set<String>> assignments) {
+        final Map<String, Set<String>> previous = getAssignments(path);
+        // a node with an empty ACL is kept, since it still governs its descendants
+        if (assignments == null) {
+            if (aclTree.remove(path) != null) {
+                aclCount.decrementAndGet();
+            }
+            if (offHeap != null) {
+                offHeap.remove(path);
+            }
+        } else {
+            if (offHeap != null) {
+                offHeap.put(path, assignments);
+            }
+            if (aclTree.put(path, offHeap != null ? STORED_OFF_HEAP : assignments) == null) {
+                aclCount.incrementAndGet();
+            }
+        }
+        if (previous != null) {
+            for (final String principal : previous.keySet()) {
+                if (assignments == null || !assignments.containsKey(principal)) {
+                    byPrincipal.computeIfPresent(principal, (p, acls) -> {
+                        acls.remove(path);
+                        return acls.isEmpty() ? null : acls;
+                    });
+                }
+            }
+        }
+        if (assignments != null) {
+            assignments.keySet().forEach(principal -> byPrincipal.compute(principal, (p, acls) -> {
+                final ConcurrentSkipListSet<String> updated = acls == null ? new ConcurrentSkipListSet<>() : acls;
+                updated.add(path);
+                return updated;
+            }));
+        }
+    }
+
+    /**
+     * Drop the indexed assignments of a node and all its descendants.
+     *
+     * @param path the path of the node
+     */
+    void removeSubtree(final String path) {
+        aclTree.forEachInSubtree(path, (descendant, assignments) -> update(descendant, null));
+    }
+
+    /**
+     * @param path the path of an observed item
+     * @return the path of the node whose ACL holds the item, or null if it is not part of an ACL
+     */
+    static String aclOwner(final String path) {
+        final int i = path.indexOf(ACL_SEGMENT);
+        if (i < 0) {
+            return null;
+        }
+        final int end = i + ACL_SEGMENT.length();
+        if (end < path.length() && path.charAt(end) != '/' && path.charAt(end) != '[') {
+            return null;
+        }
+        return i == 0 ? "/" : path.substring(0, i);
+    }
+
+    /**
+     * @param path a JCR path other than the root
+     * @return the path of its parent
+     */
+    static String parent(final String path) {
+        final int i = path.lastIndexOf('/');
+        return i <= 0 ? "/" : path.substring(0, i);
+    }
+}
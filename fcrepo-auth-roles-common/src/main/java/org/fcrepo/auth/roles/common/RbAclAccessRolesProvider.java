@@ -20,9 +20,20 @@ package org.fcrepo.auth.roles.common;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
+import javax.inject.Inject;
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -30,22 +41,36 @@ import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
+import javax.jcr.query.Query;
 
 import org.fcrepo.auth.roles.common.Constants.JcrName;
 import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
 import org.modeshape.jcr.value.Path;
 import org.slf4j.Logger;
+
+import com.google.common.collect.AbstractIterator;
 import org.springframework.stereotype.Component;
 
 import static com.google.common.collect.Iterables.toArray;
+import static com.google.common.collect.Maps.immutableEntry;
+import static java.util.Collections.emptyIterator;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.unmodifiableCollection;
+import static java.util.Collections.unmodifiableMap;
 import static org.fcrepo.auth.roles.common.Constants.registerPrefixes;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.Assignment;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.Rbacl;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.Templates;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.assignment;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.principal;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.rbacl;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.rbaclAssignable;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.role;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.template;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.templates;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.version;
 import static org.slf4j.LoggerFactory.getLogger;
 
 /**
@@ -59,6 +84,18 @@ public class RbAclAccessRolesProvider implements AccessRolesProvider {
 
     private static final Logger LOGGER = getLogger(RbAclAccessRolesProvider.class);
 
+    /**
+     * The version of the default access roles, which apply when no ACL is found up to the root
+     */
+    public static final String DEFAULT_ROLES_VERSION = "default";
+
+    private static final Pattern TEMPLATE_NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]*");
+
+    private final ConcurrentHashMap<String, CompiledTemplate> compiledTemplates = new ConcurrentHashMap<>();
+
+    @Inject
+    private GoverningAclPointers aclPointers = null;
+
     /**
      * {@inheritDoc}
      */
@@ -70,36 +107,50 @@ public class RbAclAccessRolesProvider implements AccessRolesProvider {
             LOGGER.debug("Unable to get path! {}", e.getMessage());
         }
 
-        final Map<String, Collection<String>> data = new HashMap<>();
+        final Object lookupEvent = AuthorizationEvents.beginLookup();
+        int depth = 0;
         try {
 
             final Session session = node.getSession();
             registerPrefixes(session);
             if (node.isNodeType(rbaclAssignable.getQualified())) {
-                getAssignments(node, data);
+                final Map<String, Collection<String>> data = readAcl(node);
+                recordLookup(lookupEvent, node, effective, node, depth);
                 return data;
             }
+            if (effective && pointersEnabled()) {
+                final Node pointed = aclPointers.getPointedAcl(node);
+                if (pointed != null) {
+                    final Map<String, Collection<String>> data = readAcl(pointed);
+                    recordLookup(lookupEvent, node, effective, pointed, 0);
+                    return data;
+                }
+            }
             if (effective) { // look up the tree
                 try {
                     for (Node n = node.getParent(); n != null; n = n.getParent()) {
+                        depth++;
                         if (n.isNodeType(rbaclAssignable.getQualified())) {
                             if (LOGGER.isDebugEnabled()) {
                                 LOGGER.debug("effective roles are assigned at node: {}", n.getPath());
                             }
-                            getAssignments(n, data);
+                            final Map<String, Collection<String>> data = readAcl(n);
                             if (LOGGER.isDebugEnabled()) {
                                 for (final Map.Entry<String, Collection<String>> entry : data.entrySet()) {
                                     LOGGER.debug("{} has role(s) {}", entry.getKey(), entry.getValue());
                                 }
                             }
+                            recordLookup(lookupEvent, node, effective, n, depth);
                             return data;
                         }
                     }
                 } catch (final ItemNotFoundException e) {
                     LOGGER.debug("Subject not found, using default access roles: {}", e.getMessage());
+                    recordLookup(lookupEvent, node, effective, null, depth);
                     return DEFAULT_ACCESS_ROLES;
                 }
             }
+            recordLookup(lookupEvent, node, effective, null, depth);
         } catch (final RepositoryException e) {
             throw new RepositoryRuntimeException(e);
         }
@@ -107,53 +158,200 @@ public class RbAclAccessRolesProvider implements AccessRolesProvider {
     }
 
     /**
-     * @param node
-     * @param data
+     * Report where a lookup found its ACL to the current authorization trace and the flight recorder.
+     *
+     * @param lookupEvent the lookup event handle, may be null
+     * @param node the node roles were requested for
+     * @param effective whether effective roles were requested
+     * @param aclNode the rbaclAssignable node that was found, or null
+     * @param depth the number of ancestors walked
      * @throws RepositoryException
      */
-    private void getAssignments(final Node node, final Map<String, Collection<String>> data)
-        throws RepositoryException {
+    private static void recordLookup(final Object lookupEvent, final Node node, final boolean effective,
+            final Node aclNode, final int depth) throws RepositoryException {
+        final AuthorizationTrace trace = AuthorizationTrace.current();
+        if (trace == null && lookupEvent == null) {
+            return;
+        }
+        final String aclPath = aclNode == null ? null : aclNode.getPath();
+        if (trace != null) {
+            trace.visitNodes(depth + 1);
+            if (effective) {
+                trace.foundGoverningAcl(aclPath, depth);
+            }
+        }
+        AuthorizationEvents.commitLookup(lookupEvent, node.getPath(), effective, aclPath, depth);
+    }
 
-        if (node.isNodeType(rbaclAssignable.getQualified())) {
-            try {
-                final Node rbacl = node.getNode(JcrName.rbacl.getQualified());
-                LOGGER.debug("got rbacl: {}", rbacl);
-                for (final NodeIterator ni = rbacl.getNodes(); ni.hasNext();) {
-                    final Node assign = ni.nextNode();
-                    final String principalName =
-                            assign.getProperty(principal.getQualified())
-                                    .getString();
-                    if (principalName == null ||
-                            principalName.trim().length() == 0) {
-                        LOGGER.warn("found empty principal name on node {}",
-                                    node.getPath());
+    /**
+     * Read the assignments of an ACL-bearing node: its own, or those of the template it refers to.
+     *
+     * @param node an rbaclAssignable node
+     * @return the roles of each principal; shared and unmodifiable when they come from a template
+     * @throws RepositoryException
+     */
+    private Map<String, Collection<String>> readAcl(final Node node) throws RepositoryException {
+        final Map<String, Collection<String>> data = new HashMap<>();
+        try {
+            getAssignments(node.getNode(JcrName.rbacl.getQualified()), data, node);
+        } catch (final PathNotFoundException e) {
+            if (node.hasProperty(template.getQualified())) {
+                return compiledTemplate(node.getSession(), node.getProperty(template.getQualified()).getString(),
+                        node);
+            }
+            LOGGER.info(
+                         "Found rbaclAssignable mixin without a corresponding node at {}",
+                         node.getPath());
+        }
+        return data;
+    }
+
+    /**
+     * @param acl an authz:Rbacl node
+     * @param data the map to add the roles of each principal to
+     * @param owner the node the ACL applies to, for logging
+     * @throws RepositoryException
+     */
+    private static void getAssignments(final Node acl, final Map<String, Collection<String>> data, final Node owner)
+        throws RepositoryException {
+        LOGGER.debug("got rbacl: {}", acl);
+        for (final NodeIterator ni = acl.getNodes(); ni.hasNext();) {
+            final Node assign = ni.nextNode();
+            final String principalName =
+                    assign.getProperty(principal.getQualified())
+                            .getString();
+            if (principalName == null ||
+                    principalName.trim().length() == 0) {
+                LOGGER.warn("found empty principal name on node {}",
+                            owner.getPath());
+            } else {
+                Collection<String> roles = data.get(principalName);
+                if (roles == null) {
+                    roles = new ArrayList<>();
+                    data.put(principalName, roles);
+                }
+                for (final Value v : assign.getProperty(
+                        role.getQualified()).getValues()) {
+                    if (v == null || v.toString().trim().length() == 0) {
+                        LOGGER.warn("found empty role name on node {}",
+                                    owner.getPath());
                     } else {
-                        Collection<String> roles = data.get(principalName);
-                        if (roles == null) {
-                            roles = new ArrayList<>();
-                            data.put(principalName, roles);
-                        }
-                        for (final Value v : assign.getProperty(
-                                role.getQualified()).getValues()) {
-                            if (v == null || v.toString().trim().length() == 0) {
-                                LOGGER.warn("found empty role name on node {}",
-                                            node.getPath());
-                            } else {
-                                roles.add(v.toString());
-                            }
-                        }
+                        roles.add(v.toString());
                     }
                 }
-            } catch (final PathNotFoundException e) {
-                LOGGER.info(
-                             "Found rbaclAssignable mixin without a corresponding node at {}",
-                             node.getPath());
             }
         }
     }
 
+    /**
+     * Get the roles of a template, compiled once per version of the template and shared by every node that refers
+     * to it. Only the template's version is read when the compiled roles are current.
+     *
+     * @param session the session to read the template with
+     * @param name the template name
+     * @param owner the node referring to the template, for logging
+     * @return the roles of each principal, unmodifiable; empty if there is no such template
+     * @throws RepositoryException
+     */
+    private Map<String, Collection<String>> compiledTemplate(final Session session, final String name,
+            final Node owner) throws RepositoryException {
+        final Node acl = templateNode(session, name);
+        if (acl == null) {
+            LOGGER.warn("Node {} refers to the missing ACL template {}, so it has no role assignments",
+                    owner.getPath(), name);
+            return emptyMap();
+        }
+        final String current = acl.hasProperty(version.getQualified()) ?
+                acl.getProperty(version.getQualified()).getString() : null;
+        final CompiledTemplate compiled = compiledTemplates.get(name);
+        if (compiled != null && compiled.version.equals(current)) {
+            return compiled.roles;
+        }
+        final Map<String, Collection<String>> data = new HashMap<>();
+        getAssignments(acl, data, owner);
+        data.replaceAll((principalName, roles) -> unmodifiableCollection(roles));
+        final Map<String, Collection<String>> roles = unmodifiableMap(data);
+        if (current != null) {
+            compiledTemplates.put(name, new CompiledTemplate(current, roles));
+        }
+        return roles;
+    }
+
+    /**
+     * @return the roles of each template as last compiled, by template name
+     */
+    public Map<String, Map<String, Collection<String>>> getCompiledTemplates() {
+        final Map<String, Map<String, Collection<String>>> compiled = new HashMap<>();
+        compiledTemplates.forEach((name, template) -> compiled.put(name, template.roles));
+        return compiled;
+    }
+
+    /**
+     * Drop the compiled roles of a template, so that they are read again when next needed.
+     *
+     * @param name the template name
+     */
+    public void evictTemplate(final String name) {
+        compiledTemplates.remove(name);
+    }
+
+    /**
+     * Read the assignments of a node's own ACL, or of the template it refers to, straight from the repository and
+     * without the compiled templates, as a reference to check derived copies against.
+     *
+     * @param node a node
+     * @return the roles of each principal, or null if the node has no ACL
+     * @throws RepositoryException if the ACL could not be read
+     */
+    public Map<String, Collection<String>> readAssignments(final Node node) throws RepositoryException {
+        registerPrefixes(node.getSession());
+        if (!node.isNodeType(rbaclAssignable.getQualified())) {
+            return null;
+        }
+        final Map<String, Collection<String>> data = new HashMap<>();
+        final Node acl = aclNode(node);
+        if (acl != null) {
+            getAssignments(acl, data, node);
+        }
+        return data;
+    }
+
+    /**
+     * @return the node holding a template's assignments, or null if there is no such template
+     */
+    private static Node templateNode(final Session session, final String name) throws RepositoryException {
+        final String path = templatePath(name);
+        return session.nodeExists(path) ? session.getNode(path) : null;
+    }
+
+    private static String templatePath(final String name) {
+        if (name == null || !TEMPLATE_NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid ACL template name: " + name);
+        }
+        return "/" + templates.getQualified() + "/" + name;
+    }
+
+    /**
+     * The roles of a template as of one of its versions.
+     */
+    private static final class CompiledTemplate {
+
+        private final String version;
+
+        private final Map<String, Collection<String>> roles;
+
+        private CompiledTemplate(final String version, final Map<String, Collection<String>> roles) {
+            this.version = version;
+            this.roles = roles;
+        }
+    }
+
     /**
      * {@inheritDoc}
+     * <p>
+     * The existing assignments are compared as sets of roles per principal, so neither their order nor how they are
+     * split across assignment nodes makes an unchanged ACL look changed.
+     * </p>
      */
     @Override
     public void postRoles(final Node node, final Map<String, Set<String>> data)
@@ -161,26 +359,492 @@ public class RbAclAccessRolesProvider implements AccessRolesProvider {
         final Session session = node.getSession();
         registerPrefixes(session);
         if (!node.isNodeType(rbaclAssignable.getQualified())) {
-            node.addMixin(rbaclAssignable.getQualified());
-            LOGGER.debug("added rbaclAssignable type");
+            addAcl(node);
+        }
+        if (node.hasProperty(template.getQualified())) {
+            node.getProperty(template.getQualified()).remove();
+        }
+        if (!node.hasNode(rbacl.getQualified())) {
+            writeAssignments(node.addNode(rbacl.getQualified(), Rbacl.getQualified()), data);
+        } else if (!replaceAssignments(node.getNode(rbacl.getQualified()), data)) {
+            LOGGER.debug("Access roles at {} are unchanged, not rewriting them", node.getPath());
+        }
+    }
+
+    /**
+     * Make a node rbaclAssignable and, when governing ACL pointers are kept, point it at itself and have the
+     * pointers beneath it rewritten.
+     *
+     * @param node a node without an ACL
+     * @throws RepositoryException
+     */
+    private void addAcl(final Node node) throws RepositoryException {
+        node.addMixin(rbaclAssignable.getQualified());
+        LOGGER.debug("added rbaclAssignable type");
+        if (pointersEnabled()) {
+            aclPointers.aclAdded(node);
         }
+    }
 
-        Node acl;
+    private boolean pointersEnabled() {
+        return aclPointers != null && aclPointers.isEnabled();
+    }
 
-        if (node.hasNode(rbacl.getQualified())) {
-            acl = node.getNode(rbacl.getQualified());
-            for (final NodeIterator ni = acl.getNodes(); ni.hasNext();) {
-                ni.nextNode().remove();
+    /**
+     * Replace the assignments of an ACL, unless they are already the given ones.
+     *
+     * @param acl an authz:Rbacl node
+     * @param data the roles to assign
+     * @return true if the ACL was changed
+     * @throws RepositoryException
+     */
+    private static boolean replaceAssignments(final Node acl, final Map<String, Set<String>> data)
+            throws RepositoryException {
+        final List<Node> assigns = new ArrayList<>();
+        final Map<String, Set<String>> current = new HashMap<>();
+        for (final NodeIterator ni = acl.getNodes(); ni.hasNext();) {
+            final Node assign = ni.nextNode();
+            assigns.add(assign);
+            final Set<String> roles = current.computeIfAbsent(
+                    assign.getProperty(principal.getQualified()).getString(), p -> new HashSet<>());
+            for (final Value v : assign.getProperty(role.getQualified()).getValues()) {
+                roles.add(v.getString());
             }
-        } else {
-            acl = node.addNode(rbacl.getQualified(), Rbacl.getQualified());
         }
+        if (current.equals(data)) {
+            return false;
+        }
+        for (final Node assign : assigns) {
+            assign.remove();
+        }
+        writeAssignments(acl, data);
+        return true;
+    }
 
+    /**
+     * Add assignments to an ACL and give it a new version.
+     *
+     * @param acl an authz:Rbacl node
+     * @param data the roles to assign
+     * @throws RepositoryException
+     */
+    private static void writeAssignments(final Node acl, final Map<String, Set<String>> data)
+            throws RepositoryException {
         for (final Map.Entry<String, Set<String>> entry : data.entrySet()) {
             final Node assign = acl.addNode(assignment.getQualified(), Assignment.getQualified());
             assign.setProperty(principal.getQualified(), entry.getKey());
             assign.setProperty(role.getQualified(), toArray(entry.getValue(), String.class));
         }
+        touch(acl);
+    }
+
+    /**
+     * Give an ACL a new version. Versions are random rather than counted, so that two sessions changing the same ACL
+     * at once cannot both end up with the same version for different assignments.
+     *
+     * @param acl the changed authz:Rbacl node
+     * @throws RepositoryException
+     */
+    private static void touch(final Node acl) throws RepositoryException {
+        acl.setProperty(version.getQualified(), UUID.randomUUID().toString());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The version is the one stored on the governing ACL by the last change made through this provider. ACLs written
+     * before versions were kept have none, until they are next changed.
+     * </p>
+     */
+    @Override
+    public String getRolesVersion(final Node node, final boolean effective) {
+        try {
+            registerPrefixes(node.getSession());
+            final Node owner = aclOwner(node, effective);
+            final Node acl = owner == null ? null : aclNode(owner);
+            if (acl == null) {
+                return null;
+            }
+            return acl.hasProperty(version.getQualified()) ? acl.getProperty(version.getQualified()).getString() : null;
+        } catch (final ItemNotFoundException e) {
+            return DEFAULT_ROLES_VERSION;
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException(e);
+        }
+    }
+
+    /**
+     * @param owner an rbaclAssignable node
+     * @return the authz:Rbacl node holding its assignments, which is a template's if it refers to one, or null
+     * @throws RepositoryException
+     */
+    private static Node aclNode(final Node owner) throws RepositoryException {
+        if (owner.hasNode(rbacl.getQualified())) {
+            return owner.getNode(rbacl.getQualified());
+        }
+        if (owner.hasProperty(template.getQualified())) {
+            return templateNode(owner.getSession(), owner.getProperty(template.getQualified()).getString());
+        }
+        return null;
+    }
+
+    /**
+     * @param node the subject node
+     * @param effective if true then search up the tree
+     * @return the rbaclAssignable node whose ACL applies to the node, or null if not effective and the node has none
+     * @throws ItemNotFoundException if effective and no ACL is found up to the root
+     * @throws RepositoryException
+     */
+    private static Node aclOwner(final Node node, final boolean effective) throws RepositoryException {
+        for (Node n = node; n != null; n = effective ? n.getParent() : null) {
+            if (n.isNodeType(rbaclAssignable.getQualified())) {
+                return n;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<Map.Entry<String, Collection<String>>> iterateRoles(final Node node, final boolean effective,
+            final long offset) {
+        return iterateRoles(node, effective, offset, Long.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Assignments are read straight from the governing ACL's child node iterator, which also skips the offset, and
+     * reading stops at the end of the page, so a page needs memory only for the assignment being written. ACLs written
+     * through this provider hold one assignment node per principal. Consecutive nodes of one principal in a page, as in
+     * an ACL edited by other means, are returned once with the roles of all of them; its nodes elsewhere in the ACL
+     * are returned as they are stored, until the next change to that principal's roles merges them.
+     * </p>
+     */
+    @Override
+    public Iterator<Map.Entry<String, Collection<String>>> iterateRoles(final Node node, final boolean effective,
+            final long offset, final long limit) {
+        final NodeIterator assigns;
+        try {
+            registerPrefixes(node.getSession());
+            final Node owner = aclOwner(node, effective);
+            if (owner == null) {
+                return null;
+            }
+            final Node acl = aclNode(owner);
+            if (acl == null) {
+                return emptyIterator();
+            }
+            assigns = acl.getNodes();
+            assigns.skip(offset);
+        } catch (final ItemNotFoundException | NoSuchElementException e) {
+            return emptyIterator();
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException(e);
+        }
+        return new AbstractIterator<Map.Entry<String, Collection<String>>>() {
+
+            private long read;
+
+            // the assignment read ahead to find the last of the previous principal's nodes
+            private Node next;
+
+            private Node read() {
+                if (read < limit && assigns.hasNext()) {
+                    read++;
+                    return assigns.nextNode();
+                }
+                return null;
+            }
+
+            @Override
+            protected Map.Entry<String, Collection<String>> computeNext() {
+                try {
+                    for (Node assign = next != null ? next : read(); assign != null; assign = read()) {
+                        next = null;
+                        final String principalName = principalOf(assign);
+                        if (principalName == null) {
+                            continue;
+                        }
+                        final Collection<String> roles = rolesOf(assign);
+                        for (next = read(); next != null && principalName.equals(principalOf(next)); next = read()) {
+                            for (final String r : rolesOf(next)) {
+                                if (!roles.contains(r)) {
+                                    roles.add(r);
+                                }
+                            }
+                        }
+                        return immutableEntry(principalName, roles);
+                    }
+                    return endOfData();
+                } catch (final RepositoryException e) {
+                    throw new RepositoryRuntimeException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * @param assign an assignment node
+     * @return the principal it assigns roles to, or null if it names none
+     * @throws RepositoryException
+     */
+    private static String principalOf(final Node assign) throws RepositoryException {
+        final String principalName = assign.getProperty(principal.getQualified()).getString();
+        return principalName == null || principalName.trim().length() == 0 ? null : principalName;
+    }
+
+    /**
+     * @param assign an assignment node
+     * @return the roles it assigns
+     * @throws RepositoryException
+     */
+    private static Collection<String> rolesOf(final Node assign) throws RepositoryException {
+        final Collection<String> roles = new ArrayList<>();
+        for (final Value v : assign.getProperty(role.getQualified()).getValues()) {
+            if (v != null && v.getString().trim().length() > 0) {
+                roles.add(v.getString());
+            }
+        }
+        return roles;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long countRoles(final Node node, final boolean effective) {
+        try {
+            registerPrefixes(node.getSession());
+            final Node owner = aclOwner(node, effective);
+            if (owner == null) {
+                return -1;
+            }
+            final Node acl = aclNode(owner);
+            return acl == null ? 0 : acl.getNodes().getSize();
+        } catch (final ItemNotFoundException e) {
+            return 0;
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the assignment nodes of principals named in the patch are read and written, so the cost of a patch does
+     * not grow with the size of the ACL. A principal whose roles are unchanged is not written at all, and one held in
+     * several assignment nodes is merged into the first of them.
+     * </p>
+     */
+    @Override
+    public void patchRoles(final Node node, final Map<String, Set<String>> add,
+            final Map<String, Set<String>> remove) throws RepositoryException {
+        final Session session = node.getSession();
+        registerPrefixes(session);
+        final boolean assignable = node.isNodeType(rbaclAssignable.getQualified());
+        final Node acl = assignable && node.hasNode(rbacl.getQualified()) ? node.getNode(rbacl.getQualified()) : null;
+        if (acl == null && assignable && node.hasProperty(template.getQualified())) {
+            throw new IllegalArgumentException("Access roles at " + node.getPath() + " come from the ACL template " +
+                    node.getProperty(template.getQualified()).getString() + ", post roles to replace it");
+        }
+
+        // the assignment nodes of the principals being changed, and whether any other principal keeps its roles
+        final Map<String, List<Node>> affected = new LinkedHashMap<>();
+        boolean othersAssigned = false;
+        if (acl != null) {
+            for (final NodeIterator ni = acl.getNodes(); ni.hasNext();) {
+                final Node assign = ni.nextNode();
+                final String principalName = assign.getProperty(principal.getQualified()).getString();
+                if (add.containsKey(principalName) || remove.containsKey(principalName)) {
+                    affected.computeIfAbsent(principalName, p -> new ArrayList<>()).add(assign);
+                } else {
+                    othersAssigned = true;
+                }
+            }
+        }
+
+        final Map<String, Set<String>> before = new HashMap<>();
+        final Map<String, Set<String>> after = new LinkedHashMap<>();
+        for (final String principalName : union(add.keySet(), remove.keySet())) {
+            final Set<String> roles = new LinkedHashSet<>();
+            for (final Node assign : affected.getOrDefault(principalName, emptyList())) {
+                for (final Value v : assign.getProperty(role.getQualified()).getValues()) {
+                    roles.add(v.getString());
+                }
+            }
+            before.put(principalName, new LinkedHashSet<>(roles));
+            roles.addAll(add.getOrDefault(principalName, emptySet()));
+            roles.removeAll(remove.getOrDefault(principalName, emptySet()));
+            after.put(principalName, roles);
+        }
+        if (!othersAssigned && after.values().stream().allMatch(Set::isEmpty)) {
+            throw new IllegalArgumentException(
+                    "Patch would leave no role assignments, delete the access roles instead");
+        }
+
+        final Node target;
+        if (acl != null) {
+            target = acl;
+        } else {
+            if (!assignable) {
+                addAcl(node);
+            }
+            target = node.addNode(rbacl.getQualified(), Rbacl.getQualified());
+        }
+        boolean changed = acl == null;
+        for (final Map.Entry<String, Set<String>> entry : after.entrySet()) {
+            final String principalName = entry.getKey();
+            final Set<String> roles = entry.getValue();
+            final List<Node> assigns = affected.getOrDefault(principalName, emptyList());
+            if (roles.equals(before.get(principalName)) && assigns.size() <= 1) {
+                continue;
+            }
+            changed = true;
+            if (roles.isEmpty()) {
+                for (final Node assign : assigns) {
+                    assign.remove();
+                }
+            } else if (assigns.isEmpty()) {
+                final Node assign = target.addNode(assignment.getQualified(), Assignment.getQualified());
+                assign.setProperty(principal.getQualified(), principalName);
+                assign.setProperty(role.getQualified(), toArray(roles, String.class));
+            } else {
+                assigns.get(0).setProperty(role.getQualified(), toArray(roles, String.class));
+                for (final Node duplicate : assigns.subList(1, assigns.size())) {
+                    duplicate.remove();
+                }
+            }
+        }
+        if (changed) {
+            touch(target);
+        }
+    }
+
+    private static Set<String> union(final Set<String> a, final Set<String> b) {
+        final Set<String> union = new LinkedHashSet<>(a);
+        union.addAll(b);
+        return union;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getTemplate(final Node node) {
+        try {
+            registerPrefixes(node.getSession());
+            return node.isNodeType(rbaclAssignable.getQualified()) && !node.hasNode(rbacl.getQualified()) &&
+                    node.hasProperty(template.getQualified()) ?
+                    node.getProperty(template.getQualified()).getString() : null;
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void useTemplate(final Node node, final String name) throws RepositoryException {
+        final Session session = node.getSession();
+        registerPrefixes(session);
+        if (templateNode(session, name) == null) {
+            throw new IllegalArgumentException("No such ACL template: " + name);
+        }
+        if (name.equals(getTemplate(node))) {
+            LOGGER.debug("Node {} already refers to ACL template {}", node.getPath(), name);
+            return;
+        }
+        if (!node.isNodeType(rbaclAssignable.getQualified())) {
+            addAcl(node);
+        }
+        if (node.hasNode(rbacl.getQualified())) {
+            node.getNode(rbacl.getQualified()).remove();
+        }
+        node.setProperty(template.getQualified(), name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<String> listTemplates(final Session session) throws RepositoryException {
+        registerPrefixes(session);
+        final String path = "/" + templates.getQualified();
+        final Set<String> names = new TreeSet<>();
+        if (session.nodeExists(path)) {
+            for (final NodeIterator ni = session.getNode(path).getNodes(); ni.hasNext();) {
+                names.add(ni.nextNode().getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Collection<String>> getTemplateRoles(final Session session, final String name)
+            throws RepositoryException {
+        registerPrefixes(session);
+        final Node acl = templateNode(session, name);
+        if (acl == null) {
+            return null;
+        }
+        final Map<String, Collection<String>> data = new HashMap<>();
+        getAssignments(acl, data, acl);
+        return data;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Templates are stored as ACL nodes under {@code /authz:templates}, each created the first time it is posted.
+     * </p>
+     */
+    @Override
+    public void postTemplate(final Session session, final String name, final Map<String, Set<String>> data)
+            throws RepositoryException {
+        registerPrefixes(session);
+        final Node acl = templateNode(session, name);
+        if (acl != null) {
+            if (!replaceAssignments(acl, data)) {
+                LOGGER.debug("ACL template {} is unchanged, not rewriting it", name);
+            }
+            return;
+        }
+        final Node root = session.getRootNode();
+        final Node container = root.hasNode(templates.getQualified()) ? root.getNode(templates.getQualified()) :
+                root.addNode(templates.getQualified(), Templates.getQualified());
+        writeAssignments(container.addNode(name, Rbacl.getQualified()), data);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean deleteTemplate(final Session session, final String name) throws RepositoryException {
+        registerPrefixes(session);
+        final Node acl = templateNode(session, name);
+        if (acl == null) {
+            return false;
+        }
+        final Query query = session.getWorkspace().getQueryManager().createQuery(
+                "SELECT * FROM [" + rbaclAssignable.getQualified() + "] AS n WHERE n.[" + template.getQualified() +
+                "] = $name", Query.JCR_SQL2);
+        query.bindValue("name", session.getValueFactory().createValue(name));
+        query.setLimit(1);
+        final NodeIterator users = query.execute().getNodes();
+        if (users.hasNext()) {
+            throw new IllegalStateException("ACL template " + name + " is still used, for example by " +
+                    users.nextNode().getPath());
+        }
+        acl.remove();
+        compiledTemplates.remove(name);
+        return true;
     }
 
     /**
@@ -198,8 +862,14 @@ public class RbAclAccessRolesProvider implements AccessRolesProvider {
             } catch (final PathNotFoundException e) {
                 LOGGER.debug("Cannot find node: {}", node, e);
             }
+            if (node.hasProperty(template.getQualified())) {
+                node.getProperty(template.getQualified()).remove();
+            }
             // remove mixin
             node.removeMixin(rbaclAssignable.getQualified());
+            if (pointersEnabled()) {
+                aclPointers.aclRemoved(node);
+            }
         }
     }
 
@@ -210,6 +880,7 @@ public class RbAclAccessRolesProvider implements AccessRolesProvider {
     public Map<String, Collection<String>> findRolesForPath(final Path absPath,
             final Session session) throws RepositoryException {
         Node node = null;
+        int missing = 0;
         for (Path p = absPath; p != null; p = p.getParent()) {
             try {
                 if (p.isRoot()) {
@@ -220,8 +891,14 @@ public class RbAclAccessRolesProvider implements AccessRolesProvider {
                 break;
             } catch (final PathNotFoundException e) {
                 LOGGER.trace("Cannot find node: {}, trying parent.", p, e);
+                missing++;
             }
         }
+        final AuthorizationTrace trace = AuthorizationTrace.current();
+        if (trace != null) {
+            trace.addWalkDepth(missing);
+            trace.visitNodes(missing);
+        }
         return this.getRoles(node, true);
     }
 
@@ -0,0 +1,510 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.fcrepo.kernel.modeshape.FedoraSessionImpl.getJcrSession;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.common.FedoraAuthorizationDelegate;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.FedoraSession;
+import org.fcrepo.metrics.RegistryService;
+import org.modeshape.jcr.value.Path;
+import org.slf4j.Logger;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs a candidate authorization engine in the shadow of the active one. Every decision is made and returned by the
+ * active delegate; on a sampled fraction of calls the same question is also put to the shadow delegate, on a
+ * background thread, and any disagreement is kept with its full context. The latency of both delegates on sampled
+ * calls is recorded in the timers {@code org.fcrepo.auth.roles.common.ShadowAuthorizationDelegate.active} and
+ * {@code ...shadow}, and everything is reported at {@code /fcr:authz/shadow}.
+ * <p>
+ * The shadow delegate never sees the request's session, which may be gone by the time it runs, but a stand-in holding
+ * a snapshot of its attributes, through which it may read, but not change, the repository with an internal session
+ * of its own. That session sees only committed content, so decisions made in a session with uncommitted changes, as
+ * in a transaction, are never sampled. Because the shadow runs a little later, an ACL changed in between can cause a
+ * disagreement; compare the recorded lag with the time of ACL changes before blaming the candidate. Declare this
+ * delegate as the
+ * {@code fad} bean, marked {@code primary="true"} so that it is the one injected elsewhere:
+ * </p>
+ * <pre>
+ * &lt;bean name="fad" class="org.fcrepo.auth.roles.common.ShadowAuthorizationDelegate" primary="true"&gt;
+ *   &lt;property name="active" ref="basicFad"/&gt;
+ *   &lt;property name="shadow" ref="candidateFad"/&gt;
+ *   &lt;property name="sampleRate" value="0.05"/&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ */
+public class ShadowAuthorizationDelegate implements FedoraAuthorizationDelegate {
+
+    private static final Logger LOGGER = getLogger(ShadowAuthorizationDelegate.class);
+
+    // the Session methods a shadow delegate may call on its stand-in, which only read
+    private static final Set<String> READ_METHODS = new HashSet<>(asList("getRootNode", "getNode",
+            "getNodeByIdentifier", "getNodeByUUID", "getItem", "getProperty", "itemExists", "nodeExists",
+            "propertyExists", "getNamespacePrefixes", "getNamespacePrefix", "getNamespaceURI", "getValueFactory",
+            "isLive"));
+
+    @Inject
+    private SessionFactory sessionFactory = null;
+
+    private FedoraAuthorizationDelegate active;
+
+    private FedoraAuthorizationDelegate shadow;
+
+    private volatile double sampleRate =
+            Double.parseDouble(System.getProperty("fcrepo.auth.roles.shadow.sampleRate", "0.01"));
+
+    private int queueSize = Integer.getInteger("fcrepo.auth.roles.shadow.queueSize", 1000);
+
+    private int threads = Integer.getInteger("fcrepo.auth.roles.shadow.threads", 1);
+
+    private int mismatchBufferSize = Integer.getInteger("fcrepo.auth.roles.shadow.mismatchBufferSize", 100);
+
+    private ThreadPoolExecutor executor;
+
+    private final Timer activeTimer =
+            RegistryService.getInstance().getMetrics().timer(name(ShadowAuthorizationDelegate.class, "active"));
+
+    private final Timer shadowTimer =
+            RegistryService.getInstance().getMetrics().timer(name(ShadowAuthorizationDelegate.class, "shadow"));
+
+    private final AtomicLong sampled = new AtomicLong();
+
+    private final AtomicLong compared = new AtomicLong();
+
+    private final AtomicLong mismatched = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Deque<ShadowMismatch> mismatches = new ArrayDeque<>();
+
+    /**
+     * Start the shadow evaluation threads.
+     */
+    @PostConstruct
+    public void start() {
+        if (active == null || shadow == null) {
+            throw new IllegalStateException("Both an active and a shadow delegate are required");
+        }
+        executor = new ThreadPoolExecutor(threads, threads, 0, SECONDS, new ArrayBlockingQueue<>(queueSize),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("fcrepo-authz-shadow-%d").build());
+    }
+
+    /**
+     * Stop the shadow evaluation threads, abandoning queued comparisons.
+     */
+    @PreDestroy
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public boolean hasPermission(final Session session, final Path absPath, final String[] actions) {
+        final double rate = sampleRate;
+        if (executor == null || rate <= 0 || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate) ||
+                hasPendingChanges(session)) {
+            return active.hasPermission(session, absPath, actions);
+        }
+        sampled.incrementAndGet();
+        final Map<String, Object> attributes = attributes(session);
+        final String userId = session.getUserID();
+        final long start = nanoTime();
+        final boolean decision;
+        try {
+            decision = active.hasPermission(session, absPath, actions);
+        } finally {
+            activeTimer.update(nanoTime() - start, NANOSECONDS);
+        }
+        final long decidedAt = currentTimeMillis();
+        final String[] copy = actions.clone();
+        try {
+            executor.execute(() -> compare(attributes, userId, absPath, copy, decision, decidedAt));
+        } catch (final RejectedExecutionException e) {
+            dropped.incrementAndGet();
+        }
+        return decision;
+    }
+
+    private void compare(final Map<String, Object> attributes, final String userId, final Path absPath,
+            final String[] actions, final boolean decision, final long decidedAt) {
+        final long start = nanoTime();
+        Boolean shadowDecision = null;
+        String error = null;
+        FedoraSession internalSession = null;
+        try {
+            internalSession = sessionFactory == null ? null : sessionFactory.getInternalSession();
+            shadowDecision = shadow.hasPermission(
+                    standIn(attributes, userId, internalSession == null ? null : getJcrSession(internalSession)),
+                    absPath, actions);
+        } catch (final RuntimeException e) {
+            failed.incrementAndGet();
+            error = e.toString();
+        } finally {
+            shadowTimer.update(nanoTime() - start, NANOSECONDS);
+            if (internalSession != null) {
+                internalSession.expire();
+            }
+        }
+        compared.incrementAndGet();
+        if (shadowDecision != null && shadowDecision == decision) {
+            return;
+        }
+        mismatched.incrementAndGet();
+        final ShadowMismatch mismatch = new ShadowMismatch(decidedAt, absPath.toString(), asList(actions),
+                attributes.get(FEDORA_USER_PRINCIPAL), attributes.get(FEDORA_ALL_PRINCIPALS),
+                decision, shadowDecision, error, currentTimeMillis() - decidedAt);
+        synchronized (mismatches) {
+            if (mismatches.size() >= mismatchBufferSize) {
+                mismatches.removeFirst();
+            }
+            mismatches.addLast(mismatch);
+        }
+        LOGGER.warn("Shadow authorization mismatch: path={} actions={} user={} active={} shadow={} error={} " +
+                "lagMs={}", mismatch.getPath(), mismatch.getActions(), mismatch.getUser(), decision, shadowDecision,
+                error, mismatch.getLagMillis());
+    }
+
+    /**
+     * @param session the request session
+     * @return true if the session has changes the shadow delegate cannot see
+     */
+    private static boolean hasPendingChanges(final Session session) {
+        try {
+            return session.hasPendingChanges();
+        } catch (final RepositoryException e) {
+            LOGGER.debug("Could not tell whether the session has pending changes, not sampling", e);
+            return true;
+        }
+    }
+
+    /**
+     * @param session the request session
+     * @return a copy of its attributes that outlives the request
+     */
+    private static Map<String, Object> attributes(final Session session) {
+        final Map<String, Object> attributes = new HashMap<>();
+        for (final String name : session.getAttributeNames()) {
+            final Object value = session.getAttribute(name);
+            attributes.put(name, value instanceof Collection<?> ? new HashSet<>((Collection<?>) value) : value);
+        }
+        return attributes;
+    }
+
+    /**
+     * Copy what a delegate reads from a request session into a stand-in that outlives the request.
+     *
+     * @param session the request session
+     * @return a session answering only attribute queries
+     */
+    static Session snapshot(final Session session) {
+        return standIn(attributes(session), session.getUserID(), null);
+    }
+
+    /**
+     * @param attributes the attributes of the request session
+     * @param userId the user of the request session
+     * @param reader the session to read the repository through, or null to refuse reads
+     * @return a session answering attribute queries itself and forwarding reads, and only reads, to the reader
+     */
+    static Session standIn(final Map<String, Object> attributes, final String userId, final Session reader) {
+        return (Session) Proxy.newProxyInstance(ShadowAuthorizationDelegate.class.getClassLoader(),
+                new Class<?>[] { Session.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAttribute":
+                            return attributes.get(args[0]);
+                        case "getAttributeNames":
+                            return attributes.keySet().toArray(new String[attributes.size()]);
+                        case "getUserID":
+                            return userId;
+                        case "hasPendingChanges":
+                            return false;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "stand-in for the session of " + userId;
+                        default:
+                            if (reader == null || !READ_METHODS.contains(method.getName())) {
+                                throw new UnsupportedOperationException(
+                                        "The shadow delegate may only read the repository: " + method.getName());
+                            }
+                            try {
+                                return method.invoke(reader, args);
+                            } catch (final InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                    }
+                });
+    }
+
+    @Override
+    public Principal getEveryonePrincipal() {
+        return active.getEveryonePrincipal();
+    }
+
+    /**
+     * @return the delegate whose decisions are returned
+     */
+    public FedoraAuthorizationDelegate getActive() {
+        return active;
+    }
+
+    /**
+     * @param active the delegate whose decisions are returned
+     */
+    public void setActive(final FedoraAuthorizationDelegate active) {
+        this.active = active;
+    }
+
+    /**
+     * @param shadow the candidate delegate evaluated in the background
+     */
+    public void setShadow(final FedoraAuthorizationDelegate shadow) {
+        this.shadow = shadow;
+    }
+
+    /**
+     * @param sessionFactory the source of the internal sessions the shadow delegate reads through
+     */
+    public void setSessionFactory(final SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * @param sampleRate the fraction of decisions also put to the shadow delegate, between 0 and 1
+     */
+    public void setSampleRate(final double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * @param queueSize the number of comparisons that may wait for a thread before new ones are dropped
+     */
+    public void setQueueSize(final int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * @param threads the number of threads running the shadow delegate
+     */
+    public void setThreads(final int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param mismatchBufferSize the number of recent mismatches to keep
+     */
+    public void setMismatchBufferSize(final int mismatchBufferSize) {
+        this.mismatchBufferSize = mismatchBufferSize;
+    }
+
+    /**
+     * @return the recent mismatches, oldest first
+     */
+    public List<ShadowMismatch> getMismatches() {
+        synchronized (mismatches) {
+            return new ArrayList<>(mismatches);
+        }
+    }
+
+    /**
+     * @return counters and side-by-side latency percentiles, for reporting
+     */
+    public Map<String, Object> getReport() {
+        final Map<String, Object> report = new LinkedHashMap<>();
+        report.put("active", active.getClass().getName());
+        report.put("shadow", shadow.getClass().getName());
+        report.put("sampleRate", sampleRate);
+        report.put("sampled", sampled.get());
+        report.put("compared", compared.get());
+        report.put("mismatched", mismatched.get());
+        report.put("failed", failed.get());
+        report.put("dropped", dropped.get());
+        report.put("queued", executor == null ? 0 : executor.getQueue().size());
+        final Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("active", latency(activeTimer));
+        latency.put("shadow", latency(shadowTimer));
+        report.put("latencyNanos", latency);
+        report.put("mismatches", getMismatches());
+        return report;
+    }
+
+    private static Map<String, Object> latency(final Timer timer) {
+        final Snapshot snapshot = timer.getSnapshot();
+        final Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("count", timer.getCount());
+        latency.put("mean", (long) snapshot.getMean());
+        latency.put("p50", (long) snapshot.getMedian());
+        latency.put("p99", (long) snapshot.get99thPercentile());
+        latency.put("p999", (long) snapshot.get999thPercentile());
+        latency.put("max", snapshot.getMax());
+        return latency;
+    }
+
+    /**
+     * A decision on which the shadow delegate disagreed with the active one, or failed.
+     */
+    public static class ShadowMismatch {
+
+        private final long timestamp;
+
+        private final String path;
+
+        private final List<String> actions;
+
+        private final String user;
+
+        private final List<String> principals;
+
+        private final boolean active;
+
+        private final Boolean shadow;
+
+        private final String error;
+
+        private final long lagMillis;
+
+        ShadowMismatch(final long timestamp, final String path, final List<String> actions, final Object user,
+                final Object principals, final boolean active, final Boolean shadow, final String error,
+                final long lagMillis) {
+            this.timestamp = timestamp;
+            this.path = path;
+            this.actions = actions;
+            this.user = user instanceof Principal ? ((Principal) user).getName() : null;
+            this.principals = new ArrayList<>();
+            if (principals instanceof Collection<?>) {
+                for (final Object principal : (Collection<?>) principals) {
+                    if (principal instanceof Principal) {
+                        this.principals.add(((Principal) principal).getName());
+                    }
+                }
+            }
+            this.active = active;
+            this.shadow = shadow;
+            this.error = error;
+            this.lagMillis = lagMillis;
+        }
+
+        /**
+         * @return when the active delegate decided, in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return the path checked
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the actions requested
+         */
+        public List<String> getActions() {
+            return actions;
+        }
+
+        /**
+         * @return the name of the user principal, or null
+         */
+        public String getUser() {
+            return user;
+        }
+
+        /**
+         * @return the names of all principals of the request
+         */
+        public List<String> getPrincipals() {
+            return principals;
+        }
+
+        /**
+         * @return the active delegate's decision, which was returned
+         */
+        public boolean isActive() {
+            return active;
+        }
+
+        /**
+         * @return the shadow delegate's decision, or null if it failed
+         */
+        public Boolean getShadow() {
+            return shadow;
+        }
+
+        /**
+         * @return the shadow delegate's failure, or null
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return how long after the active decision the shadow decided
+         */
+        public long getLagMillis() {
+            return lagMillis;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.Arrays.asList;
+import static java.util.Comparator.comparingLong;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.fcrepo.auth.roles.common.AuthorizationTrace.Stage;
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Keeps the most recent authorization decisions that took longer than a threshold, and logs each of them as a
+ * single structured line. Only a sampled fraction of decisions is traced, and log lines are rate limited, so the
+ * overhead stays bounded however slow the repository gets. Disabled unless a threshold is set, either through the
+ * {@code fcrepo.auth.roles.slow.thresholdMillis} system property or {@link #setThresholdMillis(long)}.
+ */
+@Component
+public class SlowAuthorizationLog {
+
+    private static final Logger LOGGER = getLogger(SlowAuthorizationLog.class);
+
+    private volatile long thresholdNanos;
+
+    private volatile double sampleRate;
+
+    private volatile RateLimiter logLimiter;
+
+    private volatile AtomicReferenceArray<SlowAuthorization> entries;
+
+    private final AtomicLong recorded = new AtomicLong();
+
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     * Configure from system properties.
+     */
+    public SlowAuthorizationLog() {
+        setThresholdMillis(Long.getLong("fcrepo.auth.roles.slow.thresholdMillis", -1));
+        setSampleRate(Double.parseDouble(System.getProperty("fcrepo.auth.roles.slow.sampleRate", "0.1")));
+        setBufferSize(Integer.getInteger("fcrepo.auth.roles.slow.bufferSize", 256));
+        setLogsPerSecond(Double.parseDouble(System.getProperty("fcrepo.auth.roles.slow.logsPerSecond", "10")));
+    }
+
+    /**
+     * @param thresholdMillis decisions taking at least this long are recorded; a negative value disables the log
+     */
+    public void setThresholdMillis(final long thresholdMillis) {
+        this.thresholdNanos = thresholdMillis < 0 ? -1 : MILLISECONDS.toNanos(thresholdMillis);
+    }
+
+    /**
+     * @param sampleRate the fraction of decisions to trace, between 0 and 1
+     */
+    public void setSampleRate(final double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * @param bufferSize the number of recent slow decisions to keep; changing it discards those already kept
+     */
+    public void setBufferSize(final int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+        }
+        this.entries = new AtomicReferenceArray<>(bufferSize);
+    }
+
+    /**
+     * @param logsPerSecond the maximum number of slow decisions to log each second
+     */
+    public void setLogsPerSecond(final double logsPerSecond) {
+        this.logLimiter = RateLimiter.create(logsPerSecond);
+    }
+
+    /**
+     * @return true if this decision should be traced so that it can be recorded if slow
+     */
+    public boolean shouldTrace() {
+        if (thresholdNanos < 0) {
+            return false;
+        }
+        final double rate = sampleRate;
+        return rate >= 1 || (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    /**
+     * Record a finished decision if it exceeded the threshold.
+     *
+     * @param trace the trace of the decision
+     */
+    public void record(final AuthorizationTrace trace) {
+        final long threshold = thresholdNanos;
+        if (threshold < 0 || trace.getDurationNanos() < threshold) {
+            return;
+        }
+        final SlowAuthorization entry = new SlowAuthorization(trace, currentTimeMillis());
+        final AtomicReferenceArray<SlowAuthorization> buffer = entries;
+        buffer.set((int) (recorded.getAndIncrement() % buffer.length()), entry);
+
+        if (logLimiter.tryAcquire()) {
+            LOGGER.warn("Slow authorization: path={} actions={} permitted={} durationMs={} principals={} " +
+                    "governingAcl={} walkDepth={} nodesVisited={} sessionNs={} walkNs={} resolveNs={} " +
+                    "evaluateNs={} suppressed={}",
+                    entry.getPath(), entry.getActions(), entry.isPermitted(),
+                    NANOSECONDS.toMillis(entry.getDurationNanos()), entry.getPrincipalCount(),
+                    entry.getGoverningAcl(), entry.getWalkDepth(), entry.getNodesVisited(),
+                    trace.getStageNanos(Stage.SESSION), trace.getStageNanos(Stage.WALK),
+                    trace.getStageNanos(Stage.RESOLVE), trace.getStageNanos(Stage.EVALUATE),
+                    suppressed.getAndSet(0));
+        } else {
+            suppressed.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param limit the maximum number of decisions to return
+     * @return the slowest of the recently recorded decisions, slowest first
+     */
+    public List<SlowAuthorization> getSlowest(final int limit) {
+        final AtomicReferenceArray<SlowAuthorization> buffer = entries;
+        final List<SlowAuthorization> slowest = new ArrayList<>(buffer.length());
+        for (int i = 0; i < buffer.length(); i++) {
+            final SlowAuthorization entry = buffer.get(i);
+            if (entry != null) {
+                slowest.add(entry);
+            }
+        }
+        slowest.sort(comparingLong(SlowAuthorization::getDurationNanos).reversed());
+        return slowest.subList(0, Math.min(limit, slowest.size()));
+    }
+
+    /**
+     * @return the number of slow decisions recorded since startup
+     */
+    public long getRecordedCount() {
+        return recorded.get();
+    }
+
+    /**
+     * A recorded slow decision.
+     */
+    public static class SlowAuthorization {
+
+        private final long timestamp;
+
+        private final String path;
+
+        private final List<String> actions;
+
+        private final boolean permitted;
+
+        private final long durationNanos;
+
+        private final int principalCount;
+
+        private final String governingAcl;
+
+        private final int walkDepth;
+
+        private final int nodesVisited;
+
+        private final Map<String, Long> stageNanos = new LinkedHashMap<>();
+
+        SlowAuthorization(final AuthorizationTrace trace, final long timestamp) {
+            this.timestamp = timestamp;
+            this.path = trace.getPath();
+            this.actions = asList(trace.getActions());
+            this.permitted = trace.isPermitted();
+            this.durationNanos = trace.getDurationNanos();
+            this.principalCount = trace.getPrincipalCount();
+            this.governingAcl = trace.getGoverningAclPath();
+            this.walkDepth = trace.getWalkDepth();
+            this.nodesVisited = trace.getNodesVisited();
+            for (final Stage stage : Stage.values()) {
+                stageNanos.put(stage.name().toLowerCase(), trace.getStageNanos(stage));
+            }
+        }
+
+        /**
+         * @return when the decision finished, in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return the path checked
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the actions requested
+         */
+        public List<String> getActions() {
+            return actions;
+        }
+
+        /**
+         * @return whether the actions were permitted
+         */
+        public boolean isPermitted() {
+            return permitted;
+        }
+
+        /**
+         * @return how long the decision took
+         */
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        /**
+         * @return the number of principals the request carried
+         */
+        public int getPrincipalCount() {
+            return principalCount;
+        }
+
+        /**
+         * @return the path of the governing ACL, or null
+         */
+        public String getGoverningAcl() {
+            return governingAcl;
+        }
+
+        /**
+         * @return the number of ancestors walked to find the governing ACL
+         */
+        public int getWalkDepth() {
+            return walkDepth;
+        }
+
+        /**
+         * @return the number of nodes read, including those of a recursive remove check
+         */
+        public int getNodesVisited() {
+            return nodesVisited;
+        }
+
+        /**
+         * @return the time spent in each stage of the decision
+         */
+        public Map<String, Long> getStageNanos() {
+            return stageNanos;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.Collection;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * The ACL changes made in each open transaction, and not yet committed. Within a Fedora transaction, a change made
+ * through {@link AccessRoles} is saved only in the transaction's session, while decisions read ACLs through a fresh
+ * internal session or from the {@link PrincipalIndex}, neither of which sees it. The change is therefore recorded
+ * here, against the transaction's session, and consulted ahead of those shared structures for requests made in that
+ * session, so the transaction sees its own changes and every other session is still served from the shared
+ * structures. Administrative requests that change ACLs in bulk, or through a template shared by many nodes, are
+ * refused within a transaction rather than recorded here.
+ * <p>
+ * The changes of a session are discarded once it has no pending changes or is closed, that is when its transaction
+ * commits or rolls back. Committed changes then reach the shared structures by the usual path: they are read from the
+ * repository again, and the index learns of them from the observation listener.
+ * </p>
+ */
+@Component
+public class TransactionAclOverlay {
+
+    private static final Logger LOGGER = getLogger(TransactionAclOverlay.class);
+
+    // sessions are compared by identity and not kept alive by their changes
+    private final Cache<Session, PathTrie<AclChange>> overlays = CacheBuilder.newBuilder().weakKeys().build();
+
+    /**
+     * Record the ACL of a node as changed, but not committed, in a session.
+     *
+     * @param session the session holding the change
+     * @param path the JCR path of the node
+     * @param acl the roles of each principal assigned directly on the node after the change, or null if it no longer
+     *        has an ACL
+     */
+    public void record(final Session session, final String path, final Map<String, Collection<String>> acl) {
+        overlays.asMap().computeIfAbsent(session, s -> new PathTrie<>()).put(path, new AclChange(acl));
+        LOGGER.debug("Recorded uncommitted ACL change at {}", path);
+    }
+
+    /**
+     * @param session a session
+     * @return true if the session has uncommitted ACL changes
+     */
+    public boolean hasChanges(final Session session) {
+        return changes(session) != null;
+    }
+
+    /**
+     * @param session a session
+     * @param path a JCR path
+     * @return true if the session changed the ACL of the node at the path or one of its ancestors
+     */
+    public boolean affects(final Session session, final String path) {
+        final PathTrie<AclChange> changes = changes(session);
+        return changes != null && changes.longestPrefixLength(path) >= 0;
+    }
+
+    /**
+     * @param session a session
+     * @param path a JCR path
+     * @return the uncommitted change the session made to the ACL of the node at the path, or null if it made none
+     */
+    public AclChange getChange(final Session session, final String path) {
+        final PathTrie<AclChange> changes = changes(session);
+        return changes == null ? null : changes.get(path);
+    }
+
+    /**
+     * Forget the changes recorded for a session.
+     *
+     * @param session a session
+     */
+    public void discard(final Session session) {
+        overlays.invalidate(session);
+    }
+
+    /**
+     * @return the number of sessions with recorded changes
+     */
+    public long size() {
+        overlays.cleanUp();
+        return overlays.size();
+    }
+
+    /**
+     * @return the changes recorded for a session, or null if it has none or has since committed or rolled back
+     */
+    private PathTrie<AclChange> changes(final Session session) {
+        final PathTrie<AclChange> changes = overlays.getIfPresent(session);
+        if (changes == null) {
+            return null;
+        }
+        try {
+            if (session.isLive() && session.hasPendingChanges()) {
+                return changes;
+            }
+        } catch (final RepositoryException e) {
+            LOGGER.warn("Unable to tell whether a session has pending changes: {}", e.getMessage());
+        }
+        discard(session);
+        return null;
+    }
+
+    /**
+     * An uncommitted change to the ACL of one node.
+     */
+    public static final class AclChange {
+
+        private final Map<String, Collection<String>> acl;
+
+        private AclChange(final Map<String, Collection<String>> acl) {
+            this.acl = acl;
+        }
+
+        /**
+         * @return the roles of each principal assigned directly on the node, or null if its ACL was removed
+         */
+        public Map<String, Collection<String>> getAcl() {
+            return acl;
+        }
+    }
+}
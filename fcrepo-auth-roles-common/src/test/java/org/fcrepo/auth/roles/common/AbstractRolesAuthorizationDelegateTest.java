@@ -18,33 +18,60 @@
 package org.fcrepo.auth.roles.common;
 
 import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.fcrepo.auth.common.FedoraAuthorizationDelegate.FEDORA_ALL_PRINCIPALS;
+import static org.fcrepo.auth.common.FedoraAuthorizationDelegate.FEDORA_USER_PRINCIPAL;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.rbaclAssignable;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
 
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
+import org.fcrepo.kernel.modeshape.FedoraSessionImpl;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.ValueFactories;
 
 import java.security.Principal;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
 /**
  * @author Mike Daines
  */
 public class AbstractRolesAuthorizationDelegateTest {
 
+    private static final ValueFactories VALUES = new ExecutionContext().getValueFactories();
+
     @Mock
     private Principal principalA;
 
     @Mock
     private Principal principalB;
 
+    @Mock
+    private Session session;
+
     @Before
     public void setUp() {
         initMocks(this);
@@ -89,4 +116,303 @@ public class AbstractRolesAuthorizationDelegateTest {
                 0, roles.size());
     }
 
+    @Test
+    public void shouldFilterPermittedPathsFromRepository() throws RepositoryException {
+        final AccessRolesProvider provider = mock(AccessRolesProvider.class);
+        final Node a = node("/a", true);
+        final Node b = node("/a/b", true);
+        final Node c = node("/a/c", true);
+        final Node root = mock(Node.class);
+        when(session.getRootNode()).thenReturn(root);
+        when(provider.getRoles(a, true)).thenReturn(singletonMap("a", asList("reader")));
+        when(provider.getRoles(b, true)).thenReturn(singletonMap("b", asList("reader")));
+        when(provider.getRoles(c, true)).thenReturn(singletonMap("b", asList("reader")));
+        when(provider.getRoles(root, true)).thenReturn(singletonMap("b", asList("reader")));
+
+        final AbstractRolesAuthorizationDelegate delegate = new AbstractRolesAuthorizationDelegate() {
+
+            @Override
+            public boolean rolesHavePermission(final Session userSession, final String absPath,
+                    final String[] actions, final Set<String> roles) {
+                return roles.contains("reader");
+            }
+
+            @Override
+            public Principal getEveryonePrincipal() {
+                return null;
+            }
+        };
+        setField(delegate, "accessRolesProvider", provider);
+        setField(delegate, "sessionFactory", sessionFactory(session));
+
+        when(session.getAttribute(FEDORA_USER_PRINCIPAL)).thenReturn(principalA);
+        when(session.getAttribute(FEDORA_ALL_PRINCIPALS)).thenReturn(singleton(principalA));
+
+        final BitSet permitted = delegate.filterPermitted(session,
+                asList("/a", "/a/c", "/a/b", "/a/b/d", "/e"), new String[] { "read" });
+
+        assertEquals("Only the paths governed by /a should be readable", BitSet.valueOf(new long[] { 0b00001 }),
+                permitted);
+    }
+
+    @Test
+    public void shouldDenyWriterChangesToAclNodesInFilter() throws RepositoryException {
+        final AccessRolesProvider provider = mock(AccessRolesProvider.class);
+        final Node a = node("/a", true);
+        final Node acl = node("/a/authz:rbacl", false);
+        when(provider.getRoles(a, true)).thenReturn(singletonMap("a", asList("writer")));
+        when(provider.getRoles(acl, true)).thenReturn(singletonMap("a", asList("writer")));
+        when(session.getNamespaceURI("authz")).thenReturn(Constants.JcrName.NS_URI);
+
+        final AbstractRolesAuthorizationDelegate delegate = new AbstractRolesAuthorizationDelegate() {
+
+            @Override
+            public boolean rolesHavePermission(final Session userSession, final String absPath,
+                    final String[] actions, final Set<String> roles) {
+                // as the basic delegate does, keep writers from changing ACL nodes
+                return roles.contains("writer") &&
+                        (!absPath.contains(AUTHZ_DETECTION) || asList(actions).equals(asList("read")));
+            }
+
+            @Override
+            public Principal getEveryonePrincipal() {
+                return null;
+            }
+        };
+        setField(delegate, "accessRolesProvider", provider);
+        setField(delegate, "sessionFactory", sessionFactory(session));
+
+        final BitSet permitted = delegate.filterPermitted(singleton("a"), asList("/a/authz:rbacl", "/a"),
+                new String[] { "add_node" });
+
+        assertEquals("A writer should not be permitted to change an ACL node", BitSet.valueOf(new long[] { 0b10 }),
+                permitted);
+    }
+
+    @Test
+    public void shouldExplainAclNodeDecisionAsHasPermission() throws RepositoryException {
+        final AccessRolesProvider provider = mock(AccessRolesProvider.class);
+        final Node acl = node("/a/authz:rbacl", false);
+        final Path path = VALUES.getPathFactory().create(VALUES.getPathFactory().create("/a"),
+                VALUES.getNameFactory().create(Constants.JcrName.NS_URI, "rbacl"));
+        final Map<String, Collection<String>> writer = singletonMap("a", asList("writer"));
+        when(provider.getRoles(acl, true)).thenReturn(writer);
+        when(provider.findRolesForPath(path, session)).thenReturn(writer);
+        when(session.getNamespaceURI("authz")).thenReturn(Constants.JcrName.NS_URI);
+        when(session.getAttribute(FEDORA_USER_PRINCIPAL)).thenReturn(principalA);
+        when(session.getAttribute(FEDORA_ALL_PRINCIPALS)).thenReturn(singleton(principalA));
+        final String[] addNode = { "add_node" };
+
+        final AbstractRolesAuthorizationDelegate delegate = new AbstractRolesAuthorizationDelegate() {
+
+            @Override
+            public boolean rolesHavePermission(final Session userSession, final String absPath,
+                    final String[] actions, final Set<String> roles) {
+                // as the basic delegate does, keep writers from changing ACL nodes
+                return roles.contains("writer") &&
+                        (!absPath.contains(AUTHZ_DETECTION) || asList(actions).equals(asList("read")));
+            }
+
+            @Override
+            public Principal getEveryonePrincipal() {
+                return null;
+            }
+        };
+        setField(delegate, "accessRolesProvider", provider);
+        setField(delegate, "sessionFactory", sessionFactory(session));
+
+        assertFalse("A writer should not be permitted to change an ACL node",
+                delegate.hasPermission(session, path, addNode));
+        assertFalse("The explanation should agree with the decision",
+                delegate.explain("/a/authz:rbacl", singleton("a"), addNode).isPermitted());
+    }
+
+    @Test
+    public void shouldFilterWithUncommittedChangesOfSession() throws RepositoryException {
+        when(session.isLive()).thenReturn(true);
+        when(session.hasPendingChanges()).thenReturn(true);
+        when(session.getAttribute(FEDORA_USER_PRINCIPAL)).thenReturn(principalA);
+        when(session.getAttribute(FEDORA_ALL_PRINCIPALS)).thenReturn(singleton(principalA));
+        final TransactionAclOverlay overlay = new TransactionAclOverlay();
+        // in the transaction, /a/b is opened to a and /a loses its ACL
+        overlay.record(session, "/a/b", singletonMap("a", singleton("reader")));
+        overlay.record(session, "/a", null);
+
+        final AbstractRolesAuthorizationDelegate delegate = new AbstractRolesAuthorizationDelegate() {
+
+            @Override
+            public boolean rolesHavePermission(final Session userSession, final String absPath,
+                    final String[] actions, final Set<String> roles) {
+                return roles.contains("reader");
+            }
+
+            @Override
+            public Principal getEveryonePrincipal() {
+                return null;
+            }
+        };
+        // outside the transaction's changes, /e has the default roles
+        final AccessRolesProvider provider = mock(AccessRolesProvider.class);
+        final Session internalSession = mock(Session.class);
+        final Node root = mock(Node.class);
+        when(internalSession.getRootNode()).thenReturn(root);
+        when(provider.getRoles(root, true)).thenReturn(singletonMap("b", asList("reader")));
+        setField(delegate, "transactionAclOverlay", overlay);
+        setField(delegate, "accessRolesProvider", provider);
+        setField(delegate, "sessionFactory", sessionFactory(internalSession));
+
+        final BitSet permitted = delegate.filterPermitted(session,
+                asList("/a", "/a/c", "/a/b", "/a/b/d", "/e"), new String[] { "read" });
+
+        assertEquals("Only the paths governed by /a/b should be readable", BitSet.valueOf(new long[] { 0b01100 }),
+                permitted);
+    }
+
+    @Test
+    public void shouldAuditFailedDecision() {
+        final AuthorizationAuditLog auditLog = mock(AuthorizationAuditLog.class);
+        when(auditLog.isEnabled()).thenReturn(true);
+        final SessionFactory sessionFactory = mock(SessionFactory.class);
+        when(sessionFactory.getInternalSession()).thenThrow(
+                new RepositoryRuntimeException(new RepositoryException("unavailable")));
+        when(session.getAttribute(FEDORA_USER_PRINCIPAL)).thenReturn(principalA);
+        when(session.getAttribute(FEDORA_ALL_PRINCIPALS)).thenReturn(singleton(principalA));
+        final Path path = mock(Path.class);
+        final String[] read = { "read" };
+
+        final AbstractRolesAuthorizationDelegate delegate = new AbstractRolesAuthorizationDelegate() {
+
+            @Override
+            public boolean rolesHavePermission(final Session userSession, final String absPath,
+                    final String[] actions, final Set<String> roles) {
+                return true;
+            }
+
+            @Override
+            public Principal getEveryonePrincipal() {
+                return null;
+            }
+        };
+        setField(delegate, "authorizationAuditLog", auditLog);
+        setField(delegate, "sessionFactory", sessionFactory);
+
+        try {
+            delegate.hasPermission(session, path, read);
+            fail("The decision should have failed");
+        } catch (final RepositoryRuntimeException e) {
+            verify(auditLog).offer(principalA, path, read, false);
+        }
+    }
+
+    @Test
+    public void shouldPermitNothingWithoutUserPrincipal() {
+        final AbstractRolesAuthorizationDelegate delegate = new AbstractRolesAuthorizationDelegate() {
+
+            @Override
+            public boolean rolesHavePermission(final Session userSession, final String absPath,
+                    final String[] actions, final Set<String> roles) {
+                return true;
+            }
+
+            @Override
+            public Principal getEveryonePrincipal() {
+                return null;
+            }
+        };
+
+        assertTrue(delegate.filterPermitted(session, asList("/a"), new String[] { "read" }).isEmpty());
+    }
+
+    private Node node(final String path, final boolean ownAcl) throws RepositoryException {
+        final Node node = mock(Node.class);
+        when(node.isNodeType(rbaclAssignable.getQualified())).thenReturn(ownAcl);
+        when(session.nodeExists(path)).thenReturn(true);
+        when(session.getNode(path)).thenReturn(node);
+        return node;
+    }
+
+    private static SessionFactory sessionFactory(final Session jcrSession) {
+        final FedoraSessionImpl internalSession = mock(FedoraSessionImpl.class);
+        when(internalSession.getJcrSession()).thenReturn(jcrSession);
+        final SessionFactory sessionFactory = mock(SessionFactory.class);
+        when(sessionFactory.getInternalSession()).thenReturn(internalSession);
+        return sessionFactory;
+    }
+
+    @Test
+    public void shouldResolveSiblingsUnderOneParentOnce() throws RepositoryException {
+        final AccessRolesProvider provider = mock(AccessRolesProvider.class);
+        final Node parent = node("/p", true);
+        final Node restricted = node("/p/b", true);
+        node("/p/a", false);
+        node("/p/c", false);
+        when(provider.getRoles(parent, true)).thenReturn(singletonMap("a", asList("reader")));
+        when(provider.getRoles(restricted, true)).thenReturn(singletonMap("b", asList("reader")));
+
+        final AbstractRolesAuthorizationDelegate delegate = new AbstractRolesAuthorizationDelegate() {
+
+            @Override
+            public boolean rolesHavePermission(final Session userSession, final String absPath,
+                    final String[] actions, final Set<String> roles) {
+                return roles.contains("reader");
+            }
+
+            @Override
+            public Principal getEveryonePrincipal() {
+                return null;
+            }
+        };
+        setField(delegate, "accessRolesProvider", provider);
+        setField(delegate, "sessionFactory", sessionFactory(session));
+        delegate.setSiblingAclReuse(true);
+
+        final BitSet permitted = delegate.filterPermitted(singleton("a"), asList("/p/a", "/p/b", "/p/c"),
+                new String[] { "read" });
+
+        assertEquals("Only the children without an ACL of their own should be readable",
+                BitSet.valueOf(new long[] { 0b101 }), permitted);
+        verify(provider, times(1)).getRoles(parent, true);
+    }
+
+    @Test
+    public void shouldReuseParentAclAcrossSiblingChecksUntilItChanges() throws RepositoryException {
+        final AccessRolesProvider provider = mock(AccessRolesProvider.class);
+        final Node parent = node("/p", true);
+        node("/p/a", false);
+        node("/p/c", false);
+        when(provider.getRoles(parent, true)).thenReturn(singletonMap("a", asList("reader")));
+        when(provider.getRolesVersion(parent, true)).thenReturn("v1");
+        when(session.getAttribute(FEDORA_USER_PRINCIPAL)).thenReturn(principalA);
+        when(session.getAttribute(FEDORA_ALL_PRINCIPALS)).thenReturn(singleton(principalA));
+        final String[] read = { "read" };
+
+        final AbstractRolesAuthorizationDelegate delegate = new AbstractRolesAuthorizationDelegate() {
+
+            @Override
+            public boolean rolesHavePermission(final Session userSession, final String absPath,
+                    final String[] actions, final Set<String> roles) {
+                return roles.contains("reader");
+            }
+
+            @Override
+            public Principal getEveryonePrincipal() {
+                return null;
+            }
+        };
+        setField(delegate, "accessRolesProvider", provider);
+        setField(delegate, "sessionFactory", sessionFactory(session));
+        delegate.setSiblingAclReuse(true);
+
+        assertTrue(delegate.hasPermission(session, VALUES.getPathFactory().create("/p/a"), read));
+        assertTrue(delegate.hasPermission(session, VALUES.getPathFactory().create("/p/c"), read));
+        verify(provider, times(1)).getRoles(parent, true);
+
+        // the parent's ACL is changed to shut a out
+        when(provider.getRoles(parent, true)).thenReturn(singletonMap("b", asList("reader")));
+        when(provider.getRolesVersion(parent, true)).thenReturn("v2");
+
+        assertFalse("A changed ACL should be read again",
+                delegate.hasPermission(session, VALUES.getPathFactory().create("/p/a"), read));
+        verify(provider, times(2)).getRoles(parent, true);
+    }
 }
@@ -17,14 +17,28 @@
  */
 package org.fcrepo.auth.roles.common;
 
+import static com.google.common.collect.Iterators.size;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.Assignment;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.Rbacl;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.assignment;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.governed;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.governedPath;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.governingAcl;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.principal;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.rbacl;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.rbaclAssignable;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.role;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.template;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.version;
 import static org.fcrepo.kernel.modeshape.testutilities.TestNodeIterator.nodeIterator;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
@@ -35,10 +49,13 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -111,6 +128,7 @@ public class AccessRolesProviderTest {
         final Property roleProperty = mock(Property.class);
         final Value roleValue = mock(Value.class);
         when(roleValue.toString()).thenReturn(roleName);
+        when(roleValue.getString()).thenReturn(roleName);
         when(roleProperty.getValues()).thenReturn(new Value[] {roleValue});
         when(principalNode.getProperty(eq(role.getQualified())))
                 .thenReturn(roleProperty);
@@ -243,6 +261,35 @@ public class AccessRolesProviderTest {
                 "principal").contains("role"));
     }
 
+    @Test
+    public void testGetRolesEffectiveFromPointer() throws RepositoryException {
+        final GoverningAclPointers pointers = new GoverningAclPointers();
+        pointers.setEnabled(true);
+        setField(provider, "aclPointers", pointers);
+
+        final Node governing = mock(Node.class);
+        when(governing.getSession()).thenReturn(session);
+        when(governing.isNodeType(eq(rbaclAssignable.getQualified()))).thenReturn(true);
+        when(governing.getNode(eq(rbacl.getQualified()))).thenReturn(rbaclNode);
+        when(session.nodeExists(eq("/a"))).thenReturn(true);
+        when(session.getNode(eq("/a"))).thenReturn(governing);
+
+        when(node.getPath()).thenReturn("/a/b/c");
+        when(node.isNodeType(eq(governed.getQualified()))).thenReturn(true);
+        when(node.hasProperty(anyString())).thenReturn(true);
+        final Property aclProperty = mock(Property.class);
+        when(aclProperty.getString()).thenReturn("/a");
+        when(node.getProperty(eq(governingAcl.getQualified()))).thenReturn(aclProperty);
+        final Property pathProperty = mock(Property.class);
+        when(pathProperty.getString()).thenReturn("/a/b/c");
+        when(node.getProperty(eq(governedPath.getQualified()))).thenReturn(pathProperty);
+
+        final Map<String, Collection<String>> data = provider.getRoles(node, true);
+
+        assertEquals(singleton("role"), new HashSet<>(data.get("principal")));
+        verify(node, never()).getParent();
+    }
+
     @Test
     public void testGetRolesEffectiveAncestorParent()
             throws RepositoryException {
@@ -370,6 +417,30 @@ public class AccessRolesProviderTest {
         assertTrue(data.get("principal2").contains("role"));
     }
 
+    @Test
+    public void testIterateRolesMergesConsecutiveAssignments() throws RepositoryException {
+        final Node principalNode2 = mock(Node.class);
+        setupPrincipalNode(principalNode2, mock(Property.class), "principal2", "role");
+        final Node principalNode3 = mock(Node.class);
+        setupPrincipalNode(principalNode3, mock(Property.class), "principal", "role2");
+        when(node.isNodeType(rbaclAssignable.getQualified())).thenReturn(true);
+        when(node.hasNode(rbacl.getQualified())).thenReturn(true);
+        when(node.getNode(rbacl.getQualified())).thenReturn(rbaclNode);
+        when(rbaclNode.getNodes()).thenAnswer(i -> nodeIterator(principalNode1, principalNode3, principalNode2));
+
+        final Iterator<Map.Entry<String, Collection<String>>> page = provider.iterateRoles(node, false, 0, 3);
+
+        Map.Entry<String, Collection<String>> entry = page.next();
+        assertEquals("principal", entry.getKey());
+        assertEquals("Roles of every assignment should be merged", asList("role", "role2"),
+                new ArrayList<>(entry.getValue()));
+        entry = page.next();
+        assertEquals("principal2", entry.getKey());
+        assertFalse("The page should end at its limit", page.hasNext());
+        assertEquals("The principal should be written once", 2, size(provider.iterateRoles(node, false, 0)));
+        assertEquals("A page should read no further than its limit", 1, size(provider.iterateRoles(node, false, 0, 2)));
+    }
+
     @Test
     public void testGetRolesNullRoleValue() throws RepositoryException {
         // Set up parent node
@@ -504,6 +575,122 @@ public class AccessRolesProviderTest {
         verify(node, never()).addNode(anyString(), anyString());
     }
 
+    @Test
+    public void testPostRolesUnchanged() throws RepositoryException {
+        when(node.isNodeType(eq(rbaclAssignable.getQualified()))).thenReturn(true);
+        when(node.hasNode(eq(rbacl.getQualified()))).thenReturn(true);
+        when(node.getNode(eq(rbacl.getQualified()))).thenReturn(rbaclNode);
+
+        provider.postRoles(node, singletonMap("principal", singleton("role")));
+
+        // identical assignments are neither removed nor recreated
+        verify(principalNode1, never()).remove();
+        verify(rbaclNode, never()).addNode(anyString(), anyString());
+    }
+
+    @Test
+    public void testPostRolesChangesVersion() throws RepositoryException {
+        setUpExistingAcl();
+
+        provider.postRoles(node, singletonMap("principal", singleton("role2")));
+
+        verify(rbaclNode).setProperty(eq(version.getQualified()), anyString());
+    }
+
+    @Test
+    public void testGetRolesVersion() throws RepositoryException {
+        final Node parentNode1 = mock(Node.class);
+        when(parentNode1.isNodeType(eq(rbaclAssignable.getQualified()))).thenReturn(true);
+        when(parentNode1.hasNode(eq(rbacl.getQualified()))).thenReturn(true);
+        when(parentNode1.getNode(eq(rbacl.getQualified()))).thenReturn(rbaclNode);
+        when(node.getParent()).thenReturn(parentNode1);
+        final Property versionProperty = mock(Property.class);
+        when(versionProperty.getString()).thenReturn("v1");
+        when(rbaclNode.hasProperty(eq(version.getQualified()))).thenReturn(true);
+        when(rbaclNode.getProperty(eq(version.getQualified()))).thenReturn(versionProperty);
+
+        assertEquals("The governing ACL's version should be found", "v1", provider.getRolesVersion(node, true));
+        assertNull("A node without its own ACL has no own roles version", provider.getRolesVersion(node, false));
+    }
+
+    @Test
+    public void testGetRolesVersionDefault() throws RepositoryException {
+        when(node.getParent()).thenThrow(new ItemNotFoundException());
+
+        assertEquals(RbAclAccessRolesProvider.DEFAULT_ROLES_VERSION, provider.getRolesVersion(node, true));
+    }
+
+    private void setUpExistingAcl() throws RepositoryException {
+        when(node.isNodeType(eq(rbaclAssignable.getQualified()))).thenReturn(true);
+        when(node.hasNode(eq(rbacl.getQualified()))).thenReturn(true);
+        when(node.getNode(eq(rbacl.getQualified()))).thenReturn(rbaclNode);
+    }
+
+    @Test
+    public void testPatchRolesAddsOnlyNewPrincipal() throws RepositoryException {
+        setUpExistingAcl();
+        final Node assignNode = mock(Node.class);
+        when(rbaclNode.addNode(anyString(), anyString())).thenReturn(assignNode);
+
+        provider.patchRoles(node, singletonMap("other", singleton("reader")), emptyMap());
+
+        verify(rbaclNode).addNode(eq(assignment.getQualified()), eq(Assignment.getQualified()));
+        verify(assignNode).setProperty(eq(principal.getQualified()), eq("other"));
+        // the existing assignment is neither rewritten nor removed
+        verify(principalNode1, never()).setProperty(anyString(), any(String[].class));
+        verify(principalNode1, never()).remove();
+        verify(node, never()).addMixin(anyString());
+    }
+
+    @Test
+    public void testPatchRolesChangesOnlyAffectedPrincipal() throws RepositoryException {
+        final Node principalNode2 = mock(Node.class);
+        setupPrincipalNode(principalNode2, mock(Property.class), "principal2", "role");
+        when(rbaclNode.getNodes()).thenReturn(nodeIterator(principalNode1, principalNode2));
+        setUpExistingAcl();
+
+        provider.patchRoles(node, singletonMap("principal", singleton("role2")),
+                singletonMap("principal", singleton("role")));
+
+        verify(principalNode1).setProperty(eq(role.getQualified()), eq(new String[] {"role2"}));
+        verify(principalNode2, never()).setProperty(anyString(), any(String[].class));
+        verify(rbaclNode, never()).addNode(anyString(), anyString());
+    }
+
+    @Test
+    public void testPatchRolesUnassignsPrincipalWithoutRoles() throws RepositoryException {
+        final Node principalNode2 = mock(Node.class);
+        setupPrincipalNode(principalNode2, mock(Property.class), "principal2", "role");
+        when(rbaclNode.getNodes()).thenReturn(nodeIterator(principalNode1, principalNode2));
+        setUpExistingAcl();
+
+        provider.patchRoles(node, emptyMap(), singletonMap("principal", singleton("role")));
+
+        verify(principalNode1).remove();
+        verify(principalNode2, never()).remove();
+    }
+
+    @Test
+    public void testPatchRolesUnchanged() throws RepositoryException {
+        setUpExistingAcl();
+
+        provider.patchRoles(node, singletonMap("principal", singleton("role")), emptyMap());
+
+        verify(principalNode1, never()).setProperty(anyString(), any(String[].class));
+        verify(rbaclNode, never()).addNode(anyString(), anyString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPatchRolesLeavingNoAssignments() throws RepositoryException {
+        setUpExistingAcl();
+
+        try {
+            provider.patchRoles(node, emptyMap(), singletonMap("principal", singleton("role")));
+        } finally {
+            verify(principalNode1, never()).remove();
+        }
+    }
+
     @Test
     public void testDeleteRolesNonAssignable() throws RepositoryException {
 
@@ -673,4 +860,98 @@ public class AccessRolesProviderTest {
             verify(session, times(2)).getNode(anyString());
         }
     }
+
+    /**
+     * Make a node refer to the template "staff", held in rbaclNode at the given version.
+     */
+    private void setUpTemplate(final Node referrer, final String templateVersion) throws RepositoryException {
+        when(referrer.getSession()).thenReturn(session);
+        when(referrer.isNodeType(eq(rbaclAssignable.getQualified()))).thenReturn(true);
+        when(referrer.getNode(eq(rbacl.getQualified()))).thenThrow(new PathNotFoundException());
+        when(referrer.hasProperty(eq(template.getQualified()))).thenReturn(true);
+        final Property templateProperty = mock(Property.class);
+        when(templateProperty.getString()).thenReturn("staff");
+        when(referrer.getProperty(eq(template.getQualified()))).thenReturn(templateProperty);
+        when(session.nodeExists(eq("/authz:templates/staff"))).thenReturn(true);
+        when(session.getNode(eq("/authz:templates/staff"))).thenReturn(rbaclNode);
+        final Property versionProperty = mock(Property.class);
+        when(versionProperty.getString()).thenReturn(templateVersion);
+        when(rbaclNode.hasProperty(eq(version.getQualified()))).thenReturn(true);
+        when(rbaclNode.getProperty(eq(version.getQualified()))).thenReturn(versionProperty);
+    }
+
+    @Test
+    public void testGetRolesFromTemplateIsShared() throws RepositoryException {
+        final Node other = mock(Node.class);
+        setUpTemplate(node, "v1");
+        setUpTemplate(other, "v1");
+
+        final Map<String, Collection<String>> data = provider.getRoles(node, false);
+        final Map<String, Collection<String>> shared = provider.getRoles(other, true);
+
+        assertEquals(singleton("role"), new HashSet<>(data.get("principal")));
+        assertSame("Nodes referring to one template should share its compiled roles", data, shared);
+        verify(rbaclNode, times(1)).getNodes();
+        assertEquals("v1", provider.getRolesVersion(other, true));
+    }
+
+    @Test
+    public void testGetRolesFromChangedTemplate() throws RepositoryException {
+        setUpTemplate(node, "v1");
+        provider.getRoles(node, false);
+
+        final Node principalNode2 = mock(Node.class);
+        setupPrincipalNode(principalNode2, mock(Property.class), "other", "reader");
+        when(rbaclNode.getNodes()).thenReturn(nodeIterator(principalNode2));
+        final Property versionProperty = mock(Property.class);
+        when(versionProperty.getString()).thenReturn("v2");
+        when(rbaclNode.getProperty(eq(version.getQualified()))).thenReturn(versionProperty);
+
+        final Map<String, Collection<String>> data = provider.getRoles(node, false);
+
+        assertEquals("A new version of the template should be read again", singleton("other"), data.keySet());
+    }
+
+    @Test
+    public void testUseTemplateReplacesOwnAcl() throws RepositoryException {
+        setUpExistingAcl();
+        when(session.nodeExists(eq("/authz:templates/staff"))).thenReturn(true);
+        when(session.getNode(eq("/authz:templates/staff"))).thenReturn(mock(Node.class));
+
+        provider.useTemplate(node, "staff");
+
+        verify(rbaclNode).remove();
+        verify(node).setProperty(eq(template.getQualified()), eq("staff"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUseMissingTemplate() throws RepositoryException {
+        provider.useTemplate(node, "staff");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUseInvalidTemplateName() throws RepositoryException {
+        provider.useTemplate(node, "../staff");
+    }
+
+    @Test
+    public void testPostRolesReplacesTemplate() throws RepositoryException {
+        setUpTemplate(node, "v1");
+        final Property templateProperty = node.getProperty(template.getQualified());
+        final Node newAcl = mock(Node.class);
+        when(node.addNode(eq(rbacl.getQualified()), eq(Rbacl.getQualified()))).thenReturn(newAcl);
+        when(newAcl.addNode(anyString(), anyString())).thenReturn(mock(Node.class));
+
+        provider.postRoles(node, singletonMap("principal", singleton("role")));
+
+        verify(templateProperty).remove();
+        verify(newAcl).setProperty(eq(version.getQualified()), anyString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPatchTemplatedNodeRejected() throws RepositoryException {
+        setUpTemplate(node, "v1");
+
+        provider.patchRoles(node, singletonMap("principal", singleton("role2")), emptyMap());
+    }
 }
@@ -17,33 +17,46 @@
  */
 package org.fcrepo.auth.roles.common;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
 import static org.fcrepo.http.commons.test.util.TestHelpers.mockSession;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.util.ReflectionTestUtils.setField;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.net.URI;
 import java.util.Collections;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.PathSegment;
 import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.fcrepo.http.commons.session.HttpSession;
 import org.fcrepo.kernel.api.FedoraSession;
@@ -51,13 +64,17 @@ import org.fcrepo.kernel.api.models.FedoraResource;
 import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
 import org.fcrepo.kernel.api.services.NodeService;
 import org.fcrepo.kernel.modeshape.FedoraSessionImpl;
+import org.glassfish.jersey.server.CloseableService;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import com.google.common.collect.Iterators;
+
 /**
  * @author bbpennel
  * @since Feb 12, 2014
@@ -96,6 +113,15 @@ public class AccessRolesTest {
 
     private Session jcrSession;
 
+    @Mock
+    private SecurityContext securityContext;
+
+    @Mock
+    private AbstractRolesAuthorizationDelegate authorizationDelegate;
+
+    @Mock
+    private CloseableService closeables;
+
     @Before
     public void setUp() throws RepositoryException {
         accessRoles = new AccessRoles("/some/path");
@@ -104,6 +130,7 @@ public class AccessRolesTest {
         setField(accessRoles, "nodeService", nodeService);
         jcrSession = mockSession(accessRoles);
         setField(accessRoles, "session", session);
+        setField(accessRoles, "closeables", closeables);
 
         when(session.getFedoraSession()).thenReturn(fedoraSession);
         when(fedoraSession.getJcrSession()).thenReturn(jcrSession);
@@ -171,6 +198,45 @@ public class AccessRolesTest {
         }
     }
 
+    @Test
+    public void testExplainRequiresAdmin() throws RepositoryException {
+        setField(accessRoles, "securityContext", securityContext);
+        setField(accessRoles, "authorizationDelegate", authorizationDelegate);
+        when(securityContext.isUserInRole("fedoraAdmin")).thenReturn(false);
+
+        final Response response = accessRoles.get(null, "", asList("someone"), null);
+
+        assertEquals("Explain must be forbidden to non-administrators", 403, response.getStatus());
+        verify(authorizationDelegate, never()).explain(anyString(), Matchers.<Collection<String>>any(),
+                any(String[].class));
+        verify(session).expire();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testExplain() throws RepositoryException {
+        setField(accessRoles, "securityContext", securityContext);
+        setField(accessRoles, "authorizationDelegate", authorizationDelegate);
+        when(securityContext.isUserInRole("fedoraAdmin")).thenReturn(true);
+        when(mockNode.getPath()).thenReturn("/some/path");
+
+        final AuthorizationTrace trace = AuthorizationTrace.start("/some/path", new String[] { "read" });
+        trace.foundGoverningAcl("/some", 1);
+        trace.finish(true);
+        when(authorizationDelegate.explain(eq("/some/path"), eq(asList("someone")), any(String[].class)))
+                .thenReturn(trace);
+
+        final Response response = accessRoles.get(null, "", asList("someone"), null);
+
+        assertEquals("Expecting OK response", 200, response.getStatus());
+        final Map<String, Object> explanation = (Map<String, Object>) response.getEntity();
+        assertEquals("/some", explanation.get("governingAcl"));
+        assertEquals(true, explanation.get("permitted"));
+        assertTrue("Stage timings should be reported", explanation.get("timingsNanos") instanceof Map);
+        verify(accessRolesProvider, never()).getRoles(any(Node.class), anyBoolean());
+        verify(session).expire();
+    }
+
     @Test(expected = WebApplicationException.class)
     public void testPostEmptyRoleData() throws RepositoryException {
 
@@ -289,6 +355,182 @@ public class AccessRolesTest {
         }
     }
 
+    @Test
+    public void testPatchRoles() throws RepositoryException {
+        final Map<String, Map<String, Set<String>>> data = new HashMap<>();
+        data.put("add", Collections.singletonMap("principalName", Collections.singleton("role1")));
+        data.put("remove", Collections.singletonMap("principalName", Collections.singleton("role2")));
+
+        final Response response = accessRoles.patch(data);
+
+        verify(accessRolesProvider).patchRoles(any(Node.class), eq(data.get("add")), eq(data.get("remove")));
+        verify(session).commit();
+        verify(session).expire();
+        assertEquals("Patch response must be NO CONTENT", 204, response.getStatus());
+    }
+
+    @Test(expected = WebApplicationException.class)
+    public void testPatchUnknownOperation() throws RepositoryException {
+        final Map<String, Map<String, Set<String>>> data = new HashMap<>();
+        data.put("replace", Collections.singletonMap("principalName", Collections.singleton("role1")));
+
+        try {
+            accessRoles.patch(data);
+        } finally {
+            verify(accessRolesProvider, never()).patchRoles(any(Node.class),
+                    Matchers.<Map<String, Set<String>>>any(), Matchers.<Map<String, Set<String>>>any());
+            verify(session, never()).commit();
+        }
+    }
+
+    @Test(expected = WebApplicationException.class)
+    public void testPatchNoChanges() throws RepositoryException {
+        final Map<String, Map<String, Set<String>>> data = new HashMap<>();
+        data.put("add", Collections.<String, Set<String>>emptyMap());
+
+        try {
+            accessRoles.patch(data);
+        } finally {
+            verify(session, never()).commit();
+            verify(session).expire();
+        }
+    }
+
+    @Test
+    public void testGetDataHasEntityTag() throws RepositoryException {
+        final Map<String, Collection<String>> data = new HashMap<>();
+        data.put("principalName", asList("role1", "role2"));
+        when(accessRolesProvider.getRoles(any(Node.class), anyBoolean())).thenReturn(data);
+
+        final Response response = accessRoles.get(null);
+
+        assertEquals(AccessRoles.rolesTag(data), response.getEntityTag());
+    }
+
+    @Test
+    public void testGetNotModified() throws RepositoryException {
+        final Map<String, Collection<String>> data = new HashMap<>();
+        data.put("principalName", asList("role1"));
+        when(accessRolesProvider.getRoles(any(Node.class), anyBoolean())).thenReturn(data);
+        when(request.evaluatePreconditions(AccessRoles.rolesTag(data))).thenReturn(Response.notModified());
+
+        final Response response = accessRoles.get(null);
+
+        assertEquals("Matching If-None-Match must get NOT MODIFIED", 304, response.getStatus());
+        assertNull(response.getEntity());
+    }
+
+    @Test
+    public void testGetVersionedFromCache() throws RepositoryException {
+        final AccessRolesRepresentationCache cache = new AccessRolesRepresentationCache();
+        setField(accessRoles, "representationCache", cache);
+        final Map<String, Collection<String>> data = new HashMap<>();
+        data.put("principalName", asList("role1"));
+        when(accessRolesProvider.getRolesVersion(any(Node.class), anyBoolean())).thenReturn("v1");
+        when(accessRolesProvider.getRoles(any(Node.class), anyBoolean())).thenReturn(data);
+
+        final Response first = accessRoles.get("");
+        final Response second = accessRoles.get("");
+
+        assertEquals(new EntityTag("v1"), first.getEntityTag());
+        assertEquals(new EntityTag("v1"), second.getEntityTag());
+        assertEquals("{\"principalName\":[\"role1\"]}", new String((byte[]) second.getEntity(), UTF_8));
+        // the second read is served from the cache without reading the roles again
+        verify(accessRolesProvider, times(1)).getRoles(any(Node.class), anyBoolean());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testGetVersionedNotModified() throws RepositoryException {
+        when(accessRolesProvider.getRolesVersion(any(Node.class), anyBoolean())).thenReturn("v1");
+        when(request.evaluatePreconditions(new EntityTag("v1"))).thenReturn(Response.notModified());
+
+        final Response response = accessRoles.get("");
+
+        assertEquals("Matching If-None-Match must get NOT MODIFIED", 304, response.getStatus());
+        verify(accessRolesProvider, never()).getRoles(any(Node.class), anyBoolean());
+    }
+
+    @Test
+    public void testGetPageStreams() throws Exception {
+        final Map<String, Collection<String>> data = new LinkedHashMap<>();
+        data.put("principal1", asList("role1"));
+        data.put("principal2", asList("role1", "role2"));
+        data.put("principal3", asList("role2"));
+        when(accessRolesProvider.iterateRoles(any(Node.class), anyBoolean(), eq(1L), eq(5L)))
+                .thenReturn(Iterators.skip(data.entrySet().iterator(), 1));
+        when(accessRolesProvider.countRoles(any(Node.class), anyBoolean())).thenReturn(3L);
+
+        final Response response = accessRoles.get(null, null, null, null, 5L, 1L);
+
+        assertEquals("Expecting OK response", 200, response.getStatus());
+        // the session stays open until the request is done with, written or not
+        verify(session, never()).expire();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(out);
+        assertEquals("{\"principal2\":[\"role1\",\"role2\"],\"principal3\":[\"role2\"]}",
+                new String(out.toByteArray(), UTF_8));
+        verify(session, never()).expire();
+        final ArgumentCaptor<Closeable> close = ArgumentCaptor.forClass(Closeable.class);
+        verify(closeables).add(close.capture());
+        close.getValue().close();
+        verify(session).expire();
+        verify(accessRolesProvider, never()).getRoles(any(Node.class), anyBoolean());
+    }
+
+    @Test(expected = WebApplicationException.class)
+    public void testGetPageNegativeOffset() throws RepositoryException {
+        try {
+            accessRoles.get(null, null, null, null, null, -1L);
+        } finally {
+            verify(session).expire();
+        }
+    }
+
+    @Test
+    public void testPostPreconditionFailed() throws RepositoryException {
+        final Map<String, Collection<String>> current = new HashMap<>();
+        current.put("principalName", asList("role1"));
+        when(accessRolesProvider.getRoles(any(Node.class), eq(false))).thenReturn(current);
+        when(request.evaluatePreconditions(any(EntityTag.class)))
+                .thenReturn(Response.status(Response.Status.PRECONDITION_FAILED));
+
+        final Map<String, Set<String>> data = new HashMap<>();
+        data.put("principalName", Collections.singleton("role2"));
+        final Response response = accessRoles.post(data);
+
+        assertEquals("Stale If-Match must get PRECONDITION FAILED", 412, response.getStatus());
+        verify(accessRolesProvider, never()).postRoles(any(Node.class), Matchers.<Map<String, Set<String>>>any());
+        verify(session, never()).commit();
+        verify(session).expire();
+    }
+
+    @Test
+    public void testDeletePreconditionFailed() throws RepositoryException {
+        when(request.evaluatePreconditions()).thenReturn(Response.status(Response.Status.PRECONDITION_FAILED));
+
+        final Response response = accessRoles.deleteNodeType();
+
+        assertEquals("If-Match on a node without roles must get PRECONDITION FAILED", 412, response.getStatus());
+        verify(accessRolesProvider, never()).deleteRoles(any(Node.class));
+        verify(session, never()).commit();
+    }
+
+    @Test
+    public void testRolesTagIgnoresOrder() {
+        final Map<String, Collection<String>> data = new HashMap<>();
+        data.put("a", asList("reader", "writer"));
+        data.put("b", asList("admin"));
+        final Map<String, Collection<String>> reordered = new TreeMap<>(Collections.reverseOrder());
+        reordered.put("b", asList("admin"));
+        reordered.put("a", asList("writer", "reader"));
+        final Map<String, Collection<String>> changed = new HashMap<>(data);
+        changed.put("b", asList("reader"));
+
+        assertEquals(AccessRoles.rolesTag(data), AccessRoles.rolesTag(reordered));
+        assertNotEquals(AccessRoles.rolesTag(data), AccessRoles.rolesTag(changed));
+    }
+
     @Test
     public void testDeleteRolesAtNode() throws RepositoryException {
         final Response response = accessRoles.deleteNodeType();
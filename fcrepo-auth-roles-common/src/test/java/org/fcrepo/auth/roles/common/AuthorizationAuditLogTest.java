@@ -0,0 +1,172 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Principal;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AuthorizationAuditLogTest {
+
+    private static final String[] READ = {"read"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private Principal principal;
+
+    @Test
+    public void shouldIgnoreDecisionsWhenDisabled() {
+        final AuthorizationAuditLog log = new AuthorizationAuditLog();
+        log.setFile(null);
+        log.start();
+
+        assertFalse(log.isEnabled());
+        assertFalse(log.offer(principal, "/a", READ, true));
+        assertEquals(0, log.getOfferedCount());
+    }
+
+    @Test
+    public void shouldRoundCapacityToPowerOfTwo() {
+        final AuthorizationAuditLog log = new AuthorizationAuditLog();
+        log.setCapacity(100);
+        assertEquals(128, log.getCapacity());
+        log.setCapacity(64);
+        assertEquals(64, log.getCapacity());
+    }
+
+    @Test
+    public void shouldDropNewestWhenFull() throws IOException {
+        final AuthorizationAuditLog log = new AuthorizationAuditLog();
+        log.setCapacity(2);
+        log.allocate();
+
+        assertTrue(log.offer(principal, "/a", READ, true));
+        assertTrue(log.offer(principal, "/b", READ, true));
+        assertFalse("A full buffer should drop the newest decision", log.offer(principal, "/c", READ, true));
+        assertEquals(3, log.getOfferedCount());
+        assertEquals(1, log.getDroppedCount());
+
+        final StringBuilder out = new StringBuilder();
+        assertEquals(2, log.drain(out));
+        assertTrue("Slots should be reusable once drained", log.offer(principal, "/d", READ, false));
+        assertEquals(1, log.drain(out));
+
+        final String[] lines = out.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].endsWith("\t/a"));
+        assertTrue(lines[2].endsWith("\t/d"));
+    }
+
+    @Test
+    public void shouldWriteEscapedRecords() throws IOException {
+        when(principal.getName()).thenReturn("some\tuser");
+        final AuthorizationAuditLog log = new AuthorizationAuditLog();
+        log.setCapacity(4);
+        log.allocate();
+        log.offer(principal, "/a", new String[] {"add_node", "set_property"}, false);
+
+        final StringBuilder out = new StringBuilder();
+        log.drain(out);
+        final String[] fields = out.toString().trim().split("\t");
+        assertEquals(5, fields.length);
+        assertEquals("DENY", fields[1]);
+        assertEquals("some\\tuser", fields[2]);
+        assertEquals("add_node,set_property", fields[3]);
+        assertEquals("/a", fields[4]);
+    }
+
+    @Test
+    public void shouldWriteToFileInBackground() throws IOException {
+        when(principal.getName()).thenReturn("user");
+        final File file = new File(folder.getRoot(), "audit/authz.log");
+        final AuthorizationAuditLog log = new AuthorizationAuditLog();
+        log.setFile(file.getPath());
+        log.setCapacity(16);
+        log.start();
+        for (int i = 0; i < 10; i++) {
+            log.offer(principal, "/path/" + i, READ, true);
+        }
+        log.stop();
+
+        final List<String> lines = Files.readAllLines(file.toPath(), UTF_8);
+        assertEquals(10, lines.size());
+        assertEquals(10, log.getWrittenCount());
+        assertTrue(lines.get(9).endsWith("\tPERMIT\tuser\tread\t/path/9"));
+    }
+
+    @Test
+    public void shouldWakeIdleWriterForNewDecision() throws InterruptedException {
+        when(principal.getName()).thenReturn("user");
+        final File file = new File(folder.getRoot(), "authz.log");
+        final AuthorizationAuditLog log = new AuthorizationAuditLog();
+        log.setFile(file.getPath());
+        log.start();
+        try {
+            // let the writer find the buffer empty and go to sleep
+            Thread.sleep(100);
+            log.offer(principal, "/a", READ, true);
+            final long deadline = System.currentTimeMillis() + 500;
+            while (log.getWrittenCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals("The decision should be written well before the writer's idle timeout", 1,
+                    log.getWrittenCount());
+        } finally {
+            log.stop();
+        }
+    }
+
+    @Test
+    public void shouldRollFiles() throws IOException {
+        when(principal.getName()).thenReturn("user");
+        final File file = new File(folder.getRoot(), "authz.log");
+        final AuthorizationAuditLog log = new AuthorizationAuditLog();
+        log.setFile(file.getPath());
+        log.setBatchSize(1);
+        log.setMaxFileBytes(1);
+        log.setMaxFiles(2);
+        log.start();
+        for (int i = 0; i < 5; i++) {
+            log.offer(principal, "/path/" + i, READ, true);
+        }
+        log.stop();
+
+        assertTrue("The audit file should have been rolled", log.getRolledCount() > 0);
+        assertTrue(new File(folder.getRoot(), "authz.log.1").exists());
+        assertFalse("Only the configured number of rolled files should be kept",
+                new File(folder.getRoot(), "authz.log.3").exists());
+    }
+}
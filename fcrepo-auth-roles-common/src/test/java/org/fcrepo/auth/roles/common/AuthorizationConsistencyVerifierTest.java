@@ -0,0 +1,155 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+public class AuthorizationConsistencyVerifierTest {
+
+    private static final String PATH = "/a/b";
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private Node node;
+
+    @Mock
+    private RbAclAccessRolesProvider accessRolesProvider;
+
+    @Mock
+    private PrincipalIndex principalIndex;
+
+    @Mock
+    private AccessRolesRepresentationCache representationCache;
+
+    private AuthorizationConsistencyVerifier verifier;
+
+    private AuthorizationConsistencyVerifier.Run run;
+
+    @Before
+    public void setUp() throws RepositoryException {
+        initMocks(this);
+        verifier = new AuthorizationConsistencyVerifier();
+        setField(verifier, "accessRolesProvider", accessRolesProvider);
+        setField(verifier, "principalIndex", principalIndex);
+        setField(verifier, "representationCache", representationCache);
+        run = new AuthorizationConsistencyVerifier.Run();
+        when(session.nodeExists(PATH)).thenReturn(true);
+        when(session.getNode(PATH)).thenReturn(node);
+        final Map<String, Collection<String>> stored = singletonMap("alice", asList("writer", "reader"));
+        when(accessRolesProvider.readAssignments(node)).thenReturn(stored);
+        when(accessRolesProvider.getRolesVersion(node, false)).thenReturn("v1");
+        when(principalIndex.isEnabled()).thenReturn(true);
+        when(principalIndex.isReady()).thenReturn(true);
+    }
+
+    private static Map<String, Set<String>> roles(final String principal, final String... roles) {
+        return AuthorizationConsistencyVerifier.normalize(singletonMap(principal, asList(roles)));
+    }
+
+    @Test
+    public void testConsistent() throws RepositoryException {
+        when(principalIndex.getAssignments(PATH)).thenReturn(roles("alice", "reader", "writer"));
+        when(representationCache.peek("v1"))
+                .thenReturn("{\"alice\":[\"reader\",\"writer\"]}".getBytes(StandardCharsets.UTF_8));
+        verifier.checkAcl(session, PATH, run);
+        assertTrue(run.getMismatches().isEmpty());
+        verify(principalIndex, never()).repair(anyString());
+        verify(representationCache, never()).invalidate(anyString());
+    }
+
+    @Test
+    public void testIndexRepaired() throws RepositoryException {
+        when(principalIndex.getAssignments(PATH)).thenReturn(roles("alice", "reader"));
+        verifier.checkAcl(session, PATH, run);
+        assertEquals(1, run.getMismatches().size());
+        assertEquals("principal index", run.getMismatches().get(0).get("structure"));
+        assertEquals(1, run.getRepaired());
+        verify(principalIndex).repair(PATH);
+    }
+
+    @Test
+    public void testIndexCaughtUpIsNotReported() throws RepositoryException {
+        when(principalIndex.getAssignments(PATH)).thenReturn(null, roles("alice", "reader", "writer"));
+        verifier.checkAcl(session, PATH, run);
+        assertTrue(run.getMismatches().isEmpty());
+        verify(principalIndex, never()).repair(anyString());
+    }
+
+    @Test
+    public void testCachedRepresentationInvalidated() throws RepositoryException {
+        when(principalIndex.getAssignments(PATH)).thenReturn(roles("alice", "reader", "writer"));
+        when(representationCache.peek("v1")).thenReturn("{\"bob\":[\"admin\"]}".getBytes(StandardCharsets.UTF_8));
+        verifier.checkAcl(session, PATH, run);
+        assertEquals("representation cache", run.getMismatches().get(0).get("structure"));
+        verify(representationCache).invalidate("v1");
+    }
+
+    @Test
+    public void testReportOnly() throws RepositoryException {
+        verifier.setRepair(false);
+        when(principalIndex.getAssignments(PATH)).thenReturn(roles("bob", "admin"));
+        verifier.checkAcl(session, PATH, run);
+        assertEquals(1, run.getMismatches().size());
+        assertEquals(0, run.getRepaired());
+        verify(principalIndex, never()).repair(anyString());
+    }
+
+    @Test
+    public void testKeptMismatchesAreCapped() throws RepositoryException {
+        verifier.setRepair(false);
+        when(principalIndex.getAssignments(PATH)).thenReturn(roles("bob", "admin"));
+        for (int i = 0; i <= AuthorizationConsistencyVerifier.MISMATCHES_KEPT; i++) {
+            verifier.checkAcl(session, PATH, run);
+        }
+        assertEquals(AuthorizationConsistencyVerifier.MISMATCHES_KEPT, run.getMismatches().size());
+        assertEquals(AuthorizationConsistencyVerifier.MISMATCHES_KEPT + 1, run.getMismatchCount());
+    }
+
+    @Test
+    public void testNormalize() {
+        assertEquals(singletonMap("alice", singleton("reader")),
+                AuthorizationConsistencyVerifier.normalize(singletonMap("alice", asList("reader", "reader"))));
+        assertNull(AuthorizationConsistencyVerifier.normalize(null));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class AuthorizationTraceTest {
+
+    private static final String[] READ = {"read"};
+
+    @After
+    public void tearDown() {
+        while (AuthorizationTrace.current() != null) {
+            AuthorizationTrace.current().finish(false);
+        }
+    }
+
+    @Test
+    public void shouldBindTraceToCurrentThread() {
+        final AuthorizationTrace trace = AuthorizationTrace.start("/a/b", READ);
+        assertSame("The started trace should be current", trace, AuthorizationTrace.current());
+
+        trace.finish(true);
+        assertNull("A finished trace should no longer be current", AuthorizationTrace.current());
+        assertTrue("The decision should be recorded", trace.isPermitted());
+        assertTrue("The duration should be recorded", trace.getDurationNanos() >= 0);
+    }
+
+    @Test
+    public void shouldRestoreEnclosingTrace() {
+        final AuthorizationTrace outer = AuthorizationTrace.start("/a", READ);
+        final AuthorizationTrace inner = AuthorizationTrace.start("/a/b", READ);
+
+        inner.finish(false);
+        assertSame("The enclosing trace should be current again", outer, AuthorizationTrace.current());
+        outer.finish(false);
+    }
+
+    @Test
+    public void shouldKeepFirstGoverningAcl() {
+        final AuthorizationTrace trace = AuthorizationTrace.start("/a/b/c/d", READ);
+        trace.addWalkDepth(1);
+        trace.foundGoverningAcl("/a", 2);
+        trace.foundGoverningAcl("/a/b/c/d/e", 0);
+        trace.addWalkDepth(5);
+        trace.finish(true);
+
+        assertEquals("The first ACL found should govern", "/a", trace.getGoverningAclPath());
+        assertEquals("Later lookups should not add to the walk depth", 3, trace.getWalkDepth());
+    }
+
+    @Test
+    public void shouldRecordMissingGoverningAcl() {
+        final AuthorizationTrace trace = AuthorizationTrace.start("/a", READ);
+        trace.foundGoverningAcl(null, 1);
+        trace.foundGoverningAcl("/a/b", 0);
+        trace.finish(false);
+
+        assertNull("No ACL governs the path", trace.getGoverningAclPath());
+        assertEquals(1, trace.getWalkDepth());
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static org.fcrepo.auth.roles.common.Constants.JcrName.aclEpoch;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.governed;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.governedPath;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.governingAcl;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.governingEpoch;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.pointersPending;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.rbaclAssignable;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+public class GoverningAclPointersTest {
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private Node node;
+
+    @Mock
+    private Node acl;
+
+    private GoverningAclPointers pointers;
+
+    @Before
+    public void setUp() throws RepositoryException {
+        initMocks(this);
+        pointers = new GoverningAclPointers();
+        when(node.getSession()).thenReturn(session);
+        when(node.getPath()).thenReturn("/a/b/c");
+        when(node.isNodeType(anyString())).thenReturn(false);
+        when(acl.getPath()).thenReturn("/a");
+        when(acl.isNodeType(rbaclAssignable.getQualified())).thenReturn(true);
+        final Property epochProperty = mock(Property.class);
+        when(epochProperty.getString()).thenReturn("e1");
+        when(acl.hasProperty(aclEpoch.getQualified())).thenReturn(true);
+        when(acl.getProperty(aclEpoch.getQualified())).thenReturn(epochProperty);
+        when(session.nodeExists("/a")).thenReturn(true);
+        when(session.getNode("/a")).thenReturn(acl);
+    }
+
+    private void setUpPointer(final String aclPath, final String writtenFor) throws RepositoryException {
+        setUpPointer(aclPath, writtenFor, "e1");
+    }
+
+    private void setUpPointer(final String aclPath, final String writtenFor, final String epoch)
+            throws RepositoryException {
+        when(node.isNodeType(governed.getQualified())).thenReturn(true);
+        when(node.hasProperty(governingAcl.getQualified())).thenReturn(true);
+        when(node.hasProperty(governedPath.getQualified())).thenReturn(true);
+        when(node.hasProperty(governingEpoch.getQualified())).thenReturn(true);
+        final Property epochProperty = mock(Property.class);
+        when(epochProperty.getString()).thenReturn(epoch);
+        when(node.getProperty(governingEpoch.getQualified())).thenReturn(epochProperty);
+        final Property aclProperty = mock(Property.class);
+        when(aclProperty.getString()).thenReturn(aclPath);
+        when(node.getProperty(governingAcl.getQualified())).thenReturn(aclProperty);
+        final Property pathProperty = mock(Property.class);
+        when(pathProperty.getString()).thenReturn(writtenFor);
+        when(node.getProperty(governedPath.getQualified())).thenReturn(pathProperty);
+    }
+
+    @Test
+    public void testPointedAcl() throws RepositoryException {
+        setUpPointer("/a", "/a/b/c");
+        assertSame(acl, pointers.getPointedAcl(node));
+        assertTrue(GoverningAclPointers.pointsAt(node, acl, "e1"));
+    }
+
+    @Test
+    public void testNoPointer() throws RepositoryException {
+        assertNull(pointers.getPointedAcl(node));
+        assertTrue(GoverningAclPointers.pointsAt(node, null, null));
+        assertFalse(GoverningAclPointers.pointsAt(node, acl, "e1"));
+    }
+
+    @Test
+    public void testPointerOfMovedNodeIsIgnored() throws RepositoryException {
+        setUpPointer("/a", "/x/b/c");
+        assertNull(pointers.getPointedAcl(node));
+        assertFalse(GoverningAclPointers.pointsAt(node, acl, "e1"));
+    }
+
+    @Test
+    public void testPointerToReaddedAclIsIgnored() throws RepositoryException {
+        // the ACL at /a was removed and added again after the pointer was written
+        setUpPointer("/a", "/a/b/c", "e0");
+        assertNull(pointers.getPointedAcl(node));
+        assertFalse(GoverningAclPointers.pointsAt(node, acl, "e1"));
+    }
+
+    @Test
+    public void testPointerToNonAncestorIsIgnored() throws RepositoryException {
+        when(acl.getPath()).thenReturn("/a/x");
+        when(session.nodeExists("/a/x")).thenReturn(true);
+        when(session.getNode("/a/x")).thenReturn(acl);
+        setUpPointer("/a/x", "/a/b/c");
+        assertNull(pointers.getPointedAcl(node));
+    }
+
+    @Test
+    public void testPointerToRemovedAclIsIgnored() throws RepositoryException {
+        setUpPointer("/a", "/a/b/c");
+        when(acl.isNodeType(rbaclAssignable.getQualified())).thenReturn(false);
+        assertNull(pointers.getPointedAcl(node));
+    }
+
+    @Test
+    public void testPoint() throws RepositoryException {
+        pointers.point(node, acl, "e1");
+        verify(node).addMixin(governed.getQualified());
+        verify(node).setProperty(governingAcl.getQualified(), "/a");
+        verify(node).setProperty(governedPath.getQualified(), "/a/b/c");
+        verify(node).setProperty(governingEpoch.getQualified(), "e1");
+    }
+
+    @Test
+    public void testAclAddedIsMarkedAndPointedAtItself() throws RepositoryException {
+        pointers.aclAdded(node);
+        verify(node).setProperty(pointersPending.getQualified(), true);
+        final ArgumentCaptor<String> epoch = ArgumentCaptor.forClass(String.class);
+        verify(node).setProperty(eq(aclEpoch.getQualified()), epoch.capture());
+        verify(node).setProperty(governingEpoch.getQualified(), epoch.getValue());
+        verify(node).setProperty(governingAcl.getQualified(), "/a/b/c");
+        verify(acl, never()).setProperty(anyString(), anyString());
+    }
+
+    @Test
+    public void testPointerPassingPendingAclIsIgnored() throws RepositoryException {
+        setUpPointer("/a", "/a/b/c");
+        final Node added = mock(Node.class);
+        when(added.getPath()).thenReturn("/a/b");
+        pointers.aclAdded(added);
+        assertNull(pointers.getPointedAcl(node));
+    }
+
+    @Test
+    public void testPointerToPendingAclIsUsed() throws RepositoryException {
+        setUpPointer("/a", "/a/b/c");
+        pointers.aclAdded(acl);
+        assertSame(acl, pointers.getPointedAcl(node));
+    }
+
+    @Test
+    public void testPointNowhereRemovesPointer() throws RepositoryException {
+        setUpPointer("/a", "/a/b/c");
+        pointers.point(node, null, null);
+        verify(node).removeMixin(governed.getQualified());
+        verify(node, never()).setProperty(anyString(), anyString());
+    }
+
+    @Test
+    public void testFindGoverning() throws RepositoryException {
+        final Node parent = mock(Node.class);
+        when(node.getDepth()).thenReturn(3);
+        when(node.getParent()).thenReturn(parent);
+        when(parent.getDepth()).thenReturn(2);
+        when(parent.getParent()).thenReturn(acl);
+        assertSame(acl, GoverningAclPointers.findGoverning(node));
+
+        when(acl.isNodeType(rbaclAssignable.getQualified())).thenReturn(false);
+        when(acl.getDepth()).thenReturn(0);
+        assertNull(GoverningAclPointers.findGoverning(node));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+public class OffHeapAclStoreTest {
+
+    private OffHeapAclStore store;
+
+    @Before
+    public void setUp() {
+        store = new OffHeapAclStore(64, 0);
+    }
+
+    @Test
+    public void testPutAndGet() {
+        final Map<String, Collection<String>> acl = new HashMap<>();
+        acl.put("staff", asList("reader", "writer"));
+        acl.put("admins", singletonList("admin"));
+        store.put("/a/b", acl);
+
+        assertEquals(ImmutableMap.of("staff", ImmutableSet.of("reader", "writer"),
+                "admins", ImmutableSet.of("admin")), store.get("/a/b"));
+        assertNull(store.get("/a"));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testReplaceAndRemove() {
+        store.put("/a", ImmutableMap.of("staff", singletonList("reader")));
+        store.put("/a", ImmutableMap.of("staff", singletonList("writer")));
+
+        assertEquals(ImmutableMap.of("staff", ImmutableSet.of("writer")), store.get("/a"));
+        assertEquals(1, store.size());
+
+        assertTrue(store.remove("/a"));
+        assertFalse(store.remove("/a"));
+        assertNull(store.get("/a"));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testContainsPrefix() {
+        store.put("/a/b", emptyMap());
+
+        assertTrue(store.contains("/a/b/c", 4));
+        assertTrue(store.contains("/a/b", 4));
+        assertFalse(store.contains("/a/b/c", 2));
+        assertFalse(store.contains("/a/b/c", 6));
+    }
+
+    @Test
+    public void testGrowsAndCompacts() {
+        for (int i = 0; i < 5000; i++) {
+            store.put("/node" + i, ImmutableMap.of("principal" + (i % 7), singletonList("role" + (i % 3))));
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            store.remove("/node" + i);
+        }
+        // replacing every record leaves the old ones to be compacted away
+        for (int round = 0; round < 3; round++) {
+            for (int i = 1; i < 5000; i += 2) {
+                store.put("/node" + i, ImmutableMap.of("principal" + (i % 7), singletonList("role" + round)));
+            }
+        }
+
+        assertEquals(2500, store.size());
+        for (int i = 0; i < 5000; i++) {
+            final Map<String, ?> acl = store.get("/node" + i);
+            if (i % 2 == 0) {
+                assertNull(acl);
+            } else {
+                assertEquals(ImmutableMap.of("principal" + (i % 7), ImmutableSet.of("role2")), acl);
+            }
+        }
+        assertEquals(10, store.getSymbolCount());
+        assertTrue(store.getLiveBytes() <= store.getReservedBytes());
+    }
+}
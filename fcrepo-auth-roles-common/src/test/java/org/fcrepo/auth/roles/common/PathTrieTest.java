@@ -0,0 +1,157 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.value.PathFactory;
+
+public class PathTrieTest {
+
+    private static final PathFactory PATHS = new ExecutionContext().getValueFactories().getPathFactory();
+
+    private PathTrie<String> trie;
+
+    @Before
+    public void setUp() {
+        trie = new PathTrie<>();
+    }
+
+    @Test
+    public void testPutAndGet() {
+        assertNull(trie.put("/a/b", "ab"));
+        assertEquals("ab", trie.put("/a/b", "ab2"));
+        trie.put("/", "root");
+
+        assertEquals("ab2", trie.get("/a/b"));
+        assertEquals("root", trie.get("/"));
+        assertNull(trie.get("/a"));
+        assertNull(trie.get("/a/b/c"));
+        assertNull(trie.get("/a/bc"));
+    }
+
+    @Test
+    public void testManyChildren() {
+        for (int i = 0; i < 100; i++) {
+            trie.put("/parent/child" + i, "v" + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("v" + i, trie.get("/parent/child" + i));
+        }
+        for (int i = 0; i < 100; i += 2) {
+            trie.remove("/parent/child" + i);
+        }
+        assertNull(trie.get("/parent/child0"));
+        assertEquals("v1", trie.get("/parent/child1"));
+    }
+
+    @Test
+    public void testLongestPrefixLength() {
+        assertEquals(-1, trie.longestPrefixLength("/a/b/c"));
+        trie.put("/a", "a");
+        trie.put("/a/b/c", "abc");
+
+        assertEquals(2, trie.longestPrefixLength("/a/b"));
+        assertEquals(6, trie.longestPrefixLength("/a/b/c"));
+        assertEquals(6, trie.longestPrefixLength("/a/b/c/d/e"));
+        assertEquals(2, trie.longestPrefixLength("/a/bc"));
+        assertEquals(-1, trie.longestPrefixLength("/x"));
+
+        trie.put("/", "root");
+        assertEquals(1, trie.longestPrefixLength("/x"));
+    }
+
+    @Test
+    public void testRemovePrunesEmptyBranches() {
+        trie.put("/a/b/c", "abc");
+        assertEquals("abc", trie.remove("/a/b/c"));
+        assertNull(trie.remove("/a/b/c"));
+        assertTrue(trie.isEmpty());
+    }
+
+    @Test
+    public void testRemoveSubtree() {
+        trie.put("/a", "a");
+        trie.put("/a/b", "ab");
+        trie.put("/a/b/c", "abc");
+        trie.put("/ab", "ab-sibling");
+
+        trie.removeSubtree("/a/b");
+        assertEquals("a", trie.get("/a"));
+        assertNull(trie.get("/a/b"));
+        assertNull(trie.get("/a/b/c"));
+        assertEquals("ab-sibling", trie.get("/ab"));
+
+        trie.removeSubtree("/");
+        assertTrue(trie.isEmpty());
+    }
+
+    @Test
+    public void testForEachInSubtree() {
+        trie.put("/", "root");
+        trie.put("/a", "a");
+        trie.put("/a/b/c", "abc");
+        trie.put("/ab", "ab");
+
+        final Map<String, String> visited = new LinkedHashMap<>();
+        trie.forEachInSubtree("/a", visited::put);
+        assertEquals(2, visited.size());
+        assertEquals("a", visited.get("/a"));
+        assertEquals("abc", visited.get("/a/b/c"));
+
+        visited.clear();
+        trie.forEachInSubtree("/", visited::put);
+        assertEquals(4, visited.size());
+        assertEquals("root", visited.keySet().iterator().next());
+    }
+
+    @Test
+    public void testForEachInSubtreeMayChangeTrie() {
+        trie.put("/a/b", "ab");
+        trie.put("/a/c", "ac");
+        trie.forEachInSubtree("/a", (path, value) -> trie.remove(path));
+        assertTrue(trie.isEmpty());
+    }
+
+    @Test
+    public void testPaths() {
+        trie.put(PATHS.create("/a"), "a");
+        trie.put(PATHS.create("/a/b/c"), "abc");
+
+        assertEquals("a", trie.get(PATHS.create("/a")));
+        assertNull(trie.get(PATHS.create("/a/b")));
+        assertEquals("abc", trie.getNearest(PATHS.create("/a/b/c/d")));
+        assertEquals("a", trie.getNearest(PATHS.create("/a/b")));
+        assertNull(trie.getNearest(PATHS.create("/x")));
+        assertNull(trie.getNearest(PATHS.getRootPath()));
+
+        trie.removeSubtree(PATHS.create("/a/b"));
+        assertEquals("a", trie.getNearest(PATHS.create("/a/b/c")));
+        assertEquals("a", trie.remove(PATHS.create("/a")));
+        assertNull(trie.getNearest(PATHS.create("/a")));
+        assertTrue(trie.isEmpty());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+public class PrincipalIndexTest {
+
+    private PrincipalIndex index;
+
+    @Before
+    public void setUp() {
+        index = new PrincipalIndex();
+    }
+
+    @Test
+    public void testUpdateIndexesEachPrincipal() {
+        index.update("/a", assignments("staff", "reader", "admins", "admin"));
+        index.update("/b", assignments("staff", "writer"));
+
+        final Map<String, Set<String>> staff = index.getAcls("staff");
+        assertEquals(2, staff.size());
+        assertEquals(ImmutableSet.of("reader"), staff.get("/a"));
+        assertEquals(ImmutableSet.of("writer"), staff.get("/b"));
+        assertEquals(ImmutableSet.of("/a"), index.getAcls("admins").keySet());
+        assertEquals(ImmutableSet.of("admins", "staff"), index.getPrincipals());
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testUpdateDropsUnassignedPrincipals() {
+        index.update("/a", assignments("staff", "reader", "admins", "admin"));
+        index.update("/a", assignments("staff", "writer"));
+
+        assertEquals(ImmutableSet.of("writer"), index.getAcls("staff").get("/a"));
+        assertTrue(index.getAcls("admins").isEmpty());
+        assertEquals(ImmutableSet.of("staff"), index.getPrincipals());
+    }
+
+    @Test
+    public void testUpdateRemovesAcl() {
+        index.update("/a", assignments("staff", "reader"));
+        index.update("/a", null);
+
+        assertTrue(index.getAcls("staff").isEmpty());
+        assertTrue(index.getPrincipals().isEmpty());
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testRemoveSubtree() {
+        index.update("/a", assignments("staff", "reader"));
+        index.update("/a/b", assignments("staff", "writer"));
+        index.update("/a/b/c", assignments("staff", "admin"));
+        index.update("/a/bc", assignments("staff", "reader"));
+
+        index.removeSubtree("/a/b");
+
+        assertEquals(ImmutableSet.of("/a", "/a/bc"), index.getAcls("staff").keySet());
+    }
+
+    @Test
+    public void testRemoveRootSubtree() {
+        index.update("/", assignments("staff", "reader"));
+        index.update("/a", assignments("staff", "writer"));
+
+        index.removeSubtree("/");
+
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testFindGoverningAcl() {
+        index.update("/a", assignments("staff", "reader"));
+        index.update("/a/b/c", new HashMap<>());
+
+        assertEquals("/a", index.findGoverningAcl("/a"));
+        assertEquals("/a", index.findGoverningAcl("/a/b"));
+        assertEquals("/a/b/c", index.findGoverningAcl("/a/b/c/d/e"));
+        assertEquals("/a", index.findGoverningAcl("/a/bc"));
+        assertNull(index.findGoverningAcl("/x/y"));
+        assertNull(index.findGoverningAcl("/"));
+        assertTrue(index.getAssignments("/a/b/c").isEmpty());
+    }
+
+    @Test
+    public void testOffHeap() {
+        index.setOffHeap(true);
+        index.update("/a", assignments("staff", "reader", "admins", "admin"));
+        index.update("/a/b", assignments("staff", "writer"));
+        index.update("/a", assignments("staff", "writer"));
+
+        assertEquals(ImmutableSet.of("writer"), index.getAcls("staff").get("/a"));
+        assertTrue(index.getAcls("admins").isEmpty());
+        assertEquals("/a/b", index.findGoverningAcl("/a/b/c"));
+        assertEquals("/a", index.findGoverningAcl("/a/c"));
+
+        index.removeSubtree("/a");
+
+        assertEquals(0, index.size());
+        assertEquals(0, index.getOffHeapStore().size());
+    }
+
+    @Test
+    public void testAclOwner() {
+        assertEquals("/a/b", PrincipalIndex.aclOwner("/a/b/authz:rbacl"));
+        assertEquals("/a/b", PrincipalIndex.aclOwner("/a/b/authz:rbacl/authz:assignment[2]/authz:role"));
+        assertEquals("/", PrincipalIndex.aclOwner("/authz:rbacl/authz:assignment"));
+        assertNull(PrincipalIndex.aclOwner("/a/b/authz:rbaclx"));
+        assertNull(PrincipalIndex.aclOwner("/a/b/jcr:mixinTypes"));
+    }
+
+    private static Map<String, Set<String>> assignments(final String... principalsAndRoles) {
+        final ImmutableMap.Builder<String, Set<String>> assignments = ImmutableMap.builder();
+        for (int i = 0; i < principalsAndRoles.length; i += 2) {
+            assignments.put(principalsAndRoles[i], ImmutableSet.of(principalsAndRoles[i + 1]));
+        }
+        return assignments.build();
+    }
+}
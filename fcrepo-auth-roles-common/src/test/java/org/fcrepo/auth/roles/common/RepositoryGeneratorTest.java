@@ -0,0 +1,117 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.fcrepo.auth.roles.common.integration.RepositoryGenerator;
+import org.fcrepo.auth.roles.common.integration.RolesFadTestObjectBean;
+import org.fcrepo.auth.roles.common.integration.TreeSink;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RepositoryGeneratorTest {
+
+    private RepositoryGenerator generator;
+
+    @Before
+    public void setUp() {
+        generator = new RepositoryGenerator();
+        generator.setDepth(3);
+        generator.setFanout(4);
+        generator.setAclShare(0.5);
+        generator.setBinaryShare(0);
+        generator.setPrincipals(10);
+        generator.setPrincipalsPerAcl(2);
+        generator.setRolesPerPrincipal(2);
+        generator.setBatchSize(10);
+    }
+
+    @Test
+    public void testShape() {
+        final List<RolesFadTestObjectBean> objects = generator.objects("/root");
+        assertEquals(1 + 4 + 16 + 64, objects.size());
+        assertEquals("/root", objects.get(0).getPath());
+        assertEquals("/root/node-0", objects.get(1).getPath());
+        for (final RolesFadTestObjectBean object : objects) {
+            assertTrue(object.getACLs().isEmpty() || object.getACLs().size() == 4);
+        }
+    }
+
+    @Test
+    public void testDeterministic() {
+        final List<RolesFadTestObjectBean> first = generator.objects("/root");
+        final List<RolesFadTestObjectBean> second = generator.objects("/root");
+        for (int i = 0; i < first.size(); i++) {
+            assertEquals(first.get(i).getPath(), second.get(i).getPath());
+            assertEquals(first.get(i).getACLs(), second.get(i).getACLs());
+        }
+    }
+
+    @Test
+    public void testWriteInBatches() throws Exception {
+        generator.setBinaryShare(0.5);
+        final RecordingSink sink = new RecordingSink();
+        final int written = generator.write("/root", sink);
+
+        assertEquals(sink.containers.size() + sink.binaries.size(), written);
+        assertEquals(written / 10 + 1, sink.commits);
+        assertEquals("/root", sink.containers.get(0));
+        for (final String path : sink.roles) {
+            assertTrue("Roles must follow their node", sink.containers.contains(path) ||
+                    sink.binaries.contains(path));
+        }
+    }
+
+    private static class RecordingSink implements TreeSink {
+
+        private final List<String> containers = new ArrayList<>();
+
+        private final List<String> binaries = new ArrayList<>();
+
+        private final List<String> roles = new ArrayList<>();
+
+        private int commits;
+
+        @Override
+        public void container(final String path) {
+            containers.add(path);
+        }
+
+        @Override
+        public void binary(final String path, final byte[] content) {
+            binaries.add(path);
+        }
+
+        @Override
+        public void roles(final String path, final Map<String, Set<String>> acl) {
+            roles.add(path);
+        }
+
+        @Override
+        public void commit() {
+            commits++;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singleton;
+import static org.fcrepo.auth.common.FedoraAuthorizationDelegate.FEDORA_ALL_PRINCIPALS;
+import static org.fcrepo.auth.common.FedoraAuthorizationDelegate.FEDORA_USER_PRINCIPAL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.security.Principal;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.common.FedoraAuthorizationDelegate;
+import org.fcrepo.auth.roles.common.ShadowAuthorizationDelegate.ShadowMismatch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.jcr.value.Path;
+
+public class ShadowAuthorizationDelegateTest {
+
+    private static final String[] READ = {"read"};
+
+    private FedoraAuthorizationDelegate active;
+
+    private FedoraAuthorizationDelegate shadow;
+
+    private Session session;
+
+    private Path path;
+
+    private ShadowAuthorizationDelegate delegate;
+
+    @Before
+    public void setUp() {
+        active = mock(FedoraAuthorizationDelegate.class);
+        shadow = mock(FedoraAuthorizationDelegate.class);
+        path = mock(Path.class);
+        when(path.toString()).thenReturn("/a/b");
+
+        final Principal user = () -> "alice";
+        session = mock(Session.class);
+        when(session.getAttributeNames()).thenReturn(new String[] { FEDORA_USER_PRINCIPAL, FEDORA_ALL_PRINCIPALS });
+        when(session.getAttribute(FEDORA_USER_PRINCIPAL)).thenReturn(user);
+        when(session.getAttribute(FEDORA_ALL_PRINCIPALS)).thenReturn(singleton(user));
+
+        delegate = new ShadowAuthorizationDelegate();
+        delegate.setActive(active);
+        delegate.setShadow(shadow);
+        delegate.setSampleRate(1);
+        delegate.start();
+    }
+
+    @After
+    public void tearDown() {
+        delegate.stop();
+    }
+
+    private void awaitCompared(final long count) throws InterruptedException {
+        for (int i = 0; i < 500 && (Long) delegate.getReport().get("compared") < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, delegate.getReport().get("compared"));
+    }
+
+    @Test
+    public void shouldOnlyAskActiveWhenNotSampled() {
+        delegate.setSampleRate(0);
+        when(active.hasPermission(session, path, READ)).thenReturn(true);
+
+        assertTrue(delegate.hasPermission(session, path, READ));
+        verify(shadow, never()).hasPermission(any(Session.class), any(Path.class), any(String[].class));
+        assertEquals(0L, delegate.getReport().get("sampled"));
+    }
+
+    @Test
+    public void shouldReturnActiveDecisionAndCountAgreement() throws InterruptedException {
+        when(active.hasPermission(session, path, READ)).thenReturn(true);
+        when(shadow.hasPermission(any(Session.class), any(Path.class), any(String[].class))).thenReturn(true);
+
+        assertTrue(delegate.hasPermission(session, path, READ));
+        awaitCompared(1);
+        assertEquals(0L, delegate.getReport().get("mismatched"));
+        assertTrue(delegate.getMismatches().isEmpty());
+    }
+
+    @Test
+    public void shouldRecordDisagreement() throws InterruptedException {
+        when(active.hasPermission(session, path, READ)).thenReturn(false);
+        when(shadow.hasPermission(any(Session.class), any(Path.class), any(String[].class))).thenReturn(true);
+
+        assertFalse("The active decision should be returned", delegate.hasPermission(session, path, READ));
+        awaitCompared(1);
+
+        final List<ShadowMismatch> mismatches = delegate.getMismatches();
+        assertEquals(1, mismatches.size());
+        assertEquals("/a/b", mismatches.get(0).getPath());
+        assertEquals("alice", mismatches.get(0).getUser());
+        assertEquals("alice", mismatches.get(0).getPrincipals().get(0));
+        assertFalse(mismatches.get(0).isActive());
+        assertTrue(mismatches.get(0).getShadow());
+    }
+
+    @Test
+    public void shouldRecordShadowFailure() throws InterruptedException {
+        when(active.hasPermission(session, path, READ)).thenReturn(true);
+        when(shadow.hasPermission(any(Session.class), any(Path.class), any(String[].class)))
+                .thenThrow(new IllegalStateException("boom"));
+
+        assertTrue(delegate.hasPermission(session, path, READ));
+        awaitCompared(1);
+
+        assertEquals(1L, delegate.getReport().get("failed"));
+        assertNull(delegate.getMismatches().get(0).getShadow());
+    }
+
+    @Test
+    public void shouldKeepOnlyRecentMismatches() throws InterruptedException {
+        delegate.setMismatchBufferSize(2);
+        when(active.hasPermission(session, path, READ)).thenReturn(false);
+        when(shadow.hasPermission(any(Session.class), any(Path.class), any(String[].class))).thenReturn(true);
+
+        for (int i = 0; i < 5; i++) {
+            delegate.hasPermission(session, path, READ);
+        }
+        awaitCompared(5);
+        assertEquals(5L, delegate.getReport().get("mismatched"));
+        assertEquals(2, delegate.getMismatches().size());
+    }
+
+    @Test
+    public void shouldSnapshotSessionAttributes() {
+        final Session snapshot = ShadowAuthorizationDelegate.snapshot(session);
+
+        assertEquals(session.getAttribute(FEDORA_USER_PRINCIPAL), snapshot.getAttribute(FEDORA_USER_PRINCIPAL));
+        assertEquals(session.getAttribute(FEDORA_ALL_PRINCIPALS), snapshot.getAttribute(FEDORA_ALL_PRINCIPALS));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void shouldRefuseRepositoryAccessFromSnapshot() throws Exception {
+        ShadowAuthorizationDelegate.snapshot(session).getRootNode();
+    }
+
+    @Test
+    public void shouldNotSampleSessionWithPendingChanges() throws RepositoryException {
+        when(session.hasPendingChanges()).thenReturn(true);
+        when(active.hasPermission(session, path, READ)).thenReturn(true);
+
+        assertTrue(delegate.hasPermission(session, path, READ));
+        verify(shadow, never()).hasPermission(any(Session.class), any(Path.class), any(String[].class));
+        assertEquals(0L, delegate.getReport().get("sampled"));
+    }
+
+    @Test
+    public void shouldReadThroughInternalSession() throws RepositoryException {
+        final Session reader = mock(Session.class);
+        final Node node = mock(Node.class);
+        when(reader.getNode("/a/b")).thenReturn(node);
+        final Session standIn = ShadowAuthorizationDelegate.standIn(emptyMap(), "alice", reader);
+
+        assertEquals(node, standIn.getNode("/a/b"));
+        assertFalse(standIn.hasPendingChanges());
+        try {
+            standIn.save();
+            fail("The stand-in must not write through the internal session");
+        } catch (final UnsupportedOperationException e) {
+            verify(reader, never()).save();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectSampleRateAboveOne() {
+        delegate.setSampleRate(1.5);
+    }
+}
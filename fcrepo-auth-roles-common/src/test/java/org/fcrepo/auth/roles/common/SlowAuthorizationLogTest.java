@@ -0,0 +1,100 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.fcrepo.auth.roles.common.SlowAuthorizationLog.SlowAuthorization;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SlowAuthorizationLogTest {
+
+    private static final String[] READ = {"read"};
+
+    private SlowAuthorizationLog log;
+
+    @Before
+    public void setUp() {
+        log = new SlowAuthorizationLog();
+        log.setSampleRate(1);
+        log.setThresholdMillis(0);
+    }
+
+    private static AuthorizationTrace finishedTrace(final String path) {
+        final AuthorizationTrace trace = AuthorizationTrace.start(path, READ);
+        trace.foundGoverningAcl("/acl", 2);
+        trace.visitNodes(3);
+        trace.finish(true);
+        return trace;
+    }
+
+    @Test
+    public void shouldNotTraceWhenDisabled() {
+        log.setThresholdMillis(-1);
+        assertFalse("A disabled log should not ask for traces", log.shouldTrace());
+    }
+
+    @Test
+    public void shouldNotTraceWhenNotSampled() {
+        log.setSampleRate(0);
+        assertFalse("Nothing should be traced at a zero sample rate", log.shouldTrace());
+    }
+
+    @Test
+    public void shouldRecordSlowDecisions() {
+        assertTrue(log.shouldTrace());
+        log.record(finishedTrace("/acl/a/b"));
+
+        final List<SlowAuthorization> slowest = log.getSlowest(10);
+        assertEquals(1, slowest.size());
+        assertEquals("/acl/a/b", slowest.get(0).getPath());
+        assertEquals("/acl", slowest.get(0).getGoverningAcl());
+        assertEquals(2, slowest.get(0).getWalkDepth());
+        assertEquals(3, slowest.get(0).getNodesVisited());
+        assertEquals(4, slowest.get(0).getStageNanos().size());
+    }
+
+    @Test
+    public void shouldIgnoreFastDecisions() {
+        log.setThresholdMillis(3_600_000);
+        log.record(finishedTrace("/acl/a"));
+
+        assertTrue("Decisions under the threshold should not be kept", log.getSlowest(10).isEmpty());
+        assertEquals(0, log.getRecordedCount());
+    }
+
+    @Test
+    public void shouldKeepOnlyMostRecentAndSortSlowestFirst() {
+        log.setBufferSize(2);
+        for (int i = 0; i < 5; i++) {
+            log.record(finishedTrace("/acl/" + i));
+        }
+
+        final List<SlowAuthorization> slowest = log.getSlowest(10);
+        assertEquals("Only the buffer size should be kept", 2, slowest.size());
+        assertTrue("Decisions should be sorted slowest first",
+                slowest.get(0).getDurationNanos() >= slowest.get(1).getDurationNanos());
+        assertEquals(1, log.getSlowest(1).size());
+        assertEquals(5, log.getRecordedCount());
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.Collection;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+public class TransactionAclOverlayTest {
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private Session otherSession;
+
+    private TransactionAclOverlay overlay;
+
+    @Before
+    public void setUp() throws RepositoryException {
+        initMocks(this);
+        when(session.isLive()).thenReturn(true);
+        when(session.hasPendingChanges()).thenReturn(true);
+        overlay = new TransactionAclOverlay();
+    }
+
+    @Test
+    public void testRecordedChangesAffectDescendants() {
+        final Map<String, Collection<String>> acl = singletonMap("a", singleton("reader"));
+        overlay.record(session, "/a", acl);
+
+        assertTrue(overlay.hasChanges(session));
+        assertTrue(overlay.affects(session, "/a"));
+        assertTrue(overlay.affects(session, "/a/b/c"));
+        assertFalse(overlay.affects(session, "/ab"));
+        assertEquals(acl, overlay.getChange(session, "/a").getAcl());
+        assertNull(overlay.getChange(session, "/a/b"));
+    }
+
+    @Test
+    public void testRecordsRemovedAcl() {
+        overlay.record(session, "/a", null);
+
+        assertTrue(overlay.affects(session, "/a/b"));
+        assertNull(overlay.getChange(session, "/a").getAcl());
+    }
+
+    @Test
+    public void testChangesAreScopedToSession() {
+        overlay.record(session, "/a", singletonMap("a", singleton("reader")));
+
+        assertFalse(overlay.hasChanges(otherSession));
+        assertFalse(overlay.affects(otherSession, "/a"));
+    }
+
+    @Test
+    public void testDiscardsChangesOnceCommittedOrRolledBack() throws RepositoryException {
+        overlay.record(session, "/a", singletonMap("a", singleton("reader")));
+        when(session.hasPendingChanges()).thenReturn(false);
+
+        assertFalse(overlay.affects(session, "/a"));
+        assertEquals(0, overlay.size());
+    }
+
+    @Test
+    public void testDiscardsChangesOfClosedSession() {
+        overlay.record(session, "/a", singletonMap("a", singleton("reader")));
+        when(session.isLive()).thenReturn(false);
+
+        assertFalse(overlay.hasChanges(session));
+        assertEquals(0, overlay.size());
+    }
+}
@@ -17,20 +17,41 @@
  */
 package org.fcrepo.auth.roles.common.integration;
 
+import static java.util.Collections.singletonList;
 import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.CONFLICT;
 import static javax.ws.rs.core.Response.Status.CREATED;
 import static javax.ws.rs.core.Response.Status.NO_CONTENT;
+import static javax.ws.rs.core.Response.Status.NOT_FOUND;
 import static javax.ws.rs.core.Response.Status.OK;
 import static javax.ws.rs.core.Response.Status.UNSUPPORTED_MEDIA_TYPE;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
 import org.fcrepo.auth.roles.common.AccessRolesProvider;
+import org.fcrepo.auth.roles.common.AuthorizationAdmin;
 import org.junit.Test;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 /**
  * @author Gregory Jansen
  * @author Scott Prater
@@ -153,4 +174,190 @@ public class AccessRolesIT extends AbstractCommonRolesIT {
         assertEquals(UNSUPPORTED_MEDIA_TYPE.getStatusCode(), postRoles("testcommonobj1", test_json_roles,
             "text/plain"));
     }
+
+    @Test
+    public void testPagedRoles() throws Exception {
+        assertEquals(CREATED.getStatusCode(), postRoles("testcommonobj1", test_json_roles));
+
+        final HttpGet first = getRolesMethod("testcommonobj1");
+        first.setURI(URI.create(first.getURI() + "?limit=2"));
+        setAuth(first, "fedoraAdmin");
+        final HttpResponse firstPage = execute(first);
+        assertEquals(OK.getStatusCode(), firstPage.getStatusLine().getStatusCode());
+        final Map<String, List<String>> roles = new HashMap<>(readRoles(firstPage));
+        assertEquals("First page should hold the limit", 2, roles.size());
+        final Header next = firstPage.getFirstHeader("Link");
+        assertNotNull("First page should link to the next one", next);
+
+        final String link = next.getValue();
+        final HttpGet second = new HttpGet(link.substring(link.indexOf('<') + 1, link.indexOf('>')));
+        setAuth(second, "fedoraAdmin");
+        final HttpResponse secondPage = execute(second);
+        assertEquals(OK.getStatusCode(), secondPage.getStatusLine().getStatusCode());
+        roles.putAll(readRoles(secondPage));
+        assertNull("Last page should not link further", secondPage.getFirstHeader("Link"));
+
+        assertEquals("Pages together should hold every assignment", t_roles, roles);
+        assertEquals(NO_CONTENT.getStatusCode(), canDeleteRoles(null, "testcommonobj1", false));
+    }
+
+    private static Map<String, List<String>> readRoles(final HttpResponse response) throws IOException {
+        return new ObjectMapper().readValue(EntityUtils.toString(response.getEntity()),
+                new TypeReference<Map<String, List<String>>>() {});
+    }
+
+    @Test
+    public void testExportImportRoles() throws Exception {
+        assertEquals(CREATED.getStatusCode(), postRoles("testcommonobj1", test_json_roles));
+
+        final HttpGet export = new HttpGet(serverAddress + "fcr:authz/export");
+        setAuth(export, "fedoraAdmin");
+        final HttpResponse exported = execute(export);
+        assertEquals(OK.getStatusCode(), exported.getStatusLine().getStatusCode());
+        final String records = EntityUtils.toString(exported.getEntity());
+        assertTrue("Export should hold the ACL of the test object", records.contains("\"/testcommonobj1\""));
+
+        assertEquals(NO_CONTENT.getStatusCode(), canDeleteRoles(null, "testcommonobj1", false));
+
+        final HttpPost method = new HttpPost(serverAddress + "fcr:authz/import");
+        setAuth(method, "fedoraAdmin");
+        method.addHeader("Content-Type", AuthorizationAdmin.NDJSON);
+        method.setEntity(new StringEntity(records, "utf-8"));
+        final HttpResponse imported = execute(method);
+        assertEquals(OK.getStatusCode(), imported.getStatusLine().getStatusCode());
+        final Map<String, Object> summary = new ObjectMapper().readValue(
+                EntityUtils.toString(imported.getEntity()), new TypeReference<Map<String, Object>>() {});
+        assertEquals(0, summary.get("failed"));
+
+        assertEquals("Imported roles should equal the exported ones", t_roles, getRoles("testcommonobj1"));
+        assertEquals(NO_CONTENT.getStatusCode(), canDeleteRoles(null, "testcommonobj1", false));
+    }
+
+    @Test
+    public void testExportImportTemplate() throws Exception {
+        final HttpPut putTemplate = new HttpPut(serverAddress + "fcr:authz/templates/exporttemplate");
+        setAuth(putTemplate, "fedoraAdmin");
+        putTemplate.addHeader("Content-Type", "application/json");
+        putTemplate.setEntity(new StringEntity(test_json_roles, "utf-8"));
+        assertEquals(CREATED.getStatusCode(), execute(putTemplate).getStatusLine().getStatusCode());
+        final HttpPut useTemplate =
+                new HttpPut(serverAddress + "testcommonobj1/fcr:accessroles?template=exporttemplate");
+        setAuth(useTemplate, "fedoraAdmin");
+        assertEquals(NO_CONTENT.getStatusCode(), execute(useTemplate).getStatusLine().getStatusCode());
+
+        final HttpGet export = new HttpGet(serverAddress + "fcr:authz/export");
+        setAuth(export, "fedoraAdmin");
+        final String records = EntityUtils.toString(execute(export).getEntity());
+        assertTrue("Export should hold the template", records.contains("{\"template\":\"exporttemplate\",\"roles\""));
+        assertTrue("Export should hold the reference to the template",
+                records.contains("{\"path\":\"/testcommonobj1\",\"template\":\"exporttemplate\"}"));
+
+        final HttpDelete deleteTemplate = new HttpDelete(serverAddress + "fcr:authz/templates/exporttemplate");
+        setAuth(deleteTemplate, "fedoraAdmin");
+        assertEquals(NO_CONTENT.getStatusCode(), canDeleteRoles(null, "testcommonobj1", false));
+        assertEquals(NO_CONTENT.getStatusCode(), execute(deleteTemplate).getStatusLine().getStatusCode());
+
+        final HttpPost method = new HttpPost(serverAddress + "fcr:authz/import");
+        setAuth(method, "fedoraAdmin");
+        method.addHeader("Content-Type", AuthorizationAdmin.NDJSON);
+        method.setEntity(new StringEntity(records, "utf-8"));
+        final Map<String, Object> summary = new ObjectMapper().readValue(
+                EntityUtils.toString(execute(method).getEntity()), new TypeReference<Map<String, Object>>() {});
+        assertEquals(0, summary.get("failed"));
+
+        assertEquals("Roles should come from the imported template", t_roles, getRoles("testcommonobj1"));
+        assertEquals("The imported template should still be in use", CONFLICT.getStatusCode(),
+                execute(deleteTemplate).getStatusLine().getStatusCode());
+        assertEquals(NO_CONTENT.getStatusCode(), canDeleteRoles(null, "testcommonobj1", false));
+        assertEquals(NO_CONTENT.getStatusCode(), execute(deleteTemplate).getStatusLine().getStatusCode());
+    }
+
+    @Test
+    public void testBulkRoles() throws Exception {
+        final HttpPost method = new HttpPost(serverAddress + "fcr:authz/bulk?batchSize=1");
+        setAuth(method, "fedoraAdmin");
+        method.addHeader("Content-Type", AuthorizationAdmin.NDJSON);
+        method.setEntity(new StringEntity(
+                "{\"path\": \"/testcommonobj1\", \"roles\": " + test_json_roles + "}\n" +
+                "{\"path\": \"/testcommonobj1\", \"roles\": {\"exampleadmin\": []}}\n" +
+                "not json\n" +
+                "{\"path\": \"/nosuchobject\", \"roles\": " + admin_json_role + "}\n" +
+                "{\"path\": \"/testcommonobj1/testchildobj1\", \"roles\": " + admin_json_role + "}\n",
+                "utf-8"));
+        final HttpResponse response = execute(method);
+        assertEquals(OK.getStatusCode(), response.getStatusLine().getStatusCode());
+
+        final Map<String, Object> summary = new ObjectMapper().readValue(
+                EntityUtils.toString(response.getEntity()), new TypeReference<Map<String, Object>>() {});
+        assertEquals(5, summary.get("entries"));
+        assertEquals(2, summary.get("applied"));
+        assertEquals(2, summary.get("commits"));
+        @SuppressWarnings("unchecked")
+        final List<Map<String, Object>> results = (List<Map<String, Object>>) summary.get("results");
+        assertEquals(CREATED.getStatusCode(), results.get(0).get("status"));
+        assertEquals(BAD_REQUEST.getStatusCode(), results.get(1).get("status"));
+        assertEquals(BAD_REQUEST.getStatusCode(), results.get(2).get("status"));
+        assertEquals(NOT_FOUND.getStatusCode(), results.get(3).get("status"));
+        assertEquals(CREATED.getStatusCode(), results.get(4).get("status"));
+
+        assertEquals("Result does not equal test data!", t_roles, getRoles("testcommonobj1"));
+        assertEquals("Result does not equal test data!", admin_role, getRoles("testcommonobj1/testchildobj1"));
+
+        assertEquals(NO_CONTENT.getStatusCode(), canDeleteRoles(null, "testcommonobj1/testchildobj1", false));
+        assertEquals(NO_CONTENT.getStatusCode(), canDeleteRoles(null, "testcommonobj1", false));
+    }
+
+    @Test
+    public void testPrincipalIndex() throws Exception {
+        assertEquals(CREATED.getStatusCode(), postRoles("testcommonobj1", test_json_roles));
+        assertEquals(singletonList("writer"), waitForIndexedRoles("examplewriter", "/testcommonobj1", true));
+
+        assertEquals(NO_CONTENT.getStatusCode(), canDeleteRoles(null, "testcommonobj1", false));
+        assertNull(waitForIndexedRoles("examplewriter", "/testcommonobj1", false));
+    }
+
+    /**
+     * Poll the principal index, which is updated in the background, until it does or does not list an ACL.
+     */
+    private List<String> waitForIndexedRoles(final String principal, final String path, final boolean present)
+            throws Exception {
+        final HttpGet method = new HttpGet(serverAddress + "fcr:authz/principals/" + principal);
+        setAuth(method, "fedoraAdmin");
+        Map<String, List<String>> acls = null;
+        for (int attempt = 0; attempt < 100; attempt++) {
+            final HttpResponse response = execute(method);
+            final String body = EntityUtils.toString(response.getEntity());
+            if (response.getStatusLine().getStatusCode() == OK.getStatusCode()) {
+                acls = new ObjectMapper().readValue(body, new TypeReference<Map<String, List<String>>>() {});
+                if (acls.containsKey(path) == present) {
+                    break;
+                }
+            }
+            Thread.sleep(100);
+        }
+        assertNotNull("Principal index was never ready", acls);
+        return acls.get(path);
+    }
+
+    @Test
+    public void testTemplateRoles() throws Exception {
+        final HttpPut putTemplate = new HttpPut(serverAddress + "fcr:authz/templates/testtemplate");
+        setAuth(putTemplate, "fedoraAdmin");
+        putTemplate.addHeader("Content-Type", "application/json");
+        putTemplate.setEntity(new StringEntity(test_json_roles, "utf-8"));
+        assertEquals(CREATED.getStatusCode(), execute(putTemplate).getStatusLine().getStatusCode());
+
+        final HttpPut useTemplate =
+                new HttpPut(serverAddress + "testcommonobj1/fcr:accessroles?template=testtemplate");
+        setAuth(useTemplate, "fedoraAdmin");
+        assertEquals(NO_CONTENT.getStatusCode(), execute(useTemplate).getStatusLine().getStatusCode());
+        assertEquals("Roles should come from the template", t_roles, getRoles("testcommonobj1"));
+
+        final HttpDelete deleteTemplate = new HttpDelete(serverAddress + "fcr:authz/templates/testtemplate");
+        setAuth(deleteTemplate, "fedoraAdmin");
+        assertEquals(CONFLICT.getStatusCode(), execute(deleteTemplate).getStatusLine().getStatusCode());
+
+        assertEquals(NO_CONTENT.getStatusCode(), canDeleteRoles(null, "testcommonobj1", false));
+        assertEquals(NO_CONTENT.getStatusCode(), execute(deleteTemplate).getStatusLine().getStatusCode());
+    }
 }
@@ -0,0 +1,82 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common.integration;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.roles.common.AccessRolesProvider;
+
+/**
+ * Writes generated trees as plain JCR nodes: containers are {@code nt:unstructured} and binaries are {@code nt:file}.
+ * Needs nothing but the access control node types, so it suits bare in-memory repositories.
+ */
+public class JcrTreeSink implements TreeSink {
+
+    private final Session session;
+
+    private final AccessRolesProvider provider;
+
+    /**
+     * @param session the session to write through
+     * @param provider the provider that assigns roles
+     */
+    public JcrTreeSink(final Session session, final AccessRolesProvider provider) {
+        this.session = session;
+        this.provider = provider;
+    }
+
+    @Override
+    public void container(final String path) throws RepositoryException {
+        if (!session.nodeExists(path)) {
+            parent(path).addNode(name(path), "nt:unstructured");
+        }
+    }
+
+    @Override
+    public void binary(final String path, final byte[] content) throws RepositoryException {
+        final Node file = parent(path).addNode(name(path), "nt:file");
+        final Node resource = file.addNode("jcr:content", "nt:resource");
+        resource.setProperty("jcr:data",
+                session.getValueFactory().createBinary(new ByteArrayInputStream(content)));
+    }
+
+    @Override
+    public void roles(final String path, final Map<String, Set<String>> roles) throws RepositoryException {
+        provider.postRoles(session.getNode(path), roles);
+    }
+
+    @Override
+    public void commit() throws RepositoryException {
+        session.save();
+    }
+
+    private Node parent(final String path) throws RepositoryException {
+        final int slash = path.lastIndexOf('/');
+        return session.getNode(slash == 0 ? "/" : path.substring(0, slash));
+    }
+
+    private static String name(final String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}
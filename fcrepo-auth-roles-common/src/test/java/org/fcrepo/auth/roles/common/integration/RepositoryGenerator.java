@@ -0,0 +1,316 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common.integration;
+
+import static java.lang.Integer.getInteger;
+import static java.lang.Math.min;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.fill;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import javax.jcr.RepositoryException;
+
+/**
+ * Generates synthetic repositories shaped like production ones: a tree of the given depth and fan-out in which a
+ * share of the nodes carry their own ACL, and a share of each container's children are binaries rather than
+ * containers. The tree is described as {@link RolesFadTestObjectBean}s, one per container with its binaries as
+ * datastreams, so it can be ingested over HTTP like any other integration test fixture or written straight through a
+ * {@link TreeSink} in batches.
+ * <p>
+ * Generation is deterministic for a given seed and settings, so the paths of a tree can be listed again without
+ * rewriting it. Every setting defaults to a {@code fcrepo.generator.*} system property of the same name.
+ * </p>
+ */
+public class RepositoryGenerator {
+
+    private static final String[] ROLES = { "reader", "writer", "admin" };
+
+    private int depth = getInteger("fcrepo.generator.depth", 4);
+
+    private int fanout = getInteger("fcrepo.generator.fanout", 5);
+
+    private double aclShare = getDouble("fcrepo.generator.aclShare", 0.1);
+
+    private int principals = getInteger("fcrepo.generator.principals", 50);
+
+    private String principalPrefix = System.getProperty("fcrepo.generator.principalPrefix", "principal-");
+
+    private int principalsPerAcl = getInteger("fcrepo.generator.principalsPerAcl", 3);
+
+    private int rolesPerPrincipal = getInteger("fcrepo.generator.rolesPerPrincipal", 1);
+
+    private double binaryShare = getDouble("fcrepo.generator.binaryShare", 0.2);
+
+    private int binarySize = getInteger("fcrepo.generator.binarySize", 256);
+
+    private long seed = Long.getLong("fcrepo.generator.seed", 42L);
+
+    private int batchSize = getInteger("fcrepo.generator.batchSize", 500);
+
+    /**
+     * Describe the tree below a root, parents before children. The root itself is the first object.
+     *
+     * @param root the absolute path of the root container
+     * @param consumer receives each container
+     */
+    public void generate(final String root, final Consumer<RolesFadTestObjectBean> consumer) {
+        final Random random = new Random(seed);
+        visit(root, 0, random, consumer);
+    }
+
+    /**
+     * @param root the absolute path of the root container
+     * @return every container below and including the root
+     */
+    public List<RolesFadTestObjectBean> objects(final String root) {
+        final List<RolesFadTestObjectBean> objects = new ArrayList<>();
+        generate(root, objects::add);
+        return objects;
+    }
+
+    /**
+     * Write the tree below a root, committing every {@code batchSize} nodes and once more at the end.
+     *
+     * @param root the absolute path of the root container, whose parent must exist
+     * @param sink where to write
+     * @return the number of containers and binaries written
+     * @throws RepositoryException if the tree cannot be written
+     */
+    public int write(final String root, final TreeSink sink) throws RepositoryException {
+        final BatchWriter writer = new BatchWriter(sink);
+        try {
+            generate(root, writer);
+        } catch (final WriteFailure e) {
+            throw e.failure;
+        }
+        sink.commit();
+        return writer.written;
+    }
+
+    private void visit(final String path, final int level, final Random random,
+            final Consumer<RolesFadTestObjectBean> consumer) {
+        final RolesFadTestObjectBean object = new RolesFadTestObjectBean();
+        object.setPath(path);
+        if (random.nextDouble() < aclShare) {
+            acl(random).forEach((principal, roles) -> roles.forEach(role -> object.addACL(principal, role)));
+        }
+        final List<String> children = new ArrayList<>();
+        if (level < depth) {
+            for (int i = 0; i < fanout; i++) {
+                if (random.nextDouble() < binaryShare) {
+                    final String dsid = "binary-" + i;
+                    object.addDatastream(dsid, content());
+                    if (random.nextDouble() < aclShare) {
+                        acl(random).forEach((principal, roles) -> roles.forEach(role ->
+                                object.addDatastreamACL(dsid, principal, role)));
+                    }
+                } else {
+                    children.add(path + "/node-" + i);
+                }
+            }
+        }
+        consumer.accept(object);
+        for (final String child : children) {
+            visit(child, level + 1, random, consumer);
+        }
+    }
+
+    private Map<String, Set<String>> acl(final Random random) {
+        final Map<String, Set<String>> acl = new HashMap<>();
+        final int size = min(principalsPerAcl, principals);
+        while (acl.size() < size) {
+            final Set<String> roles = new HashSet<>();
+            final int count = min(rolesPerPrincipal, ROLES.length);
+            while (roles.size() < count) {
+                roles.add(ROLES[random.nextInt(ROLES.length)]);
+            }
+            acl.put(principalPrefix + random.nextInt(principals), roles);
+        }
+        return acl;
+    }
+
+    private String content() {
+        final char[] content = new char[binarySize];
+        fill(content, 'x');
+        return new String(content);
+    }
+
+    /**
+     * Groups the single-entry ACL maps of a test object bean by principal.
+     *
+     * @param acls the bean's ACL entries
+     * @return the roles of each principal
+     */
+    static Map<String, Set<String>> group(final List<Map<String, String>> acls) {
+        final Map<String, Set<String>> grouped = new HashMap<>();
+        for (final Map<String, String> entries : acls) {
+            entries.forEach((principal, role) -> grouped.computeIfAbsent(principal, p -> new HashSet<>()).add(role));
+        }
+        return grouped;
+    }
+
+    private static double getDouble(final String property, final double defaultValue) {
+        final String value = System.getProperty(property);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    /**
+     * Carries a {@link RepositoryException} out of the generating consumer.
+     */
+    private static final class WriteFailure extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RepositoryException failure;
+
+        private WriteFailure(final RepositoryException cause) {
+            super(cause);
+            this.failure = cause;
+        }
+    }
+
+    private final class BatchWriter implements Consumer<RolesFadTestObjectBean> {
+
+        private final TreeSink sink;
+
+        private int written;
+
+        private int unsaved;
+
+        private BatchWriter(final TreeSink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void accept(final RolesFadTestObjectBean object) {
+            try {
+                sink.container(object.getPath());
+                count();
+                if (!object.getACLs().isEmpty()) {
+                    sink.roles(object.getPath(), group(object.getACLs()));
+                }
+                for (final Map<String, String> datastream : object.getDatastreams()) {
+                    for (final Map.Entry<String, String> entry : datastream.entrySet()) {
+                        final String path = object.getPath() + "/" + entry.getKey();
+                        sink.binary(path, entry.getValue().getBytes(UTF_8));
+                        count();
+                        final List<Map<String, String>> acls = object.getDatastreamACLs(entry.getKey());
+                        if (acls != null) {
+                            sink.roles(path, group(acls));
+                        }
+                    }
+                }
+            } catch (final RepositoryException e) {
+                throw new WriteFailure(e);
+            }
+        }
+
+        private void count() throws RepositoryException {
+            written++;
+            if (++unsaved >= batchSize) {
+                sink.commit();
+                unsaved = 0;
+            }
+        }
+    }
+
+    /**
+     * @param depth the number of levels below the root
+     */
+    public void setDepth(final int depth) {
+        this.depth = depth;
+    }
+
+    /**
+     * @param fanout the number of children of each container above the deepest level
+     */
+    public void setFanout(final int fanout) {
+        this.fanout = fanout;
+    }
+
+    /**
+     * @param aclShare the probability, between 0 and 1, that a node carries its own ACL
+     */
+    public void setAclShare(final double aclShare) {
+        this.aclShare = aclShare;
+    }
+
+    /**
+     * @param principals the number of distinct principals ACLs draw from
+     */
+    public void setPrincipals(final int principals) {
+        this.principals = principals;
+    }
+
+    /**
+     * @param principalPrefix the prefix of generated principal names, which are numbered from 0
+     */
+    public void setPrincipalPrefix(final String principalPrefix) {
+        this.principalPrefix = principalPrefix;
+    }
+
+    /**
+     * @param principalsPerAcl the number of principals in each ACL
+     */
+    public void setPrincipalsPerAcl(final int principalsPerAcl) {
+        this.principalsPerAcl = principalsPerAcl;
+    }
+
+    /**
+     * @param rolesPerPrincipal the number of roles each principal has in an ACL, at most 3
+     */
+    public void setRolesPerPrincipal(final int rolesPerPrincipal) {
+        this.rolesPerPrincipal = rolesPerPrincipal;
+    }
+
+    /**
+     * @param binaryShare the probability, between 0 and 1, that a child is a binary rather than a container
+     */
+    public void setBinaryShare(final double binaryShare) {
+        this.binaryShare = binaryShare;
+    }
+
+    /**
+     * @param binarySize the size of each binary in bytes
+     */
+    public void setBinarySize(final int binarySize) {
+        this.binarySize = binarySize;
+    }
+
+    /**
+     * @param seed the seed of the generated tree
+     */
+    public void setSeed(final long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param batchSize the number of nodes written between commits
+     */
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+}
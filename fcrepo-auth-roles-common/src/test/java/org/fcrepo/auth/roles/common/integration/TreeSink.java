@@ -0,0 +1,57 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common.integration;
+
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.RepositoryException;
+
+/**
+ * Where a {@link RepositoryGenerator} writes the tree it generates. Parents are always written before their
+ * children, and a node before its roles.
+ */
+public interface TreeSink {
+
+    /**
+     * @param path the absolute path of a container to create
+     * @throws RepositoryException if the container cannot be created
+     */
+    void container(final String path) throws RepositoryException;
+
+    /**
+     * @param path the absolute path of a binary to create
+     * @param content its content
+     * @throws RepositoryException if the binary cannot be created
+     */
+    void binary(final String path, final byte[] content) throws RepositoryException;
+
+    /**
+     * @param path the absolute path of a container or binary written earlier
+     * @param roles the roles of each principal
+     * @throws RepositoryException if the roles cannot be assigned
+     */
+    void roles(final String path, final Map<String, Set<String>> roles) throws RepositoryException;
+
+    /**
+     * Persist everything written since the last commit.
+     *
+     * @throws RepositoryException if the changes cannot be saved
+     */
+    void commit() throws RepositoryException;
+}
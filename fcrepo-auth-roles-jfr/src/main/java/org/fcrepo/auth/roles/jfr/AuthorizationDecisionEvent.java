@@ -0,0 +1,86 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.jfr;
+
+import java.util.Arrays;
+
+import org.fcrepo.auth.roles.common.AuthorizationTrace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a decision made by an authorization delegate. Only referenced through
+ * {@link FlightRecorderEventSink}.
+ */
+@Name("org.fcrepo.auth.roles.AuthorizationDecision")
+@Label("Authorization Decision")
+@Description("A roles-based permission check and the ACL that governed it")
+@Category({"Fedora", "Authorization"})
+@StackTrace(false)
+class AuthorizationDecisionEvent extends Event {
+
+    private static final EventType TYPE = EventType.getEventType(AuthorizationDecisionEvent.class);
+
+    @Label("Path")
+    String path;
+
+    @Label("Actions")
+    String actions;
+
+    @Label("Permitted")
+    boolean permitted;
+
+    @Label("Governing ACL Path")
+    String governingAclPath;
+
+    @Label("Walk Depth")
+    int walkDepth;
+
+    @Label("Principal Count")
+    int principalCount;
+
+    static boolean isTypeEnabled() {
+        return TYPE.isEnabled();
+    }
+
+    static Object open() {
+        final AuthorizationDecisionEvent event = new AuthorizationDecisionEvent();
+        event.begin();
+        return event;
+    }
+
+    static void record(final Object handle, final AuthorizationTrace trace) {
+        final AuthorizationDecisionEvent event = (AuthorizationDecisionEvent) handle;
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = trace.getPath();
+            event.actions = Arrays.toString(trace.getActions());
+            event.permitted = trace.isPermitted();
+            event.governingAclPath = trace.getGoverningAclPath();
+            event.walkDepth = trace.getWalkDepth();
+            event.principalCount = trace.getPrincipalCount();
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.jfr;
+
+import org.fcrepo.auth.roles.common.AuthorizationEventSink;
+import org.fcrepo.auth.roles.common.AuthorizationTrace;
+
+/**
+ * Emits authorization decisions and role lookups as Java Flight Recorder events. When the event types are disabled
+ * the cost is a call to {@code EventType.isEnabled()} per decision or lookup, which reads the settings of the running
+ * recordings; it is not cached, so that a recording started later is seen at once.
+ */
+public class FlightRecorderEventSink implements AuthorizationEventSink {
+
+    @Override
+    public boolean isDecisionEnabled() {
+        return AuthorizationDecisionEvent.isTypeEnabled();
+    }
+
+    @Override
+    public Object beginDecision() {
+        return AuthorizationDecisionEvent.open();
+    }
+
+    @Override
+    public void commitDecision(final Object event, final AuthorizationTrace trace) {
+        AuthorizationDecisionEvent.record(event, trace);
+    }
+
+    @Override
+    public boolean isLookupEnabled() {
+        return RolesLookupEvent.isTypeEnabled();
+    }
+
+    @Override
+    public Object beginLookup() {
+        return RolesLookupEvent.open();
+    }
+
+    @Override
+    public void commitLookup(final Object event, final String path, final boolean effective, final String aclPath,
+            final int depth) {
+        RolesLookupEvent.record(event, path, effective, aclPath, depth);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a role lookup made by the ACL roles provider. Only referenced through
+ * {@link FlightRecorderEventSink}.
+ */
+@Name("org.fcrepo.auth.roles.RolesLookup")
+@Label("Roles Lookup")
+@Description("A search for the ACL assigned to, or governing, a node")
+@Category({"Fedora", "Authorization"})
+@StackTrace(false)
+class RolesLookupEvent extends Event {
+
+    private static final EventType TYPE = EventType.getEventType(RolesLookupEvent.class);
+
+    @Label("Path")
+    String path;
+
+    @Label("Effective")
+    boolean effective;
+
+    @Label("Governing ACL Path")
+    String governingAclPath;
+
+    @Label("Walk Depth")
+    int walkDepth;
+
+    static boolean isTypeEnabled() {
+        return TYPE.isEnabled();
+    }
+
+    static Object open() {
+        final RolesLookupEvent event = new RolesLookupEvent();
+        event.begin();
+        return event;
+    }
+
+    static void record(final Object handle, final String path, final boolean effective, final String aclPath,
+            final int depth) {
+        final RolesLookupEvent event = (RolesLookupEvent) handle;
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = path;
+            event.effective = effective;
+            event.governingAclPath = aclPath;
+            event.walkDepth = depth;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.jfr;
+
+import static java.nio.file.Files.createTempFile;
+import static java.nio.file.Files.delete;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceLoader;
+
+import org.fcrepo.auth.roles.common.AuthorizationEventSink;
+import org.fcrepo.auth.roles.common.AuthorizationTrace;
+import org.junit.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class FlightRecorderEventSinkTest {
+
+    private static final String DECISION = "org.fcrepo.auth.roles.AuthorizationDecision";
+
+    private static final String LOOKUP = "org.fcrepo.auth.roles.RolesLookup";
+
+    private final FlightRecorderEventSink sink = new FlightRecorderEventSink();
+
+    @Test
+    public void shouldBeFoundByServiceLoader() {
+        final Iterator<AuthorizationEventSink> sinks = ServiceLoader.load(AuthorizationEventSink.class).iterator();
+        assertTrue("The sink should be registered as a service", sinks.hasNext());
+        assertTrue(sinks.next() instanceof FlightRecorderEventSink);
+    }
+
+    @Test
+    public void shouldBeDisabledWithoutRecording() {
+        assertFalse(sink.isDecisionEnabled());
+        assertFalse(sink.isLookupEnabled());
+    }
+
+    @Test
+    public void shouldRecordDecision() throws IOException {
+        final List<RecordedEvent> events;
+        try (final Recording recording = new Recording()) {
+            recording.enable(DECISION);
+            recording.start();
+            assertTrue(sink.isDecisionEnabled());
+
+            final Object event = sink.beginDecision();
+            final AuthorizationTrace trace = AuthorizationTrace.start("/a/b", new String[] {"read"});
+            trace.finish(true);
+            sink.commitDecision(event, trace);
+
+            recording.stop();
+            events = eventsOf(recording);
+        }
+        assertEquals(1, events.size());
+        assertEquals("/a/b", events.get(0).getString("path"));
+        assertEquals("[read]", events.get(0).getString("actions"));
+        assertTrue(events.get(0).getBoolean("permitted"));
+    }
+
+    @Test
+    public void shouldRecordLookup() throws IOException {
+        final List<RecordedEvent> events;
+        try (final Recording recording = new Recording()) {
+            recording.enable(LOOKUP);
+            recording.start();
+            assertTrue(sink.isLookupEnabled());
+
+            sink.commitLookup(sink.beginLookup(), "/a/b", true, "/a", 1);
+
+            recording.stop();
+            events = eventsOf(recording);
+        }
+        assertEquals(1, events.size());
+        assertEquals("/a/b", events.get(0).getString("path"));
+        assertEquals("/a", events.get(0).getString("governingAclPath"));
+        assertEquals(1, events.get(0).getInt("walkDepth"));
+    }
+
+    private static List<RecordedEvent> eventsOf(final Recording recording) throws IOException {
+        final Path file = createTempFile("authorization", ".jfr");
+        try {
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            delete(file);
+        }
+    }
+}